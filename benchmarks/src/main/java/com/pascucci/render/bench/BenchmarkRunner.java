@@ -0,0 +1,26 @@
+package com.pascucci.render.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point for the benchmark jar. Behaves like the stock JMH main, except
+ * that the GC profiler is always attached so every run reports allocation per
+ * operation alongside the timings.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class BenchmarkRunner {
+	public static void main(String[] args) throws RunnerException,
+			CommandLineOptionException {
+		CommandLineOptions cmdOptions = new CommandLineOptions(args);
+		Options options = new OptionsBuilder().parent(cmdOptions)
+				.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,201 @@
+package com.pascucci.render.bench;
+
+import java.awt.Color;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import com.pascucci.render.engine.Camera;
+import com.pascucci.render.engine.Entity3D;
+import com.pascucci.render.engine.Face;
+import com.pascucci.render.engine.InstancedEntity3D;
+import com.pascucci.render.engine.Material;
+import com.pascucci.render.engine.Mesh;
+import com.pascucci.render.engine.Point3D;
+import com.pascucci.render.engine.Scene;
+import com.pascucci.render.engine.Transform3D;
+import com.pascucci.render.engine.Vector3D;
+import com.pascucci.render.utils.Utils3D;
+
+/**
+ * Builds the scenes, meshes and files the benchmarks run against. Everything
+ * is generated from a fixed seed so numbers are comparable between runs.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class Fixtures {
+
+	public static final long SEED = 0x5eed;
+	private static final Material MATERIAL = new Material(Color.DARK_GRAY);
+
+	/**
+	 * Creates a scene holding a cubesPerSide^3 grid of translucent cubes, laid
+	 * out the same way as the default SceneView scene.
+	 * 
+	 * @param cubesPerSide
+	 * @return
+	 */
+	public static Scene cubeGrid(int cubesPerSide) {
+		Scene scene = new Scene();
+		scene.setCamera(new Camera(0, 0, 800));
+		int spacing = 100;
+		double offset = (cubesPerSide - 1) * spacing / 2.0;
+		for (int i = 0; i < cubesPerSide; i++) {
+			for (int j = 0; j < cubesPerSide; j++) {
+				for (int k = 0; k < cubesPerSide; k++) {
+					Entity3D cube = Utils3D.cube(50, i * spacing - offset, j
+							* spacing - offset, k * spacing - offset);
+					cube.setName("Cube " + i + ", " + j + ", " + k);
+					cube.setColor(new Color(255, 255, 255, 180));
+					cube.setBorderColor(new Color(0, 0, 0, 0));
+					scene.addEntity(cube);
+				}
+			}
+		}
+		return scene;
+	}
+
+	/**
+	 * Same as cubeGrid, but every cube is an instance of one shared mesh.
+	 * 
+	 * @param cubesPerSide
+	 * @return
+	 */
+	public static Scene instancedCubeGrid(int cubesPerSide) {
+		Scene scene = new Scene();
+		scene.setCamera(new Camera(0, 0, 800));
+		Mesh mesh = Mesh.fromEntity(Utils3D.cube(50));
+		int spacing = 100;
+		double offset = (cubesPerSide - 1) * spacing / 2.0;
+		for (int i = 0; i < cubesPerSide; i++) {
+			for (int j = 0; j < cubesPerSide; j++) {
+				for (int k = 0; k < cubesPerSide; k++) {
+					InstancedEntity3D cube = new InstancedEntity3D(mesh);
+					Transform3D.translate(cube, new Vector3D(i * spacing
+							- offset, j * spacing - offset, k * spacing
+							- offset));
+					cube.setName("Cube " + i + ", " + j + ", " + k);
+					cube.setColor(new Color(255, 255, 255, 180));
+					cube.setBorderColor(new Color(0, 0, 0, 0));
+					scene.addEntity(cube);
+				}
+			}
+		}
+		return scene;
+	}
+
+	/**
+	 * Creates a dense assembly: a grid of opaque instanced cubes, packed
+	 * closer than in cubeGrid, inside an opaque housing with one open side
+	 * facing away from the camera. From the default camera almost every part
+	 * is hidden behind the housing.
+	 * 
+	 * @param cubesPerSide
+	 * @return
+	 */
+	public static Scene housedCubeGrid(int cubesPerSide) {
+		Scene scene = new Scene();
+		scene.setCamera(new Camera(0, 0, 800));
+		Mesh mesh = Mesh.fromEntity(Utils3D.cube(50));
+		int spacing = 60;
+		double offset = (cubesPerSide - 1) * spacing / 2.0;
+		for (int i = 0; i < cubesPerSide; i++) {
+			for (int j = 0; j < cubesPerSide; j++) {
+				for (int k = 0; k < cubesPerSide; k++) {
+					InstancedEntity3D cube = new InstancedEntity3D(mesh);
+					Transform3D.translate(cube, new Vector3D(i * spacing
+							- offset, j * spacing - offset, k * spacing
+							- offset));
+					cube.setName("Part " + i + ", " + j + ", " + k);
+					cube.setColor(new Color(120 + 8 * i, 120 + 8 * j,
+							120 + 8 * k));
+					cube.setBorderColor(Color.BLACK);
+					scene.addEntity(cube);
+				}
+			}
+		}
+		Entity3D housing = Utils3D.cube(cubesPerSide * spacing + 40);
+		// Open the back, so the parts can be seen from behind.
+		for (int i = housing.getFaces().size() - 1; i >= 0; i--) {
+			boolean back = true;
+			for (Point3D p : housing.getFaces().get(i).getPoints()) {
+				back &= p.z < 0;
+			}
+			if (back)
+				housing.getFaces().remove(i);
+		}
+		housing.setName("Housing");
+		housing.setColor(new Color(90, 100, 110));
+		housing.setBorderColor(Color.BLACK);
+		scene.addEntity(housing);
+		return scene;
+	}
+
+	/**
+	 * Creates an entity made of unconnected random triangles inside a 400 unit
+	 * box around the origin.
+	 * 
+	 * @param faceCount
+	 * @return
+	 */
+	public static Entity3D randomMesh(int faceCount) {
+		Random random = new Random(SEED);
+		Entity3D entity = new Entity3D();
+		for (int i = 0; i < faceCount; i++) {
+			Point3D[] points = new Point3D[3];
+			for (int j = 0; j < 3; j++) {
+				points[j] = new Point3D(random.nextDouble() * 400 - 200,
+						random.nextDouble() * 400 - 200,
+						random.nextDouble() * 400 - 200);
+			}
+			Face f = new Face(points);
+			f.setMaterial(MATERIAL);
+			entity.addPoints(points);
+			entity.addFace(f);
+		}
+		entity.setName("Random mesh (" + faceCount + " faces)");
+		return entity;
+	}
+
+	/**
+	 * Writes a binary STL file with the given number of random triangles to a
+	 * temporary file, which is deleted when the JVM exits.
+	 * 
+	 * @param faceCount
+	 * @return The new file.
+	 * @throws IOException
+	 */
+	public static File randomSTL(int faceCount) throws IOException {
+		File file = File.createTempFile("bench-" + faceCount + "-", ".stl");
+		file.deleteOnExit();
+		Random random = new Random(SEED);
+		// STLUtils reads in native order, so write the same way.
+		ByteBuffer record = ByteBuffer.allocate(50).order(
+				ByteOrder.nativeOrder());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			out.write(new byte[80]);
+			out.write(ByteBuffer.allocate(4).order(ByteOrder.nativeOrder())
+					.putInt(faceCount).array());
+			for (int i = 0; i < faceCount; i++) {
+				record.clear();
+				// Normal, which the loader recomputes anyway.
+				record.putFloat(0).putFloat(0).putFloat(1);
+				for (int j = 0; j < 9; j++) {
+					record.putFloat(random.nextFloat() * 400 - 200);
+				}
+				record.putShort((short) 0);
+				out.write(record.array());
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}
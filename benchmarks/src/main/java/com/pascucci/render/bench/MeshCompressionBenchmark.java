@@ -0,0 +1,83 @@
+package com.pascucci.render.bench;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pascucci.render.engine.Camera;
+import com.pascucci.render.engine.InstancedEntity3D;
+import com.pascucci.render.engine.Mesh;
+import com.pascucci.render.engine.Renderer;
+import com.pascucci.render.engine.Scene;
+import com.pascucci.render.engine.Transform3D;
+
+/**
+ * Measures a frame of one large mesh, at full precision or compressed, to
+ * show what decoding the compressed mesh every frame costs. The mesh is drawn
+ * small, so filling its random triangles doesn't swamp the geometry work.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class MeshCompressionBenchmark {
+
+	@Param({ "100000", "1000000" })
+	public int faces;
+
+	@Param({ "false", "true" })
+	public boolean compressed;
+
+	private static final int WIDTH = 1280;
+	private static final int HEIGHT = 720;
+
+	private Scene scene;
+	private Renderer renderer;
+	private BufferedImage image;
+
+	@Setup(Level.Trial)
+	public void createScene() {
+		Mesh mesh = Mesh.fromEntity(Fixtures.randomMesh(faces));
+		if (compressed)
+			mesh = mesh.compress();
+		InstancedEntity3D entity = new InstancedEntity3D(mesh);
+		entity.setColor(Color.DARK_GRAY);
+		scene = new Scene();
+		scene.setCamera(new Camera(0, 0, 800));
+		scene.addEntity(entity);
+		renderer = new Renderer();
+		renderer.setScale(.05);
+		renderer.setOrderIndependentTransparency(true);
+		image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+	}
+
+	@Benchmark
+	public BufferedImage rotateAndRender() {
+		Transform3D.rotateScene(scene, .01, .02);
+		Graphics2D g2 = image.createGraphics();
+		try {
+			renderer.renderScene(g2, scene, WIDTH, HEIGHT);
+		} finally {
+			g2.dispose();
+		}
+		return image;
+	}
+}
@@ -0,0 +1,77 @@
+package com.pascucci.render.bench;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pascucci.render.engine.Renderer;
+import com.pascucci.render.engine.Scene;
+import com.pascucci.render.engine.Transform3D;
+
+/**
+ * Measures a full frame of a dense assembly, where almost everything is hidden
+ * inside a housing, with and without occlusion culling.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class OcclusionBenchmark {
+
+	/** Parts along each axis inside the housing. */
+	@Param({ "8", "16" })
+	public int cubesPerSide;
+
+	@Param({ "false", "true" })
+	public boolean orderIndependent;
+
+	@Param({ "false", "true" })
+	public boolean occlusionCulling;
+
+	private static final int WIDTH = 1280;
+	private static final int HEIGHT = 720;
+
+	private Scene scene;
+	private Renderer renderer;
+	private BufferedImage image;
+
+	@Setup(Level.Trial)
+	public void createScene() {
+		scene = Fixtures.housedCubeGrid(cubesPerSide);
+		// Turn it a little, so the housing shows three sides.
+		Transform3D.rotateScene(scene, .3, .4);
+		renderer = new Renderer();
+		renderer.setScale(720.0 / (cubesPerSide * 60 + 400));
+		renderer.setOrderIndependentTransparency(orderIndependent);
+		renderer.setOcclusionCulling(occlusionCulling);
+		image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+	}
+
+	@Benchmark
+	public BufferedImage renderScene() {
+		Graphics2D g2 = image.createGraphics();
+		try {
+			renderer.renderScene(g2, scene, WIDTH, HEIGHT);
+		} finally {
+			g2.dispose();
+		}
+		return image;
+	}
+}
@@ -0,0 +1,88 @@
+package com.pascucci.render.bench;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pascucci.render.engine.BoundingBox;
+import com.pascucci.render.engine.Entity3D;
+import com.pascucci.render.engine.Octree;
+import com.pascucci.render.engine.Point3D;
+import com.pascucci.render.engine.Scene;
+import com.pascucci.render.engine.Transform3D;
+
+/**
+ * Measures scene index queries on a grid of instanced cubes, plus the cost of
+ * bringing the index up to date after the whole scene is rotated.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class OctreeBenchmark {
+
+	@Param({ "8", "16", "32" })
+	public int cubesPerSide;
+
+	private Scene scene;
+	private Octree index;
+	private double extent;
+	private Random random;
+	private ArrayList<Entity3D> result;
+
+	@Setup(Level.Trial)
+	public void createScene() {
+		scene = Fixtures.instancedCubeGrid(cubesPerSide);
+		index = scene.getIndex();
+		extent = cubesPerSide * 50;
+		random = new Random(Fixtures.SEED);
+		result = new ArrayList<Entity3D>();
+	}
+
+	private double coordinate() {
+		return (random.nextDouble() * 2 - 1) * extent;
+	}
+
+	@Benchmark
+	public Entity3D nearest() {
+		return index.findNearest(new Point3D(coordinate(), coordinate(),
+				coordinate()));
+	}
+
+	@Benchmark
+	public int box() {
+		double x = coordinate();
+		double y = coordinate();
+		double z = coordinate();
+		result.clear();
+		index.findInBox(new BoundingBox(x - 100, y - 100, z - 100, x + 100,
+				y + 100, z + 100), result);
+		return result.size();
+	}
+
+	@Benchmark
+	public int rotateAndQuery() {
+		Transform3D.rotateScene(scene, .01, .02);
+		result.clear();
+		index.findInBox(new BoundingBox(-100, -100, -100, 100, 100, 100),
+				result);
+		return result.size();
+	}
+}
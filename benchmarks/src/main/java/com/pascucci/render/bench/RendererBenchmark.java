@@ -0,0 +1,79 @@
+package com.pascucci.render.bench;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pascucci.render.engine.Renderer;
+import com.pascucci.render.engine.Scene;
+
+/**
+ * Measures a full frame of Renderer.renderScene into an offscreen image, for
+ * grids of cubes built with Utils3D.cube.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RendererBenchmark {
+
+	/** Cubes along each axis; the scene holds the cube of this many. */
+	@Param({ "4", "8", "16" })
+	public int cubesPerSide;
+
+	@Param({ "false", "true" })
+	public boolean wireframe;
+
+	@Param({ "false", "true" })
+	public boolean orderIndependent;
+
+	/** Whether the cubes are separate entities or instances of one mesh. */
+	@Param({ "false", "true" })
+	public boolean instanced;
+
+	private static final int WIDTH = 1280;
+	private static final int HEIGHT = 720;
+
+	private Scene scene;
+	private Renderer renderer;
+	private BufferedImage image;
+
+	@Setup(Level.Trial)
+	public void createScene() {
+		scene = instanced ? Fixtures.instancedCubeGrid(cubesPerSide)
+				: Fixtures.cubeGrid(cubesPerSide);
+		renderer = new Renderer();
+		renderer.setWireframe(wireframe);
+		renderer.setOrderIndependentTransparency(orderIndependent);
+		image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+	}
+
+	@Benchmark
+	public BufferedImage renderScene() {
+		// Each frame gets a fresh graphics object, just like a Swing repaint.
+		Graphics2D g2 = image.createGraphics();
+		try {
+			renderer.renderScene(g2, scene, WIDTH, HEIGHT);
+		} finally {
+			g2.dispose();
+		}
+		return image;
+	}
+}
@@ -0,0 +1,51 @@
+package com.pascucci.render.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pascucci.render.engine.Entity3D;
+import com.pascucci.render.utils.STLUtils;
+
+/**
+ * Measures parsing binary STL files into entities. The files are generated
+ * once per trial, so the OS page cache keeps disk speed out of the numbers.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class STLBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int faces;
+
+	private File file;
+
+	@Setup(Level.Trial)
+	public void writeFile() throws IOException {
+		file = Fixtures.randomSTL(faces);
+	}
+
+	@Benchmark
+	public Entity3D entityFromSTL() {
+		return STLUtils.entityFromSTL(file, null);
+	}
+}
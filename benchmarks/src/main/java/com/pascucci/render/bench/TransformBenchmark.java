@@ -0,0 +1,84 @@
+package com.pascucci.render.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pascucci.render.engine.Entity3D;
+import com.pascucci.render.engine.Scene;
+import com.pascucci.render.engine.Transform3D;
+import com.pascucci.render.engine.Vector3D;
+
+/**
+ * Measures the Transform3D rotations, both for a single large entity and for
+ * the whole-scene rotation SceneView performs while the view is dragged.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class TransformBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int faces;
+
+	// Small enough that repeated rotation stays well conditioned.
+	private static final double THETA = Math.PI / 360;
+
+	private Entity3D entity;
+	private Scene scene;
+	private Vector3D axis;
+
+	@Setup(Level.Trial)
+	public void createEntity() {
+		entity = Fixtures.randomMesh(faces);
+		scene = new Scene();
+		scene.addEntity(entity);
+		axis = new Vector3D(1, 1, 1);
+	}
+
+	@Benchmark
+	public Entity3D rotateX() {
+		Transform3D.rotate(Transform3D.X_AXIS, entity, THETA);
+		return entity;
+	}
+
+	@Benchmark
+	public Entity3D rotateY() {
+		Transform3D.rotate(Transform3D.Y_AXIS, entity, THETA);
+		return entity;
+	}
+
+	@Benchmark
+	public Entity3D rotateZ() {
+		Transform3D.rotate(Transform3D.Z_AXIS, entity, THETA);
+		return entity;
+	}
+
+	@Benchmark
+	public Entity3D rotateAxis() {
+		Transform3D.rotate(axis, entity, THETA);
+		return entity;
+	}
+
+	@Benchmark
+	public Scene rotateScene() {
+		Transform3D.rotateScene(scene, THETA, THETA);
+		return scene;
+	}
+}
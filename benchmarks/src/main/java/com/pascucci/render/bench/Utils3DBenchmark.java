@@ -0,0 +1,52 @@
+package com.pascucci.render.bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.pascucci.render.engine.Face;
+import com.pascucci.render.utils.Utils3D;
+
+/**
+ * Measures face normal calculation, which the renderer performs several times
+ * per face per frame.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class Utils3DBenchmark {
+
+	private static final int FACES = 1024;
+
+	private ArrayList<Face> faces;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void createFaces() {
+		faces = Fixtures.randomMesh(FACES).getFaces();
+	}
+
+	@Benchmark
+	public void normal(Blackhole bh) {
+		// Walk the faces so the same one isn't being answered from cache.
+		next = (next + 1) & (FACES - 1);
+		bh.consume(Utils3D.normal(faces.get(next)));
+	}
+}
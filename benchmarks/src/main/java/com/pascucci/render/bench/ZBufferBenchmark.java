@@ -0,0 +1,65 @@
+package com.pascucci.render.bench;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pascucci.render.engine.Face;
+import com.pascucci.render.engine.ZBuffer;
+
+/**
+ * Measures the painter's algorithm depth sort. Depths are reshuffled before
+ * every call, since sorting an already sorted buffer is not what a rotating
+ * scene looks like.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ZBufferBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int faces;
+
+	private ZBuffer buffer;
+	private ArrayList<Face> sorted;
+	private Random random;
+
+	@Setup(Level.Trial)
+	public void createBuffer() {
+		buffer = new ZBuffer();
+		buffer.addEntity(Fixtures.randomMesh(faces));
+		sorted = buffer.getSortedFaces();
+		random = new Random(Fixtures.SEED);
+	}
+
+	@Setup(Level.Invocation)
+	public void shuffleDepths() {
+		for (Face f : sorted) {
+			f.zavg = random.nextDouble() * 400 - 200;
+		}
+	}
+
+	@Benchmark
+	public ArrayList<Face> sort() {
+		buffer.sort();
+		return buffer.getSortedFaces();
+	}
+}
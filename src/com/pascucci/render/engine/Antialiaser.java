@@ -0,0 +1,321 @@
+package com.pascucci.render.engine;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Antialiases finished frames instead of the primitives in them, so the cost
+ * depends only on the number of pixels and not on how many faces were drawn.
+ * The renderer draws into this object's frame without antialiasing, then
+ * either filters its edges or averages it down from a larger size.
+ *
+ * The edge filter works like FXAA (Lottes, 2009): where the brightness of a
+ * pixel's neighbours shows an edge, the pixel is blurred a short way along
+ * the edge, which softens the stairsteps. It costs one pass over the pixels.
+ *
+ * Supersampling draws the frame at a multiple of its size and averages each
+ * square of samples into one pixel. It is the slower but more faithful
+ * choice, costing about as much as drawing that many more pixels.
+ *
+ * The renderer also draws frames at reduced resolution here, to be scaled up
+ * to the size of the output.
+ *
+ * Translucent faces can be blended into the frame here rather than filled
+ * with Java2D. Without antialiasing, Java2D composites translucent fills
+ * through a general path which allocates for every span, many times slower
+ * than antialiased or opaque fills.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class Antialiaser {
+	// Contrast below which a pixel isn't on an edge, as a shift of the
+	// brightest neighbour, and the least contrast which is, out of 255
+	private static final int EDGE_THRESHOLD_SHIFT = 3;
+	private static final int EDGE_THRESHOLD_MIN = 16;
+	// Limits on how far along an edge a pixel is blurred
+	private static final float SPAN_MAX = 8;
+	private static final float REDUCE_MUL = 1f / 8;
+	private static final float REDUCE_MIN = 1f / 128;
+
+	private BufferedImage frame;
+	private int[] pixels;
+	private int[] luma = new int[0];
+	private double[] crossings = new double[0]; // For blendPolygon
+	private BufferedImage output;
+	private int[] outputPixels;
+
+	// Running sum of the samples being blended
+	private float sumR, sumG, sumB;
+
+	/**
+	 * Gets a graphics object drawing into a frame of the given size, with
+	 * antialiasing turned off. The frame is reused when its size doesn't
+	 * change, and its contents are undefined until drawn over.
+	 *
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public Graphics2D begin(int width, int height) {
+		width = Math.max(width, 1);
+		height = Math.max(height, 1);
+		if (frame == null || frame.getWidth() != width
+				|| frame.getHeight() != height) {
+			frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			pixels = ((DataBufferInt) frame.getRaster().getDataBuffer())
+					.getData();
+		}
+		Graphics2D g2 = frame.createGraphics();
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+				RenderingHints.VALUE_ANTIALIAS_OFF);
+		return g2;
+	}
+
+	/**
+	 * Blends a translucent polygon over the frame. It covers the same pixels
+	 * as a Java2D fill without antialiasing would: those whose centers are
+	 * inside it.
+	 *
+	 * @param xs
+	 * @param ys
+	 * @param n
+	 *            The number of corners.
+	 * @param argb
+	 *            The color, including its alpha.
+	 */
+	public void blendPolygon(int[] xs, int[] ys, int n, int argb) {
+		int width = frame.getWidth();
+		int height = frame.getHeight();
+		int minY = Integer.MAX_VALUE;
+		int maxY = Integer.MIN_VALUE;
+		for (int i = 0; i < n; i++) {
+			minY = Math.min(minY, ys[i]);
+			maxY = Math.max(maxY, ys[i]);
+		}
+		if (crossings.length < n)
+			crossings = new double[n];
+		int alpha = argb >>> 24;
+		int keep = 255 - alpha;
+		// Rounded like Java2D's compositing, so both look the same
+		int r = (((argb >> 16) & 0xff) * alpha + 127) / 255;
+		int g = (((argb >> 8) & 0xff) * alpha + 127) / 255;
+		int b = ((argb & 0xff) * alpha + 127) / 255;
+		int top = Math.max(minY, 0);
+		int bottom = Math.min(maxY - 1, height - 1);
+		for (int y = top; y <= bottom; y++) {
+			// Where the edges cross the row's pixel centers. Java2D
+			// normalizes the corners a quarter pixel down and right of
+			// where they are given, so no edge ends exactly on a center.
+			double center = y + .25;
+			int count = 0;
+			for (int i = 0; i < n; i++) {
+				int j = i + 1 == n ? 0 : i + 1;
+				if ((ys[i] < center) != (ys[j] < center)) {
+					double x = xs[i] + (center - ys[i]) * (xs[j] - xs[i])
+							/ (ys[j] - ys[i]);
+					int k = count++;
+					for (; k > 0 && crossings[k - 1] > x; k--) {
+						crossings[k] = crossings[k - 1];
+					}
+					crossings[k] = x;
+				}
+			}
+			int row = y * width;
+			for (int k = 0; k + 1 < count; k += 2) {
+				int from = Math.max((int) Math.ceil(crossings[k] - .25), 0);
+				int to = Math.min((int) Math.ceil(crossings[k + 1] - .25),
+						width);
+				for (int i = row + from; i < row + to; i++) {
+					int under = pixels[i];
+					int ur = r + (((under >> 16) & 0xff) * keep + 127) / 255;
+					int ug = g + (((under >> 8) & 0xff) * keep + 127) / 255;
+					int ub = b + ((under & 0xff) * keep + 127) / 255;
+					pixels[i] = (ur << 16) | (ug << 8) | ub;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the frame as drawn, without antialiasing it.
+	 *
+	 * @return
+	 */
+	public BufferedImage getFrame() {
+		return frame;
+	}
+
+	/**
+	 * Runs the edge filter over the frame.
+	 *
+	 * @return The filtered frame, valid until the next call.
+	 */
+	public BufferedImage filterEdges() {
+		int width = frame.getWidth();
+		int height = frame.getHeight();
+		int[] out = resizeOutput(width, height);
+		int count = width * height;
+		if (luma.length < count)
+			luma = new int[count];
+		for (int i = 0; i < count; i++) {
+			luma[i] = luma(pixels[i]);
+		}
+		// Pixels on the border of the frame are left as they are.
+		System.arraycopy(pixels, 0, out, 0, width);
+		System.arraycopy(pixels, count - width, out, count - width,
+				width);
+		for (int y = 1; y < height - 1; y++) {
+			int row = y * width;
+			out[row] = pixels[row];
+			out[row + width - 1] = pixels[row + width - 1];
+			for (int x = 1; x < width - 1; x++) {
+				int i = row + x;
+				int m = luma[i];
+				int n = luma[i - width];
+				int s = luma[i + width];
+				int w = luma[i - 1];
+				int e = luma[i + 1];
+				int min = Math.min(m, Math.min(Math.min(n, s), Math.min(w, e)));
+				int max = Math.max(m, Math.max(Math.max(n, s), Math.max(w, e)));
+				// Most pixels aren't on an edge, so this test is kept cheap.
+				if (max - min < Math.max(EDGE_THRESHOLD_MIN,
+						max >> EDGE_THRESHOLD_SHIFT)) {
+					out[i] = pixels[i];
+				} else {
+					out[i] = filterPixel(x, y, i, width, height, min, max);
+				}
+			}
+		}
+		return output;
+	}
+
+	/**
+	 * Blurs a pixel on an edge along the edge.
+	 * 
+	 * @param min
+	 * @param max
+	 *            The range of brightness of the pixel and the four next to
+	 *            it.
+	 */
+	private int filterPixel(int x, int y, int i, int width, int height,
+			int min, int max) {
+		float nw = luma[i - width - 1] / 255f;
+		float ne = luma[i - width + 1] / 255f;
+		float sw = luma[i + width - 1] / 255f;
+		float se = luma[i + width + 1] / 255f;
+		int low = Math.min(min, Math.min(Math.min(luma[i - width - 1],
+				luma[i - width + 1]), Math.min(luma[i + width - 1],
+				luma[i + width + 1])));
+		int high = Math.max(max, Math.max(Math.max(luma[i - width - 1],
+				luma[i - width + 1]), Math.max(luma[i + width - 1],
+				luma[i + width + 1])));
+
+		// Direction along the edge, across the brightness gradient
+		float dirX = (sw + se) - (nw + ne);
+		float dirY = (nw + sw) - (ne + se);
+		float reduce = Math.max((nw + ne + sw + se) * (.25f * REDUCE_MUL),
+				REDUCE_MIN);
+		float scale = 1 / (Math.min(Math.abs(dirX), Math.abs(dirY)) + reduce);
+		dirX = Math.max(-SPAN_MAX, Math.min(SPAN_MAX, dirX * scale));
+		dirY = Math.max(-SPAN_MAX, Math.min(SPAN_MAX, dirY * scale));
+
+		// Two samples close by, and two more further along the edge
+		sumR = sumG = sumB = 0;
+		sample(x - dirX / 6, y - dirY / 6, width, height, .5f);
+		sample(x + dirX / 6, y + dirY / 6, width, height, .5f);
+		float nearR = sumR, nearG = sumG, nearB = sumB;
+		sumR = nearR * .5f;
+		sumG = nearG * .5f;
+		sumB = nearB * .5f;
+		sample(x - dirX / 2, y - dirY / 2, width, height, .25f);
+		sample(x + dirX / 2, y + dirY / 2, width, height, .25f);
+		// The far samples may have run past the end of the edge.
+		float far = .299f * sumR + .587f * sumG + .114f * sumB;
+		if (far < low - .5f || far > high + .5f)
+			return pack(nearR, nearG, nearB);
+		return pack(sumR, sumG, sumB);
+	}
+
+	/**
+	 * Adds a bilinearly interpolated sample of the frame to the running sum.
+	 */
+	private void sample(float x, float y, int width, int height, float weight) {
+		x = Math.max(0, Math.min(width - 1, x));
+		y = Math.max(0, Math.min(height - 1, y));
+		int x0 = Math.min((int) x, width - 2);
+		int y0 = Math.min((int) y, height - 2);
+		float fx = x - x0;
+		float fy = y - y0;
+		int i = y0 * width + x0;
+		add(pixels[i], weight * (1 - fx) * (1 - fy));
+		add(pixels[i + 1], weight * fx * (1 - fy));
+		add(pixels[i + width], weight * (1 - fx) * fy);
+		add(pixels[i + width + 1], weight * fx * fy);
+	}
+
+	private void add(int rgb, float weight) {
+		sumR += ((rgb >> 16) & 0xff) * weight;
+		sumG += ((rgb >> 8) & 0xff) * weight;
+		sumB += (rgb & 0xff) * weight;
+	}
+
+	/**
+	 * Averages each square of samples in the frame into one pixel.
+	 *
+	 * @param factor
+	 *            Samples along each side of a pixel. The frame should be this
+	 *            many times the size of the picture wanted.
+	 * @return The averaged picture, valid until the next call.
+	 */
+	public BufferedImage downsample(int factor) {
+		int frameWidth = frame.getWidth();
+		int width = Math.max(frameWidth / factor, 1);
+		int height = Math.max(frame.getHeight() / factor, 1);
+		int[] out = resizeOutput(width, height);
+		int samples = factor * factor;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int r = 0, g = 0, b = 0;
+				int row = y * factor * frameWidth + x * factor;
+				for (int sy = 0; sy < factor; sy++, row += frameWidth) {
+					for (int sx = 0; sx < factor; sx++) {
+						int rgb = pixels[row + sx];
+						r += (rgb >> 16) & 0xff;
+						g += (rgb >> 8) & 0xff;
+						b += rgb & 0xff;
+					}
+				}
+				out[y * width + x] = ((r / samples) << 16)
+						| ((g / samples) << 8) | (b / samples);
+			}
+		}
+		return output;
+	}
+
+	private int[] resizeOutput(int width, int height) {
+		if (output == null || output.getWidth() != width
+				|| output.getHeight() != height) {
+			output = new BufferedImage(width, height,
+					BufferedImage.TYPE_INT_RGB);
+			outputPixels = ((DataBufferInt) output.getRaster()
+					.getDataBuffer()).getData();
+		}
+		return outputPixels;
+	}
+
+	/**
+	 * Gets the brightness of a color, from 0 to 255.
+	 */
+	private static int luma(int rgb) {
+		return (77 * ((rgb >> 16) & 0xff) + 150 * ((rgb >> 8) & 0xff)
+				+ 29 * (rgb & 0xff)) >> 8;
+	}
+
+	private static int pack(float r, float g, float b) {
+		return (Math.min(255, Math.round(r)) << 16)
+				| (Math.min(255, Math.round(g)) << 8)
+				| Math.min(255, Math.round(b));
+	}
+}
@@ -0,0 +1,534 @@
+package com.pascucci.render.engine;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounding volume hierarchy over a set of triangles, for tracing rays
+ * through a scene. Each node's box holds its triangles; inner nodes are split
+ * where the surface area heuristic says a ray will do the least work,
+ * comparing a handful of candidate planes along each axis (Wald, 2007). Large
+ * subtrees are built in parallel.
+ *
+ * The tree can't be changed once built, so any number of threads may trace
+ * rays through it at once, each with its own Hit.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class BVH {
+	private static final int BINS = 16;
+	private static final int MAX_LEAF_SIZE = 8;
+	// Cost of visiting a node, relative to testing a triangle
+	private static final float TRAVERSAL_COST = 1;
+	// Subtrees with more triangles than this are built on their own thread.
+	private static final int PARALLEL_THRESHOLD = 4096;
+	private static final int STACK_SIZE = 64;
+	private static final float MISS = Float.POSITIVE_INFINITY;
+
+	private final int triangleCount;
+	// First corner and the two edges from it, per triangle, in leaf order
+	private final float[] geometry;
+	private final float[] normals; // Unit normal per triangle
+	private final int[] materials; // Palette index per triangle
+
+	// Nodes; the root is node 0 and a node's children are next to each other.
+	private float[] bounds; // Min x, y, z, then max x, y, z per node
+	private int[] start; // A leaf's first triangle, or an inner node's left child
+	private int[] count; // A leaf's triangles, or 0 for an inner node
+	private final AtomicInteger nodes = new AtomicInteger(1);
+
+	/**
+	 * Where a ray hit, and room for tracing it. Each thread tracing rays
+	 * needs its own.
+	 */
+	public static class Hit {
+		public float t;
+		public int triangle = -1;
+		int[] stack = new int[STACK_SIZE];
+	}
+
+	/**
+	 * Builds a hierarchy over triangles.
+	 *
+	 * @param corners
+	 *            x, y and z of the three corners of each triangle, counter-
+	 *            clockwise around its front.
+	 * @param materials
+	 *            Palette index of each triangle's material.
+	 */
+	public BVH(float[] corners, int[] materials) {
+		int n = materials.length;
+		triangleCount = n;
+		float[] boxes = new float[6 * n];
+		float[] centroids = new float[3 * n];
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+			for (int axis = 0; axis < 3; axis++) {
+				float a = corners[9 * i + axis];
+				float b = corners[9 * i + 3 + axis];
+				float c = corners[9 * i + 6 + axis];
+				float min = Math.min(a, Math.min(b, c));
+				float max = Math.max(a, Math.max(b, c));
+				boxes[6 * i + axis] = min;
+				boxes[6 * i + 3 + axis] = max;
+				centroids[3 * i + axis] = (min + max) * .5f;
+			}
+		}
+		int maxNodes = Math.max(1, 2 * n - 1);
+		bounds = new float[6 * maxNodes];
+		start = new int[maxNodes];
+		count = new int[maxNodes];
+		Builder root = new Builder(boxes, centroids, order, 0, 0, n);
+		if (n > PARALLEL_THRESHOLD)
+			ForkJoinPool.commonPool().invoke(root);
+		else
+			root.compute();
+		int used = nodes.get();
+		bounds = Arrays.copyOf(bounds, 6 * used);
+		start = Arrays.copyOf(start, used);
+		count = Arrays.copyOf(count, used);
+
+		// Lay the triangles out in the order the leaves refer to them.
+		geometry = new float[9 * n];
+		normals = new float[3 * n];
+		this.materials = new int[n];
+		for (int i = 0; i < n; i++) {
+			int t = order[i];
+			int c = 9 * t;
+			int g = 9 * i;
+			geometry[g] = corners[c];
+			geometry[g + 1] = corners[c + 1];
+			geometry[g + 2] = corners[c + 2];
+			for (int k = 0; k < 3; k++) {
+				geometry[g + 3 + k] = corners[c + 3 + k] - corners[c + k];
+				geometry[g + 6 + k] = corners[c + 6 + k] - corners[c + k];
+			}
+			float ex = geometry[g + 3], ey = geometry[g + 4];
+			float ez = geometry[g + 5], fx = geometry[g + 6];
+			float fy = geometry[g + 7], fz = geometry[g + 8];
+			float nx = ey * fz - ez * fy;
+			float ny = ez * fx - ex * fz;
+			float nz = ex * fy - ey * fx;
+			float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (length > 0) {
+				normals[3 * i] = nx / length;
+				normals[3 * i + 1] = ny / length;
+				normals[3 * i + 2] = nz / length;
+			}
+			this.materials[i] = materials[t];
+		}
+	}
+
+	/**
+	 * Builds the subtree under one node from a range of the triangle order,
+	 * which it sorts into the order of its leaves.
+	 */
+	@SuppressWarnings("serial")
+	private class Builder extends RecursiveAction {
+		private final float[] boxes;
+		private final float[] centroids;
+		private final int[] order;
+		private final int node;
+		private final int from;
+		private final int to;
+
+		Builder(float[] boxes, float[] centroids, int[] order, int node,
+				int from, int to) {
+			this.boxes = boxes;
+			this.centroids = centroids;
+			this.order = order;
+			this.node = node;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			int n = to - from;
+			float[] box = new float[] { Float.MAX_VALUE, Float.MAX_VALUE,
+					Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE,
+					-Float.MAX_VALUE };
+			float[] centroidBox = box.clone();
+			for (int i = from; i < to; i++) {
+				int t = order[i];
+				for (int axis = 0; axis < 3; axis++) {
+					box[axis] = Math.min(box[axis], boxes[6 * t + axis]);
+					box[axis + 3] = Math.max(box[axis + 3], boxes[6 * t + 3
+							+ axis]);
+					float c = centroids[3 * t + axis];
+					centroidBox[axis] = Math.min(centroidBox[axis], c);
+					centroidBox[axis + 3] = Math.max(centroidBox[axis + 3], c);
+				}
+			}
+			System.arraycopy(box, 0, bounds, 6 * node, 6);
+			if (n <= 2) {
+				makeLeaf();
+				return;
+			}
+
+			// Find the cheapest split among the bin boundaries on each axis.
+			int bestAxis = -1;
+			int bestBin = 0;
+			float bestCost = Float.MAX_VALUE;
+			int[] binCounts = new int[BINS];
+			float[] binBoxes = new float[6 * BINS];
+			float[] rightAreas = new float[BINS];
+			for (int axis = 0; axis < 3; axis++) {
+				float low = centroidBox[axis];
+				float extent = centroidBox[axis + 3] - low;
+				if (extent <= 0)
+					continue;
+				float binScale = BINS / extent;
+				Arrays.fill(binCounts, 0);
+				for (int b = 0; b < BINS; b++) {
+					resetBox(binBoxes, b);
+				}
+				for (int i = from; i < to; i++) {
+					int t = order[i];
+					int b = bin(centroids[3 * t + axis], low, binScale);
+					binCounts[b]++;
+					growBox(binBoxes, b, boxes, t);
+				}
+				// Sweep from the right, then from the left.
+				float[] sweep = new float[6];
+				resetBox(sweep, 0);
+				for (int b = BINS - 1; b > 0; b--) {
+					unionBox(sweep, binBoxes, b);
+					rightAreas[b] = area(sweep);
+				}
+				resetBox(sweep, 0);
+				int leftCount = 0;
+				for (int b = 0; b < BINS - 1; b++) {
+					unionBox(sweep, binBoxes, b);
+					leftCount += binCounts[b];
+					int rightCount = n - leftCount;
+					if (leftCount == 0 || rightCount == 0)
+						continue;
+					float cost = area(sweep) * leftCount + rightAreas[b + 1]
+							* rightCount;
+					if (cost < bestCost) {
+						bestCost = cost;
+						bestAxis = axis;
+						bestBin = b;
+					}
+				}
+			}
+
+			int middle;
+			if (bestAxis < 0) {
+				// Every centroid is in the same place; split by count.
+				if (n <= MAX_LEAF_SIZE) {
+					makeLeaf();
+					return;
+				}
+				middle = from + n / 2;
+			} else {
+				float leafCost = n * area(box);
+				float splitCost = TRAVERSAL_COST * area(box) + bestCost;
+				if (n <= MAX_LEAF_SIZE && leafCost <= splitCost) {
+					makeLeaf();
+					return;
+				}
+				float low = centroidBox[bestAxis];
+				float binScale = BINS
+						/ (centroidBox[bestAxis + 3] - low);
+				int i = from;
+				int j = to - 1;
+				while (i <= j) {
+					int t = order[i];
+					if (bin(centroids[3 * t + bestAxis], low, binScale)
+							<= bestBin) {
+						i++;
+					} else {
+						int swap = order[i];
+						order[i] = order[j];
+						order[j] = swap;
+						j--;
+					}
+				}
+				middle = i;
+			}
+
+			int left = nodes.getAndAdd(2);
+			start[node] = left;
+			count[node] = 0;
+			Builder l = new Builder(boxes, centroids, order, left, from,
+					middle);
+			Builder r = new Builder(boxes, centroids, order, left + 1,
+					middle, to);
+			if (n > PARALLEL_THRESHOLD) {
+				invokeAll(l, r);
+			} else {
+				l.compute();
+				r.compute();
+			}
+		}
+
+		private void makeLeaf() {
+			start[node] = from;
+			count[node] = to - from;
+		}
+	}
+
+	private static int bin(float centroid, float low, float binScale) {
+		int b = (int) ((centroid - low) * binScale);
+		return b < 0 ? 0 : b >= BINS ? BINS - 1 : b;
+	}
+
+	private static void resetBox(float[] boxes, int b) {
+		boxes[6 * b] = boxes[6 * b + 1] = boxes[6 * b + 2] = Float.MAX_VALUE;
+		boxes[6 * b + 3] = boxes[6 * b + 4] = boxes[6 * b + 5] = -Float.MAX_VALUE;
+	}
+
+	private static void growBox(float[] boxes, int b, float[] from, int t) {
+		for (int k = 0; k < 3; k++) {
+			boxes[6 * b + k] = Math.min(boxes[6 * b + k], from[6 * t + k]);
+			boxes[6 * b + 3 + k] = Math.max(boxes[6 * b + 3 + k],
+					from[6 * t + 3 + k]);
+		}
+	}
+
+	private static void unionBox(float[] box, float[] boxes, int b) {
+		if (boxes[6 * b] > boxes[6 * b + 3])
+			return; // Empty
+		growBox(box, 0, boxes, b);
+	}
+
+	/**
+	 * Half the surface area of a box, which is all the heuristic needs.
+	 */
+	private static float area(float[] box) {
+		float x = box[3] - box[0];
+		float y = box[4] - box[1];
+		float z = box[5] - box[2];
+		if (x < 0)
+			return 0;
+		return x * y + y * z + z * x;
+	}
+
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+
+	public int getNodeCount() {
+		return start.length;
+	}
+
+	/**
+	 * Finds the nearest triangle a ray hits.
+	 *
+	 * @param ox
+	 * @param oy
+	 * @param oz
+	 *            Origin of the ray.
+	 * @param dx
+	 * @param dy
+	 * @param dz
+	 *            Direction of the ray; need not be a unit vector.
+	 * @param tMin
+	 * @param tMax
+	 *            Only hits this far along the ray, in multiples of the
+	 *            direction, count.
+	 * @param frontOnly
+	 *            Whether to ignore triangles facing away from the ray.
+	 * @param hit
+	 *            Gets the hit.
+	 * @return Whether anything was hit.
+	 */
+	public boolean intersect(float ox, float oy, float oz, float dx,
+			float dy, float dz, float tMin, float tMax, boolean frontOnly,
+			Hit hit) {
+		if (triangleCount == 0)
+			return false;
+		float ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+		int[] stack = hit.stack;
+		int top = 0;
+		int node = 0;
+		float best = tMax;
+		int bestTriangle = -1;
+		if (boxEntry(0, ox, oy, oz, ix, iy, iz, tMin, best) == MISS)
+			return false;
+		while (true) {
+			int n = count[node];
+			if (n > 0) {
+				int first = start[node];
+				for (int t = first; t < first + n; t++) {
+					float d = intersectTriangle(t, ox, oy, oz, dx, dy, dz,
+							frontOnly);
+					if (d > tMin && d < best) {
+						best = d;
+						bestTriangle = t;
+					}
+				}
+			} else {
+				int left = start[node];
+				float nearLeft = boxEntry(left, ox, oy, oz, ix, iy, iz, tMin,
+						best);
+				float nearRight = boxEntry(left + 1, ox, oy, oz, ix, iy, iz,
+						tMin, best);
+				boolean hitLeft = nearLeft != MISS;
+				boolean hitRight = nearRight != MISS;
+				if (hitLeft && hitRight) {
+					// Visit the nearer child first, so the farther may be
+					// skipped once something closer is found.
+					if (top == stack.length)
+						stack = hit.stack = Arrays.copyOf(stack, 2 * top);
+					if (nearLeft <= nearRight) {
+						stack[top++] = left + 1;
+						node = left;
+					} else {
+						stack[top++] = left;
+						node = left + 1;
+					}
+					continue;
+				} else if (hitLeft) {
+					node = left;
+					continue;
+				} else if (hitRight) {
+					node = left + 1;
+					continue;
+				}
+			}
+			if (top == 0)
+				break;
+			node = stack[--top];
+		}
+		if (bestTriangle < 0)
+			return false;
+		hit.t = best;
+		hit.triangle = bestTriangle;
+		return true;
+	}
+
+	/**
+	 * Finds how much light gets through the triangles along a ray, each
+	 * letting through as much as its material's color is transparent.
+	 * Triangles facing either way count.
+	 *
+	 * @param opacity
+	 *            Opacity of each material in the palette, from 0 to 1.
+	 * @return The fraction of light let through, from 0 to 1.
+	 */
+	public float transmittance(float ox, float oy, float oz, float dx,
+			float dy, float dz, float tMin, float tMax, float[] opacity,
+			Hit hit) {
+		if (triangleCount == 0)
+			return 1;
+		float ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+		int[] stack = hit.stack;
+		int top = 0;
+		int node = 0;
+		float light = 1;
+		while (true) {
+			if (boxEntry(node, ox, oy, oz, ix, iy, iz, tMin, tMax) != MISS) {
+				int n = count[node];
+				if (n > 0) {
+					int first = start[node];
+					for (int t = first; t < first + n; t++) {
+						float d = intersectTriangle(t, ox, oy, oz, dx, dy,
+								dz, false);
+						if (d > tMin && d < tMax) {
+							light *= 1 - opacity[materials[t]];
+							if (light <= 0)
+								return 0;
+						}
+					}
+				} else {
+					if (top == stack.length)
+						stack = hit.stack = Arrays.copyOf(stack, 2 * top);
+					stack[top++] = start[node] + 1;
+					node = start[node];
+					continue;
+				}
+			}
+			if (top == 0)
+				break;
+			node = stack[--top];
+		}
+		return light;
+	}
+
+	/**
+	 * Gets how far along a ray it enters a node's box, or MISS if it misses
+	 * the box within the range.
+	 */
+	private float boxEntry(int node, float ox, float oy, float oz, float ix,
+			float iy, float iz, float tMin, float tMax) {
+		int b = 6 * node;
+		float x0 = (bounds[b] - ox) * ix;
+		float x1 = (bounds[b + 3] - ox) * ix;
+		float y0 = (bounds[b + 1] - oy) * iy;
+		float y1 = (bounds[b + 4] - oy) * iy;
+		float z0 = (bounds[b + 2] - oz) * iz;
+		float z1 = (bounds[b + 5] - oz) * iz;
+		float near = Math.max(Math.max(Math.min(x0, x1), Math.min(y0, y1)),
+				Math.max(Math.min(z0, z1), tMin));
+		float far = Math.min(Math.min(Math.max(x0, x1), Math.max(y0, y1)),
+				Math.min(Math.max(z0, z1), tMax));
+		if (near <= far)
+			return near;
+		// NaN comes from a ray lying in a face of the box; count it as a hit.
+		if (near != near || far != far)
+			return tMin;
+		return MISS;
+	}
+
+	/**
+	 * Intersects a ray with a triangle (Moller and Trumbore, 1997).
+	 *
+	 * @return How far along the ray it hits, or NaN if it misses.
+	 */
+	private float intersectTriangle(int t, float ox, float oy, float oz,
+			float dx, float dy, float dz, boolean frontOnly) {
+		float[] g = geometry;
+		int i = 9 * t;
+		float e1x = g[i + 3], e1y = g[i + 4], e1z = g[i + 5];
+		float e2x = g[i + 6], e2y = g[i + 7], e2z = g[i + 8];
+		float px = dy * e2z - dz * e2y;
+		float py = dz * e2x - dx * e2z;
+		float pz = dx * e2y - dy * e2x;
+		float det = e1x * px + e1y * py + e1z * pz;
+		// The determinant is positive when the ray meets the front.
+		if (frontOnly ? det <= 0 : det == 0)
+			return Float.NaN;
+		float inverse = 1 / det;
+		float tx = ox - g[i], ty = oy - g[i + 1], tz = oz - g[i + 2];
+		float u = (tx * px + ty * py + tz * pz) * inverse;
+		if (u < 0 || u > 1)
+			return Float.NaN;
+		float qx = ty * e1z - tz * e1y;
+		float qy = tz * e1x - tx * e1z;
+		float qz = tx * e1y - ty * e1x;
+		float v = (dx * qx + dy * qy + dz * qz) * inverse;
+		if (v < 0 || u + v > 1)
+			return Float.NaN;
+		return (e2x * qx + e2y * qy + e2z * qz) * inverse;
+	}
+
+	/**
+	 * Gets a triangle's unit normal into an array.
+	 *
+	 * @param triangle
+	 *            As found by intersect.
+	 * @param out
+	 */
+	public void getNormal(int triangle, float[] out) {
+		out[0] = normals[3 * triangle];
+		out[1] = normals[3 * triangle + 1];
+		out[2] = normals[3 * triangle + 2];
+	}
+
+	/**
+	 * Gets the palette index of a triangle's material.
+	 *
+	 * @param triangle
+	 *            As found by intersect.
+	 * @return
+	 */
+	public int getMaterial(int triangle) {
+		return materials[triangle];
+	}
+}
@@ -0,0 +1,171 @@
+package com.pascucci.render.engine;
+
+/**
+ * An axis-aligned box in scene coordinates, used to index and cull entities.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class BoundingBox {
+	public double minX, minY, minZ;
+	public double maxX, maxY, maxZ;
+
+	/**
+	 * Creates an empty box, which contains nothing and grows to fit whatever is
+	 * added to it.
+	 */
+	public BoundingBox() {
+		setEmpty();
+	}
+
+	public BoundingBox(double minX, double minY, double minZ, double maxX,
+			double maxY, double maxZ) {
+		set(minX, minY, minZ, maxX, maxY, maxZ);
+	}
+
+	public void set(double minX, double minY, double minZ, double maxX,
+			double maxY, double maxZ) {
+		this.minX = minX;
+		this.minY = minY;
+		this.minZ = minZ;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		this.maxZ = maxZ;
+	}
+
+	public void set(BoundingBox b) {
+		set(b.minX, b.minY, b.minZ, b.maxX, b.maxY, b.maxZ);
+	}
+
+	public void setEmpty() {
+		minX = minY = minZ = Double.POSITIVE_INFINITY;
+		maxX = maxY = maxZ = Double.NEGATIVE_INFINITY;
+	}
+
+	public boolean isEmpty() {
+		return minX > maxX || minY > maxY || minZ > maxZ;
+	}
+
+	/**
+	 * Grows the box to contain the given point.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	public void add(double x, double y, double z) {
+		if (x < minX)
+			minX = x;
+		if (x > maxX)
+			maxX = x;
+		if (y < minY)
+			minY = y;
+		if (y > maxY)
+			maxY = y;
+		if (z < minZ)
+			minZ = z;
+		if (z > maxZ)
+			maxZ = z;
+	}
+
+	/**
+	 * Grows the box to contain another box.
+	 * 
+	 * @param b
+	 */
+	public void add(BoundingBox b) {
+		if (b.isEmpty())
+			return;
+		add(b.minX, b.minY, b.minZ);
+		add(b.maxX, b.maxY, b.maxZ);
+	}
+
+	public double getCenterX() {
+		return (minX + maxX) / 2;
+	}
+
+	public double getCenterY() {
+		return (minY + maxY) / 2;
+	}
+
+	public double getCenterZ() {
+		return (minZ + maxZ) / 2;
+	}
+
+	/**
+	 * Gets half of the box's longest side.
+	 * 
+	 * @return
+	 */
+	public double getHalfExtent() {
+		return Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)) / 2;
+	}
+
+	public boolean intersects(BoundingBox b) {
+		return minX <= b.maxX && maxX >= b.minX && minY <= b.maxY
+				&& maxY >= b.minY && minZ <= b.maxZ && maxZ >= b.minZ;
+	}
+
+	public boolean contains(BoundingBox b) {
+		return minX <= b.minX && maxX >= b.maxX && minY <= b.minY
+				&& maxY >= b.maxY && minZ <= b.minZ && maxZ >= b.maxZ;
+	}
+
+	/**
+	 * Gets the squared distance from a point to the nearest point of the box,
+	 * or 0 if the point is inside.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return
+	 */
+	public double distanceSquared(double x, double y, double z) {
+		double dx = Math.max(Math.max(minX - x, 0), x - maxX);
+		double dy = Math.max(Math.max(minY - y, 0), y - maxY);
+		double dz = Math.max(Math.max(minZ - z, 0), z - maxZ);
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * Finds where a ray enters the box, using the slab method.
+	 * 
+	 * @param origin
+	 * @param direction
+	 *            Need not be normalized; distances are in multiples of it.
+	 * @return The distance along the ray to the box, 0 if the origin is
+	 *         inside, or -1 if the ray misses.
+	 */
+	public double intersectRay(Point3D origin, Vector3D direction) {
+		double near = 0;
+		double far = Double.POSITIVE_INFINITY;
+		double[] o = { origin.x, origin.y, origin.z };
+		double[] d = { direction.x, direction.y, direction.z };
+		double[] lo = { minX, minY, minZ };
+		double[] hi = { maxX, maxY, maxZ };
+		for (int axis = 0; axis < 3; axis++) {
+			if (d[axis] == 0) {
+				if (o[axis] < lo[axis] || o[axis] > hi[axis])
+					return -1;
+				continue;
+			}
+			double t1 = (lo[axis] - o[axis]) / d[axis];
+			double t2 = (hi[axis] - o[axis]) / d[axis];
+			if (t1 > t2) {
+				double tmp = t1;
+				t1 = t2;
+				t2 = tmp;
+			}
+			near = Math.max(near, t1);
+			far = Math.min(far, t2);
+			if (near > far)
+				return -1;
+		}
+		return near;
+	}
+
+	@Override
+	public String toString() {
+		return "[(" + minX + ", " + minY + ", " + minZ + ") - (" + maxX + ", "
+				+ maxY + ", " + maxZ + ")]";
+	}
+}
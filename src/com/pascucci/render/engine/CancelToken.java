@@ -0,0 +1,32 @@
+package com.pascucci.render.engine;
+
+/**
+ * Tells a frame being rendered that it is no longer wanted. The renderer asks
+ * between batches of faces, so a cancelled frame stops within one batch
+ * rather than drawing everything first.
+ *
+ * Any thread may cancel a token, such as one asking for a newer frame while a
+ * background thread draws a stale one. Subclasses may also decide for
+ * themselves when asked.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class CancelToken {
+	private volatile boolean cancelled;
+
+	/**
+	 * Cancels the frame using this token.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Checks whether the frame should stop.
+	 *
+	 * @return
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
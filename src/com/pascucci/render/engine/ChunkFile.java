@@ -0,0 +1,503 @@
+package com.pascucci.render.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.pascucci.render.utils.STLUtils;
+
+/**
+ * A triangle mesh split into spatial chunks on disk, for models too big to
+ * load whole. Each chunk is a run of triangles from one part of space, which
+ * can be mapped and turned into a compressed Mesh by itself.
+ *
+ * The file starts with a header, then holds the triangles of each chunk in
+ * turn as nine little endian floats apiece, then a directory giving each
+ * chunk's offset, triangle count and bounds.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class ChunkFile implements Closeable {
+	private static final int MAGIC = 0x5243484B; // "RCHK"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 128;
+	private static final int ENTRY_BYTES = 8 + 4 + 6 * 8;
+	private static final int TRIANGLE_BYTES = 9 * 4;
+	private static final int STL_RECORD_BYTES = 50;
+	// Triangles are binned on a grid at most this fine while building.
+	private static final int MAX_GRID = 128;
+	// Triangles buffered per chunk while writing.
+	private static final int WRITE_BATCH = 128;
+
+	private final FileChannel channel;
+	private final long triangleCount;
+	private final BoundingBox bounds;
+	private final long[] offsets;
+	private final int[] triangles;
+	private final BoundingBox[] chunkBounds;
+
+	private ChunkFile(FileChannel channel, long triangleCount,
+			BoundingBox bounds, long[] offsets, int[] triangles,
+			BoundingBox[] chunkBounds) {
+		this.channel = channel;
+		this.triangleCount = triangleCount;
+		this.bounds = bounds;
+		this.offsets = offsets;
+		this.triangles = triangles;
+		this.chunkBounds = chunkBounds;
+	}
+
+	/**
+	 * Opens a chunk file written by build.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             If the file can't be read or isn't a chunk file.
+	 */
+	public static ChunkFile open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ);
+		try {
+			ByteBuffer header = read(channel, 0, HEADER_BYTES);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION)
+				throw new IOException(file + " is not a chunk file.");
+			long triangleCount = header.getLong();
+			int count = header.getInt();
+			long directory = header.getLong();
+			BoundingBox bounds = readBounds(header);
+
+			long[] offsets = new long[count];
+			int[] triangles = new int[count];
+			BoundingBox[] chunkBounds = new BoundingBox[count];
+			ByteBuffer entries = read(channel, directory, count * ENTRY_BYTES);
+			for (int i = 0; i < count; i++) {
+				offsets[i] = entries.getLong();
+				triangles[i] = entries.getInt();
+				chunkBounds[i] = readBounds(entries);
+			}
+			return new ChunkFile(channel, triangleCount, bounds, offsets,
+					triangles, chunkBounds);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Splits a binary STL file into a chunk file, reading it a piece at a time
+	 * so it never has to fit in memory.
+	 *
+	 * The triangles are binned by their centers on a grid over the model, and
+	 * the grid is then cut up like an octree, halving each block until it
+	 * holds few enough triangles. Scans, whose triangles lie on surfaces and
+	 * leave most of the grid empty, get chunks of about the same size as solid
+	 * models do.
+	 *
+	 * @param stl
+	 *            The STL file.
+	 * @param output
+	 *            Where to write the chunk file; it is overwritten.
+	 * @param trianglesPerChunk
+	 *            How many triangles a chunk should hold at most. A chunk can
+	 *            hold more if they're all in one cell of the grid.
+	 * @throws IOException
+	 */
+	public static void build(File stl, File output, int trianglesPerChunk)
+			throws IOException {
+		FileChannel in = FileChannel.open(stl.toPath(),
+				StandardOpenOption.READ);
+		try {
+			ByteBuffer count = read(in, STLUtils.STL_HEADER_BYTES, 4);
+			long triangleCount = count.getInt() & 0xFFFFFFFFL;
+			// Exporters don't always fill the count in, so trust the size.
+			long start = STLUtils.STL_HEADER_BYTES + 4;
+			triangleCount = Math.min(triangleCount, (in.size() - start)
+					/ STL_RECORD_BYTES);
+			if (triangleCount == 0)
+				triangleCount = (in.size() - start) / STL_RECORD_BYTES;
+
+			// First pass: the bounds of the whole model.
+			BoundingBox bounds = new BoundingBox();
+			TriangleReader reader = new TriangleReader(in, start, triangleCount);
+			float[] t = new float[9];
+			while (reader.next(t)) {
+				for (int j = 0; j < 9; j += 3) {
+					bounds.add(t[j], t[j + 1], t[j + 2]);
+				}
+			}
+
+			// Second pass: how many triangles fall in each grid cell.
+			int grid = 1;
+			double cells = Math.cbrt(triangleCount
+					/ (double) Math.max(trianglesPerChunk, 1));
+			while (grid < MAX_GRID && grid < 4 * cells) {
+				grid *= 2;
+			}
+			Grid cellsOf = new Grid(bounds, grid);
+			int[] cellCounts = new int[grid * grid * grid];
+			reader = new TriangleReader(in, start, triangleCount);
+			while (reader.next(t)) {
+				cellCounts[cellsOf.cell(t)]++;
+			}
+
+			// Cut the grid into chunks.
+			Partition partition = new Partition(grid, cellCounts,
+					trianglesPerChunk);
+			partition.split(0, 0, 0, grid);
+			int chunkCount = partition.chunks;
+			long[] offsets = new long[chunkCount];
+			long offset = HEADER_BYTES;
+			for (int i = 0; i < chunkCount; i++) {
+				offsets[i] = offset;
+				offset += (long) partition.sizes[i] * TRIANGLE_BYTES;
+			}
+			long directory = offset;
+
+			// Third pass: write each triangle into its chunk.
+			FileChannel out = FileChannel.open(output.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				BoundingBox[] chunkBounds = new BoundingBox[chunkCount];
+				ByteBuffer[] batches = new ByteBuffer[chunkCount];
+				long[] written = new long[chunkCount];
+				reader = new TriangleReader(in, start, triangleCount);
+				while (reader.next(t)) {
+					int chunk = partition.chunkOf[cellsOf.cell(t)];
+					ByteBuffer batch = batches[chunk];
+					if (batch == null) {
+						batch = ByteBuffer.allocate(WRITE_BATCH * TRIANGLE_BYTES)
+								.order(ByteOrder.LITTLE_ENDIAN);
+						batches[chunk] = batch;
+						chunkBounds[chunk] = new BoundingBox();
+					}
+					for (int j = 0; j < 9; j++) {
+						batch.putFloat(t[j]);
+					}
+					for (int j = 0; j < 9; j += 3) {
+						chunkBounds[chunk].add(t[j], t[j + 1], t[j + 2]);
+					}
+					if (!batch.hasRemaining())
+						written[chunk] = flush(out, batch, offsets[chunk],
+								written[chunk]);
+				}
+				for (int i = 0; i < chunkCount; i++) {
+					flush(out, batches[i], offsets[i], written[i]);
+				}
+
+				ByteBuffer entries = ByteBuffer.allocate(
+						chunkCount * ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				for (int i = 0; i < chunkCount; i++) {
+					entries.putLong(offsets[i]);
+					entries.putInt(partition.sizes[i]);
+					writeBounds(entries, chunkBounds[i]);
+				}
+				write(out, entries, directory);
+
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(
+						ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC);
+				header.putInt(VERSION);
+				header.putLong(triangleCount);
+				header.putInt(chunkCount);
+				header.putLong(directory);
+				writeBounds(header, bounds);
+				header.position(HEADER_BYTES);
+				write(out, header, 0);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes out a chunk's buffered triangles.
+	 *
+	 * @return How many triangles of the chunk are now written.
+	 */
+	private static long flush(FileChannel out, ByteBuffer batch, long offset,
+			long written) throws IOException {
+		if (batch == null || batch.position() == 0)
+			return written;
+		int count = batch.position() / TRIANGLE_BYTES;
+		write(out, batch, offset + written * TRIANGLE_BYTES);
+		batch.clear();
+		return written + count;
+	}
+
+	private static void write(FileChannel out, ByteBuffer buffer, long position)
+			throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			position += out.write(buffer, position);
+		}
+	}
+
+	private static ByteBuffer read(FileChannel in, long position, int length)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(
+				ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of file.");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static BoundingBox readBounds(ByteBuffer b) {
+		return new BoundingBox(b.getDouble(), b.getDouble(), b.getDouble(),
+				b.getDouble(), b.getDouble(), b.getDouble());
+	}
+
+	private static void writeBounds(ByteBuffer b, BoundingBox box) {
+		b.putDouble(box.minX);
+		b.putDouble(box.minY);
+		b.putDouble(box.minZ);
+		b.putDouble(box.maxX);
+		b.putDouble(box.maxY);
+		b.putDouble(box.maxZ);
+	}
+
+	/**
+	 * Reads the corners of an STL file's triangles in order, a block of
+	 * records at a time.
+	 */
+	private static class TriangleReader {
+		private static final int RECORDS = 4096;
+		private final FileChannel in;
+		private final ByteBuffer buffer;
+		private long position;
+		private long remaining;
+
+		TriangleReader(FileChannel in, long start, long count) {
+			this.in = in;
+			position = start;
+			remaining = count;
+			buffer = ByteBuffer.allocate(RECORDS * STL_RECORD_BYTES).order(
+					ByteOrder.LITTLE_ENDIAN);
+			buffer.flip();
+		}
+
+		/**
+		 * Reads the next triangle's nine coordinates.
+		 *
+		 * @param t
+		 * @return False once there are no more.
+		 * @throws IOException
+		 */
+		boolean next(float[] t) throws IOException {
+			if (!buffer.hasRemaining()) {
+				if (remaining == 0)
+					return false;
+				int records = (int) Math.min(RECORDS, remaining);
+				buffer.clear();
+				buffer.limit(records * STL_RECORD_BYTES);
+				while (buffer.hasRemaining()) {
+					int read = in.read(buffer, position);
+					if (read < 0)
+						throw new IOException("Unexpected end of file.");
+					position += read;
+				}
+				buffer.flip();
+				remaining -= records;
+			}
+			buffer.position(buffer.position() + 12); // Skip the normal
+			for (int j = 0; j < 9; j++) {
+				t[j] = buffer.getFloat();
+			}
+			buffer.position(buffer.position() + 2); // Attribute bytes
+			return true;
+		}
+	}
+
+	/**
+	 * Finds which grid cell a triangle's center is in.
+	 */
+	private static class Grid {
+		private final double[] min = new double[3];
+		private final double[] scale = new double[3];
+		private final int size;
+
+		Grid(BoundingBox bounds, int size) {
+			this.size = size;
+			double[] lo = { bounds.minX, bounds.minY, bounds.minZ };
+			double[] hi = { bounds.maxX, bounds.maxY, bounds.maxZ };
+			for (int axis = 0; axis < 3; axis++) {
+				min[axis] = lo[axis];
+				double extent = hi[axis] - lo[axis];
+				scale[axis] = extent > 0 ? size / extent : 0;
+			}
+		}
+
+		int cell(float[] t) {
+			int cell = 0;
+			for (int axis = 0; axis < 3; axis++) {
+				double center = (t[axis] + t[3 + axis] + t[6 + axis]) / 3.0;
+				int c = (int) ((center - min[axis]) * scale[axis]);
+				c = Math.max(0, Math.min(size - 1, c));
+				cell = cell * size + c;
+			}
+			return cell;
+		}
+	}
+
+	/**
+	 * Cuts a grid of triangle counts into chunks, octree fashion. Block sums
+	 * come from a summed volume table, so each block costs the same to count
+	 * whatever its size.
+	 */
+	private static class Partition {
+		private final int grid;
+		private final long[] sums; // (grid + 1)^3, inclusive prefix sums
+		private final int limit;
+		final int[] chunkOf;
+		int[] sizes = new int[16];
+		int chunks;
+
+		Partition(int grid, int[] counts, int limit) {
+			this.grid = grid;
+			this.limit = Math.max(limit, 1);
+			chunkOf = new int[counts.length];
+			int n = grid + 1;
+			sums = new long[n * n * n];
+			for (int x = 1; x < n; x++) {
+				for (int y = 1; y < n; y++) {
+					for (int z = 1; z < n; z++) {
+						sums[(x * n + y) * n + z] = counts[((x - 1) * grid + y - 1)
+								* grid + z - 1]
+								+ sum(x - 1, y, z)
+								+ sum(x, y - 1, z)
+								+ sum(x, y, z - 1)
+								- sum(x - 1, y - 1, z)
+								- sum(x - 1, y, z - 1)
+								- sum(x, y - 1, z - 1)
+								+ sum(x - 1, y - 1, z - 1);
+					}
+				}
+			}
+		}
+
+		private long sum(int x, int y, int z) {
+			int n = grid + 1;
+			return sums[(x * n + y) * n + z];
+		}
+
+		/**
+		 * Counts the triangles in the cube of cells from x, y, z.
+		 */
+		private long count(int x, int y, int z, int size) {
+			int x1 = x + size, y1 = y + size, z1 = z + size;
+			return sum(x1, y1, z1) - sum(x, y1, z1) - sum(x1, y, z1)
+					- sum(x1, y1, z) + sum(x, y, z1) + sum(x, y1, z)
+					+ sum(x1, y, z) - sum(x, y, z);
+		}
+
+		void split(int x, int y, int z, int size) {
+			long count = count(x, y, z, size);
+			if (count == 0)
+				return;
+			if (count > limit && size > 1) {
+				int half = size / 2;
+				for (int octant = 0; octant < 8; octant++) {
+					split(x + ((octant & 1) != 0 ? half : 0), y
+							+ ((octant & 2) != 0 ? half : 0), z
+							+ ((octant & 4) != 0 ? half : 0), half);
+				}
+				return;
+			}
+			if (chunks == sizes.length)
+				sizes = Arrays.copyOf(sizes, chunks * 2);
+			sizes[chunks] = (int) count;
+			for (int i = x; i < x + size; i++) {
+				for (int j = y; j < y + size; j++) {
+					for (int k = z; k < z + size; k++) {
+						chunkOf[(i * grid + j) * grid + k] = chunks;
+					}
+				}
+			}
+			chunks++;
+		}
+	}
+
+	public int getChunkCount() {
+		return offsets.length;
+	}
+
+	public long getTriangleCount() {
+		return triangleCount;
+	}
+
+	/**
+	 * Gets the box around the whole model. Shared, so must not be modified.
+	 *
+	 * @return
+	 */
+	BoundingBox getBounds() {
+		return bounds;
+	}
+
+	/**
+	 * Gets the box around a chunk's triangles. Shared, so must not be
+	 * modified.
+	 *
+	 * @param chunk
+	 * @return
+	 */
+	BoundingBox getChunkBounds(int chunk) {
+		return chunkBounds[chunk];
+	}
+
+	public int getChunkTriangleCount(int chunk) {
+		return triangles[chunk];
+	}
+
+	/**
+	 * Gets how many bytes a chunk takes up on disk, which is more than it
+	 * will once loaded and compressed.
+	 *
+	 * @param chunk
+	 * @return
+	 */
+	public long getChunkFileSize(int chunk) {
+		return (long) triangles[chunk] * TRIANGLE_BYTES;
+	}
+
+	/**
+	 * Maps a chunk and decodes it into a compressed mesh. Safe to call from
+	 * several threads at once.
+	 *
+	 * @param chunk
+	 * @return
+	 * @throws IOException
+	 */
+	public Mesh readChunk(int chunk) throws IOException {
+		int count = triangles[chunk];
+		MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+				offsets[chunk], getChunkFileSize(chunk));
+		map.order(ByteOrder.LITTLE_ENDIAN);
+		double[] vertices = new double[9 * count];
+		for (int i = 0; i < vertices.length; i++) {
+			vertices[i] = map.getFloat();
+		}
+		int[] indices = new int[3 * count];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = i;
+		}
+		return new Mesh(vertices, indices).compress();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,45 @@
+package com.pascucci.render.engine;
+
+import java.awt.Color;
+
+/**
+ * Small direct-mapped cache of Color objects keyed by their ARGB value. Shading
+ * produces the same handful of colors frame after frame, so looking them up
+ * here keeps the renderer from allocating a new Color for every face.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+class ColorCache {
+	private final Color[] colors;
+	private final int mask;
+
+	/**
+	 * Creates a cache with the given number of slots.
+	 * 
+	 * @param size
+	 *            Must be a power of two.
+	 */
+	ColorCache(int size) {
+		colors = new Color[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Gets a Color for the given ARGB value, creating and remembering one if
+	 * the slot holds something else.
+	 * 
+	 * @param argb
+	 * @return
+	 */
+	Color get(int argb) {
+		// Mix the bits so nearby shades don't all land in the same slot.
+		int h = argb * 0x9E3779B9;
+		int slot = (h ^ (h >>> 16)) & mask;
+		Color c = colors[slot];
+		if (c == null || c.getRGB() != argb) {
+			c = new Color(argb, true);
+			colors[slot] = c;
+		}
+		return c;
+	}
+}
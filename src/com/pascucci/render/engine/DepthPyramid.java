@@ -0,0 +1,321 @@
+package com.pascucci.render.engine;
+
+import java.util.Arrays;
+
+/**
+ * A low resolution, hierarchical depth buffer for occlusion culling.
+ *
+ * Occluder triangles are written into the bottom level, where each texel covers
+ * a TILE by TILE block of pixels. A texel only gets a depth once its pixels are
+ * all covered, so whatever is drawn in that block later is known to be at least
+ * that near. Pixel coverage follows the same rules as Raster, and each texel
+ * keeps a mask of the pixels covered so far, so the triangles of one face, or
+ * of neighbouring faces, can fill a texel between them (after "Masked Software
+ * Occlusion Culling", Andersson et al., 2015). Each level above keeps the
+ * farthest of the four texels below it. A box is then known to be hidden if
+ * it's farther than every texel it touches, which a few texels of the right
+ * level can answer.
+ *
+ * Depths follow the Renderer's convention: larger is nearer, and they
+ * interpolate linearly in screen space.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+class DepthPyramid {
+	/**
+	 * Pixels per side of a bottom level texel.
+	 */
+	static final int TILE = 4;
+	private static final int FULL = (1 << (TILE * TILE)) - 1;
+
+	private int pixelWidth;
+	private int pixelHeight;
+	private float[][] levels = new float[0][];
+	private int[] levelWidth = new int[0];
+	private int[] levelHeight = new int[0];
+
+	// Partly covered bottom level texels: which pixels are covered, and the
+	// farthest depth of the triangles covering them.
+	private int[] mask = new int[0];
+	private float[] maskDepth = new float[0];
+	private int[] clearMask = new int[0]; // Pixels past the edge of the screen
+
+	/**
+	 * Sizes the pyramid for a screen, reallocating only if the size changed.
+	 *
+	 * @param width
+	 * @param height
+	 *            Screen size in pixels.
+	 */
+	void resize(int width, int height) {
+		width = Math.max(width, 1);
+		height = Math.max(height, 1);
+		if (width == pixelWidth && height == pixelHeight)
+			return;
+		pixelWidth = width;
+		pixelHeight = height;
+		int w = (width + TILE - 1) / TILE;
+		int h = (height + TILE - 1) / TILE;
+		int count = 1;
+		while (w >> (count - 1) > 1 || h >> (count - 1) > 1) {
+			count++;
+		}
+		levels = new float[count][];
+		levelWidth = new int[count];
+		levelHeight = new int[count];
+		for (int level = 0, lw = w, lh = h; level < count; level++) {
+			levelWidth[level] = lw;
+			levelHeight[level] = lh;
+			levels[level] = new float[lw * lh];
+			lw = (lw + 1) / 2;
+			lh = (lh + 1) / 2;
+		}
+		mask = new int[w * h];
+		maskDepth = new float[w * h];
+		// Pixels off the screen will never be drawn, so they count as covered
+		// from the start.
+		clearMask = new int[w * h];
+		for (int ty = 0; ty < h; ty++) {
+			for (int tx = 0; tx < w; tx++) {
+				int m = 0;
+				for (int bit = 0; bit < TILE * TILE; bit++) {
+					if (tx * TILE + bit % TILE >= width
+							|| ty * TILE + bit / TILE >= height)
+						m |= 1 << bit;
+				}
+				clearMask[ty * w + tx] = m;
+			}
+		}
+	}
+
+	/**
+	 * Forgets all occluders.
+	 */
+	void clear() {
+		Arrays.fill(levels[0], Float.NEGATIVE_INFINITY);
+		System.arraycopy(clearMask, 0, mask, 0, mask.length);
+		Arrays.fill(maskDepth, Float.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Adds a polygon to the bottom level, as a fan of triangles.
+	 *
+	 * @param xs
+	 * @param ys
+	 *            Corners in pixels.
+	 * @param zs
+	 *            Depth of each corner.
+	 * @param n
+	 *            Number of corners.
+	 */
+	void addOccluder(int[] xs, int[] ys, float[] zs, int n) {
+		for (int j = 1; j < n - 1; j++) {
+			addTriangle(xs[0], ys[0], zs[0], xs[j], ys[j], zs[j], xs[j + 1],
+					ys[j + 1], zs[j + 1]);
+		}
+	}
+
+	private void addTriangle(int x0, int y0, float z0, int x1, int y1,
+			float z1, int x2, int y2, float z2) {
+		long area = (long) (x1 - x0) * (y2 - y0) - (long) (y1 - y0)
+				* (x2 - x0);
+		if (area == 0)
+			return;
+		if (area < 0) {
+			// Wind every triangle the same way so the inside is positive.
+			int tx = x1;
+			int ty = y1;
+			float tz = z1;
+			x1 = x2;
+			y1 = y2;
+			z1 = z2;
+			x2 = tx;
+			y2 = ty;
+			z2 = tz;
+		}
+		int minX = Math.max(Math.min(x0, Math.min(x1, x2)), 0);
+		int maxX = Math.min(Math.max(x0, Math.max(x1, x2)), pixelWidth - 1);
+		int minY = Math.max(Math.min(y0, Math.min(y1, y2)), 0);
+		int maxY = Math.min(Math.max(y0, Math.max(y1, y2)), pixelHeight - 1);
+		if (minX > maxX || minY > maxY)
+			return;
+
+		// Depth plane: z = a * x + b * y + c
+		double ax = x1 - x0, ay = y1 - y0, az = z1 - z0;
+		double bx = x2 - x0, by = y2 - y0, bz = z2 - z0;
+		double det = ax * by - bx * ay;
+		double a = (az * by - bz * ay) / det;
+		double b = (ax * bz - bx * az) / det;
+		double c = z0 - a * x0 - b * y0;
+		// Corners are rounded to whole pixels before drawing, so allow for
+		// the surface being up to half a pixel away from where it's drawn.
+		double slack = .5 * (Math.abs(a) + Math.abs(b));
+
+		// Edge functions at pixel centers in doubled coordinates, exactly as
+		// Raster evaluates them, biased so inside is >= 0.
+		long e0Dx = -4L * (y2 - y1), e0Dy = 4L * (x2 - x1);
+		long e1Dx = -4L * (y0 - y2), e1Dy = 4L * (x0 - x2);
+		long e2Dx = -4L * (y1 - y0), e2Dy = 4L * (x1 - x0);
+		long b0 = ownsEdge(x1, y1, x2, y2) ? 0 : -1;
+		long b1 = ownsEdge(x2, y2, x0, y0) ? 0 : -1;
+		long b2 = ownsEdge(x0, y0, x1, y1) ? 0 : -1;
+		int last = TILE - 1;
+
+		int w = levelWidth[0];
+		float[] depth = levels[0];
+		for (int ty = minY / TILE; ty <= maxY / TILE; ty++) {
+			int py = ty * TILE;
+			for (int tx = minX / TILE; tx <= maxX / TILE; tx++) {
+				int px = tx * TILE;
+				long sx = 2L * px + 1;
+				long sy = 2L * py + 1;
+				long e0 = edge(x1, y1, x2, y2, sx, sy) + b0;
+				long e1 = edge(x2, y2, x0, y0, sx, sy) + b1;
+				long e2 = edge(x0, y0, x1, y1, sx, sy) + b2;
+				// Each edge is linear, so its extremes over the texel's pixel
+				// centers are at the corner ones.
+				if (max(e0, e0Dx, e0Dy, last) < 0
+						|| max(e1, e1Dx, e1Dy, last) < 0
+						|| max(e2, e2Dx, e2Dy, last) < 0)
+					continue;
+				int m;
+				if (min(e0, e0Dx, e0Dy, last) >= 0
+						&& min(e1, e1Dx, e1Dy, last) >= 0
+						&& min(e2, e2Dx, e2Dy, last) >= 0) {
+					m = FULL;
+				} else {
+					m = 0;
+					for (int j = 0; j < TILE; j++) {
+						long f0 = e0 + j * e0Dy;
+						long f1 = e1 + j * e1Dy;
+						long f2 = e2 + j * e2Dy;
+						for (int i = 0; i < TILE; i++) {
+							if ((f0 | f1 | f2) >= 0)
+								m |= 1 << (j * TILE + i);
+							f0 += e0Dx;
+							f1 += e1Dx;
+							f2 += e2Dx;
+						}
+					}
+					if (m == 0)
+						continue;
+				}
+				float far = (float) (a * (a > 0 ? px : px + TILE) + b
+						* (b > 0 ? py : py + TILE) + c - slack);
+				int index = ty * w + tx;
+				if (far <= depth[index])
+					continue; // Behind what already fills this texel
+				if (m == FULL) {
+					depth[index] = far;
+					continue;
+				}
+				int covered = mask[index] | m;
+				float coveredDepth = Math.min(maskDepth[index], far);
+				if (covered == FULL) {
+					depth[index] = Math.max(depth[index], coveredDepth);
+					mask[index] = clearMask[index];
+					maskDepth[index] = Float.POSITIVE_INFINITY;
+				} else {
+					mask[index] = covered;
+					maskDepth[index] = coveredDepth;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the smallest value of an edge function over a texel's pixel
+	 * centers, given its value at the top left one and its steps.
+	 */
+	private static long min(long e, long dx, long dy, int steps) {
+		return e + Math.min(dx, 0) * steps + Math.min(dy, 0) * steps;
+	}
+
+	/**
+	 * Gets the largest value of an edge function over a texel's pixel
+	 * centers.
+	 */
+	private static long max(long e, long dx, long dy, int steps) {
+		return e + Math.max(dx, 0) * steps + Math.max(dy, 0) * steps;
+	}
+
+	/**
+	 * Evaluates the edge function for a->b at a point in doubled coordinates.
+	 */
+	private static long edge(int ax, int ay, int bx, int by, long px, long py) {
+		return 2L * (bx - ax) * (py - 2L * ay) - 2L * (by - ay)
+				* (px - 2L * ax);
+	}
+
+	/**
+	 * Decides whether pixel centers lying exactly on edge a->b are inside,
+	 * the same way Raster does.
+	 */
+	private static boolean ownsEdge(int ax, int ay, int bx, int by) {
+		int dx = bx - ax;
+		int dy = by - ay;
+		return dy > 0 || (dy == 0 && dx < 0);
+	}
+
+	/**
+	 * Fills in the upper levels from the bottom one.
+	 */
+	void build() {
+		for (int level = 1; level < levels.length; level++) {
+			float[] below = levels[level - 1];
+			int bw = levelWidth[level - 1];
+			int bh = levelHeight[level - 1];
+			float[] depth = levels[level];
+			int w = levelWidth[level];
+			int h = levelHeight[level];
+			for (int y = 0; y < h; y++) {
+				int by = 2 * y;
+				int by2 = Math.min(by + 1, bh - 1);
+				for (int x = 0; x < w; x++) {
+					int bx = 2 * x;
+					int bx2 = Math.min(bx + 1, bw - 1);
+					depth[y * w + x] = Math.min(
+							Math.min(below[by * bw + bx], below[by * bw + bx2]),
+							Math.min(below[by2 * bw + bx], below[by2 * bw + bx2]));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks whether everything in a screen rectangle that is no nearer than
+	 * the given depth is hidden behind the occluders.
+	 *
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 *            The rectangle in pixels, inclusive. It must overlap the
+	 *            screen.
+	 * @param nearest
+	 *            The depth of the nearest point in the rectangle.
+	 * @return
+	 */
+	boolean isHidden(int minX, int minY, int maxX, int maxY, float nearest) {
+		int tx0 = Math.max(minX, 0) / TILE;
+		int ty0 = Math.max(minY, 0) / TILE;
+		int tx1 = Math.min(maxX, pixelWidth - 1) / TILE;
+		int ty1 = Math.min(maxY, pixelHeight - 1) / TILE;
+		// Go up until the rectangle spans at most two texels each way.
+		int level = 0;
+		while (level < levels.length - 1
+				&& ((tx1 >> level) - (tx0 >> level) > 1 || (ty1 >> level)
+						- (ty0 >> level) > 1)) {
+			level++;
+		}
+		float[] depth = levels[level];
+		int w = levelWidth[level];
+		for (int ty = ty0 >> level; ty <= ty1 >> level; ty++) {
+			for (int tx = tx0 >> level; tx <= tx1 >> level; tx++) {
+				if (depth[ty * w + tx] <= nearest)
+					return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,133 @@
+package com.pascucci.render.engine;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * Collects the edges of a mesh's polygons and boils them down to the distinct
+ * ones, for drawing wireframes. An edge shared by two faces is then drawn
+ * once instead of twice.
+ *
+ * Edges are keyed by their two vertex indices, lowest first, so the
+ * direction they were walked in doesn't matter. Meshes with unshared corners,
+ * like STL imports, have every edge on distinct vertices; weld finds the
+ * vertices at the same position so those edges can be matched up too.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+final class EdgeList {
+	private long[] keys;
+	private int[] owners;
+	private int count;
+	private long[] unique; // Distinct keys, in order, once built
+
+	/**
+	 * Creates an empty list.
+	 *
+	 * @param expected
+	 *            Roughly how many edges will be added, repeats included.
+	 */
+	EdgeList(int expected) {
+		keys = new long[Math.max(expected, 16)];
+		owners = new int[keys.length];
+	}
+
+	/**
+	 * Adds an edge between two vertices.
+	 *
+	 * @param a
+	 * @param b
+	 * @param owner
+	 *            Index of the face the edge came from. Where faces share an
+	 *            edge, the first one added owns it.
+	 */
+	void add(int a, int b, int owner) {
+		if (a == b)
+			return;
+		if (count == keys.length) {
+			keys = Arrays.copyOf(keys, count * 2);
+			owners = Arrays.copyOf(owners, count * 2);
+		}
+		keys[count] = a < b ? (long) a << 32 | b : (long) b << 32 | a;
+		owners[count] = owner;
+		count++;
+	}
+
+	/**
+	 * Sorts the edges added so far and drops the repeats.
+	 *
+	 * @return Two vertex indices for each distinct edge.
+	 */
+	int[] build() {
+		unique = Arrays.copyOf(keys, count);
+		Arrays.sort(unique);
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (distinct == 0 || unique[i] != unique[distinct - 1])
+				unique[distinct++] = unique[i];
+		}
+		unique = Arrays.copyOf(unique, distinct);
+		int[] edges = new int[2 * distinct];
+		for (int i = 0; i < distinct; i++) {
+			edges[2 * i] = (int) (unique[i] >>> 32);
+			edges[2 * i + 1] = (int) unique[i];
+		}
+		return edges;
+	}
+
+	/**
+	 * Finds the face which owns each distinct edge. Call after build.
+	 *
+	 * @return The owner of each edge, in the order build returned them.
+	 */
+	int[] buildOwners() {
+		int[] result = new int[unique.length];
+		Arrays.fill(result, -1);
+		for (int i = 0; i < count; i++) {
+			int edge = Arrays.binarySearch(unique, keys[i]);
+			if (edge >= 0 && result[edge] < 0)
+				result[edge] = owners[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Maps each vertex to the first vertex at exactly the same position.
+	 *
+	 * @param xyz
+	 *            x, y and z for each vertex, read with absolute gets.
+	 * @param vertexCount
+	 * @return The index to use for each vertex.
+	 */
+	static int[] weld(DoubleBuffer xyz, int vertexCount) {
+		int[] welded = new int[vertexCount];
+		int size = Integer.highestOneBit(Math.max(2 * vertexCount, 2)) * 2;
+		int mask = size - 1;
+		int[] table = new int[size];
+		Arrays.fill(table, -1);
+		for (int v = 0; v < vertexCount; v++) {
+			double x = xyz.get(3 * v);
+			double y = xyz.get(3 * v + 1);
+			double z = xyz.get(3 * v + 2);
+			long hash = Double.doubleToLongBits(x) * 0x9E3779B97F4A7C15L
+					^ Double.doubleToLongBits(y) * 0xC2B2AE3D27D4EB4FL
+					^ Double.doubleToLongBits(z) * 0x165667B19E3779F9L;
+			int slot = (int) (hash ^ hash >>> 32) & mask;
+			while (true) {
+				int other = table[slot];
+				if (other < 0) {
+					table[slot] = v;
+					welded[v] = v;
+					break;
+				}
+				if (xyz.get(3 * other) == x && xyz.get(3 * other + 1) == y
+						&& xyz.get(3 * other + 2) == z) {
+					welded[v] = other;
+					break;
+				}
+				slot = slot + 1 & mask;
+			}
+		}
+		return welded;
+	}
+}
@@ -1,8 +1,10 @@
 package com.pascucci.render.engine;
 
 import java.awt.Color;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 
 /**
  * Stores mesh data for a 3D object.
@@ -15,6 +17,41 @@ public class Entity3D {
 	private ArrayList<Point3D> points;
 	private String name;
 
+	// Face vertex indices are rebuilt whenever the mesh changes size.
+	private int indexedPoints = -1;
+	private int indexedFaces = -1;
+
+	// Distinct edges for wireframes, built along with the face indices when
+	// first wanted: two point indices per edge, and the face each came from.
+	private int[] edges;
+	private int[] edgeOwners;
+	private ArrayList<Face> unindexedFaces;
+
+	// Offset of this entity's points in the renderer's projected vertex
+	// buffer for the frame being drawn.
+	int vertexBase;
+
+	// Whether the renderer found this entity hidden behind others, or off the
+	// screen, in the frame being drawn.
+	boolean occluded;
+
+	// Whether the renderer's query of the scene index found this entity in
+	// view. Only set while the renderer is culling.
+	boolean inFrustum;
+
+	// The scene this entity was last added to, told when it changes.
+	Scene scene;
+
+	// Where this entity is in its scene's Octree, maintained by the tree.
+	Octree index;
+	Octree.Node indexNode;
+	boolean indexMoved;
+
+	private BoundingBox bounds = new BoundingBox();
+	private boolean boundsValid;
+
+	private Color highlight;
+
 	public Entity3D() {
 		faces = new ArrayList<Face>();
 		points = new ArrayList<Point3D>();
@@ -35,34 +72,231 @@ public class Entity3D {
 
 	public void addPoint(Point3D p) {
 		points.add(p);
+		pointsChanged();
 	}
 
 	public void addPoints(Point3D[] p) {
 		points.addAll(Arrays.asList(p));
+		pointsChanged();
+	}
+
+	/**
+	 * Tells the entity that its points have moved, so its bounds and its
+	 * place in the scene index get updated. Transform3D does this itself; only
+	 * code which edits points directly needs to call it.
+	 */
+	public void pointsChanged() {
+		boundsValid = false;
+		if (index != null)
+			index.markMoved(this);
+		changed();
+	}
+
+	/**
+	 * Tells the scene the entity is in, if any, that it has changed.
+	 */
+	void changed() {
+		Scene s = scene;
+		if (s != null)
+			s.changed();
+	}
+
+	/**
+	 * Gets the axis-aligned box around this entity. The box is shared and
+	 * kept up to date, so it must not be modified.
+	 * 
+	 * @return
+	 */
+	public BoundingBox getBounds() {
+		if (!boundsValid) {
+			computeBounds(bounds);
+			boundsValid = true;
+		}
+		return bounds;
+	}
+
+	/**
+	 * Recomputes the bounds from scratch.
+	 * 
+	 * @param b
+	 */
+	void computeBounds(BoundingBox b) {
+		b.setEmpty();
+		for (Point3D p : points) {
+			b.add(p.x, p.y, p.z);
+		}
 	}
 
 	public void addFace(Face f) {
 		faces.add(f);
+		changed();
 	}
 
 	public void addFaces(Face[] f) {
 		faces.addAll(Arrays.asList(f));
+		changed();
+	}
+
+	/**
+	 * Makes sure every face knows the index of each of its points in this
+	 * entity's point list. Points shared between faces then only need to be
+	 * projected once per frame. Faces with a point that isn't in the list are
+	 * left without indices and get projected corner by corner.
+	 */
+	void indexFaces() {
+		if (indexedPoints == points.size() && indexedFaces == faces.size())
+			return;
+		IdentityHashMap<Point3D, Integer> lookup = new IdentityHashMap<Point3D, Integer>(
+				points.size());
+		for (int i = 0; i < points.size(); i++) {
+			lookup.put(points.get(i), i);
+		}
+		for (Face f : faces) {
+			Point3D[] facePoints = f.getPoints();
+			int[] indices = new int[facePoints.length];
+			for (int i = 0; i < facePoints.length; i++) {
+				Integer index = lookup.get(facePoints[i]);
+				if (index == null) {
+					indices = null;
+					break;
+				}
+				indices[i] = index;
+			}
+			f.entity = this;
+			f.indices = indices;
+		}
+		indexedPoints = points.size();
+		indexedFaces = faces.size();
+		edges = null;
+	}
+
+	/**
+	 * Gets the distinct edges of the entity's faces, as pairs of indices in
+	 * its point list, for drawing wireframes. Points at the same position
+	 * count as one, so faces which don't share their corners still share
+	 * edges. The list is built on first use and kept until the entity gains
+	 * points or faces.
+	 * 
+	 * @return Shared, so must not be modified.
+	 */
+	int[] edges() {
+		indexFaces();
+		if (edges == null) {
+			int n = points.size();
+			double[] xyz = new double[3 * n];
+			for (int i = 0; i < n; i++) {
+				Point3D p = points.get(i);
+				xyz[3 * i] = p.x;
+				xyz[3 * i + 1] = p.y;
+				xyz[3 * i + 2] = p.z;
+			}
+			int[] welded = EdgeList.weld(DoubleBuffer.wrap(xyz), n);
+			EdgeList list = new EdgeList(3 * faces.size());
+			ArrayList<Face> unindexed = new ArrayList<Face>();
+			for (int i = 0; i < faces.size(); i++) {
+				Face f = faces.get(i);
+				int[] indices = f.indices;
+				if (indices == null) {
+					unindexed.add(f);
+					continue;
+				}
+				for (int j = 0; j < indices.length; j++) {
+					list.add(welded[indices[j]],
+							welded[indices[(j + 1) % indices.length]], i);
+				}
+			}
+			edges = list.build();
+			edgeOwners = list.buildOwners();
+			unindexedFaces = unindexed;
+		}
+		return edges;
+	}
+
+	/**
+	 * Gets the index of the face each of the edges came from, in the same
+	 * order as edges.
+	 * 
+	 * @return Shared, so must not be modified.
+	 */
+	int[] edgeOwners() {
+		edges();
+		return edgeOwners;
+	}
+
+	/**
+	 * Gets the faces which have a point that isn't in the point list, and so
+	 * have no part in the edges.
+	 * 
+	 * @return Shared, so must not be modified.
+	 */
+	ArrayList<Face> unindexedFaces() {
+		edges();
+		return unindexedFaces;
 	}
 
 	public void setName(String name) {
 		this.name = name;
 	}
+
+	public String getName() {
+		return name;
+	}
 	
 	public void setColor(Color c){
-		for(Face f : faces){
-			f.setColor(c);
-		}
+		restyle(c, true);
 	}
 	
 	public void setBorderColor(Color c){
-		for(Face f: faces){
-			f.setBorderColor(c);
+		restyle(c, false);
+	}
+
+	/**
+	 * Gives every face the same material.
+	 * 
+	 * @param m
+	 */
+	public void setMaterial(Material m) {
+		char index = (char) Palette.indexOf(m);
+		for (Face f : faces) {
+			f.material = index;
+		}
+		changed();
+	}
+
+	/**
+	 * Changes the fill or border color of every face, keeping the rest of
+	 * their materials. Neighboring faces usually share a material, so each
+	 * run of them only looks up its new material once.
+	 */
+	private void restyle(Color c, boolean fill) {
+		int from = -1;
+		char to = 0;
+		for (Face f : faces) {
+			if (f.material != from) {
+				from = f.material;
+				Material m = Palette.get(from);
+				to = (char) Palette.indexOf(fill ? m.withColor(c) : m
+						.withBorderColor(c));
+			}
+			f.material = to;
 		}
+		changed();
+	}
+
+	/**
+	 * Outlines the entity in a color, in place of its own borders, or stops
+	 * outlining it if the color is null. This is how the selection is shown;
+	 * it costs the same however many faces the entity has.
+	 * 
+	 * @param c
+	 */
+	public void setHighlight(Color c) {
+		highlight = c;
+		changed();
+	}
+
+	public Color getHighlight() {
+		return highlight;
 	}
 
 	@Override
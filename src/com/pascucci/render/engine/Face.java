@@ -12,16 +12,22 @@ import java.awt.Color;
  * must be added in counter-clockwise order as perceived from the "outside" of
  * the plane in order for the normal calculation to function correctly.
  * 
+ * A face's colors and lighting come from its Material, which it refers to
+ * by its index in the Palette.
+ * 
  * @author Nick Pascucci <nick@kestrelrobotics.com>
  */
 
 public class Face {
 	private Point3D[] points;
-	private Color fillcolor;
-	private Color bordercolor;
+	char material; // Index in the Palette
 	public double zavg;
-	public double diffuseSensitivity;
-	public double ambientSensitivity;
+
+	// Which entity owns this face, and where its points sit in that entity's
+	// point list. Maintained by Entity3D so the renderer can look up
+	// projected vertices instead of projecting every corner of every face.
+	Entity3D entity;
+	int[] indices;
 
 	public Face() {
 		points = new Point3D[3];
@@ -48,19 +54,29 @@ public class Face {
 		zavg = (points[0].z + points[1].z + points[2].z) / 3;
 	}
 
+	public Material getMaterial() {
+		return Palette.get(material);
+	}
+
+	public void setMaterial(Material m) {
+		material = (char) Palette.indexOf(m);
+		if (entity != null)
+			entity.changed();
+	}
+
 	public Color getColor() {
-		return fillcolor;
+		return getMaterial().getColor();
 	}
 
 	public void setColor(Color c) {
-		fillcolor = c;
+		setMaterial(getMaterial().withColor(c));
 	}
 
 	public Color getBorderColor() {
-		return bordercolor;
+		return getMaterial().getBorderColor();
 	}
 
 	public void setBorderColor(Color c) {
-		bordercolor = c;
+		setMaterial(getMaterial().withBorderColor(c));
 	}
 }
@@ -0,0 +1,348 @@
+package com.pascucci.render.engine;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * Renders an animation of a scene to a numbered sequence of PNG files,
+ * without needing a window.
+ *
+ * The work is pipelined. The calling thread poses a copy of the scene for
+ * each frame, a pool of threads renders the posed copies, each with its own
+ * Renderer, and another pool encodes and writes the images. Encoding one
+ * frame overlaps rendering the next, and several frames are rendered at once.
+ *
+ * The scene is copied when the exporter is created, so it can go on being
+ * changed while the frames are made. Each rendering thread also has a copy
+ * of its own, plus one more being posed. Copies share the meshes of
+ * instanced entities, but the points and faces of other entities are copied,
+ * so fewer threads need less memory for big models.
+ *
+ * Streamed models are exported with the chunks they have loaded, without the
+ * boxes standing in for chunks still loading.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class FrameExporter {
+	/**
+	 * Moves a copy of the scene into place for one frame. The camera only
+	 * looks down the z axis, so moving the camera means moving the scene the
+	 * opposite way.
+	 */
+	public interface CameraPath {
+		/**
+		 * @param scene
+		 *            A copy of the scene as it was when the export started.
+		 * @param frame
+		 * @param frames
+		 *            How many frames there are in all.
+		 */
+		void pose(Scene scene, int frame, int frames);
+	}
+
+	/**
+	 * Circles the camera once around the scene's y axis, taking the light
+	 * along, so the last frame leads back into the first.
+	 */
+	public static final CameraPath TURNTABLE = new CameraPath() {
+		public void pose(Scene scene, int frame, int frames) {
+			Transform3D.rotateSceneY(scene, 2 * Math.PI * frame / frames);
+		}
+	};
+
+	private final Snapshot scene; // Never posed
+	private final Renderer renderer;
+	private final int width;
+	private final int height;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private ChangeListener listener;
+	private final AtomicInteger written = new AtomicInteger();
+
+	/**
+	 * A copy of a scene, which can be brought back to the scene's state before
+	 * each frame is posed.
+	 */
+	private static class Snapshot {
+		final Scene copy = new Scene();
+		final Point3D[] from; // Points of the scene and their copies
+		final Point3D[] to;
+		final ArrayList<InstancedEntity3D> instances = new ArrayList<InstancedEntity3D>();
+		final ArrayList<InstancedEntity3D> instanceCopies = new ArrayList<InstancedEntity3D>();
+		final Point3D light;
+
+		Snapshot(Scene scene) {
+			IdentityHashMap<Point3D, Point3D> copies = new IdentityHashMap<Point3D, Point3D>();
+			ArrayList<Entity3D> copied = new ArrayList<Entity3D>();
+			for (Entity3D e : scene.getEntities()) {
+				// A streamed model draws nothing itself, and its chunks are
+				// in the scene already.
+				if (e instanceof StreamedModel || StreamedModel.isPlaceholder(e))
+					continue;
+				if (e instanceof InstancedEntity3D) {
+					InstancedEntity3D instance = (InstancedEntity3D) e;
+					InstancedEntity3D c = new InstancedEntity3D(instance);
+					c.setHighlight(instance.getHighlight());
+					instances.add(instance);
+					instanceCopies.add(c);
+					copied.add(c);
+					continue;
+				}
+				Entity3D c = new Entity3D();
+				c.setName(e.getName());
+				for (Point3D p : e.getPoints()) {
+					c.getPoints().add(copy(p, copies));
+				}
+				for (Face f : e.getFaces()) {
+					Point3D[] points = f.getPoints();
+					Point3D[] facePoints = new Point3D[points.length];
+					for (int i = 0; i < points.length; i++) {
+						facePoints[i] = copy(points[i], copies);
+					}
+					Face face = new Face(facePoints);
+					face.material = f.material;
+					c.addFace(face);
+				}
+				c.setHighlight(e.getHighlight());
+				copied.add(c);
+			}
+			from = copies.keySet().toArray(new Point3D[copies.size()]);
+			to = new Point3D[from.length];
+			for (int i = 0; i < from.length; i++) {
+				to[i] = copies.get(from[i]);
+			}
+			Point3D l = scene.getLight();
+			light = new Point3D(l.x, l.y, l.z);
+			copy.setLight(light);
+			copy.setCamera(scene.getCamera());
+			copy.ambient = scene.ambient;
+			for (Entity3D e : copied) {
+				copy.addEntity(e);
+			}
+		}
+
+		private static Point3D copy(Point3D p, IdentityHashMap<Point3D, Point3D> copies) {
+			Point3D c = copies.get(p);
+			if (c == null) {
+				c = new Point3D(p.x, p.y, p.z);
+				copies.put(p, c);
+			}
+			return c;
+		}
+
+		/**
+		 * Undoes the last frame's pose.
+		 *
+		 * @param scene
+		 *            The scene this was copied from.
+		 */
+		void reset(Scene scene) {
+			for (int i = 0; i < from.length; i++) {
+				Point3D p = from[i];
+				to[i].setCoordinates(p.x, p.y, p.z);
+			}
+			for (int i = 0; i < instances.size(); i++) {
+				InstancedEntity3D c = instanceCopies.get(i);
+				System.arraycopy(instances.get(i).matrix, 0, c.matrix, 0,
+						c.matrix.length);
+			}
+			for (Entity3D e : copy.getEntities()) {
+				e.pointsChanged();
+			}
+			Point3D l = scene.getLight();
+			light.setCoordinates(l.x, l.y, l.z);
+		}
+	}
+
+	/**
+	 * Creates an exporter for frames of the scene as the renderer would draw
+	 * them now. The scene and the renderer's settings are copied, so this has
+	 * to be called on the thread which changes them.
+	 *
+	 * @param scene
+	 * @param renderer
+	 * @param width
+	 * @param height
+	 */
+	public FrameExporter(Scene scene, Renderer renderer, int width, int height) {
+		this.scene = new Snapshot(scene);
+		this.renderer = new Renderer(renderer);
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Sets how many frames are rendered at once, and how many are encoded at
+	 * once. Defaults to one per processor.
+	 *
+	 * @param n
+	 */
+	public void setThreads(int n) {
+		threads = Math.max(1, n);
+	}
+
+	/**
+	 * Sets a listener to call, from an encoding thread, after each frame is
+	 * written.
+	 *
+	 * @param l
+	 */
+	public void setChangeListener(ChangeListener l) {
+		listener = l;
+	}
+
+	/**
+	 * Gets how many frames of the current export have been written.
+	 *
+	 * @return
+	 */
+	public int getFramesWritten() {
+		return written.get();
+	}
+
+	/**
+	 * Renders the frames and writes them as prefix0000.png, prefix0001.png and
+	 * so on. Returns once every frame is written.
+	 *
+	 * @param directory
+	 * @param prefix
+	 * @param frames
+	 * @param path
+	 * @throws IOException
+	 *             If a frame couldn't be written. No more frames are started
+	 *             after one fails.
+	 */
+	public void export(File directory, String prefix, int frames,
+			final CameraPath path) throws IOException {
+		written.set(0);
+		final ArrayBlockingQueue<Snapshot> snapshots = new ArrayBlockingQueue<Snapshot>(
+				threads + 1);
+		for (int i = 0; i <= threads; i++) {
+			snapshots.add(new Snapshot(scene.copy));
+		}
+		final ArrayBlockingQueue<BufferedImage> images = new ArrayBlockingQueue<BufferedImage>(
+				2 * threads);
+		for (int i = 0; i < 2 * threads; i++) {
+			images.add(new BufferedImage(width, height,
+					BufferedImage.TYPE_INT_ARGB));
+		}
+		final ThreadLocal<Renderer> renderers = new ThreadLocal<Renderer>() {
+			protected Renderer initialValue() {
+				return new Renderer(renderer);
+			}
+		};
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final ExecutorService rendering = newPool(threads, "Frame renderer");
+		final ExecutorService encoding = newPool(threads, "Frame encoder");
+
+		try {
+			for (int i = 0; i < frames && failure.get() == null; i++) {
+				final Snapshot snapshot = snapshots.take();
+				snapshot.reset(scene.copy);
+				path.pose(snapshot.copy, i, frames);
+				final File file = new File(directory, String.format(
+						"%s%04d.png", prefix, i));
+				rendering.execute(new Runnable() {
+					public void run() {
+						BufferedImage image;
+						try {
+							image = images.take();
+						} catch (InterruptedException e) {
+							snapshots.add(snapshot);
+							return;
+						}
+						try {
+							render(renderers.get(), snapshot.copy, image);
+						} catch (Throwable t) {
+							failure.compareAndSet(null, t);
+							images.add(image);
+							return;
+						} finally {
+							snapshots.add(snapshot);
+						}
+						encode(image, file, images, failure, encoding);
+					}
+				});
+			}
+			rendering.shutdown();
+			rendering.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+			encoding.shutdown();
+			encoding.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Export interrupted.");
+		} finally {
+			rendering.shutdownNow();
+			encoding.shutdownNow();
+		}
+
+		Throwable t = failure.get();
+		if (t instanceof IOException)
+			throw (IOException) t;
+		if (t instanceof RuntimeException)
+			throw (RuntimeException) t;
+		if (t != null)
+			throw new RuntimeException(t);
+	}
+
+	private void render(Renderer r, Scene s, BufferedImage image) {
+		Graphics2D g2 = image.createGraphics();
+		try {
+			r.renderScene(g2, s, width, height);
+		} finally {
+			g2.dispose();
+		}
+	}
+
+	/**
+	 * Queues a rendered frame to be written, handing the image back to be
+	 * drawn on again once it has been.
+	 */
+	private void encode(final BufferedImage image, final File file,
+			final ArrayBlockingQueue<BufferedImage> images,
+			final AtomicReference<Throwable> failure, ExecutorService encoding) {
+		encoding.execute(new Runnable() {
+			public void run() {
+				try {
+					if (failure.get() != null)
+						return;
+					if (!ImageIO.write(image, "png", file))
+						throw new IOException("No PNG writer available.");
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+					return;
+				} finally {
+					images.add(image);
+				}
+				written.incrementAndGet();
+				ChangeListener l = listener;
+				if (l != null)
+					l.stateChanged(new ChangeEvent(FrameExporter.this));
+			}
+		});
+	}
+
+	private static ExecutorService newPool(int threads, final String name) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+}
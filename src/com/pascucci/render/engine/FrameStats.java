@@ -0,0 +1,196 @@
+package com.pascucci.render.engine;
+
+import java.util.Arrays;
+
+/**
+ * Collects per-stage timings and face counters for the frames drawn by a
+ * Renderer. The last {@link #WINDOW} frames are kept so rolling percentiles can
+ * be read back, e.g. for the SceneView overlay.
+ *
+ * Times are in nanoseconds. The renderer only feeds this object while
+ * profiling is turned on, so it costs nothing otherwise.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class FrameStats {
+
+	// Stages of a frame
+	public static final int SORT = 0;
+	public static final int OCCLUDE = 1;
+	public static final int CULL = 2;
+	public static final int SHADE = 3;
+	public static final int PROJECT = 4;
+	public static final int FILL = 5;
+	public static final int PRESENT = 6;
+	public static final int STREAM = 7; // Updating streamed models
+	public static final int TOTAL = 8;
+	public static final int STAGES = 9;
+
+	private static final String[] STAGE_NAMES = { "sort", "occlude", "cull",
+			"shade", "project", "fill", "present", "stream", "total" };
+
+	/**
+	 * Number of frames the percentiles are computed over.
+	 */
+	public static final int WINDOW = 120;
+
+	private long[][] history;
+	private long[] current;
+	private int frames; // Frames recorded so far, saturates at WINDOW
+	private int next; // Ring buffer slot for the next frame
+
+	private int lastSubmitted;
+	private int lastCulled;
+	private int lastOccluded;
+	private int lastDrawn;
+
+	public FrameStats() {
+		history = new long[STAGES][WINDOW];
+		current = new long[STAGES];
+	}
+
+	/**
+	 * Starts collecting a new frame, discarding any partial one.
+	 */
+	public void beginFrame() {
+		Arrays.fill(current, 0);
+	}
+
+	/**
+	 * Adds time to a stage of the frame in progress.
+	 *
+	 * @param stage
+	 *            One of the stage constants.
+	 * @param nanos
+	 */
+	public void addTime(int stage, long nanos) {
+		current[stage] += nanos;
+	}
+
+	/**
+	 * Finishes the frame in progress and adds it to the rolling window.
+	 *
+	 * @param totalNanos
+	 *            Wall time of the whole frame.
+	 * @param submitted
+	 *            Faces handed to the renderer.
+	 * @param culled
+	 *            Faces skipped by back-face culling.
+	 * @param occluded
+	 *            Faces skipped by occlusion culling.
+	 * @param drawn
+	 *            Faces actually drawn.
+	 */
+	public void endFrame(long totalNanos, int submitted, int culled,
+			int occluded, int drawn) {
+		current[TOTAL] = totalNanos;
+		for (int stage = 0; stage < STAGES; stage++) {
+			history[stage][next] = current[stage];
+		}
+		next = (next + 1) % WINDOW;
+		if (frames < WINDOW)
+			frames++;
+		lastSubmitted = submitted;
+		lastCulled = culled;
+		lastOccluded = occluded;
+		lastDrawn = drawn;
+	}
+
+	/**
+	 * Gets the time spent in a stage during the last completed frame.
+	 *
+	 * @param stage
+	 * @return Nanoseconds, or 0 if no frame has been recorded.
+	 */
+	public long getLastTime(int stage) {
+		if (frames == 0)
+			return 0;
+		return history[stage][(next + WINDOW - 1) % WINDOW];
+	}
+
+	/**
+	 * Gets a percentile of a stage's time over the recorded window.
+	 *
+	 * @param stage
+	 *            One of the stage constants.
+	 * @param percentile
+	 *            Between 0 and 100.
+	 * @return Nanoseconds, or 0 if no frame has been recorded.
+	 */
+	public long getPercentile(int stage, double percentile) {
+		if (frames == 0)
+			return 0;
+		long[] samples = Arrays.copyOf(history[stage], frames);
+		Arrays.sort(samples);
+		int index = (int) Math.ceil(percentile / 100 * frames) - 1;
+		if (index < 0)
+			index = 0;
+		if (index >= frames)
+			index = frames - 1;
+		return samples[index];
+	}
+
+	/**
+	 * Gets the number of frames in the rolling window.
+	 *
+	 * @return
+	 */
+	public int getFrameCount() {
+		return frames;
+	}
+
+	/**
+	 * Gets the number of faces handed to the renderer last frame.
+	 *
+	 * @return
+	 */
+	public int getFacesSubmitted() {
+		return lastSubmitted;
+	}
+
+	/**
+	 * Gets the number of faces skipped by back-face culling last frame.
+	 *
+	 * @return
+	 */
+	public int getFacesCulled() {
+		return lastCulled;
+	}
+
+	/**
+	 * Gets the number of faces skipped by occlusion culling last frame.
+	 *
+	 * @return
+	 */
+	public int getFacesOccluded() {
+		return lastOccluded;
+	}
+
+	/**
+	 * Gets the number of faces actually drawn last frame.
+	 *
+	 * @return
+	 */
+	public int getFacesDrawn() {
+		return lastDrawn;
+	}
+
+	/**
+	 * Forgets all recorded frames.
+	 */
+	public void reset() {
+		for (long[] h : history) {
+			Arrays.fill(h, 0);
+		}
+		frames = 0;
+		next = 0;
+		lastSubmitted = 0;
+		lastCulled = 0;
+		lastOccluded = 0;
+		lastDrawn = 0;
+	}
+
+	public static String getStageName(int stage) {
+		return STAGE_NAMES[stage];
+	}
+}
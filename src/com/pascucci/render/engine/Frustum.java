@@ -0,0 +1,92 @@
+package com.pascucci.render.engine;
+
+/**
+ * The part of the scene a Renderer can see, as a set of planes. A point is
+ * inside when a * x + b * y + c * z + d <= 0 for every plane.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class Frustum {
+	private final double[][] planes;
+
+	/**
+	 * Creates a frustum from planes given as {a, b, c, d}.
+	 * 
+	 * @param planes
+	 */
+	public Frustum(double[][] planes) {
+		this.planes = planes;
+	}
+
+	/**
+	 * Builds the frustum matching the Renderer's projection: the camera sits on
+	 * the z axis looking towards -z, the origin maps to the middle of the
+	 * screen and one scene unit is scale pixels at z = 0.
+	 * 
+	 * @param camera
+	 * @param width
+	 *            Screen width in pixels.
+	 * @param height
+	 *            Screen height in pixels.
+	 * @param scale
+	 *            The renderer's scale factor.
+	 * @param orthogonal
+	 *            Whether the renderer is in orthogonal mode.
+	 * @return
+	 */
+	public static Frustum fromView(Camera camera, int width, int height,
+			double scale, boolean orthogonal) {
+		double halfW = width / 2.0;
+		double halfH = height / 2.0;
+		if (orthogonal) {
+			// A box, open at the front and back.
+			return new Frustum(new double[][] { { scale, 0, 0, -halfW },
+					{ -scale, 0, 0, -halfW }, { 0, scale, 0, -halfH },
+					{ 0, -scale, 0, -halfH } });
+		}
+		double camZ = camera.getLocation().z;
+		// |scale * camZ * x / (camZ - z)| <= halfW, rearranged so both sides
+		// stay positive in front of the camera.
+		return new Frustum(new double[][] {
+				{ scale * camZ, 0, halfW, -halfW * camZ },
+				{ -scale * camZ, 0, halfW, -halfW * camZ },
+				{ 0, scale * camZ, halfH, -halfH * camZ },
+				{ 0, -scale * camZ, halfH, -halfH * camZ },
+				// Nothing at or behind the camera
+				{ 0, 0, 1, -camZ } });
+	}
+
+	/**
+	 * Checks whether any part of the box might be inside. Boxes near a corner
+	 * of the frustum can be reported as inside when they aren't, which is fine
+	 * for culling.
+	 * 
+	 * @param b
+	 * @return
+	 */
+	public boolean intersects(BoundingBox b) {
+		for (double[] p : planes) {
+			// Test the corner which is furthest inside this plane.
+			double x = p[0] > 0 ? b.minX : b.maxX;
+			double y = p[1] > 0 ? b.minY : b.maxY;
+			double z = p[2] > 0 ? b.minZ : b.maxZ;
+			if (p[0] * x + p[1] * y + p[2] * z + p[3] > 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether a point is inside.
+	 * 
+	 * @param p
+	 * @return
+	 */
+	public boolean contains(Point3D p) {
+		for (double[] plane : planes) {
+			if (plane[0] * p.x + plane[1] * p.y + plane[2] * p.z + plane[3] > 0)
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,235 @@
+package com.pascucci.render.engine;
+
+import java.awt.Color;
+
+/**
+ * An entity which draws a shared Mesh through its own transform and color.
+ * Thousands of identical parts can then share one copy of the geometry, and
+ * moving one only touches its twelve matrix entries.
+ * 
+ * Instances have no points or faces of their own, so they can't be edited
+ * with addPoint or addFace.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class InstancedEntity3D extends Entity3D {
+	private final Mesh mesh;
+	// Row-major 3x4 affine transform from mesh space into the scene.
+	final double[] matrix = { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0 };
+	private Material material = Material.DEFAULT;
+	private boolean disposed;
+
+	/**
+	 * Creates an instance of the mesh with an identity transform. An instance
+	 * of a mesh stored off the heap keeps the mesh's arena open until it's
+	 * disposed.
+	 * 
+	 * @param mesh
+	 * @throws IllegalStateException
+	 *             If the mesh is stored in an arena which has been closed.
+	 */
+	public InstancedEntity3D(Mesh mesh) {
+		MeshArena arena = mesh.arena();
+		if (arena != null)
+			arena.retain();
+		this.mesh = mesh;
+	}
+
+	/**
+	 * Creates an instance of the mesh with the same transform, material and
+	 * name as another instance.
+	 * 
+	 * @param other
+	 */
+	public InstancedEntity3D(InstancedEntity3D other) {
+		this(other.mesh);
+		System.arraycopy(other.matrix, 0, matrix, 0, matrix.length);
+		material = other.material;
+		setName(other.getName());
+	}
+
+	public Mesh getMesh() {
+		return mesh;
+	}
+
+	/**
+	 * Lets go of the instance's hold on its mesh's memory off the heap, if it
+	 * has any, closing the arena after the last instance using it. Call it
+	 * once the instance is deleted for good; it can't be drawn afterwards.
+	 * Disposing it again does nothing.
+	 */
+	public void dispose() {
+		if (disposed)
+			return;
+		disposed = true;
+		MeshArena arena = mesh.arena();
+		if (arena != null)
+			arena.release();
+	}
+
+	/**
+	 * Gets a copy of the instance transform, as a row-major 3x4 matrix.
+	 * 
+	 * @return
+	 */
+	public double[] getMatrix() {
+		return matrix.clone();
+	}
+
+	public Material getMaterial() {
+		return material;
+	}
+
+	@Override
+	public void setMaterial(Material m) {
+		if (!m.equals(material)) {
+			material = m;
+			changed();
+		}
+	}
+
+	public Color getColor() {
+		return material.getColor();
+	}
+
+	@Override
+	public void setColor(Color c) {
+		setMaterial(material.withColor(c));
+	}
+
+	public Color getBorderColor() {
+		return material.getBorderColor();
+	}
+
+	@Override
+	public void setBorderColor(Color c) {
+		setMaterial(material.withBorderColor(c));
+	}
+
+	@Override
+	public void addPoint(Point3D p) {
+		throw new UnsupportedOperationException(
+				"Instances share their mesh and can't be edited.");
+	}
+
+	@Override
+	public void addPoints(Point3D[] p) {
+		throw new UnsupportedOperationException(
+				"Instances share their mesh and can't be edited.");
+	}
+
+	@Override
+	public void addFace(Face f) {
+		throw new UnsupportedOperationException(
+				"Instances share their mesh and can't be edited.");
+	}
+
+	@Override
+	public void addFaces(Face[] f) {
+		throw new UnsupportedOperationException(
+				"Instances share their mesh and can't be edited.");
+	}
+
+	/**
+	 * Transforms the mesh's box rather than the vertices.
+	 */
+	@Override
+	void computeBounds(BoundingBox b) {
+		transformBounds(mesh.bounds(), b);
+	}
+
+	/**
+	 * Takes a box in mesh space into the scene: the center goes through the
+	 * matrix, and each axis of the result is as wide as the matrix stretches
+	 * the box along it.
+	 * 
+	 * @param local
+	 * @param b
+	 *            Gets the box around the transformed one.
+	 */
+	void transformBounds(BoundingBox local, BoundingBox b) {
+		if (local.isEmpty()) {
+			b.setEmpty();
+			return;
+		}
+		double x = local.getCenterX();
+		double y = local.getCenterY();
+		double z = local.getCenterZ();
+		double hx = (local.maxX - local.minX) / 2;
+		double hy = (local.maxY - local.minY) / 2;
+		double hz = (local.maxZ - local.minZ) / 2;
+		double[] m = matrix;
+		double cx = m[0] * x + m[1] * y + m[2] * z + m[3];
+		double cy = m[4] * x + m[5] * y + m[6] * z + m[7];
+		double cz = m[8] * x + m[9] * y + m[10] * z + m[11];
+		double ex = Math.abs(m[0]) * hx + Math.abs(m[1]) * hy + Math.abs(m[2])
+				* hz;
+		double ey = Math.abs(m[4]) * hx + Math.abs(m[5]) * hy + Math.abs(m[6])
+				* hz;
+		double ez = Math.abs(m[8]) * hx + Math.abs(m[9]) * hy
+				+ Math.abs(m[10]) * hz;
+		b.set(cx - ex, cy - ey, cz - ez, cx + ex, cy + ey, cz + ez);
+	}
+
+	/**
+	 * Rotates the instance around the scene's x axis, given the cosine and
+	 * sine of the angle.
+	 * 
+	 * @param cos
+	 * @param sin
+	 */
+	void rotateX(double cos, double sin) {
+		for (int col = 0; col < 4; col++) {
+			double y = matrix[4 + col];
+			double z = matrix[8 + col];
+			matrix[4 + col] = y * cos - z * sin;
+			matrix[8 + col] = y * sin + z * cos;
+		}
+	}
+
+	/**
+	 * Rotates the instance around the scene's y axis, given the cosine and
+	 * sine of the angle.
+	 * 
+	 * @param cos
+	 * @param sin
+	 */
+	void rotateY(double cos, double sin) {
+		for (int col = 0; col < 4; col++) {
+			double x = matrix[col];
+			double z = matrix[8 + col];
+			matrix[col] = x * cos + z * sin;
+			matrix[8 + col] = z * cos - x * sin;
+		}
+	}
+
+	/**
+	 * Rotates the instance around the scene's z axis, given the cosine and
+	 * sine of the angle.
+	 * 
+	 * @param cos
+	 * @param sin
+	 */
+	void rotateZ(double cos, double sin) {
+		for (int col = 0; col < 4; col++) {
+			double x = matrix[col];
+			double y = matrix[4 + col];
+			matrix[col] = x * cos - y * sin;
+			matrix[4 + col] = y * cos + x * sin;
+		}
+	}
+
+	void translate(double x, double y, double z) {
+		matrix[3] += x;
+		matrix[7] += y;
+		matrix[11] += z;
+	}
+
+	void scale(double x, double y, double z) {
+		for (int col = 0; col < 4; col++) {
+			matrix[col] *= x;
+			matrix[4 + col] *= y;
+			matrix[8 + col] *= z;
+		}
+	}
+}
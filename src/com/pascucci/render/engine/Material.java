@@ -0,0 +1,128 @@
+package com.pascucci.render.engine;
+
+import java.awt.Color;
+
+/**
+ * How a surface looks: its fill and border colors and how strongly it
+ * responds to ambient and diffuse light. Materials can't be changed, so one
+ * can be shared by any number of faces and instances; faces refer to theirs
+ * through the Palette.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public final class Material {
+	/**
+	 * What faces and instances look like until they're given a material.
+	 */
+	public static final Material DEFAULT = new Material(Color.WHITE,
+			Color.WHITE, 1, 1);
+
+	private final Color color;
+	private final Color borderColor;
+	private final double ambientSensitivity;
+	private final double diffuseSensitivity;
+
+	public Material(Color color, Color borderColor, double ambientSensitivity,
+			double diffuseSensitivity) {
+		this.color = color;
+		this.borderColor = borderColor;
+		this.ambientSensitivity = ambientSensitivity;
+		this.diffuseSensitivity = diffuseSensitivity;
+	}
+
+	/**
+	 * Creates a material with the same color for the fill and the border,
+	 * fully lit by both kinds of light.
+	 *
+	 * @param color
+	 */
+	public Material(Color color) {
+		this(color, color, 1, 1);
+	}
+
+	public Color getColor() {
+		return color;
+	}
+
+	public Color getBorderColor() {
+		return borderColor;
+	}
+
+	public double getAmbientSensitivity() {
+		return ambientSensitivity;
+	}
+
+	public double getDiffuseSensitivity() {
+		return diffuseSensitivity;
+	}
+
+	/**
+	 * Gets this material with another fill color.
+	 *
+	 * @param c
+	 * @return
+	 */
+	public Material withColor(Color c) {
+		return new Material(c, borderColor, ambientSensitivity,
+				diffuseSensitivity);
+	}
+
+	/**
+	 * Gets this material with another border color.
+	 *
+	 * @param c
+	 * @return
+	 */
+	public Material withBorderColor(Color c) {
+		return new Material(color, c, ambientSensitivity, diffuseSensitivity);
+	}
+
+	/**
+	 * Gets this material with other sensitivities to light.
+	 *
+	 * @param ambient
+	 * @param diffuse
+	 * @return
+	 */
+	public Material withSensitivity(double ambient, double diffuse) {
+		return new Material(color, borderColor, ambient, diffuse);
+	}
+
+	/**
+	 * Tells whether the material can be seen through.
+	 *
+	 * @return
+	 */
+	public boolean isTranslucent() {
+		return color.getAlpha() < 255;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Material))
+			return false;
+		Material m = (Material) o;
+		return equal(color, m.color) && equal(borderColor, m.borderColor)
+				&& Double.compare(ambientSensitivity, m.ambientSensitivity) == 0
+				&& Double.compare(diffuseSensitivity, m.diffuseSensitivity) == 0;
+	}
+
+	private static boolean equal(Color a, Color b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	@Override
+	public int hashCode() {
+		long bits = Double.doubleToLongBits(ambientSensitivity) * 31
+				+ Double.doubleToLongBits(diffuseSensitivity);
+		int hash = (int) (bits ^ (bits >>> 32));
+		hash = hash * 31 + (color == null ? 0 : color.hashCode());
+		return hash * 31 + (borderColor == null ? 0 : borderColor.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		return "Material[" + color + ", border " + borderColor + ", ambient "
+				+ ambientSensitivity + ", diffuse " + diffuseSensitivity + "]";
+	}
+}
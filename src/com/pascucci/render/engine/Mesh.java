@@ -0,0 +1,646 @@
+package com.pascucci.render.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Immutable triangle mesh which any number of InstancedEntity3Ds can share.
+ * Vertices are stored once, as flat coordinate arrays, and triangles refer to
+ * them by index.
+ * 
+ * A mesh can also be compressed, for models too big to keep at full
+ * precision. Positions are then quantized to 16 bits within the mesh's box,
+ * triangle indices are stored as variable length deltas, and each triangle
+ * keeps an octahedral encoded normal taken from the full precision geometry.
+ * The renderer decodes them as it transforms and projects each frame.
+ * 
+ * Or a full precision mesh can be stored off the Java heap, in a MeshArena,
+ * so that the garbage collector never has to deal with it.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class Mesh {
+	// Quantized positions run over the whole range of a short.
+	private static final int STEPS = 65535;
+	private static final int OFFSET = 32768;
+	private static final int NORMAL_STEPS = 32767;
+	// Triangles between the points index decoding can start from.
+	static final int RESTART_INTERVAL = 8;
+
+	private final int vertexCount;
+	private final int triangleCount;
+	private final BoundingBox bounds = new BoundingBox();
+
+	// Full precision; null when compressed or off the heap
+	private final double[] vertices; // x, y, z for each vertex
+	private final int[] triangles; // Three vertex indices for each triangle
+	private final double[] centroids; // x, y, z for each triangle
+
+	// Compressed; null otherwise
+	private final short[] quantized; // x, y, z for each vertex
+	private final short[] quantizedCentroids; // x, y, z for each triangle
+	private final double[] quantization; // Origin x, y, z, then step x, y, z
+	private final byte[] indexData; // Zigzag varint deltas between indices
+	// Every RESTART_INTERVAL triangles, the offset in indexData and the index
+	// before it, so triangles can be decoded without starting from the first
+	private final int[] restarts;
+	private final int[] normals; // Octahedral u and v for each triangle
+
+	// Off the heap; null otherwise. The block holds the vertices, then the
+	// centroids, as doubles, then the triangles as ints.
+	private final MeshArena arena;
+	private final int block;
+
+	// Distinct edges for wireframes, two vertex indices each, built when
+	// first wanted.
+	private int[] edges;
+
+	/**
+	 * Creates a mesh from vertex coordinates and triangle indices. The arrays
+	 * are copied.
+	 * 
+	 * @param vertices
+	 *            x, y and z for each vertex.
+	 * @param triangles
+	 *            Three vertex indices for each triangle, counter-clockwise as
+	 *            seen from outside.
+	 */
+	public Mesh(double[] vertices, int[] triangles) {
+		if (vertices.length % 3 != 0 || triangles.length % 3 != 0)
+			throw new IllegalArgumentException(
+					"Vertex and triangle arrays must come in threes.");
+		int vertexCount = vertices.length / 3;
+		for (int index : triangles) {
+			if (index < 0 || index >= vertexCount)
+				throw new IllegalArgumentException("Vertex index " + index
+						+ " out of range.");
+		}
+		this.vertices = vertices.clone();
+		this.triangles = triangles.clone();
+		this.vertexCount = vertexCount;
+		triangleCount = triangles.length / 3;
+		for (int v = 0; v < vertices.length; v += 3) {
+			bounds.add(vertices[v], vertices[v + 1], vertices[v + 2]);
+		}
+		centroids = new double[triangles.length];
+		for (int t = 0; t < triangles.length; t += 3) {
+			for (int axis = 0; axis < 3; axis++) {
+				centroids[t + axis] = (vertices[3 * triangles[t] + axis]
+						+ vertices[3 * triangles[t + 1] + axis] + vertices[3 * triangles[t + 2]
+						+ axis]) / 3;
+			}
+		}
+		quantized = null;
+		quantizedCentroids = null;
+		quantization = null;
+		indexData = null;
+		restarts = null;
+		normals = null;
+		arena = null;
+		block = 0;
+	}
+
+	private Mesh(Mesh source, short[] quantized, short[] quantizedCentroids,
+			double[] quantization, byte[] indexData, int[] normals) {
+		vertexCount = quantized.length / 3;
+		triangleCount = normals.length;
+		bounds.add(source.bounds);
+		vertices = null;
+		triangles = null;
+		centroids = null;
+		this.quantized = quantized;
+		this.quantizedCentroids = quantizedCentroids;
+		this.quantization = quantization;
+		this.indexData = indexData;
+		this.normals = normals;
+		arena = null;
+		block = 0;
+		int blocks = (triangleCount + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+		restarts = new int[2 * blocks];
+		int previous = 0;
+		int position = 0;
+		for (int i = 0; i < 3 * triangleCount; i++) {
+			if (i % (3 * RESTART_INTERVAL) == 0) {
+				int r = 2 * (i / (3 * RESTART_INTERVAL));
+				restarts[r] = position;
+				restarts[r + 1] = previous;
+			}
+			int zigzag = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = indexData[position++];
+				zigzag |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			previous += (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+	}
+
+	private Mesh(Mesh source, MeshArena arena) {
+		vertexCount = source.vertexCount;
+		triangleCount = source.triangleCount;
+		bounds.add(source.bounds);
+		vertices = null;
+		triangles = null;
+		centroids = null;
+		quantized = null;
+		quantizedCentroids = null;
+		quantization = null;
+		indexData = null;
+		restarts = null;
+		normals = null;
+		this.arena = arena;
+		block = arena.allocate(24L * vertexCount + 36L * triangleCount);
+		ByteBuffer data = arena.get(block);
+		for (int i = 0; i < source.vertices.length; i++) {
+			data.putDouble(8 * i, source.vertices[i]);
+		}
+		int centroidOffset = centroidOffset();
+		for (int i = 0; i < source.centroids.length; i++) {
+			data.putDouble(centroidOffset + 8 * i, source.centroids[i]);
+		}
+		int triangleOffset = triangleOffset();
+		for (int i = 0; i < source.triangles.length; i++) {
+			data.putInt(triangleOffset + 4 * i, source.triangles[i]);
+		}
+	}
+
+	/**
+	 * Copies the geometry of an entity into a new mesh. Points shared between
+	 * faces stay shared, and faces with more than three points are split into
+	 * triangle fans.
+	 * 
+	 * @param e
+	 * @return
+	 */
+	public static Mesh fromEntity(Entity3D e) {
+		ArrayList<Point3D> points = e.getPoints();
+		IdentityHashMap<Point3D, Integer> lookup = new IdentityHashMap<Point3D, Integer>();
+		ArrayList<Point3D> used = new ArrayList<Point3D>(points.size());
+		for (Point3D p : points) {
+			if (!lookup.containsKey(p)) {
+				lookup.put(p, used.size());
+				used.add(p);
+			}
+		}
+		ArrayList<Integer> indices = new ArrayList<Integer>();
+		for (Face f : e.getFaces()) {
+			Point3D[] facePoints = f.getPoints();
+			int[] corners = new int[facePoints.length];
+			for (int i = 0; i < facePoints.length; i++) {
+				Integer index = lookup.get(facePoints[i]);
+				if (index == null) {
+					index = used.size();
+					lookup.put(facePoints[i], index);
+					used.add(facePoints[i]);
+				}
+				corners[i] = index;
+			}
+			for (int i = 1; i < corners.length - 1; i++) {
+				indices.add(corners[0]);
+				indices.add(corners[i]);
+				indices.add(corners[i + 1]);
+			}
+		}
+		double[] vertices = new double[used.size() * 3];
+		for (int i = 0; i < used.size(); i++) {
+			Point3D p = used.get(i);
+			vertices[3 * i] = p.x;
+			vertices[3 * i + 1] = p.y;
+			vertices[3 * i + 2] = p.z;
+		}
+		int[] triangles = new int[indices.size()];
+		for (int i = 0; i < triangles.length; i++) {
+			triangles[i] = indices.get(i);
+		}
+		return new Mesh(vertices, triangles);
+	}
+
+	/**
+	 * Makes a compressed copy of the mesh. Vertices which quantize to the same
+	 * position are merged, which for meshes with unshared corners, like STL
+	 * imports, saves far more than the quantization itself.
+	 * 
+	 * @return The compressed mesh, or this one if it already is.
+	 */
+	public Mesh compress() {
+		if (isCompressed())
+			return this;
+		if (isOffHeap())
+			return copyToHeap().compress();
+		double[] quantization = new double[6];
+		double[] min = { bounds.minX, bounds.minY, bounds.minZ };
+		double[] max = { bounds.maxX, bounds.maxY, bounds.maxZ };
+		for (int axis = 0; axis < 3 && !bounds.isEmpty(); axis++) {
+			double step = (max[axis] - min[axis]) / STEPS;
+			quantization[axis] = min[axis] + OFFSET * step;
+			quantization[3 + axis] = step;
+		}
+
+		// Quantize, merging vertices that land on the same spot.
+		HashMap<Long, Integer> lookup = new HashMap<Long, Integer>();
+		int[] remap = new int[vertexCount];
+		short[] quantized = new short[vertexCount * 3];
+		int merged = 0;
+		for (int v = 0; v < vertexCount; v++) {
+			long key = 0;
+			for (int axis = 0; axis < 3; axis++) {
+				key = key << 16
+						| quantize(vertices[3 * v + axis], min[axis],
+								quantization[3 + axis]);
+			}
+			Integer index = lookup.get(key);
+			if (index == null) {
+				index = merged++;
+				lookup.put(key, index);
+				for (int axis = 0; axis < 3; axis++) {
+					long q = key >> 16 * (2 - axis) & 0xFFFF;
+					quantized[3 * index + axis] = (short) (q - OFFSET);
+				}
+			}
+			remap[v] = index;
+		}
+
+		ByteArrayOutputStream indexData = new ByteArrayOutputStream(
+				triangles.length * 2);
+		int previous = 0;
+		for (int i = 0; i < triangles.length; i++) {
+			int index = remap[triangles[i]];
+			int delta = index - previous;
+			previous = index;
+			int zigzag = (delta << 1) ^ (delta >> 31);
+			while ((zigzag & ~0x7F) != 0) {
+				indexData.write((zigzag & 0x7F) | 0x80);
+				zigzag >>>= 7;
+			}
+			indexData.write(zigzag);
+		}
+
+		int[] normals = new int[triangleCount];
+		for (int t = 0; t < triangleCount; t++) {
+			int v0 = 3 * triangles[3 * t];
+			int v1 = 3 * triangles[3 * t + 1];
+			int v2 = 3 * triangles[3 * t + 2];
+			double ax = vertices[v1] - vertices[v0];
+			double ay = vertices[v1 + 1] - vertices[v0 + 1];
+			double az = vertices[v1 + 2] - vertices[v0 + 2];
+			double bx = vertices[v2] - vertices[v0];
+			double by = vertices[v2 + 1] - vertices[v0 + 1];
+			double bz = vertices[v2 + 2] - vertices[v0 + 2];
+			normals[t] = encodeNormal(ay * bz - az * by, az * bx - ax * bz, ax
+					* by - ay * bx);
+		}
+
+		short[] quantizedCentroids = new short[centroids.length];
+		for (int i = 0; i < centroids.length; i++) {
+			int axis = i % 3;
+			quantizedCentroids[i] = (short) (quantize(centroids[i], min[axis],
+					quantization[3 + axis]) - OFFSET);
+		}
+		return new Mesh(this, Arrays.copyOf(quantized, merged * 3),
+				quantizedCentroids, quantization, indexData.toByteArray(),
+				normals);
+	}
+
+	/**
+	 * Makes a copy of the mesh stored off the heap, in memory from an arena.
+	 * Instances of the copy retain the arena when created, and release it
+	 * when disposed.
+	 * 
+	 * @param arena
+	 * @return The copy, or this mesh if it's already off the heap or is
+	 *         compressed, which keeps it small enough to stay.
+	 * @throws IllegalArgumentException
+	 *             If the mesh is too big for one block of the arena.
+	 */
+	public Mesh storeOffHeap(MeshArena arena) {
+		if (isOffHeap() || isCompressed())
+			return this;
+		return new Mesh(this, arena);
+	}
+
+	/**
+	 * Copies an off heap mesh back onto the heap.
+	 */
+	private Mesh copyToHeap() {
+		ByteBuffer data = offHeapData();
+		double[] vertices = new double[3 * vertexCount];
+		for (int i = 0; i < vertices.length; i++) {
+			vertices[i] = data.getDouble(8 * i);
+		}
+		int[] triangles = new int[3 * triangleCount];
+		decodeTriangles(triangles, 0);
+		return new Mesh(vertices, triangles);
+	}
+
+	/**
+	 * Gets the number of steps from the low side of the box to a coordinate.
+	 */
+	private static int quantize(double value, double min, double step) {
+		if (step <= 0)
+			return 0;
+		long q = Math.round((value - min) / step);
+		return (int) Math.max(0, Math.min(STEPS, q));
+	}
+
+	/**
+	 * Packs a direction into two 16 bit octahedral coordinates. The direction
+	 * is projected onto the octahedron |x| + |y| + |z| = 1, and the lower half
+	 * folded over the upper one.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 *            The direction, of any length. Zero packs as straight up z.
+	 * @return
+	 */
+	static int encodeNormal(double x, double y, double z) {
+		double length = Math.abs(x) + Math.abs(y) + Math.abs(z);
+		if (length == 0)
+			return 0;
+		double u = x / length;
+		double v = y / length;
+		if (z < 0) {
+			double fu = (1 - Math.abs(v)) * (u < 0 ? -1 : 1);
+			double fv = (1 - Math.abs(u)) * (v < 0 ? -1 : 1);
+			u = fu;
+			v = fv;
+		}
+		int qu = (int) Math.round(u * NORMAL_STEPS);
+		int qv = (int) Math.round(v * NORMAL_STEPS);
+		return qu << 16 | (qv & 0xFFFF);
+	}
+
+	/**
+	 * Unpacks a normal packed by encodeNormal. The result is left on the
+	 * octahedron, since callers that transform it normalize it afterwards
+	 * anyway.
+	 * 
+	 * @param packed
+	 * @param out
+	 *            Gets x, y and z, with |x| + |y| + |z| = 1.
+	 */
+	static void decodeNormal(int packed, double[] out) {
+		double u = (packed >> 16) * (1.0 / NORMAL_STEPS);
+		double v = (short) packed * (1.0 / NORMAL_STEPS);
+		double z = 1 - Math.abs(u) - Math.abs(v);
+		if (z < 0) {
+			double fu = (1 - Math.abs(v)) * (u < 0 ? -1 : 1);
+			double fv = (1 - Math.abs(u)) * (v < 0 ? -1 : 1);
+			u = fu;
+			v = fv;
+		}
+		out[0] = u;
+		out[1] = v;
+		out[2] = z;
+	}
+
+	public boolean isCompressed() {
+		return quantized != null;
+	}
+
+	public boolean isOffHeap() {
+		return arena != null;
+	}
+
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+
+	/**
+	 * Gets roughly how many bytes the mesh's geometry takes up, on the heap
+	 * or off it.
+	 * 
+	 * @return
+	 */
+	public long getDataSize() {
+		if (isOffHeap())
+			return 24L * vertexCount + 36L * triangleCount;
+		if (isCompressed())
+			return 2L * quantized.length + 2L * quantizedCentroids.length
+					+ 8L * quantization.length + indexData.length + 4L
+					* restarts.length + 4L * normals.length;
+		return 8L * vertices.length + 4L * triangles.length + 8L
+				* centroids.length;
+	}
+
+	/**
+	 * Gets the box around the untransformed vertices. Shared, so must not be
+	 * modified.
+	 * 
+	 * @return
+	 */
+	BoundingBox bounds() {
+		return bounds;
+	}
+
+	/**
+	 * Gets the vertex coordinates. Shared, so must not be modified.
+	 * 
+	 * @return The coordinates, or null if the mesh is compressed or off the
+	 *         heap.
+	 */
+	double[] vertices() {
+		return vertices;
+	}
+
+	/**
+	 * Gets the triangle vertex indices. Shared, so must not be modified.
+	 * 
+	 * @return The indices, or null if the mesh is compressed or off the heap.
+	 */
+	int[] triangles() {
+		return triangles;
+	}
+
+	/**
+	 * Gets the triangle centroids, used to depth sort instances without
+	 * transforming their vertices. Shared, so must not be modified.
+	 * 
+	 * @return The centroids, or null if the mesh is compressed or off the
+	 *         heap.
+	 */
+	double[] centroids() {
+		return centroids;
+	}
+
+	/**
+	 * Gets the quantized vertex coordinates of a compressed mesh. Coordinate
+	 * q on an axis is at quantization[axis] + q * quantization[3 + axis].
+	 * Shared, so must not be modified.
+	 * 
+	 * @return
+	 */
+	short[] quantized() {
+		return quantized;
+	}
+
+	/**
+	 * Gets the quantized triangle centroids of a compressed mesh, on the same
+	 * grid as the vertices. Shared, so must not be modified.
+	 * 
+	 * @return
+	 */
+	short[] quantizedCentroids() {
+		return quantizedCentroids;
+	}
+
+	/**
+	 * Gets the origin and step size of the quantized coordinates. Shared, so
+	 * must not be modified.
+	 * 
+	 * @return
+	 */
+	double[] quantization() {
+		return quantization;
+	}
+
+	/**
+	 * Gets the triangle indices of a compressed mesh, as zigzag varint deltas
+	 * from one index to the next. Shared, so must not be modified.
+	 * 
+	 * @return
+	 */
+	byte[] indexData() {
+		return indexData;
+	}
+
+	/**
+	 * Gets where decoding of a compressed mesh's indices can start: for every
+	 * RESTART_INTERVAL triangles, the offset in indexData and the index
+	 * before it. Shared, so must not be modified.
+	 * 
+	 * @return
+	 */
+	int[] restarts() {
+		return restarts;
+	}
+
+	/**
+	 * Gets the packed triangle normals of a compressed mesh, for
+	 * decodeNormal. Shared, so must not be modified.
+	 * 
+	 * @return
+	 */
+	int[] normals() {
+		return normals;
+	}
+
+	/**
+	 * Gets the block holding an off heap mesh's geometry. Vertex coordinates
+	 * start at byte 0 and centroids at centroidOffset, as doubles; triangle
+	 * indices start at triangleOffset, as ints. The buffer is shared, so
+	 * read it with absolute gets.
+	 * 
+	 * @return
+	 * @throws IllegalStateException
+	 *             If the mesh's arena has been closed.
+	 */
+	ByteBuffer offHeapData() {
+		return arena.get(block);
+	}
+
+	int centroidOffset() {
+		return 24 * vertexCount;
+	}
+
+	int triangleOffset() {
+		return 24 * vertexCount + 24 * triangleCount;
+	}
+
+	/**
+	 * Gets the distinct edges of the triangles, for drawing wireframes.
+	 * Vertices at the same position count as one, so triangles which don't
+	 * share their corners still share edges. Built on first use; meshes are
+	 * immutable, so it's kept for good.
+	 * 
+	 * @return Two vertex indices for each edge. Shared, so must not be
+	 *         modified.
+	 */
+	synchronized int[] edges() {
+		if (edges == null) {
+			int[] corners = triangles;
+			if (corners == null) {
+				corners = new int[3 * triangleCount];
+				decodeTriangles(corners, 0);
+			}
+			// Compressing already merged vertices which share a position.
+			int[] welded = null;
+			if (vertices != null)
+				welded = EdgeList.weld(DoubleBuffer.wrap(vertices),
+						vertexCount);
+			else if (isOffHeap())
+				welded = EdgeList.weld(offHeapData().asDoubleBuffer(),
+						vertexCount);
+			EdgeList list = new EdgeList(corners.length);
+			for (int t = 0; t < corners.length; t += 3) {
+				for (int j = 0; j < 3; j++) {
+					int a = corners[t + j];
+					int b = corners[t + (j + 1) % 3];
+					if (welded != null) {
+						a = welded[a];
+						b = welded[b];
+					}
+					list.add(a, b, t / 3);
+				}
+			}
+			edges = list.build();
+		}
+		return edges;
+	}
+
+	/**
+	 * Gets the arena an off heap mesh is stored in.
+	 * 
+	 * @return The arena, or null if the mesh is on the heap.
+	 */
+	MeshArena arena() {
+		return arena;
+	}
+
+	/**
+	 * Unpacks the triangle vertex indices of a compressed mesh, or copies
+	 * those of an off heap one.
+	 * 
+	 * @param out
+	 * @param offset
+	 *            Where in out to put the first index. Three indices are
+	 *            written for each triangle.
+	 */
+	void decodeTriangles(int[] out, int offset) {
+		if (isOffHeap()) {
+			ByteBuffer buffer = offHeapData();
+			int start = triangleOffset();
+			for (int i = 0; i < 3 * triangleCount; i++) {
+				out[offset + i] = buffer.getInt(start + 4 * i);
+			}
+			return;
+		}
+		byte[] data = indexData;
+		int previous = 0;
+		int position = 0;
+		int end = offset + 3 * triangleCount;
+		for (int i = offset; i < end; i++) {
+			int zigzag = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = data[position++];
+				zigzag |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			previous += (zigzag >>> 1) ^ -(zigzag & 1);
+			out[i] = previous;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package com.pascucci.render.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * Memory outside the Java heap for the geometry of large meshes. The garbage
+ * collector sees one small buffer object per block rather than the geometry
+ * itself, so collections don't copy or scan models however big they get, and
+ * the heap doesn't need to grow to hold them.
+ *
+ * An arena lives as long as the instances using it. Each InstancedEntity3D
+ * of a mesh stored here retains it when it's created and releases it when
+ * it's disposed, and when the last is released the arena closes. Instances
+ * which are never disposed keep it open until they and their mesh are
+ * collected, and its memory goes with them. Its meshes can't be
+ * used after that; their memory goes back to the system once the collector
+ * notices the buffers are gone, which costs no more than any other small
+ * objects.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class MeshArena {
+	private ArrayList<ByteBuffer> blocks = new ArrayList<ByteBuffer>();
+	private long size;
+	private int users;
+
+	/**
+	 * Allocates a block of memory in native byte order.
+	 *
+	 * @param bytes
+	 * @return The number to fetch the block with.
+	 * @throws IllegalArgumentException
+	 *             If the block is bigger than a buffer can be.
+	 */
+	synchronized int allocate(long bytes) {
+		checkOpen();
+		if (bytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Blocks are limited to "
+					+ Integer.MAX_VALUE + " bytes.");
+		blocks.add(ByteBuffer.allocateDirect((int) bytes).order(
+				ByteOrder.nativeOrder()));
+		size += bytes;
+		return blocks.size() - 1;
+	}
+
+	/**
+	 * Gets a block. The buffer returned is shared, so its position and limit
+	 * must be left alone; read it with absolute gets.
+	 *
+	 * @param block
+	 * @return
+	 * @throws IllegalStateException
+	 *             If the arena has been closed.
+	 */
+	synchronized ByteBuffer get(int block) {
+		checkOpen();
+		return blocks.get(block);
+	}
+
+	private void checkOpen() {
+		if (blocks == null)
+			throw new IllegalStateException("Mesh arena has been closed.");
+	}
+
+	/**
+	 * Counts another instance using the arena.
+	 *
+	 * @throws IllegalStateException
+	 *             If the arena has been closed.
+	 */
+	synchronized void retain() {
+		checkOpen();
+		users++;
+	}
+
+	/**
+	 * Counts one instance fewer using the arena, closing it after the last.
+	 */
+	synchronized void release() {
+		if (blocks != null && --users <= 0)
+			close();
+	}
+
+	/**
+	 * Lets go of all the arena's memory. Meshes stored in it can't be used
+	 * afterwards.
+	 */
+	public synchronized void close() {
+		blocks = null;
+		size = 0;
+	}
+
+	public synchronized boolean isClosed() {
+		return blocks == null;
+	}
+
+	/**
+	 * Gets how many bytes are allocated in the arena.
+	 *
+	 * @return
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+}
@@ -0,0 +1,466 @@
+package com.pascucci.render.engine;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Draws a scene from several viewports at once, in a grid of panes: by
+ * default the front, top, side and perspective views engineers are used to.
+ *
+ * Four Renderers would each move, light and sort every face for themselves.
+ * Here the work which doesn't depend on the view, moving instances into the
+ * scene, working out normals and shading, is done once by a SceneGeometry
+ * and kept until the scene changes. Each pane then only projects the
+ * vertices its own way and fills the triangles into its own software Raster,
+ * depth tested with order-independent transparency like
+ * Renderer.setOrderIndependentTransparency, and the panes are drawn in
+ * parallel. Borders aren't drawn; highlighted entities are outlined over the
+ * top of everything, so a selection shows even where it's hidden.
+ *
+ * A chunk of a streamed model can be in any pane, so streamed models load
+ * chunks by their size alone, as if all of them were on screen.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class MultiViewRenderer {
+	private static final Font LABEL_FONT = new Font(Font.SANS_SERIF,
+			Font.PLAIN, 12);
+	private static final Color DIVIDER = Color.DARK_GRAY;
+	private static final Frustum EVERYWHERE = new Frustum(new double[0][]);
+
+	private ArrayList<Viewport> viewports = new ArrayList<Viewport>();
+	private double scalefactor = 1;
+	private SceneGeometry geometry = new SceneGeometry();
+	private ArrayList<Pane> panes = new ArrayList<Pane>();
+	private ExecutorService pool;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Creates a renderer with the four standard viewports.
+	 */
+	public MultiViewRenderer() {
+		viewports.add(Viewport.create(Viewport.TOP));
+		viewports.add(Viewport.create(Viewport.PERSPECTIVE));
+		viewports.add(Viewport.create(Viewport.FRONT));
+		viewports.add(Viewport.create(Viewport.SIDE));
+	}
+
+	/**
+	 * Gets the viewports, in the order their panes are laid out: across,
+	 * then down. Changes to the list show in the next frame.
+	 *
+	 * @return
+	 */
+	public ArrayList<Viewport> getViewports() {
+		return viewports;
+	}
+
+	/**
+	 * Sets the zoom, as Renderer.setScale. Each pane shows what a full view
+	 * would, shrunk to fit.
+	 *
+	 * @param factor
+	 */
+	public void setScale(double factor) {
+		scalefactor = factor;
+	}
+
+	public double getScale() {
+		return scalefactor;
+	}
+
+	/**
+	 * Sets how many panes are drawn at once. Defaults to the number of
+	 * processors.
+	 *
+	 * @param count
+	 */
+	public synchronized void setThreads(int count) {
+		threads = Math.max(1, count);
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	/**
+	 * Finds the viewport whose pane is at a point.
+	 *
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 *            Size of the whole picture.
+	 * @return The viewport, or null if there are none.
+	 */
+	public Viewport getViewportAt(int x, int y, int width, int height) {
+		int count = viewports.size();
+		if (count == 0)
+			return null;
+		int columns = getColumns(count);
+		int rows = (count + columns - 1) / columns;
+		int column = Math.max(0, Math.min(columns - 1, x * columns / width));
+		int row = Math.max(0, Math.min(rows - 1, y * rows / height));
+		return viewports.get(Math.min(count - 1, row * columns + column));
+	}
+
+	private static int getColumns(int count) {
+		return (int) Math.ceil(Math.sqrt(count));
+	}
+
+	/**
+	 * Draws every viewport's pane. Panes are drawn at the resolution of the
+	 * device behind the graphics object.
+	 *
+	 * @param g2
+	 * @param scene
+	 * @param width
+	 * @param height
+	 */
+	public void renderScene(Graphics2D g2, Scene scene, int width, int height) {
+		g2.setColor(Color.BLACK);
+		g2.fillRect(0, 0, width, height);
+		int count = viewports.size();
+		if (scene == null || count == 0)
+			return;
+		AffineTransform t = g2.getTransform();
+		double deviceScale = Math.max(Math.abs(t.getScaleX()),
+				Math.abs(t.getScaleY()));
+		if (deviceScale <= 0)
+			deviceScale = 1;
+		int columns = getColumns(count);
+		int rows = (count + columns - 1) / columns;
+		Point3D eye = scene.getCamera().getLocation();
+		ArrayList<StreamedModel> streamed = scene.getStreamedModels();
+		for (int i = 0; i < streamed.size(); i++) {
+			streamed.get(i).update(scene, EVERYWHERE, eye,
+					scalefactor * deviceScale / rows, true);
+		}
+		geometry.update(scene);
+
+		while (panes.size() < count) {
+			panes.add(new Pane());
+		}
+		ArrayList<Pane> frame = new ArrayList<Pane>(panes.subList(0, count));
+		for (int i = 0; i < count; i++) {
+			Pane pane = frame.get(i);
+			int column = i % columns;
+			int row = i / columns;
+			pane.viewport = viewports.get(i);
+			pane.x = column * width / columns;
+			pane.y = row * height / rows;
+			pane.width = (column + 1) * width / columns - pane.x;
+			pane.height = (row + 1) * height / rows - pane.y;
+			pane.scale = scalefactor * deviceScale / rows;
+			pane.geometry = geometry;
+			pane.eye = eye;
+			pane.resize((int) Math.ceil(pane.width * deviceScale),
+					(int) Math.ceil(pane.height * deviceScale));
+		}
+		drawPanes(frame);
+
+		g2.setFont(LABEL_FONT);
+		FontMetrics metrics = g2.getFontMetrics();
+		for (int i = 0; i < count; i++) {
+			Pane pane = frame.get(i);
+			g2.drawImage(pane.raster.getImage(), pane.x, pane.y, pane.width,
+					pane.height, null);
+			g2.setColor(DIVIDER);
+			g2.drawRect(pane.x, pane.y, pane.width - 1, pane.height - 1);
+			g2.setColor(Color.LIGHT_GRAY);
+			g2.drawString(pane.viewport.getName(), pane.x + 6, pane.y + 4
+					+ metrics.getAscent());
+		}
+	}
+
+	/**
+	 * Draws the panes, in parallel when there's more than one thread to do
+	 * it with.
+	 *
+	 * @param frame
+	 */
+	private void drawPanes(ArrayList<Pane> frame) {
+		ExecutorService pool;
+		synchronized (this) {
+			if (threads == 1 || frame.size() == 1) {
+				pool = null;
+			} else {
+				if (this.pool == null)
+					this.pool = Executors.newFixedThreadPool(threads,
+							new ThreadFactory() {
+								public Thread newThread(Runnable r) {
+									Thread t = new Thread(r, "Viewport");
+									t.setDaemon(true);
+									return t;
+								}
+							});
+				pool = this.pool;
+			}
+		}
+		if (pool == null) {
+			for (int i = 0; i < frame.size(); i++) {
+				frame.get(i).call();
+			}
+			return;
+		}
+		try {
+			for (Future<Void> done : pool.invokeAll(frame)) {
+				done.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Projects the shared geometry for one viewport and fills it into the
+	 * pane's raster. Only touches its own buffers, so panes can be drawn at
+	 * the same time.
+	 */
+	private static class Pane implements Callable<Void> {
+		Viewport viewport;
+		SceneGeometry geometry;
+		Point3D eye;
+		double scale; // Frame pixels per unit, as Renderer's scalefactor
+		int x, y, width, height; // Where the pane goes in the picture
+
+		Raster raster = new Raster(1, 1);
+		private int originX;
+		private int originY;
+		private double[] viewX = new double[0]; // Vertices in the viewport
+		private double[] viewY = new double[0];
+		private double[] viewZ = new double[0];
+		private int[] screenX = new int[0];
+		private int[] screenY = new int[0];
+		private float[] screenDepth = new float[0];
+		private float nearDepth;
+		private float farDepth;
+		private int translucentCount;
+		private int[] translucent = new int[0];
+
+		void resize(int frameWidth, int frameHeight) {
+			raster.resize(frameWidth, frameHeight);
+			originX = frameWidth / 2;
+			originY = frameHeight / 2;
+		}
+
+		public Void call() {
+			raster.clear(0xFF000000);
+			project();
+			SceneGeometry g = geometry;
+			boolean orthogonal = viewport.isOrthogonal();
+			translucentCount = 0;
+			boolean highlighted = false;
+			for (int e = 0; e < g.entityCount; e++) {
+				if (g.entityBounds[e] == null
+						|| !isOnScreen(g.entityBounds[e], orthogonal))
+					continue;
+				highlighted |= g.entityHighlight[e] >>> 24 > 0;
+				for (int t = g.entityStart[e]; t < g.entityStart[e + 1]; t++) {
+					if (!isVisible(t, orthogonal))
+						continue;
+					int a = g.corners[3 * t];
+					int b = g.corners[3 * t + 1];
+					int c = g.corners[3 * t + 2];
+					int argb = g.color[t];
+					int alpha = argb >>> 24;
+					if (alpha == 0)
+						continue;
+					if (alpha < 255) {
+						if (translucent.length == translucentCount)
+							translucent = Arrays.copyOf(translucent,
+									Math.max(16, 2 * translucentCount));
+						translucent[translucentCount++] = t;
+						continue;
+					}
+					raster.fillTriangle(screenX[a], screenY[a],
+							screenDepth[a], screenX[b], screenY[b],
+							screenDepth[b], screenX[c], screenY[c],
+							screenDepth[c], argb);
+				}
+			}
+			if (translucentCount > 0) {
+				raster.beginTransparency(nearDepth, farDepth);
+				for (int i = 0; i < translucentCount; i++) {
+					int t = translucent[i];
+					int a = g.corners[3 * t];
+					int b = g.corners[3 * t + 1];
+					int c = g.corners[3 * t + 2];
+					raster.blendTriangle(screenX[a], screenY[a],
+							screenDepth[a], screenX[b], screenY[b],
+							screenDepth[b], screenX[c], screenY[c],
+							screenDepth[c], g.color[t]);
+				}
+				raster.resolveTransparency();
+			}
+			if (highlighted)
+				drawHighlights(orthogonal);
+			return null;
+		}
+
+		/**
+		 * Checks whether a triangle faces the viewport and is in front of the
+		 * camera.
+		 *
+		 * @param t
+		 * @param orthogonal
+		 * @return
+		 */
+		private boolean isVisible(int t, boolean orthogonal) {
+			SceneGeometry g = geometry;
+			double[] o = viewport.orientation;
+			int a = g.corners[3 * t];
+			double nx = g.normalX[t];
+			double ny = g.normalY[t];
+			double nz = g.normalZ[t];
+			double vnz = o[6] * nx + o[7] * ny + o[8] * nz;
+			if (orthogonal)
+				return vnz > 0;
+			double vnx = o[0] * nx + o[1] * ny + o[2] * nz;
+			double vny = o[3] * nx + o[4] * ny + o[5] * nz;
+			if (vnx * (eye.x - viewX[a]) + vny * (eye.y - viewY[a]) + vnz
+					* (eye.z - viewZ[a]) <= 0)
+				return false;
+			return screenDepth[a] > 0 && screenDepth[g.corners[3 * t + 1]] > 0
+					&& screenDepth[g.corners[3 * t + 2]] > 0;
+		}
+
+		/**
+		 * Outlines the visible faces of highlighted entities, without depth
+		 * testing.
+		 *
+		 * @param orthogonal
+		 */
+		private void drawHighlights(boolean orthogonal) {
+			SceneGeometry g = geometry;
+			for (int e = 0; e < g.entityCount; e++) {
+				int argb = g.entityHighlight[e];
+				if (argb >>> 24 == 0 || g.entityBounds[e] == null
+						|| !isOnScreen(g.entityBounds[e], orthogonal))
+					continue;
+				for (int t = g.entityStart[e]; t < g.entityStart[e + 1]; t++) {
+					if (!isVisible(t, orthogonal))
+						continue;
+					int a = g.corners[3 * t];
+					int b = g.corners[3 * t + 1];
+					int c = g.corners[3 * t + 2];
+					int edges = g.outline[t];
+					if ((edges & 1) != 0)
+						raster.drawLine(screenX[a], screenY[a], screenX[b],
+								screenY[b], argb);
+					if ((edges & 2) != 0)
+						raster.drawLine(screenX[b], screenY[b], screenX[c],
+								screenY[c], argb);
+					if ((edges & 4) != 0)
+						raster.drawLine(screenX[c], screenY[c], screenX[a],
+								screenY[a], argb);
+				}
+			}
+		}
+
+		/**
+		 * Turns every vertex into the viewport and projects it the way the
+		 * Renderer does, with the camera on the viewport's z axis.
+		 */
+		private void project() {
+			SceneGeometry g = geometry;
+			int n = g.vertexCount;
+			if (screenX.length < n) {
+				viewX = new double[n];
+				viewY = new double[n];
+				viewZ = new double[n];
+				screenX = new int[n];
+				screenY = new int[n];
+				screenDepth = new float[n];
+			}
+			double[] o = viewport.orientation;
+			boolean orthogonal = viewport.isOrthogonal();
+			float near = Float.NEGATIVE_INFINITY;
+			float far = Float.POSITIVE_INFINITY;
+			for (int v = 0; v < n; v++) {
+				double px = g.x[v];
+				double py = g.y[v];
+				double pz = g.z[v];
+				double vx = o[0] * px + o[1] * py + o[2] * pz;
+				double vy = o[3] * px + o[4] * py + o[5] * pz;
+				double vz = o[6] * px + o[7] * py + o[8] * pz;
+				viewX[v] = vx;
+				viewY[v] = vy;
+				viewZ[v] = vz;
+				double ratio = scale;
+				float depth;
+				if (orthogonal) {
+					depth = (float) vz;
+				} else {
+					ratio *= eye.z / (eye.z - vz);
+					depth = (float) (1.0 / (eye.z - vz));
+				}
+				screenX[v] = originX + Renderer.toPixel(ratio * vx);
+				screenY[v] = originY - Renderer.toPixel(ratio * vy);
+				screenDepth[v] = depth;
+				near = Math.max(near, depth);
+				far = Math.min(far, depth);
+			}
+			nearDepth = near;
+			farDepth = far;
+		}
+
+		/**
+		 * Checks whether any of a box can be on screen, by projecting its
+		 * corners. A box reaching behind the camera always counts.
+		 *
+		 * @param b
+		 * @param orthogonal
+		 * @return
+		 */
+		private boolean isOnScreen(BoundingBox b, boolean orthogonal) {
+			if (b.isEmpty())
+				return false;
+			double[] o = viewport.orientation;
+			int minX = Integer.MAX_VALUE;
+			int minY = Integer.MAX_VALUE;
+			int maxX = Integer.MIN_VALUE;
+			int maxY = Integer.MIN_VALUE;
+			for (int corner = 0; corner < 8; corner++) {
+				double px = (corner & 1) == 0 ? b.minX : b.maxX;
+				double py = (corner & 2) == 0 ? b.minY : b.maxY;
+				double pz = (corner & 4) == 0 ? b.minZ : b.maxZ;
+				double vx = o[0] * px + o[1] * py + o[2] * pz;
+				double vy = o[3] * px + o[4] * py + o[5] * pz;
+				double vz = o[6] * px + o[7] * py + o[8] * pz;
+				double ratio = scale;
+				if (!orthogonal) {
+					if (eye.z - vz <= 0)
+						return true;
+					ratio *= eye.z / (eye.z - vz);
+				}
+				int sx = originX + Renderer.toPixel(ratio * vx);
+				int sy = originY - Renderer.toPixel(ratio * vy);
+				minX = Math.min(minX, sx);
+				minY = Math.min(minY, sy);
+				maxX = Math.max(maxX, sx);
+				maxY = Math.max(maxY, sy);
+			}
+			return maxX >= 0 && maxY >= 0 && minX < raster.getWidth()
+					&& minY < raster.getHeight();
+		}
+	}
+}
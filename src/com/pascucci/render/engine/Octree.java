@@ -0,0 +1,467 @@
+package com.pascucci.render.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.PriorityQueue;
+
+/**
+ * Loose octree over the bounding boxes of a scene's entities, so queries only
+ * look at the part of the scene they cover instead of every entity.
+ *
+ * Each entity lives in the smallest cell whose loosened bounds (twice the cell
+ * size) hold it, found from the entity's center and size alone. Moving an
+ * entity therefore never splits or merges cells; it just moves the entity to
+ * another list. The root grows outwards when something is added outside it.
+ *
+ * Entities which move are only marked as such, and are reinserted the next
+ * time the tree is queried. Rotating a whole scene per mouse drag event thus
+ * costs nothing until someone actually asks where things are.
+ *
+ * An entity keeps track of its own place in the tree, so it can only be in one
+ * Octree at a time.
+ *
+ * Since queries reinsert moved entities, every query changes the tree, just
+ * as adding, removing and moving entities do. None of them are thread safe:
+ * a tree can't be queried from two threads at once, nor while its entities
+ * are being moved on another thread.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class Octree {
+	// Cells are never split deeper than this below the root.
+	private static final int MAX_DEPTH = 10;
+
+	private Node root;
+	private int size;
+	private ArrayList<Entity3D> moved;
+	private ArrayList<Entity3D> unplaced; // Entities with no points
+
+	static class Node {
+		final double cx, cy, cz;
+		final double half; // Half the cell size; loose bounds are twice this.
+		final BoundingBox loose;
+		Node parent;
+		Node[] children;
+		ArrayList<Entity3D> entities;
+		int count; // Entities in this node and below
+
+		Node(double cx, double cy, double cz, double half) {
+			this.cx = cx;
+			this.cy = cy;
+			this.cz = cz;
+			this.half = half;
+			double h = 2 * half;
+			loose = new BoundingBox(cx - h, cy - h, cz - h, cx + h, cy + h, cz
+					+ h);
+		}
+
+		int octant(double x, double y, double z) {
+			return (x >= cx ? 1 : 0) | (y >= cy ? 2 : 0) | (z >= cz ? 4 : 0);
+		}
+
+		/**
+		 * Checks whether a box centered at x, y, z with the given half extent
+		 * fits in this cell's loose bounds.
+		 */
+		boolean fits(double x, double y, double z, double extent) {
+			return extent <= half && Math.abs(x - cx) <= half
+					&& Math.abs(y - cy) <= half && Math.abs(z - cz) <= half;
+		}
+
+		Node child(int octant) {
+			if (children == null)
+				children = new Node[8];
+			Node c = children[octant];
+			if (c == null) {
+				double q = half / 2;
+				c = new Node(cx + ((octant & 1) != 0 ? q : -q), cy
+						+ ((octant & 2) != 0 ? q : -q), cz
+						+ ((octant & 4) != 0 ? q : -q), q);
+				c.parent = this;
+				children[octant] = c;
+			}
+			return c;
+		}
+	}
+
+	/**
+	 * A node or entity together with its distance along a ray or from a point,
+	 * so search results can be put in order.
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+		final double distance;
+		final Node node;
+		final Entity3D entity;
+
+		Candidate(double distance, Node node, Entity3D entity) {
+			this.distance = distance;
+			this.node = node;
+			this.entity = entity;
+		}
+
+		public int compareTo(Candidate o) {
+			return Double.compare(distance, o.distance);
+		}
+	}
+
+	public Octree() {
+		moved = new ArrayList<Entity3D>();
+		unplaced = new ArrayList<Entity3D>();
+	}
+
+	/**
+	 * Adds an entity to the tree, taking it out of any other tree it was in.
+	 * Adding an entity twice just updates its position.
+	 *
+	 * @param e
+	 */
+	public void insert(Entity3D e) {
+		if (e.index == this) {
+			markMoved(e);
+			return;
+		}
+		if (e.index != null)
+			e.index.remove(e);
+		e.index = this;
+		size++;
+		place(e);
+	}
+
+	/**
+	 * Removes an entity from the tree.
+	 *
+	 * @param e
+	 */
+	public void remove(Entity3D e) {
+		if (e.index != this)
+			return;
+		if (e.indexMoved) {
+			moved.remove(e);
+			e.indexMoved = false;
+		}
+		unlink(e);
+		e.index = null;
+		size--;
+	}
+
+	/**
+	 * Removes every entity from the tree.
+	 */
+	public void clear() {
+		if (root != null)
+			release(root);
+		for (Entity3D e : moved) {
+			e.indexMoved = false;
+		}
+		for (Entity3D e : unplaced) {
+			e.index = null;
+		}
+		root = null;
+		size = 0;
+		moved.clear();
+		unplaced.clear();
+	}
+
+	/**
+	 * Forgets the tree in every entity below a node.
+	 */
+	private void release(Node node) {
+		if (node.entities != null) {
+			for (Entity3D e : node.entities) {
+				e.index = null;
+				e.indexNode = null;
+			}
+		}
+		if (node.children != null) {
+			for (Node child : node.children) {
+				if (child != null)
+					release(child);
+			}
+		}
+	}
+
+	/**
+	 * Notes that an entity's bounds have changed. It is moved to its new cell
+	 * before the next query.
+	 *
+	 * @param e
+	 */
+	public void markMoved(Entity3D e) {
+		if (e.index == this && !e.indexMoved) {
+			e.indexMoved = true;
+			moved.add(e);
+		}
+	}
+
+	/**
+	 * Gets the number of entities in the tree.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Finds every entity whose bounds overlap the box.
+	 *
+	 * @param box
+	 * @param result
+	 *            Matching entities are added to this list.
+	 */
+	public void findInBox(BoundingBox box, ArrayList<Entity3D> result) {
+		update();
+		if (root != null)
+			findInBox(root, box, result);
+	}
+
+	private void findInBox(Node node, BoundingBox box,
+			ArrayList<Entity3D> result) {
+		if (!node.loose.intersects(box))
+			return;
+		if (node.entities != null) {
+			for (Entity3D e : node.entities) {
+				if (e.getBounds().intersects(box))
+					result.add(e);
+			}
+		}
+		if (node.children != null) {
+			for (Node child : node.children) {
+				if (child != null)
+					findInBox(child, box, result);
+			}
+		}
+	}
+
+	/**
+	 * Finds every entity which might be visible in the frustum.
+	 *
+	 * @param frustum
+	 * @param result
+	 *            Matching entities are added to this list.
+	 */
+	public void findInFrustum(Frustum frustum, ArrayList<Entity3D> result) {
+		update();
+		if (root != null)
+			findInFrustum(root, frustum, result);
+	}
+
+	private void findInFrustum(Node node, Frustum frustum,
+			ArrayList<Entity3D> result) {
+		if (!frustum.intersects(node.loose))
+			return;
+		if (node.entities != null) {
+			for (Entity3D e : node.entities) {
+				if (frustum.intersects(e.getBounds()))
+					result.add(e);
+			}
+		}
+		if (node.children != null) {
+			for (Node child : node.children) {
+				if (child != null)
+					findInFrustum(child, frustum, result);
+			}
+		}
+	}
+
+	/**
+	 * Finds every entity whose bounds are hit by a ray, nearest first.
+	 *
+	 * @param origin
+	 * @param direction
+	 * @param result
+	 *            Matching entities are added to this list.
+	 */
+	public void findOnRay(Point3D origin, Vector3D direction,
+			ArrayList<Entity3D> result) {
+		update();
+		if (root == null)
+			return;
+		ArrayList<Candidate> hits = new ArrayList<Candidate>();
+		findOnRay(root, origin, direction, hits);
+		Collections.sort(hits);
+		for (Candidate c : hits) {
+			result.add(c.entity);
+		}
+	}
+
+	private void findOnRay(Node node, Point3D origin, Vector3D direction,
+			ArrayList<Candidate> hits) {
+		if (node.loose.intersectRay(origin, direction) < 0)
+			return;
+		if (node.entities != null) {
+			for (Entity3D e : node.entities) {
+				double t = e.getBounds().intersectRay(origin, direction);
+				if (t >= 0)
+					hits.add(new Candidate(t, null, e));
+			}
+		}
+		if (node.children != null) {
+			for (Node child : node.children) {
+				if (child != null)
+					findOnRay(child, origin, direction, hits);
+			}
+		}
+	}
+
+	/**
+	 * Finds the entity whose bounds are nearest to a point, visiting cells in
+	 * order of distance so the search stops as soon as no cell left can hold
+	 * anything closer.
+	 *
+	 * @param p
+	 * @return The nearest entity, or null if the tree is empty.
+	 */
+	public Entity3D findNearest(Point3D p) {
+		update();
+		if (root == null)
+			return null;
+		Entity3D nearest = null;
+		double best = Double.POSITIVE_INFINITY;
+		PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+		queue.add(new Candidate(root.loose.distanceSquared(p.x, p.y, p.z),
+				root, null));
+		while (!queue.isEmpty()) {
+			Candidate c = queue.poll();
+			if (c.distance >= best)
+				break;
+			Node node = c.node;
+			if (node.entities != null) {
+				for (Entity3D e : node.entities) {
+					double d = e.getBounds().distanceSquared(p.x, p.y, p.z);
+					if (d < best) {
+						best = d;
+						nearest = e;
+					}
+				}
+			}
+			if (node.children != null) {
+				for (Node child : node.children) {
+					if (child == null)
+						continue;
+					double d = child.loose.distanceSquared(p.x, p.y, p.z);
+					if (d < best)
+						queue.add(new Candidate(d, child, null));
+				}
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Reinserts the entities which moved since the last query.
+	 */
+	private void update() {
+		if (moved.isEmpty())
+			return;
+		for (Entity3D e : moved) {
+			e.indexMoved = false;
+			Node node = e.indexNode;
+			if (node != null) {
+				BoundingBox b = e.getBounds();
+				if (!b.isEmpty()
+						&& node.fits(b.getCenterX(), b.getCenterY(),
+								b.getCenterZ(), b.getHalfExtent())
+						&& !fitsChild(node, b))
+					continue;
+			}
+			unlink(e);
+			place(e);
+		}
+		moved.clear();
+	}
+
+	/**
+	 * Checks whether an entity already in a node would now go further down.
+	 */
+	private boolean fitsChild(Node node, BoundingBox b) {
+		if (depth(node) >= MAX_DEPTH)
+			return false;
+		return b.getHalfExtent() <= node.half / 2;
+	}
+
+	private int depth(Node node) {
+		int depth = 0;
+		while (node.parent != null) {
+			node = node.parent;
+			depth++;
+		}
+		return depth;
+	}
+
+	/**
+	 * Puts an entity in the deepest cell which holds it, growing the root if
+	 * it lies outside. Entities with no points aren't anywhere, so they are
+	 * kept aside until they get some.
+	 */
+	private void place(Entity3D e) {
+		BoundingBox b = e.getBounds();
+		if (b.isEmpty()) {
+			unplaced.add(e);
+			return;
+		}
+		double x = b.getCenterX();
+		double y = b.getCenterY();
+		double z = b.getCenterZ();
+		double extent = b.getHalfExtent();
+		if (root == null)
+			root = new Node(x, y, z, Math.max(extent, 1));
+		while (!root.fits(x, y, z, extent)) {
+			grow(x, y, z);
+		}
+		Node node = root;
+		for (int depth = 0; depth < MAX_DEPTH && extent <= node.half / 2; depth++) {
+			node = node.child(node.octant(x, y, z));
+		}
+		if (node.entities == null)
+			node.entities = new ArrayList<Entity3D>(4);
+		node.entities.add(e);
+		for (Node n = node; n != null; n = n.parent) {
+			n.count++;
+		}
+		e.indexNode = node;
+	}
+
+	/**
+	 * Doubles the root cell towards a point, keeping the old root as one of
+	 * the new root's children.
+	 */
+	private void grow(double x, double y, double z) {
+		Node old = root;
+		double h = old.half;
+		Node grown = new Node(old.cx + (x >= old.cx ? h : -h), old.cy
+				+ (y >= old.cy ? h : -h), old.cz + (z >= old.cz ? h : -h),
+				2 * h);
+		if (old.count > 0) {
+			grown.children = new Node[8];
+			grown.children[grown.octant(old.cx, old.cy, old.cz)] = old;
+			old.parent = grown;
+			grown.count = old.count;
+		}
+		root = grown;
+	}
+
+	/**
+	 * Takes an entity out of its node, dropping any cells left empty.
+	 */
+	private void unlink(Entity3D e) {
+		Node node = e.indexNode;
+		if (node == null) {
+			unplaced.remove(e);
+			return;
+		}
+		e.indexNode = null;
+		node.entities.remove(e);
+		for (Node n = node; n != null; n = n.parent) {
+			n.count--;
+		}
+		while (node.count == 0 && node.parent != null) {
+			Node parent = node.parent;
+			parent.children[parent.octant(node.cx, node.cy, node.cz)] = null;
+			node.parent = null;
+			node = parent;
+		}
+		if (root.count == 0)
+			root = null;
+	}
+}
@@ -0,0 +1,145 @@
+package com.pascucci.render.engine;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Every material faces use, each stored once. A face holds the index of its
+ * material here rather than colors of its own, so a model of millions of
+ * faces in a handful of colors holds only a handful of materials.
+ *
+ * Materials are never removed, so an index stays good for the life of the
+ * program. Once the palette is full, a new material is given the closest one
+ * it already holds, so setting colors keeps working in a long session at the
+ * cost of coming out slightly off. Any thread may look materials up; adding
+ * them is synchronized.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class Palette {
+	/**
+	 * How many different materials there can be, so indices fit in a char.
+	 */
+	public static final int MAX_MATERIALS = 65536;
+
+	private static final HashMap<Material, Integer> indices = new HashMap<Material, Integer>();
+	private static volatile Material[] materials = new Material[16];
+	private static int count;
+
+	// The material last looked up, since faces tend to come in runs of one.
+	private static volatile Entry last;
+
+	private static class Entry {
+		final Material material;
+		final int index;
+
+		Entry(Material material, int index) {
+			this.material = material;
+			this.index = index;
+		}
+	}
+
+	static {
+		indexOf(Material.DEFAULT);
+	}
+
+	private Palette() {
+	}
+
+	/**
+	 * Gets the index of a material, adding it if it's new.
+	 *
+	 * @param m
+	 * @return The material's index, or that of the closest material if it's
+	 *         new and the palette is full.
+	 */
+	public static int indexOf(Material m) {
+		Entry l = last;
+		if (l != null && l.material == m)
+			return l.index;
+		synchronized (indices) {
+			Integer index = indices.get(m);
+			if (index == null && count == MAX_MATERIALS) {
+				index = closest(m);
+			} else if (index == null) {
+				Material[] array = materials;
+				if (count == array.length)
+					array = Arrays.copyOf(array, array.length * 2);
+				array[count] = m;
+				materials = array; // Publishes the new slot
+				index = count++;
+				indices.put(m, index);
+			}
+			last = new Entry(m, index);
+			return index;
+		}
+	}
+
+	/**
+	 * Finds the material most like another, preferring ones which are
+	 * translucent or opaque alike so faces stay in the right drawing pass.
+	 *
+	 * @param m
+	 * @return Its index.
+	 */
+	private static int closest(Material m) {
+		int best = 0;
+		double bestDistance = Double.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			Material c = materials[i];
+			double d = distance(m.getColor(), c.getColor())
+					+ distance(m.getBorderColor(), c.getBorderColor());
+			double a = 255 * (m.getAmbientSensitivity() - c
+					.getAmbientSensitivity());
+			double b = 255 * (m.getDiffuseSensitivity() - c
+					.getDiffuseSensitivity());
+			d += a * a + b * b;
+			if (m.isTranslucent() != c.isTranslucent())
+				d += 1e12;
+			if (d < bestDistance) {
+				bestDistance = d;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Measures how far apart two colors are.
+	 *
+	 * @param a
+	 * @param b
+	 * @return The sum of the squared differences of their components.
+	 */
+	private static double distance(Color a, Color b) {
+		if (a == null || b == null)
+			return a == b ? 0 : 1e9;
+		int r = a.getRed() - b.getRed();
+		int g = a.getGreen() - b.getGreen();
+		int bl = a.getBlue() - b.getBlue();
+		int al = a.getAlpha() - b.getAlpha();
+		return r * r + g * g + bl * bl + al * al;
+	}
+
+	/**
+	 * Gets the material at an index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public static Material get(int index) {
+		return materials[index];
+	}
+
+	/**
+	 * Gets how many materials there are.
+	 *
+	 * @return
+	 */
+	public static int size() {
+		synchronized (indices) {
+			return count;
+		}
+	}
+}
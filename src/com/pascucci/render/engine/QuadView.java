@@ -0,0 +1,139 @@
+package com.pascucci.render.engine;
+
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
+
+import javax.swing.JPanel;
+
+/**
+ * Shows a scene from the top, front and side and in perspective at once,
+ * through a MultiViewRenderer. Dragging with the middle button in the
+ * perspective pane orbits it, leaving the scene and the other panes alone,
+ * and the wheel zooms every pane together.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+@SuppressWarnings("serial")
+public class QuadView extends JPanel implements MouseListener,
+		MouseWheelListener, MouseMotionListener {
+	private Scene scene;
+	private MultiViewRenderer renderer = new MultiViewRenderer();
+
+	private double RADIANS_PER_PIXEL = Math.PI / 360;
+
+	// Mouse input not yet applied, as in SceneView.
+	private Viewport orbited; // Last pressed in, if it can be orbited
+	private boolean dragging;
+	private double pendingUp;
+	private double pendingOver;
+	private int pendingClicks;
+	private int oldX;
+	private int oldY;
+
+	/**
+	 * Creates a view of a scene.
+	 *
+	 * @param scene
+	 */
+	public QuadView(Scene scene) {
+		this.scene = scene;
+		addMouseMotionListener(this);
+		addMouseListener(this);
+		addMouseWheelListener(this);
+	}
+
+	@Override
+	public void paintComponent(Graphics g) {
+		super.paintComponent(g);
+		if (getWidth() < 1 || getHeight() < 1)
+			return;
+		applyInput();
+		renderer.renderScene((Graphics2D) g, scene, getWidth(), getHeight());
+	}
+
+	/**
+	 * Applies the orbiting and zoom the mouse has asked for since the last
+	 * frame.
+	 */
+	private void applyInput() {
+		if (orbited != null && (pendingUp != 0 || pendingOver != 0)) {
+			orbited.rotate(pendingUp, pendingOver);
+		}
+		pendingUp = 0;
+		pendingOver = 0;
+		if (pendingClicks != 0) {
+			double scalefactor = renderer.getScale();
+			if (scalefactor >= 1) {
+				scalefactor -= pendingClicks;
+			}
+			if (scalefactor < 1)
+				scalefactor = 1.0;
+			renderer.setScale(scalefactor);
+			pendingClicks = 0;
+		}
+	}
+
+	public MultiViewRenderer getRenderer() {
+		return renderer;
+	}
+
+	public void setScene(Scene s) {
+		scene = s;
+	}
+
+	public Scene getScene() {
+		return scene;
+	}
+
+	public void mouseClicked(MouseEvent e) {
+	}
+
+	public void mouseDragged(MouseEvent e) {
+		if (dragging) {
+			int x = e.getX() - oldX;
+			int y = e.getY() - oldY;
+			oldX = e.getX();
+			oldY = e.getY();
+			pendingUp += y * RADIANS_PER_PIXEL;
+			pendingOver += x * RADIANS_PER_PIXEL;
+			repaint();
+		}
+	}
+
+	public void mouseMoved(MouseEvent e) {
+	}
+
+	public void mousePressed(MouseEvent e) {
+		if (e.getButton() == MouseEvent.BUTTON2) {
+			Viewport v = renderer.getViewportAt(e.getX(), e.getY(),
+					getWidth(), getHeight());
+			// The orthogonal panes stay square on to the scene.
+			if (v != null && !v.isOrthogonal()) {
+				oldX = e.getX();
+				oldY = e.getY();
+				orbited = v;
+				dragging = true;
+			}
+		}
+	}
+
+	public void mouseReleased(MouseEvent e) {
+		dragging = false;
+	}
+
+	public void mouseEntered(MouseEvent e) {
+	}
+
+	public void mouseExited(MouseEvent e) {
+	}
+
+	public void mouseWheelMoved(MouseWheelEvent e) {
+		pendingClicks += e.getWheelRotation();
+		repaint();
+	}
+}
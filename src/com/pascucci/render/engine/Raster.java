@@ -0,0 +1,452 @@
+package com.pascucci.render.engine;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * A software render target: an ARGB pixel buffer with a matching depth buffer,
+ * backed by a BufferedImage so the result can be drawn with Java2D.
+ *
+ * Depth values grow towards the viewer, so larger means nearer. The raster can
+ * also accumulate translucent triangles with weighted blended order-independent
+ * transparency (McGuire and Bavoil, 2013): each translucent fragment adds its
+ * color into a running weighted sum instead of being blended over what is
+ * already there, so the faces can be drawn in any order and still come out
+ * right, even where they intersect.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class Raster {
+	private int width;
+	private int height;
+	private BufferedImage image;
+	private int[] pixels;
+	private float[] depth;
+
+	// Weighted blended transparency buffers, allocated on first use.
+	private float[] accumR;
+	private float[] accumG;
+	private float[] accumB;
+	private float[] accumA;
+	private float[] revealage;
+	private float nearDepth;
+	private float farDepth;
+	private boolean hasTransparency;
+
+	private final double[] clipRange = new double[2]; // For drawLine
+
+	/**
+	 * Creates a raster with the given size in pixels.
+	 *
+	 * @param width
+	 * @param height
+	 */
+	public Raster(int width, int height) {
+		resize(width, height);
+	}
+
+	/**
+	 * Changes the size of the raster. The buffers are only reallocated if the
+	 * size actually changes; their contents are undefined afterwards.
+	 *
+	 * @param width
+	 * @param height
+	 */
+	public void resize(int width, int height) {
+		width = Math.max(width, 1);
+		height = Math.max(height, 1);
+		if (image != null && width == this.width && height == this.height)
+			return;
+		this.width = width;
+		this.height = height;
+		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		depth = new float[width * height];
+		accumR = null;
+	}
+
+	/**
+	 * Fills the raster with a color and resets the depth buffer to "infinitely
+	 * far away".
+	 *
+	 * @param argb
+	 */
+	public void clear(int argb) {
+		Arrays.fill(pixels, argb);
+		Arrays.fill(depth, Float.NEGATIVE_INFINITY);
+		hasTransparency = false;
+	}
+
+	/**
+	 * Resets the transparency buffers and sets the depth range used to weight
+	 * translucent fragments. Fragments near the front of the range count for
+	 * more than ones at the back.
+	 *
+	 * @param near
+	 *            Depth of the nearest geometry in the frame.
+	 * @param far
+	 *            Depth of the farthest geometry in the frame.
+	 */
+	public void beginTransparency(float near, float far) {
+		int size = width * height;
+		if (accumR == null) {
+			accumR = new float[size];
+			accumG = new float[size];
+			accumB = new float[size];
+			accumA = new float[size];
+			revealage = new float[size];
+		}
+		Arrays.fill(accumR, 0);
+		Arrays.fill(accumG, 0);
+		Arrays.fill(accumB, 0);
+		Arrays.fill(accumA, 0);
+		Arrays.fill(revealage, 1);
+		nearDepth = near;
+		farDepth = far;
+		hasTransparency = true;
+	}
+
+	/**
+	 * Draws an opaque triangle, keeping only the fragments nearer than what is
+	 * already in the depth buffer.
+	 *
+	 * @param argb
+	 *            The color; its alpha is ignored.
+	 */
+	public void fillTriangle(int x0, int y0, float z0, int x1, int y1,
+			float z1, int x2, int y2, float z2, int argb) {
+		rasterize(x0, y0, z0, x1, y1, z1, x2, y2, z2, argb | 0xFF000000, false);
+	}
+
+	/**
+	 * Adds a translucent triangle to the transparency buffers. Fragments behind
+	 * opaque geometry are discarded, but the depth buffer isn't written, so
+	 * translucent faces never hide each other. Call beginTransparency first
+	 * and resolveTransparency when done.
+	 *
+	 * @param argb
+	 *            The color, including its alpha.
+	 */
+	public void blendTriangle(int x0, int y0, float z0, int x1, int y1,
+			float z1, int x2, int y2, float z2, int argb) {
+		rasterize(x0, y0, z0, x1, y1, z1, x2, y2, z2, argb, true);
+	}
+
+	/**
+	 * Composites the accumulated translucent fragments over the opaque pixels.
+	 */
+	public void resolveTransparency() {
+		if (!hasTransparency)
+			return;
+		int size = width * height;
+		for (int i = 0; i < size; i++) {
+			float reveal = revealage[i];
+			if (reveal >= 1)
+				continue;
+			float weight = accumA[i];
+			if (weight < 1e-5f)
+				weight = 1e-5f;
+			float cover = 1 - reveal;
+			int bg = pixels[i];
+			int r = (int) (accumR[i] / weight * cover + ((bg >> 16) & 0xFF)
+					* reveal);
+			int g = (int) (accumG[i] / weight * cover + ((bg >> 8) & 0xFF)
+					* reveal);
+			int b = (int) (accumB[i] / weight * cover + (bg & 0xFF) * reveal);
+			r = r > 255 ? 255 : r;
+			g = g > 255 ? 255 : g;
+			b = b > 255 ? 255 : b;
+			pixels[i] = (bg & 0xFF000000) | (r << 16) | (g << 8) | b;
+		}
+		hasTransparency = false;
+	}
+
+	/**
+	 * Walks the pixels whose centers fall inside the triangle. Shared edges
+	 * belong to exactly one of the two triangles, so translucent meshes don't
+	 * get double-blended seams.
+	 */
+	private void rasterize(int x0, int y0, float z0, int x1, int y1, float z1,
+			int x2, int y2, float z2, int argb, boolean blend) {
+		long area = (long) (x1 - x0) * (y2 - y0) - (long) (y1 - y0)
+				* (x2 - x0);
+		if (area == 0)
+			return;
+		if (area < 0) {
+			// Wind every triangle the same way so the inside is positive.
+			int tx = x1;
+			int ty = y1;
+			float tz = z1;
+			x1 = x2;
+			y1 = y2;
+			z1 = z2;
+			x2 = tx;
+			y2 = ty;
+			z2 = tz;
+			area = -area;
+		}
+		int minX = Math.max(Math.min(x0, Math.min(x1, x2)), 0);
+		int maxX = Math.min(Math.max(x0, Math.max(x1, x2)), width - 1);
+		int minY = Math.max(Math.min(y0, Math.min(y1, y2)), 0);
+		int maxY = Math.min(Math.max(y0, Math.max(y1, y2)), height - 1);
+		if (minX > maxX || minY > maxY)
+			return;
+
+		// Edge functions are evaluated at pixel centers. Doubling every
+		// coordinate puts the centers on integers and keeps the math exact.
+		long e0Dx = -4L * (y2 - y1), e0Dy = 4L * (x2 - x1);
+		long e1Dx = -4L * (y0 - y2), e1Dy = 4L * (x0 - x2);
+		long e2Dx = -4L * (y1 - y0), e2Dy = 4L * (x1 - x0);
+		long sx = 2L * minX + 1;
+		long sy = 2L * minY + 1;
+		long e0Row = edge(x1, y1, x2, y2, sx, sy);
+		long e1Row = edge(x2, y2, x0, y0, sx, sy);
+		long e2Row = edge(x0, y0, x1, y1, sx, sy);
+		// Pixels exactly on an edge go to one side only.
+		long b0 = ownsEdge(x1, y1, x2, y2) ? 0 : -1;
+		long b1 = ownsEdge(x2, y2, x0, y0) ? 0 : -1;
+		long b2 = ownsEdge(x0, y0, x1, y1) ? 0 : -1;
+		double invArea = 1.0 / (4.0 * area);
+
+		float a = ((argb >>> 24) & 0xFF) / 255f;
+		float r = (argb >> 16) & 0xFF;
+		float g = (argb >> 8) & 0xFF;
+		float b = argb & 0xFF;
+		float depthRange = nearDepth - farDepth;
+
+		for (int y = minY; y <= maxY; y++) {
+			long e0 = e0Row;
+			long e1 = e1Row;
+			long e2 = e2Row;
+			int index = y * width + minX;
+			for (int x = minX; x <= maxX; x++, index++) {
+				if (((e0 + b0) | (e1 + b1) | (e2 + b2)) >= 0) {
+					float z = (float) ((e0 * z0 + e1 * z1 + e2 * z2) * invArea);
+					if (z > depth[index]) {
+						if (!blend) {
+							pixels[index] = argb;
+							depth[index] = z;
+						} else {
+							// Nearer fragments get more weight.
+							float closeness = depthRange == 0 ? 1
+									: (z - farDepth) / depthRange;
+							float weight = 3e3f * closeness * closeness
+									* closeness;
+							if (weight < 1e-2f)
+								weight = 1e-2f;
+							else if (weight > 3e3f)
+								weight = 3e3f;
+							weight *= a;
+							accumR[index] += r * weight;
+							accumG[index] += g * weight;
+							accumB[index] += b * weight;
+							accumA[index] += weight;
+							revealage[index] *= 1 - a;
+						}
+					}
+				}
+				e0 += e0Dx;
+				e1 += e1Dx;
+				e2 += e2Dx;
+			}
+			e0Row += e0Dy;
+			e1Row += e1Dy;
+			e2Row += e2Dy;
+		}
+	}
+
+	/**
+	 * Draws an opaque square dot centered on a pixel, keeping only the pixels
+	 * nearer than what is already in the depth buffer.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param size
+	 *            Width of the square in pixels.
+	 * @param argb
+	 *            The color; its alpha is ignored.
+	 */
+	public void fillSquare(int x, int y, float z, int size, int argb) {
+		argb |= 0xFF000000;
+		if (size == 1) {
+			if (x < 0 || y < 0 || x >= width || y >= height)
+				return;
+			int index = y * width + x;
+			if (z > depth[index]) {
+				pixels[index] = argb;
+				depth[index] = z;
+			}
+			return;
+		}
+		int minX = Math.max(x - (size - 1) / 2, 0);
+		int minY = Math.max(y - (size - 1) / 2, 0);
+		int maxX = Math.min(x + size / 2, width - 1);
+		int maxY = Math.min(y + size / 2, height - 1);
+		for (int row = minY; row <= maxY; row++) {
+			int index = row * width + minX;
+			for (int column = minX; column <= maxX; column++, index++) {
+				if (z > depth[index]) {
+					pixels[index] = argb;
+					depth[index] = z;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Draws a one pixel wide line with Bresenham's algorithm, ignoring and
+	 * leaving alone the depth buffer. The line is clipped to the raster
+	 * first, so lines running far off the edge cost no more than what shows.
+	 *
+	 * @param x0
+	 * @param y0
+	 * @param x1
+	 * @param y1
+	 * @param argb
+	 *            The color. Translucent colors are blended over the pixels
+	 *            already there.
+	 */
+	public void drawLine(int x0, int y0, int x1, int y1, int argb) {
+		int maxX = width - 1;
+		int maxY = height - 1;
+		if ((x0 < 0 && x1 < 0) || (y0 < 0 && y1 < 0)
+				|| (x0 > maxX && x1 > maxX) || (y0 > maxY && y1 > maxY))
+			return;
+		if (x0 < 0 || y0 < 0 || x0 > maxX || y0 > maxY || x1 < 0 || y1 < 0
+				|| x1 > maxX || y1 > maxY) {
+			// Liang-Barsky: narrow the range of t along the line to the part
+			// inside each edge of the raster.
+			double dx = x1 - x0;
+			double dy = y1 - y0;
+			double[] range = clipRange;
+			range[0] = 0;
+			range[1] = 1;
+			if (!clip(-dx, x0, range) || !clip(dx, maxX - x0, range)
+					|| !clip(-dy, y0, range) || !clip(dy, maxY - y0, range))
+				return;
+			int sx = x0;
+			int sy = y0;
+			x0 = (int) Math.round(sx + range[0] * dx);
+			y0 = (int) Math.round(sy + range[0] * dy);
+			x1 = (int) Math.round(sx + range[1] * dx);
+			y1 = (int) Math.round(sy + range[1] * dy);
+		}
+
+		int alpha = argb >>> 24;
+		int dx = Math.abs(x1 - x0);
+		int dy = -Math.abs(y1 - y0);
+		int stepX = x0 < x1 ? 1 : -1;
+		int stepY = y0 < y1 ? width : -width;
+		int index = y0 * width + x0;
+		int end = y1 * width + x1;
+		int error = dx + dy;
+		while (true) {
+			if (alpha == 255)
+				pixels[index] = argb;
+			else
+				pixels[index] = blend(pixels[index], argb, alpha);
+			if (index == end)
+				break;
+			int twice = 2 * error;
+			if (twice >= dy) {
+				error += dy;
+				index += stepX;
+			}
+			if (twice <= dx) {
+				error += dx;
+				index += stepY;
+			}
+		}
+	}
+
+	/**
+	 * Clips the range of t for which p * t <= q.
+	 *
+	 * @return False if none of the range is left.
+	 */
+	private static boolean clip(double p, double q, double[] range) {
+		if (p == 0)
+			return q >= 0;
+		double t = q / p;
+		if (p < 0) {
+			if (t > range[1])
+				return false;
+			if (t > range[0])
+				range[0] = t;
+		} else {
+			if (t < range[0])
+				return false;
+			if (t < range[1])
+				range[1] = t;
+		}
+		return true;
+	}
+
+	/**
+	 * Blends a color over an opaque pixel.
+	 */
+	private static int blend(int under, int over, int alpha) {
+		int keep = 255 - alpha;
+		int r = (((over >> 16) & 0xFF) * alpha + ((under >> 16) & 0xFF)
+				* keep) / 255;
+		int g = (((over >> 8) & 0xFF) * alpha + ((under >> 8) & 0xFF)
+				* keep) / 255;
+		int b = ((over & 0xFF) * alpha + (under & 0xFF) * keep) / 255;
+		return 0xFF000000 | (r << 16) | (g << 8) | b;
+	}
+
+	/**
+	 * Evaluates the edge function for a->b at a point in doubled coordinates.
+	 */
+	private static long edge(int ax, int ay, int bx, int by, long px, long py) {
+		return 2L * (bx - ax) * (py - 2L * ay) - 2L * (by - ay)
+				* (px - 2L * ax);
+	}
+
+	/**
+	 * Decides whether pixel centers lying exactly on edge a->b are inside.
+	 * The same edge walked the other way gives the opposite answer.
+	 */
+	private static boolean ownsEdge(int ax, int ay, int bx, int by) {
+		int dx = bx - ax;
+		int dy = by - ay;
+		return dy > 0 || (dy == 0 && dx < 0);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Gets the pixel buffer, row by row from the top left.
+	 *
+	 * @return
+	 */
+	public int[] getPixels() {
+		return pixels;
+	}
+
+	/**
+	 * Gets the depth buffer, laid out like the pixels.
+	 *
+	 * @return
+	 */
+	public float[] getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Gets an image which shares its pixels with this raster.
+	 *
+	 * @return
+	 */
+	public BufferedImage getImage() {
+		return image;
+	}
+}
@@ -0,0 +1,524 @@
+package com.pascucci.render.engine;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * Renders stills of a scene by tracing rays, for pictures the painter's
+ * algorithm can't draw: faces which cut through each other meet where they
+ * should, translucent faces show everything behind them in the right order,
+ * and faces in the shadow of others from the scene's light are lit by the
+ * ambient light alone.
+ *
+ * The scene is seen as the Renderer given would draw it, from the same
+ * camera, scale and projection, and faces are shaded the same way from
+ * their materials. Borders aren't drawn. The geometry is copied when the
+ * tracer is created, so the scene may change while it works.
+ *
+ * The picture is traced in tiles spread over a pool of threads. The first
+ * pass traces one ray through the middle of every pixel. Each pass after
+ * that adds one more ray, offset within the pixel, to only those pixels
+ * which differ from a neighbour, up to the sample budget, so the edges
+ * smooth out while flat areas cost nothing more. A listener hears about
+ * each pass and can show the picture as it improves.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class RayTracer {
+	private static final int TILE = 32;
+	private static final int CHUNK = 1024; // Refined pixels handed out at once
+	// Translucent faces a ray passes through before it is stopped
+	private static final int MAX_LAYERS = 16;
+	private static final float MIN_TRANSMITTANCE = 1f / 256;
+	// Difference from a neighbour, in any channel, that earns more samples
+	private static final int EDGE_THRESHOLD = 8;
+	// Offsets between neighbouring samples of the R2 sequence (Roberts,
+	// 2018), which spreads any number of samples evenly over a pixel
+	private static final double R2_X = 0.7548776662466927;
+	private static final double R2_Y = 0.5698402909980532;
+
+	// Copied from the scene
+	private float[] corners;
+	private int[] triangleMaterials;
+	private BVH bvh;
+	private final float eyeZ; // The renderer projects from the z axis
+	private final float lightX, lightY, lightZ;
+	private final float ambient;
+	private final float epsilon; // Distance rays start off surfaces
+	private final float top; // Height orthogonal rays start from
+
+	// Copied from the renderer
+	private final double scale;
+	private final boolean orthogonal;
+
+	// Materials by palette index
+	private final float[] red;
+	private final float[] green;
+	private final float[] blue;
+	private final float[] opacity;
+	private final float[] ambientSensitivity;
+	private final float[] diffuseSensitivity;
+
+	private int samples = 16;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private ChangeListener listener;
+	private volatile BufferedImage image;
+	private volatile int passes;
+	private volatile boolean cancelled;
+
+	/**
+	 * Creates a tracer for a scene as a renderer draws it.
+	 *
+	 * @param scene
+	 * @param renderer
+	 */
+	public RayTracer(Scene scene, Renderer renderer) {
+		scale = renderer.getScale();
+		orthogonal = renderer.isOrthogonal();
+		eyeZ = (float) scene.getCamera().getLocation().z;
+		Point3D light = scene.getLight();
+		lightX = (float) light.x;
+		lightY = (float) light.y;
+		lightZ = (float) light.z;
+		ambient = (float) scene.ambient;
+
+		copyGeometry(scene.getEntities());
+		float minZ = Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		float size = 0;
+		for (int axis = 0; axis < 3; axis++) {
+			float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+			for (int i = axis; i < corners.length; i += 3) {
+				min = Math.min(min, corners[i]);
+				max = Math.max(max, corners[i]);
+			}
+			size = Math.max(size, max - min);
+			if (axis == 2) {
+				minZ = min;
+				maxZ = max;
+			}
+		}
+		epsilon = Math.max(size, 1) * 1e-5f;
+		top = maxZ > minZ ? maxZ + 1 : 1;
+
+		int count = Palette.size();
+		red = new float[count];
+		green = new float[count];
+		blue = new float[count];
+		opacity = new float[count];
+		ambientSensitivity = new float[count];
+		diffuseSensitivity = new float[count];
+		for (int i = 0; i < count; i++) {
+			Material m = Palette.get(i);
+			red[i] = m.getColor().getRed();
+			green[i] = m.getColor().getGreen();
+			blue[i] = m.getColor().getBlue();
+			opacity[i] = m.getColor().getAlpha() / 255f;
+			ambientSensitivity[i] = (float) m.getAmbientSensitivity();
+			diffuseSensitivity[i] = (float) m.getDiffuseSensitivity();
+		}
+	}
+
+	/**
+	 * Copies every face and instanced triangle in the scene into corners,
+	 * splitting faces with more than three corners into fans.
+	 */
+	private void copyGeometry(ArrayList<Entity3D> entities) {
+		int total = 0;
+		for (Entity3D e : entities) {
+			if (StreamedModel.isPlaceholder(e))
+				continue;
+			if (e instanceof InstancedEntity3D) {
+				total += ((InstancedEntity3D) e).getMesh().getTriangleCount();
+			} else {
+				for (Face f : e.getFaces()) {
+					total += Math.max(f.getPoints().length - 2, 0);
+				}
+			}
+		}
+		corners = new float[9 * total];
+		triangleMaterials = new int[total];
+		int t = 0;
+		for (Entity3D e : entities) {
+			if (StreamedModel.isPlaceholder(e))
+				continue;
+			if (e instanceof InstancedEntity3D) {
+				t = copyInstance((InstancedEntity3D) e, t);
+				continue;
+			}
+			for (Face f : e.getFaces()) {
+				Point3D[] points = f.getPoints();
+				for (int j = 1; j < points.length - 1; j++) {
+					setCorner(t, 0, points[0].x, points[0].y, points[0].z);
+					setCorner(t, 1, points[j].x, points[j].y, points[j].z);
+					setCorner(t, 2, points[j + 1].x, points[j + 1].y,
+							points[j + 1].z);
+					triangleMaterials[t++] = f.material;
+				}
+			}
+		}
+	}
+
+	private int copyInstance(InstancedEntity3D instance, int t) {
+		Mesh mesh = instance.getMesh();
+		double[] m = instance.matrix;
+		int material = Palette.indexOf(instance.getMaterial());
+		int n = mesh.getTriangleCount();
+		double[] vertices = mesh.vertices();
+		if (mesh.isCompressed()) {
+			short[] quantized = mesh.quantized();
+			double[] q = mesh.quantization();
+			vertices = new double[quantized.length];
+			for (int i = 0; i < quantized.length; i++) {
+				vertices[i] = q[i % 3] + q[3 + i % 3] * quantized[i];
+			}
+		} else if (mesh.isOffHeap()) {
+			ByteBuffer data = mesh.offHeapData();
+			vertices = new double[3 * mesh.getVertexCount()];
+			for (int i = 0; i < vertices.length; i++) {
+				vertices[i] = data.getDouble(8 * i);
+			}
+		}
+		int[] triangles = mesh.triangles();
+		if (triangles == null) {
+			triangles = new int[3 * n];
+			mesh.decodeTriangles(triangles, 0);
+		}
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < 3; j++) {
+				int v = 3 * triangles[3 * i + j];
+				double x = vertices[v];
+				double y = vertices[v + 1];
+				double z = vertices[v + 2];
+				setCorner(t, j, m[0] * x + m[1] * y + m[2] * z + m[3], m[4]
+						* x + m[5] * y + m[6] * z + m[7], m[8] * x + m[9] * y
+						+ m[10] * z + m[11]);
+			}
+			triangleMaterials[t++] = material;
+		}
+		return t;
+	}
+
+	private void setCorner(int t, int corner, double x, double y, double z) {
+		int i = 9 * t + 3 * corner;
+		corners[i] = (float) x;
+		corners[i + 1] = (float) y;
+		corners[i + 2] = (float) z;
+	}
+
+	/**
+	 * Sets the most rays traced through any one pixel.
+	 *
+	 * @param samples
+	 */
+	public void setSamples(int samples) {
+		if (samples < 1)
+			throw new IllegalArgumentException("Need at least one sample.");
+		this.samples = samples;
+	}
+
+	public int getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Sets how many threads trace rays. Defaults to one per processor.
+	 *
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Sets a listener told after each pass over the picture. It is called on
+	 * the thread calling render.
+	 *
+	 * @param l
+	 */
+	public void setChangeListener(ChangeListener l) {
+		listener = l;
+	}
+
+	/**
+	 * Gets the picture as far as it has been traced, or null before the first
+	 * pass is done.
+	 *
+	 * @return
+	 */
+	public BufferedImage getImage() {
+		return image;
+	}
+
+	/**
+	 * Gets how many passes have been made over the picture.
+	 *
+	 * @return
+	 */
+	public int getPasses() {
+		return passes;
+	}
+
+	/**
+	 * Stops rendering after the pass in progress.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Traces the picture. The first call builds the hierarchy the rays are
+	 * traced through, which later calls reuse.
+	 *
+	 * @param width
+	 * @param height
+	 * @return The picture.
+	 * @throws InterruptedException
+	 */
+	public BufferedImage render(final int width, final int height)
+			throws InterruptedException {
+		if (bvh == null) {
+			bvh = new BVH(corners, triangleMaterials);
+			corners = null;
+			triangleMaterials = null;
+		}
+		cancelled = false;
+		passes = 0;
+		final BufferedImage picture = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		final int[] pixels = ((DataBufferInt) picture.getRaster()
+				.getDataBuffer()).getData();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			// Trace the middle of every pixel, a tile at a time.
+			final int tilesAcross = (width + TILE - 1) / TILE;
+			final int tiles = tilesAcross * ((height + TILE - 1) / TILE);
+			final AtomicInteger nextTile = new AtomicInteger();
+			runPass(pool, new Pass() {
+				public void run(Tracer tracer) {
+					int tile;
+					while (!cancelled
+							&& (tile = nextTile.getAndIncrement()) < tiles) {
+						int x0 = (tile % tilesAcross) * TILE;
+						int y0 = (tile / tilesAcross) * TILE;
+						int x1 = Math.min(x0 + TILE, width);
+						int y1 = Math.min(y0 + TILE, height);
+						for (int y = y0; y < y1; y++) {
+							for (int x = x0; x < x1; x++) {
+								pixels[y * width + x] = tracer.trace(x + .5,
+										y + .5, width, height);
+							}
+						}
+					}
+				}
+			});
+			finishPass(picture);
+
+			// Then keep adding samples to pixels on edges.
+			final int[] refine = findEdges(pixels, width, height);
+			final int[] sums = new int[3 * refine.length];
+			for (int i = 0; i < refine.length; i++) {
+				int rgb = pixels[refine[i]];
+				sums[3 * i] = (rgb >> 16) & 0xff;
+				sums[3 * i + 1] = (rgb >> 8) & 0xff;
+				sums[3 * i + 2] = rgb & 0xff;
+			}
+			for (int pass = 1; pass < samples && refine.length > 0
+					&& !cancelled; pass++) {
+				final double dx = (.5 + pass * R2_X) % 1;
+				final double dy = (.5 + pass * R2_Y) % 1;
+				final int count = pass + 1;
+				final AtomicInteger nextChunk = new AtomicInteger();
+				runPass(pool, new Pass() {
+					public void run(Tracer tracer) {
+						int chunk;
+						while (!cancelled
+								&& (chunk = nextChunk.getAndAdd(CHUNK)) < refine.length) {
+							int end = Math.min(chunk + CHUNK, refine.length);
+							for (int i = chunk; i < end; i++) {
+								int p = refine[i];
+								int rgb = tracer.trace(p % width + dx, p
+										/ width + dy, width, height);
+								int r = sums[3 * i] += (rgb >> 16) & 0xff;
+								int g = sums[3 * i + 1] += (rgb >> 8) & 0xff;
+								int b = sums[3 * i + 2] += rgb & 0xff;
+								pixels[p] = ((r / count) << 16)
+										| ((g / count) << 8) | (b / count);
+							}
+						}
+					}
+				});
+				finishPass(picture);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return picture;
+	}
+
+	/**
+	 * Work done by each thread in a pass.
+	 */
+	private interface Pass {
+		void run(Tracer tracer);
+	}
+
+	/**
+	 * Runs a pass on every thread of the pool, and waits for them all.
+	 */
+	private void runPass(ExecutorService pool, final Pass pass)
+			throws InterruptedException {
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < threads; i++) {
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					pass.run(new Tracer());
+					return null;
+				}
+			});
+		}
+		for (Future<Void> f : pool.invokeAll(tasks)) {
+			try {
+				f.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+
+	private void finishPass(BufferedImage picture) {
+		if (cancelled)
+			return;
+		image = picture;
+		passes++;
+		if (listener != null)
+			listener.stateChanged(new ChangeEvent(this));
+	}
+
+	/**
+	 * Lists the pixels which differ noticeably from a pixel next to them.
+	 */
+	private static int[] findEdges(int[] pixels, int width, int height) {
+		int[] edges = new int[16];
+		int count = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int p = y * width + x;
+				int rgb = pixels[p];
+				if ((x > 0 && differs(rgb, pixels[p - 1]))
+						|| (x < width - 1 && differs(rgb, pixels[p + 1]))
+						|| (y > 0 && differs(rgb, pixels[p - width]))
+						|| (y < height - 1 && differs(rgb, pixels[p + width]))) {
+					if (count == edges.length)
+						edges = Arrays.copyOf(edges, 2 * count);
+					edges[count++] = p;
+				}
+			}
+		}
+		return Arrays.copyOf(edges, count);
+	}
+
+	private static boolean differs(int a, int b) {
+		return Math.abs(((a >> 16) & 0xff) - ((b >> 16) & 0xff)) > EDGE_THRESHOLD
+				|| Math.abs(((a >> 8) & 0xff) - ((b >> 8) & 0xff)) > EDGE_THRESHOLD
+				|| Math.abs((a & 0xff) - (b & 0xff)) > EDGE_THRESHOLD;
+	}
+
+	/**
+	 * Traces rays for one thread.
+	 */
+	private class Tracer {
+		private final BVH.Hit hit = new BVH.Hit();
+		private final float[] normal = new float[3];
+
+		/**
+		 * Traces a ray through a point of the picture.
+		 *
+		 * @param sx
+		 * @param sy
+		 *            The point, in pixels from the top left corner.
+		 * @return The color seen, as RGB.
+		 */
+		int trace(double sx, double sy, int width, int height) {
+			// The inverse of Renderer.convertToScreenCoordinates, at z = 0
+			float x = (float) ((sx - width / 2) / scale);
+			float y = (float) ((height / 2 - sy) / scale);
+			float ox, oy, oz, dx, dy, dz;
+			if (orthogonal) {
+				ox = x;
+				oy = y;
+				oz = top;
+				dx = 0;
+				dy = 0;
+				dz = -1;
+			} else {
+				ox = 0;
+				oy = 0;
+				oz = eyeZ;
+				dx = x;
+				dy = y;
+				dz = -eyeZ;
+			}
+			float step = epsilon
+					/ (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+			float r = 0, g = 0, b = 0;
+			float through = 1;
+			float tMin = 0;
+			for (int layer = 0; layer < MAX_LAYERS; layer++) {
+				if (!bvh.intersect(ox, oy, oz, dx, dy, dz, tMin,
+						Float.POSITIVE_INFINITY, true, hit))
+					break;
+				float t = hit.t;
+				int m = bvh.getMaterial(hit.triangle);
+				bvh.getNormal(hit.triangle, normal);
+				float light = shade(ox + t * dx, oy + t * dy, oz + t * dz, m);
+				float alpha = opacity[m];
+				float weight = through * alpha;
+				r += weight * Math.min(255, red[m] * light);
+				g += weight * Math.min(255, green[m] * light);
+				b += weight * Math.min(255, blue[m] * light);
+				through *= 1 - alpha;
+				if (through < MIN_TRANSMITTANCE)
+					break;
+				tMin = t + step;
+			}
+			return (Math.min(255, (int) r) << 16)
+					| (Math.min(255, (int) g) << 8) | Math.min(255, (int) b);
+		}
+
+		/**
+		 * Works out the light falling on a point whose normal is in normal,
+		 * as Renderer.getShading does, less whatever of the diffuse light is
+		 * blocked on its way from the light.
+		 */
+		private float shade(float px, float py, float pz, int m) {
+			float nx = normal[0], ny = normal[1], nz = normal[2];
+			float lx = lightX - px;
+			float ly = lightY - py;
+			float lz = lightZ - pz;
+			float length = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+			float diffuse = (nx * lx + ny * ly + nz * lz) / length;
+			float light = ambient * ambientSensitivity[m];
+			if (diffuse > 0 && diffuseSensitivity[m] > 0) {
+				float open = bvh.transmittance(px + nx * epsilon, py + ny
+						* epsilon, pz + nz * epsilon, lx, ly, lz, 0, 1,
+						opacity, hit);
+				light += diffuse * diffuseSensitivity[m] * open;
+			}
+			return light;
+		}
+	}
+}
@@ -4,12 +4,13 @@ import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
-import java.awt.geom.Ellipse2D;
-import java.awt.geom.Path2D;
-import java.awt.geom.Point2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 
-import com.pascucci.render.utils.Utils3D;
+import com.pascucci.render.jfr.RenderFrameEvent;
 
 /**
  * Provides the actual renderering engine for a scene.
@@ -19,18 +20,172 @@ import com.pascucci.render.utils.Utils3D;
  */
 public class Renderer {
 
+	// Antialiasing modes
+	public static final int ANTIALIAS_OFF = 0;
+	public static final int ANTIALIAS_SHAPES = 1;
+	public static final int ANTIALIAS_EDGE_FILTER = 2;
+	public static final int ANTIALIAS_SUPERSAMPLE = 3;
+	public static final int MAX_SUPERSAMPLING = 4;
+
+	// Dynamic resolution
+	public static final double MIN_RESOLUTION = .25;
+	private static final double RESOLUTION_STEP = 1.0 / 16;
+	private static final double FRAME_TIME_TOLERANCE = .1;
+	private static final double FRAME_TIME_SMOOTHING = .5;
+
 	// View variables
 	private double scalefactor;
 	private boolean wireframe = false;
+	private boolean points = false;
+	private int pointSize = 1; // Pixels across each dot
+	private int pointStride = 1; // Vertices per dot drawn
 	private boolean orthogonal = false;
+	private int antialiasing = ANTIALIAS_SHAPES;
+	private int supersampling = 2;
+	private Antialiaser antialiaser;
+	// Set while drawing into the antialiaser's frame without antialiasing,
+	// when translucent faces are blended there instead of filled by Java2D
+	private boolean blendInFrame;
+	private BasicStroke frameStroke; // Border stroke in frame pixels
+	private long targetFrameTime; // Nanoseconds, or 0 for full resolution
+	private double resolution = 1;
+	private double averageFrameTime;
+	// Set while drawing a still frame, which is always at full resolution
+	boolean fullResolution;
+	// Bumped whenever a setting which changes the picture does.
+	long version;
+
+	// Per-frame scratch space, reused so that drawing doesn't allocate
+	private static final int LIGHT_ICON_SIZE = 3;
+	private BasicStroke stroke;
+	private double pixelScale = 1; // Frame pixels per pixel of the picture
+	private int[] xPoints = new int[3];
+	private int[] yPoints = new int[3];
+	private float[] zPoints = new float[3];
+	private int[] screenX = new int[0]; // Projected vertices of every entity
+	private int[] screenY = new int[0];
+	private float[] screenDepth = new float[0];
+	private double[] worldX = new double[0]; // Instanced vertices in the scene
+	private double[] worldY = new double[0];
+	private double[] worldZ = new double[0];
+	private int[] corners = new int[3]; // Vertex indices of one triangle
+	private InstancedEntity3D cornerOwner; // Whose triangle is in corners
+	private int cornerTriangle;
+	private ByteBuffer cornerData; // Block of the last off heap mesh read
+	private Mesh cornerMesh;
+	private TriangleReader triangleReader = new TriangleReader();
+	private double[] decodedNormal = new double[3];
+	private InstancedEntity3D normalOwner; // Whose normal matrix is cached
+	private double[] normalMatrix = new double[9];
+	private float nearDepth; // Depth range of the projected vertices
+	private float farDepth;
+	private int culled;
+	private int drawn;
+	private int originX;
+	private int originY;
+	private double nx, ny, nz; // Normal of the current face
+	private ColorCache colors = new ColorCache(4096);
+
+	// Software rendering with order-independent transparency
+	private boolean orderIndependent = false;
+	private Raster raster;
+	private int translucentCount;
+	private int[] translucentOwner = new int[0];
+	private int[] translucentTriangle = new int[0];
+	private int[] translucentColor = new int[0];
+
+	// Occlusion culling
+	private static final int OCCLUDER_SIZE = 4 * DepthPyramid.TILE;
+	private static final int OFF_SCREEN = 0;
+	private static final int ON_SCREEN = 1;
+	private static final int AT_CAMERA = 2; // Reaches the camera, never culled
+	private boolean occlusionCulling = false;
+	private DepthPyramid pyramid;
+	private int occluded;
+	private int[] boundsState = new int[0]; // Projected entity bounds
+	private int[] boundsMinX = new int[0];
+	private int[] boundsMinY = new int[0];
+	private int[] boundsMaxX = new int[0];
+	private int[] boundsMaxY = new int[0];
+	private float[] boundsNearest = new float[0];
+	private ArrayList<Entity3D> inFrustum = new ArrayList<Entity3D>();
+
+	// Cancellation
+	private static final int BATCH_SIZE = 256; // Faces drawn between checks
+	private static final int POINT_BATCH_SIZE = 65536;
+	// Projected coordinates are clamped to this many pixels either side of the
+	// origin, so points right in front of the camera can't overflow an int.
+	static final int SCREEN_LIMIT = 1 << 24;
+	private CancelToken token;
+	private boolean cancelled;
+
+	// Instrumentation
+	private boolean profiling = false;
+	private FrameStats stats = new FrameStats();
+	private long lapStart;
 
 	/**
-	 * Turns wireframe rendering on or off.
+	 * Turns wireframe rendering on or off. Wireframes draw each distinct edge
+	 * once, as a one pixel line in the border color, with no sorting, so
+	 * they're quick to draw even for big models.
 	 * 
 	 * @param on
 	 */
 	public void setWireframe(boolean on) {
 		this.wireframe = on;
+		version++;
+	}
+
+	/**
+	 * Turns point rendering on or off. Each vertex of each entity is drawn as
+	 * a square dot in its unlit color, depth tested in the software raster,
+	 * and the faces aren't sorted, shaded or filled at all. It's meant for
+	 * getting around models far too big to draw any other way. Takes
+	 * precedence over wireframe.
+	 * 
+	 * While it's on, the frame statistics count points rather than faces.
+	 * 
+	 * @param on
+	 */
+	public void setPoints(boolean on) {
+		points = on;
+		version++;
+	}
+
+	public boolean isPoints() {
+		return points;
+	}
+
+	/**
+	 * Sets how big the dots are drawn in point rendering.
+	 * 
+	 * @param pixels
+	 *            Width of each dot, at least 1.
+	 */
+	public void setPointSize(int pixels) {
+		pointSize = Math.max(1, pixels);
+		version++;
+	}
+
+	public int getPointSize() {
+		return pointSize;
+	}
+
+	/**
+	 * Thins out point rendering by drawing only every stride'th vertex of
+	 * each entity. Scans are dense enough that the shape still shows at a
+	 * fraction of the cost.
+	 * 
+	 * @param stride
+	 *            1 to draw every vertex.
+	 */
+	public void setPointStride(int stride) {
+		pointStride = Math.max(1, stride);
+		version++;
+	}
+
+	public int getPointStride() {
+		return pointStride;
 	}
 
 	/**
@@ -40,6 +195,140 @@ public class Renderer {
 	 */
 	public void setOrthogonal(boolean on) {
 		this.orthogonal = on;
+		version++;
+	}
+
+	public boolean isOrthogonal() {
+		return orthogonal;
+	}
+
+	/**
+	 * Turns order-independent transparency on or off. When on, solid faces are
+	 * rasterized in software with a depth buffer and translucent faces are
+	 * blended with weighted blended OIT, so the per-frame depth sort is
+	 * skipped and intersecting translucent faces render correctly. Face
+	 * borders aren't drawn in this mode.
+	 * 
+	 * @param on
+	 */
+	public void setOrderIndependentTransparency(boolean on) {
+		this.orderIndependent = on;
+		version++;
+	}
+
+	public boolean isOrderIndependentTransparency() {
+		return orderIndependent;
+	}
+
+	/**
+	 * Turns occlusion culling on or off. When on, the large opaque faces of
+	 * each frame are first drawn into a coarse depth pyramid, and entities
+	 * whose bounds are entirely behind them, or off the screen, aren't shaded
+	 * or drawn at all. Only entities which were visible last frame are used
+	 * as occluders. Has no effect on wireframes.
+	 * 
+	 * The software raster gives exactly the same picture either way. With the
+	 * painter's algorithm, a few antialiased pixels along the seams of an
+	 * occluder may no longer show a trace of what was behind it.
+	 * 
+	 * @param on
+	 */
+	public void setOcclusionCulling(boolean on) {
+		this.occlusionCulling = on;
+		version++;
+	}
+
+	public boolean isOcclusionCulling() {
+		return occlusionCulling;
+	}
+
+	/**
+	 * Sets how edges are antialiased:
+	 * 
+	 * <ul>
+	 * <li>ANTIALIAS_OFF leaves them jagged.</li>
+	 * <li>ANTIALIAS_SHAPES has Java2D antialias every face as it is drawn. It
+	 * looks best, but costs more the more faces there are.</li>
+	 * <li>ANTIALIAS_EDGE_FILTER draws without antialiasing, then blurs the
+	 * finished frame along the edges it finds. It costs one pass over the
+	 * pixels, however many faces there are.</li>
+	 * <li>ANTIALIAS_SUPERSAMPLE draws the frame larger by the supersampling
+	 * factor and averages it down, costing as much as drawing the larger
+	 * frame.</li>
+	 * </ul>
+	 * 
+	 * Except with ANTIALIAS_SHAPES, frames are drawn into a buffer, and
+	 * translucent faces are blended into it by the renderer rather than
+	 * filled by Java2D, which is slow at them without antialiasing.
+	 * 
+	 * @param mode
+	 *            One of the ANTIALIAS constants.
+	 */
+	public void setAntialiasing(int mode) {
+		if (mode < ANTIALIAS_OFF || mode > ANTIALIAS_SUPERSAMPLE)
+			throw new IllegalArgumentException("No antialiasing mode " + mode);
+		this.antialiasing = mode;
+		version++;
+	}
+
+	public int getAntialiasing() {
+		return antialiasing;
+	}
+
+	/**
+	 * Sets how many samples along each side of a pixel are taken when
+	 * supersampling, so the frame is drawn with the square of this many
+	 * times as many pixels.
+	 * 
+	 * @param factor
+	 *            From 2 to MAX_SUPERSAMPLING.
+	 */
+	public void setSupersampling(int factor) {
+		if (factor < 2 || factor > MAX_SUPERSAMPLING)
+			throw new IllegalArgumentException("Supersampling must be from 2 to "
+					+ MAX_SUPERSAMPLING);
+		this.supersampling = factor;
+		version++;
+	}
+
+	public int getSupersampling() {
+		return supersampling;
+	}
+
+	/**
+	 * Sets a frame time for the renderer to hold by drawing at less than full
+	 * resolution. After each frame, the fraction of the output's resolution
+	 * the frame is drawn at is adjusted up or down, between MIN_RESOLUTION
+	 * and one, to bring the time a frame takes towards the target. Reduced
+	 * frames are drawn into a buffer and scaled up to fill the output, with
+	 * square pixels; SceneView draws a still view again at full resolution.
+	 * 
+	 * @param millis
+	 *            Target frame time, or zero to always draw at full
+	 *            resolution.
+	 */
+	public void setTargetFrameTime(double millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Negative frame time " + millis);
+		targetFrameTime = (long) (millis * 1e6);
+		averageFrameTime = 0;
+		if (targetFrameTime == 0)
+			resolution = 1;
+		version++;
+	}
+
+	public double getTargetFrameTime() {
+		return targetFrameTime / 1e6;
+	}
+
+	/**
+	 * Gets the fraction of the output's resolution the next frame will be
+	 * drawn at.
+	 * 
+	 * @return
+	 */
+	public double getResolution() {
+		return resolution;
 	}
 
 	/**
@@ -49,15 +338,64 @@ public class Renderer {
 	 */
 	public void setScale(double factor) {
 		this.scalefactor = factor;
+		// Borders are half a world unit wide, so they grow as we zoom in.
+		stroke = new BasicStroke((float) (.5 * factor), BasicStroke.CAP_BUTT,
+				BasicStroke.JOIN_BEVEL);
+		version++;
 	}
 
 	public double getScale() {
 		return scalefactor;
 	}
 
+	/**
+	 * Turns per-stage frame timing on or off. While off, the renderer doesn't
+	 * read the clock at all.
+	 * 
+	 * @param on
+	 */
+	public void setProfiling(boolean on) {
+		if (on && !profiling)
+			stats.reset();
+		this.profiling = on;
+	}
+
+	public boolean isProfiling() {
+		return profiling;
+	}
+
+	/**
+	 * Gets the timings and face counters for recently rendered frames. Only
+	 * updated while profiling is on.
+	 * 
+	 * @return
+	 */
+	public FrameStats getFrameStats() {
+		return stats;
+	}
+
 	public Renderer() {
+		setScale(1);
+	}
 
-		scalefactor = 1;
+	/**
+	 * Creates a renderer with the same settings as another, so the same
+	 * picture can be drawn on another thread. The copy has no target frame
+	 * time, so it always draws at full resolution.
+	 * 
+	 * @param other
+	 */
+	public Renderer(Renderer other) {
+		setScale(other.scalefactor);
+		wireframe = other.wireframe;
+		points = other.points;
+		pointSize = other.pointSize;
+		pointStride = other.pointStride;
+		orthogonal = other.orthogonal;
+		orderIndependent = other.orderIndependent;
+		occlusionCulling = other.occlusionCulling;
+		antialiasing = other.antialiasing;
+		supersampling = other.supersampling;
 	}
 
 	/**
@@ -66,160 +404,1651 @@ public class Renderer {
 	 * Nicely, this means that the scene can be rendered to any output by
 	 * passing this method an arbitrary Graphics2D object.
 	 * 
+	 * Faces are projected straight to device pixels into reused coordinate
+	 * arrays, so a steady-state frame doesn't allocate.
+	 * 
 	 * @param g
 	 */
 	public void renderScene(Graphics2D g2, Scene scene, int width, int height) {
-		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-				RenderingHints.VALUE_ANTIALIAS_ON);
+		renderScene(g2, scene, width, height, null);
+	}
+
+	/**
+	 * Carries out the render, giving up if the token is cancelled. The token
+	 * is checked between the stages of the frame and every few hundred faces,
+	 * so the frame stops soon after it is no longer wanted.
+	 * 
+	 * @param g2
+	 * @param scene
+	 * @param width
+	 * @param height
+	 * @param token
+	 *            May be null, for a frame which always finishes.
+	 * @return Whether the frame was finished. A cancelled frame leaves
+	 *         whatever it had drawn in the graphics object, which should be
+	 *         thrown away.
+	 */
+	public boolean renderScene(Graphics2D g2, Scene scene, int width,
+			int height, CancelToken token) {
+		this.token = token;
+		cancelled = false;
+		RenderFrameEvent event = new RenderFrameEvent();
+		event.begin();
+		int submitted = 0;
+		culled = 0;
+		occluded = 0;
+		drawn = 0;
+		long frameStart = 0;
+		if (profiling) {
+			frameStart = System.nanoTime();
+			stats.beginFrame();
+			lapStart = frameStart;
+		}
+		long start = targetFrameTime > 0 ? System.nanoTime() : 0;
+		double frameResolution = fullResolution ? 1 : resolution;
+		if (antialiasing != ANTIALIAS_SHAPES || frameResolution < 1) {
+			submitted = drawBuffered(g2, scene, width, height,
+					frameResolution);
+		} else {
+			g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+					antialiasing == ANTIALIAS_SHAPES ? RenderingHints.VALUE_ANTIALIAS_ON
+							: RenderingHints.VALUE_ANTIALIAS_OFF);
+			submitted = drawFrame(g2, scene, width, height);
+		}
+		this.token = null;
+		// A cancelled frame's time says nothing about how long frames take.
+		if (targetFrameTime > 0 && !fullResolution && !cancelled)
+			adaptResolution(System.nanoTime() - start);
+		if (profiling && !cancelled) {
+			lap(FrameStats.PRESENT);
+			stats.endFrame(lapStart - frameStart, submitted, culled, occluded,
+					drawn);
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.width = width;
+			event.height = height;
+			event.resolution = frameResolution;
+			event.entityCount = scene.getEntities().size();
+			event.facesSubmitted = submitted;
+			event.facesCulled = culled;
+			event.facesOccluded = occluded;
+			event.facesDrawn = drawn;
+			event.wireframe = wireframe;
+			event.points = points;
+			event.orthogonal = orthogonal;
+			event.cancelled = cancelled;
+			event.commit();
+		}
+		return !cancelled;
+	}
+
+	/**
+	 * Checks whether the frame in progress has been cancelled. Once it has,
+	 * the token isn't asked again.
+	 * 
+	 * @return
+	 */
+	private boolean isCancelled() {
+		if (!cancelled && token != null && token.isCancelled())
+			cancelled = true;
+		return cancelled;
+	}
+
+	/**
+	 * Moves the resolution towards the one which would have drawn the last
+	 * frames in the target time. Drawing time mostly grows with the number of
+	 * pixels, the square of the resolution, so a slow frame drops it right to
+	 * where it should be, while quick frames raise it a step at a time.
+	 * Frame times within a tolerance of the target leave it alone, and it
+	 * moves in steps, so that it doesn't hunt back and forth or reallocate
+	 * buffers every frame.
+	 * 
+	 * @param nanos
+	 *            How long the last frame took.
+	 */
+	private void adaptResolution(long nanos) {
+		averageFrameTime = averageFrameTime == 0 ? nanos
+				: FRAME_TIME_SMOOTHING * averageFrameTime
+						+ (1 - FRAME_TIME_SMOOTHING) * nanos;
+		double ratio = targetFrameTime / averageFrameTime;
+		if (Math.abs(ratio - 1) < FRAME_TIME_TOLERANCE)
+			return;
+		double wanted;
+		if (ratio < 1) {
+			wanted = Math.floor(resolution * Math.sqrt(ratio)
+					/ RESOLUTION_STEP)
+					* RESOLUTION_STEP;
+		} else {
+			// Creep back up, in case the frame was quick for other reasons.
+			wanted = resolution + RESOLUTION_STEP;
+		}
+		wanted = Math.max(MIN_RESOLUTION, Math.min(1, wanted));
+		if (wanted != resolution) {
+			resolution = wanted;
+			// Times at the old resolution say little about the new one.
+			averageFrameTime = 0;
+		}
+	}
+
+	/**
+	 * Draws the frame into a buffer at a fraction of the resolution of the
+	 * device behind the graphics object, or a multiple of that when
+	 * supersampling, then antialiases it and draws it scaled to fill the
+	 * output.
+	 * 
+	 * @param g2
+	 * @param scene
+	 * @param width
+	 * @param height
+	 * @param resolution
+	 * @return The number of faces and triangles submitted.
+	 */
+	private int drawBuffered(Graphics2D g2, Scene scene, int width,
+			int height, double resolution) {
+		if (antialiaser == null)
+			antialiaser = new Antialiaser();
+		AffineTransform t = g2.getTransform();
+		double deviceScale = Math.max(Math.abs(t.getScaleX()),
+				Math.abs(t.getScaleY()));
+		if (deviceScale <= 0)
+			deviceScale = 1;
+		deviceScale *= resolution;
+		int samples = antialiasing == ANTIALIAS_SUPERSAMPLE ? supersampling
+				: 1;
+		int frameWidth = Math.max((int) Math.ceil(width * deviceScale), 1);
+		int frameHeight = Math.max((int) Math.ceil(height * deviceScale), 1);
+
+		// Everything is drawn larger by the ratio of frame pixels to picture
+		// pixels, as if zoomed in.
+		double scale = scalefactor;
+		BasicStroke pictureStroke = stroke;
+		pixelScale = deviceScale * samples;
+		scalefactor = scale * pixelScale;
+		if (frameStroke == null
+				|| frameStroke.getLineWidth() != (float) (.5 * scalefactor))
+			frameStroke = new BasicStroke((float) (.5 * scalefactor),
+					BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL);
+		stroke = frameStroke;
+		Graphics2D frame = antialiaser.begin(frameWidth * samples, frameHeight
+				* samples);
+		if (antialiasing == ANTIALIAS_SHAPES)
+			frame.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+					RenderingHints.VALUE_ANTIALIAS_ON);
+		else
+			blendInFrame = true;
+		int submitted;
+		try {
+			submitted = drawFrame(frame, scene, frameWidth * samples,
+					frameHeight * samples);
+		} finally {
+			frame.dispose();
+			blendInFrame = false;
+			scalefactor = scale;
+			stroke = pictureStroke;
+			pixelScale = 1;
+		}
+		if (cancelled)
+			return submitted;
+		if (profiling)
+			lap(FrameStats.PRESENT);
+		BufferedImage image;
+		if (samples > 1)
+			image = antialiaser.downsample(samples);
+		else if (antialiasing == ANTIALIAS_EDGE_FILTER)
+			image = antialiaser.filterEdges();
+		else
+			image = antialiaser.getFrame();
+		// Smoother scaling costs far more than drawing the frame did, and
+		// reduced frames are only meant to be seen while the view moves.
+		g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+				RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+		g2.drawImage(image, 0, 0, width, height, null);
+		return submitted;
+	}
+
+	/**
+	 * Draws the background, the scene and the light.
+	 * 
+	 * @param g2
+	 * @param scene
+	 * @param width
+	 * @param height
+	 * @return The number of faces and triangles submitted.
+	 */
+	private int drawFrame(Graphics2D g2, Scene scene, int width, int height) {
+		int submitted = 0;
 		g2.setColor(Color.BLACK);
 		g2.fillRect(0, 0, width, height);
-		// Put the origin in the middle, flip axes
-		g2.translate(width / 2, height / 2);
-		g2.scale(scalefactor, -scalefactor);
-		
-		
-
-		Camera camera = scene.getCamera();
+		// The origin goes in the middle with the y axis flipped; that is done
+		// in convertToScreenCoordinates rather than on the graphics transform.
+		originX = width / 2;
+		originY = height / 2;
+		g2.setStroke(stroke);
 
 		if (scene != null) {
-			// We'll use our ZBuffer to get the faces in ascending Z order,
-			// Then use the painter's algorithm to draw them.
+			Camera camera = scene.getCamera();
+			Point3D eye = camera.getLocation();
+			Point3D light = scene.getLight();
 			ZBuffer buffer = scene.getBuffer();
-			buffer.sort();
-			ArrayList<Face> faces = buffer.getSortedFaces();
-
-			for (Face f : faces) {
-				g2.setStroke(new BasicStroke(.5f, BasicStroke.CAP_BUTT,
-						BasicStroke.JOIN_BEVEL));
-				Point3D[] points = f.getPoints();
-				if (!wireframe) {
-					Vector3D normal = Utils3D.normal(f);
-					// If we're in orthogonal mode, we don't paint faces
-					// pointing away from us.
-					if (orthogonal && normal.z <= 0)
-						continue;
-					else {
-						Point3D p = points[0];
-						/*
-						 * If the face isn't visible the cosine of the angle
-						 * between the normal and a vector to our camera will be
-						 * less than 0: cos(90) == 0 && cos(270) == 0. Any angle
-						 * which 90 < x < 270 is pointing away from us.
-						 */
-						if (Utils3D.dotProduct(normal,
-								new Vector3D(p, camera.getLocation())) <= 0)
-							continue;
-					}
+			boolean software = orderIndependent && !wireframe;
+			if (profiling)
+				lap(FrameStats.PRESENT);
+			ArrayList<StreamedModel> streamed = scene.getStreamedModels();
+			if (!streamed.isEmpty()) {
+				Frustum frustum = Frustum.fromView(camera, width, height,
+						scalefactor, orthogonal);
+				for (int i = 0; i < streamed.size(); i++) {
+					streamed.get(i).update(scene, frustum, eye, scalefactor,
+							orthogonal);
 				}
-				Path2D faceShape = new Path2D.Double();
-
-				for (Point3D p : points) {
-					Point2D p2 = convertToScreenCoordinates(p, camera);
-					if (p == points[0]) {
-						faceShape.moveTo(p2.getX(), p2.getY());
-					} else {
-						faceShape.lineTo(p2.getX(), p2.getY());
-					}
+				if (profiling)
+					lap(FrameStats.STREAM);
+			}
+			if (isCancelled())
+				return submitted;
+			if (points) {
+				// Points are projected as they're drawn; nothing else about
+				// the frame is needed.
+				submitted = drawPoints(g2, scene, width, height);
+				if (cancelled)
+					return submitted;
+				drawLight(g2, light, eye);
+				return submitted;
+			}
+			// Blending in the software raster doesn't depend on draw order,
+			// and wireframes have nothing to hide, so only the painter's
+			// algorithm needs the faces sorted.
+			if (!software && !wireframe) {
+				buffer.sort();
+				if (profiling)
+					lap(FrameStats.SORT);
+			}
+			if (isCancelled())
+				return submitted;
+			projectVertices(scene.getEntities(), buffer.getInstances(), eye);
+			if (profiling)
+				lap(FrameStats.PROJECT);
+			if (occlusionCulling && !wireframe) {
+				cullOccluded(scene, eye, width, height);
+				if (profiling)
+					lap(FrameStats.OCCLUDE);
+			}
+			if (isCancelled())
+				return submitted;
+
+			if (wireframe) {
+				submitted = drawWireframe(g2, scene, width, height);
+			} else if (software) {
+				submitted = drawSoftware(g2, scene, width, height);
+			} else {
+				submitted = drawPainter(g2, scene);
+			}
+			if (cancelled)
+				return submitted;
+			drawLight(g2, light, eye);
+		}
+		return submitted;
+	}
+
+	/**
+	 * Marks where the light is.
+	 * 
+	 * @param g2
+	 * @param light
+	 * @param eye
+	 *            The camera location.
+	 */
+	private void drawLight(Graphics2D g2, Point3D light, Point3D eye) {
+		convertToScreenCoordinates(light.x, light.y, light.z, eye, xPoints,
+				yPoints, 0);
+		int icon = (int) Math.round(LIGHT_ICON_SIZE * pixelScale);
+		g2.setColor(Color.YELLOW);
+		g2.fillOval(xPoints[0], yPoints[0] - icon, icon, icon);
+	}
+
+	/**
+	 * Draws depth-sorted faces back to front through Java2D, blending each
+	 * translucent face over whatever is behind it. Faces and instanced
+	 * triangles are sorted separately by the ZBuffer and merged here.
+	 * 
+	 * @param g2
+	 * @param scene
+	 * @return The number of faces and triangles submitted.
+	 */
+	private int drawPainter(Graphics2D g2, Scene scene) {
+		ZBuffer buffer = scene.getBuffer();
+		ArrayList<Face> faces = buffer.getSortedFaces();
+		ArrayList<InstancedEntity3D> instances = buffer.getInstances();
+		int faceCount = faces.size();
+		int triangleCount = buffer.getSortedTriangleCount();
+		int i = 0;
+		int t = 0;
+		while (i < faceCount || t < triangleCount) {
+			if ((i + t) % BATCH_SIZE == 0 && isCancelled())
+				break;
+			if (t >= triangleCount
+					|| (i < faceCount && faces.get(i).zavg <= buffer
+							.getSortedTriangleDepth(t))) {
+				paintFace(g2, scene, faces.get(i++));
+			} else {
+				paintTriangle(g2, scene,
+						instances.get(buffer.getSortedTriangleInstance(t)),
+						buffer.getSortedTriangleIndex(t));
+				t++;
+			}
+		}
+		return faceCount + triangleCount;
+	}
+
+	/**
+	 * Draws a single face with Java2D.
+	 * 
+	 * @param g2
+	 * @param scene
+	 * @param f
+	 */
+	private void paintFace(Graphics2D g2, Scene scene, Face f) {
+		if (isOccluded(f.entity)) {
+			occluded++;
+			return;
+		}
+		Point3D eye = scene.getCamera().getLocation();
+		Point3D p = f.getPoints()[0];
+		computeNormal(f.getPoints());
+		if (!wireframe && !isFacingCamera(p.x, p.y, p.z, eye)) {
+			culled++;
+			if (profiling)
+				lap(FrameStats.CULL);
+			return;
+		}
+		if (profiling)
+			lap(FrameStats.CULL);
+		int n = loadCorners(f, eye);
+		if (profiling)
+			lap(FrameStats.PROJECT);
+		if (n == 0) {
+			culled++;
+			return;
+		}
+		paintPolygon(g2, scene, n, p.x, p.y, p.z, Palette.get(f.material),
+				f.entity != null ? f.entity.getHighlight() : null);
+	}
+
+	/**
+	 * Draws a single triangle of an instanced entity with Java2D.
+	 * 
+	 * @param g2
+	 * @param scene
+	 * @param instance
+	 * @param t
+	 *            The triangle index in the instance's mesh.
+	 */
+	private void paintTriangle(Graphics2D g2, Scene scene,
+			InstancedEntity3D instance, int t) {
+		if (isOccluded(instance)) {
+			occluded++;
+			return;
+		}
+		Point3D eye = scene.getCamera().getLocation();
+		int v = computeTriangleNormal(instance, t);
+		if (!wireframe
+				&& !isFacingCamera(worldX[v], worldY[v], worldZ[v], eye)) {
+			culled++;
+			if (profiling)
+				lap(FrameStats.CULL);
+			return;
+		}
+		if (profiling)
+			lap(FrameStats.CULL);
+		int n = loadTriangle(instance, t);
+		if (profiling)
+			lap(FrameStats.PROJECT);
+		if (n == 0) {
+			culled++;
+			return;
+		}
+		paintPolygon(g2, scene, n, worldX[v], worldY[v], worldZ[v],
+				instance.getMaterial(), instance.getHighlight());
+	}
+
+	/**
+	 * Shades, fills and outlines the polygon in xPoints and yPoints, whose
+	 * normal is in nx, ny and nz.
+	 * 
+	 * @param g2
+	 * @param scene
+	 * @param n
+	 *            Number of corners.
+	 * @param px
+	 * @param py
+	 * @param pz
+	 *            A point on the polygon, for lighting.
+	 * @param material
+	 * @param highlight
+	 *            The owner's highlight, drawn instead of the border, or null.
+	 */
+	private void paintPolygon(Graphics2D g2, Scene scene, int n, double px,
+			double py, double pz, Material material, Color highlight) {
+		double diffuse = getDiffuse(px, py, pz, scene.getLight());
+		double ambientSensitivity = material.getAmbientSensitivity();
+		double diffuseSensitivity = material.getDiffuseSensitivity();
+		if (!wireframe) {
+			int argb = getShading(material.getColor(), ambientSensitivity,
+					diffuseSensitivity, scene.ambient, diffuse);
+			if (profiling)
+				lap(FrameStats.SHADE);
+			if (blendInFrame && argb >>> 24 < 255) {
+				antialiaser.blendPolygon(xPoints, yPoints, n, argb);
+			} else {
+				g2.setColor(colors.get(argb));
+				g2.fillPolygon(xPoints, yPoints, n);
+			}
+			if (profiling)
+				lap(FrameStats.FILL);
+		}
+		Color border = highlight != null ? highlight : material
+				.getBorderColor();
+		// Invisible borders still cost a pass through the compositing loops.
+		if (border.getAlpha() > 0) {
+			g2.setColor(colors.get(getShading(border, ambientSensitivity,
+					diffuseSensitivity, scene.ambient, diffuse)));
+			if (profiling)
+				lap(FrameStats.SHADE);
+			g2.drawPolygon(xPoints, yPoints, n);
+		}
+		drawn++;
+		if (profiling)
+			lap(FrameStats.FILL);
+	}
+
+	/**
+	 * Draws faces in whatever order they come into the software raster. Opaque
+	 * faces are depth tested; translucent ones go through weighted blended
+	 * order-independent transparency, so neither needs sorting and
+	 * intersecting translucent faces still blend correctly. Borders aren't
+	 * drawn in this mode.
+	 * 
+	 * @param g2
+	 * @param scene
+	 * @param width
+	 * @param height
+	 * @return The number of faces and triangles submitted.
+	 */
+	private int drawSoftware(Graphics2D g2, Scene scene, int width, int height) {
+		Point3D eye = scene.getCamera().getLocation();
+		Point3D light = scene.getLight();
+		ZBuffer buffer = scene.getBuffer();
+		ArrayList<Face> faces = buffer.getSortedFaces();
+		ArrayList<InstancedEntity3D> instances = buffer.getInstances();
+		if (raster == null)
+			raster = new Raster(width, height);
+		raster.resize(width, height);
+		raster.clear(0xFF000000);
+		translucentCount = 0;
+		int submitted = 0;
+
+		// Opaque faces first, so translucent fragments behind them can be
+		// thrown away.
+		int faceCount = faces.size();
+		for (int i = 0; i < faceCount; i++) {
+			if (i % BATCH_SIZE == 0 && isCancelled())
+				return submitted;
+			Face f = faces.get(i);
+			if (isOccluded(f.entity)) {
+				occluded++;
+				continue;
+			}
+			Point3D p = f.getPoints()[0];
+			computeNormal(f.getPoints());
+			if (!isFacingCamera(p.x, p.y, p.z, eye)) {
+				culled++;
+				if (profiling)
+					lap(FrameStats.CULL);
+				continue;
+			}
+			if (profiling)
+				lap(FrameStats.CULL);
+			int n = loadCorners(f, eye);
+			if (profiling)
+				lap(FrameStats.PROJECT);
+			if (n == 0) {
+				culled++;
+				continue;
+			}
+			Material m = Palette.get(f.material);
+			int argb = getShading(m.getColor(), m.getAmbientSensitivity(),
+					m.getDiffuseSensitivity(), scene.ambient,
+					getDiffuse(p.x, p.y, p.z, light));
+			rasterizeOrDefer(n, argb, i, -1);
+		}
+		submitted += faceCount;
+		for (int i = 0; i < instances.size(); i++) {
+			InstancedEntity3D instance = instances.get(i);
+			int triangles = instance.getMesh().getTriangleCount();
+			submitted += triangles;
+			if (isOccluded(instance)) {
+				occluded += triangles;
+				continue;
+			}
+			for (int t = 0; t < triangles; t++) {
+				if (t % BATCH_SIZE == 0 && isCancelled())
+					return submitted;
+				int v = computeTriangleNormal(instance, t);
+				if (!isFacingCamera(worldX[v], worldY[v], worldZ[v], eye)) {
+					culled++;
+					if (profiling)
+						lap(FrameStats.CULL);
+					continue;
 				}
-				faceShape.closePath();
-				if (!wireframe) {
-					g2.setPaint(getShading(f, scene));
-					g2.fill(faceShape);
+				if (profiling)
+					lap(FrameStats.CULL);
+				int n = loadTriangle(instance, t);
+				if (profiling)
+					lap(FrameStats.PROJECT);
+				if (n == 0) {
+					culled++;
+					continue;
 				}
-				g2.setPaint(getBorderShading(f, scene));
-				g2.draw(faceShape);
+				Material m = instance.getMaterial();
+				int argb = getShading(m.getColor(), m.getAmbientSensitivity(),
+						m.getDiffuseSensitivity(), scene.ambient,
+						getDiffuse(worldX[v], worldY[v], worldZ[v], light));
+				rasterizeOrDefer(n, argb, i, t);
 			}
-			Point2D light = convertToScreenCoordinates(scene.getLight(), camera);
-			Ellipse2D.Double lightIcon = new Ellipse2D.Double(light.getX(),
-					light.getY(), 3, 3);
-			g2.setColor(Color.YELLOW);
-			g2.fill(lightIcon);
 		}
-		// Bring it back to normal, and flip the axes
-		g2.scale(1.0 / scalefactor, -1.0 / scalefactor);
+
+		if (translucentCount > 0) {
+			raster.beginTransparency(nearDepth, farDepth);
+			for (int i = 0; i < translucentCount; i++) {
+				if (i % BATCH_SIZE == 0 && isCancelled())
+					return submitted;
+				int n;
+				if (translucentTriangle[i] < 0) {
+					n = loadCorners(faces.get(translucentOwner[i]), eye);
+				} else {
+					n = loadTriangle(instances.get(translucentOwner[i]),
+							translucentTriangle[i]);
+				}
+				if (profiling)
+					lap(FrameStats.PROJECT);
+				fillPolygon(n, translucentColor[i], true);
+				drawn++;
+				if (profiling)
+					lap(FrameStats.FILL);
+			}
+			raster.resolveTransparency();
+		}
+		g2.drawImage(raster.getImage(), 0, 0, null);
+		if (profiling)
+			lap(FrameStats.FILL);
+		return submitted;
+	}
+
+	/**
+	 * Draws the distinct edges of every entity into the software raster, in
+	 * whatever order they come. Lines don't hide each other, so nothing is
+	 * sorted, culled or depth tested, and an edge shared by two faces is only
+	 * drawn once. Lines have no normal of their own to light them by, so
+	 * they're shaded as if lit straight on.
+	 * 
+	 * @param g2
+	 * @param scene
+	 * @param width
+	 * @param height
+	 * @return The number of faces and triangles submitted.
+	 */
+	private int drawWireframe(Graphics2D g2, Scene scene, int width,
+			int height) {
+		Point3D eye = scene.getCamera().getLocation();
+		ZBuffer buffer = scene.getBuffer();
+		ArrayList<Entity3D> entities = scene.getEntities();
+		ArrayList<InstancedEntity3D> instances = buffer.getInstances();
+		if (raster == null)
+			raster = new Raster(width, height);
+		raster.resize(width, height);
+		raster.clear(0xFF000000);
+		int submitted = 0;
+
+		for (int i = 0; i < entities.size(); i++) {
+			Entity3D e = entities.get(i);
+			if (e instanceof InstancedEntity3D)
+				continue;
+			ArrayList<Face> faces = e.getFaces();
+			int[] edges = e.edges();
+			int[] owners = e.edgeOwners();
+			int base = e.vertexBase;
+			Color highlight = e.getHighlight();
+			int material = -1;
+			int argb = 0;
+			for (int j = 0; j < edges.length; j += 2) {
+				if (j % BATCH_SIZE == 0 && isCancelled())
+					return submitted;
+				// Neighboring edges nearly always share a material.
+				Face f = faces.get(owners[j / 2]);
+				if (f.material != material) {
+					material = f.material;
+					argb = getLineColor(scene, Palette.get(material),
+							highlight);
+				}
+				drawEdge(base + edges[j], base + edges[j + 1], argb);
+			}
+			ArrayList<Face> unindexed = e.unindexedFaces();
+			for (int j = 0; j < unindexed.size(); j++) {
+				Face f = unindexed.get(j);
+				drawOutline(loadCorners(f, eye), getLineColor(scene,
+						Palette.get(f.material), highlight));
+			}
+			submitted += faces.size();
+		}
+		for (int i = 0; i < instances.size(); i++) {
+			InstancedEntity3D instance = instances.get(i);
+			Mesh mesh = instance.getMesh();
+			int[] edges = mesh.edges();
+			int base = instance.vertexBase;
+			int argb = getLineColor(scene, instance.getMaterial(),
+					instance.getHighlight());
+			for (int j = 0; j < edges.length; j += 2) {
+				if (j % BATCH_SIZE == 0 && isCancelled())
+					return submitted;
+				drawEdge(base + edges[j], base + edges[j + 1], argb);
+			}
+			submitted += mesh.getTriangleCount();
+		}
+		if (profiling)
+			lap(FrameStats.FILL);
+		g2.drawImage(raster.getImage(), 0, 0, null);
+		return submitted;
+	}
+
+	/**
+	 * Draws every pointStride'th vertex of every entity as a dot in the
+	 * software raster, projecting each as it goes. Dots are depth tested
+	 * against each other, so nearer ones win whatever order they come in.
+	 * 
+	 * @param g2
+	 * @param scene
+	 * @param width
+	 * @param height
+	 * @return The number of points submitted.
+	 */
+	private int drawPoints(Graphics2D g2, Scene scene, int width, int height) {
+		Point3D eye = scene.getCamera().getLocation();
+		ArrayList<Entity3D> entities = scene.getEntities();
+		if (raster == null)
+			raster = new Raster(width, height);
+		raster.resize(width, height);
+		raster.clear(0xFF000000);
+		int size = Math.max(1, (int) Math.round(pointSize * pixelScale));
+		int stride = pointStride;
+		int submitted = 0;
+		for (int i = 0; i < entities.size(); i++) {
+			Entity3D e = entities.get(i);
+			if (e instanceof InstancedEntity3D) {
+				submitted = drawInstancePoints((InstancedEntity3D) e, eye,
+						size, submitted);
+				if (cancelled)
+					return submitted;
+				continue;
+			}
+			ArrayList<Face> faces = e.getFaces();
+			int argb = getPointColor(faces.isEmpty() ? Material.DEFAULT
+					: faces.get(0).getMaterial(), e.getHighlight());
+			ArrayList<Point3D> points = e.getPoints();
+			int n = points.size();
+			for (int j = 0; j < n; j += stride) {
+				if (submitted++ % POINT_BATCH_SIZE == 0 && isCancelled())
+					return submitted;
+				Point3D p = points.get(j);
+				drawPoint(p.x, p.y, p.z, eye, size, argb);
+			}
+		}
+		if (profiling)
+			lap(FrameStats.FILL);
+		g2.drawImage(raster.getImage(), 0, 0, null);
+		return submitted;
+	}
+
+	/**
+	 * Moves an instance's vertices into the scene and draws them as dots,
+	 * reading them from wherever its mesh keeps them.
+	 * 
+	 * @param instance
+	 * @param eye
+	 *            The camera location.
+	 * @param size
+	 *            Width of each dot in frame pixels.
+	 * @param submitted
+	 *            Points submitted so far this frame.
+	 * @return Points submitted, including this instance's.
+	 */
+	private int drawInstancePoints(InstancedEntity3D instance, Point3D eye,
+			int size, int submitted) {
+		Mesh mesh = instance.getMesh();
+		double[] m = instance.matrix;
+		double m0 = m[0], m1 = m[1], m2 = m[2], m3 = m[3];
+		double m4 = m[4], m5 = m[5], m6 = m[6], m7 = m[7];
+		double m8 = m[8], m9 = m[9], m10 = m[10], m11 = m[11];
+		double[] q = mesh.quantization();
+		if (q != null) {
+			// Fold the dequantization into the transform, as
+			// projectCompressed does.
+			m0 = m[0] * q[3];
+			m1 = m[1] * q[4];
+			m2 = m[2] * q[5];
+			m4 = m[4] * q[3];
+			m5 = m[5] * q[4];
+			m6 = m[6] * q[5];
+			m8 = m[8] * q[3];
+			m9 = m[9] * q[4];
+			m10 = m[10] * q[5];
+			m3 = m[0] * q[0] + m[1] * q[1] + m[2] * q[2] + m[3];
+			m7 = m[4] * q[0] + m[5] * q[1] + m[6] * q[2] + m[7];
+			m11 = m[8] * q[0] + m[9] * q[1] + m[10] * q[2] + m[11];
+		}
+		int argb = getPointColor(instance.getMaterial(),
+				instance.getHighlight());
+		int stride = pointStride;
+		int n = mesh.getVertexCount();
+		double[] vertices = mesh.vertices();
+		short[] quantized = mesh.quantized();
+		ByteBuffer offHeap = mesh.isOffHeap() ? mesh.offHeapData() : null;
+		for (int j = 0; j < n; j += stride) {
+			if (submitted++ % POINT_BATCH_SIZE == 0 && isCancelled())
+				return submitted;
+			double x, y, z;
+			if (vertices != null) {
+				x = vertices[3 * j];
+				y = vertices[3 * j + 1];
+				z = vertices[3 * j + 2];
+			} else if (quantized != null) {
+				x = quantized[3 * j];
+				y = quantized[3 * j + 1];
+				z = quantized[3 * j + 2];
+			} else {
+				x = offHeap.getDouble(24 * j);
+				y = offHeap.getDouble(24 * j + 8);
+				z = offHeap.getDouble(24 * j + 16);
+			}
+			drawPoint(m0 * x + m1 * y + m2 * z + m3, m4 * x + m5 * y + m6 * z
+					+ m7, m8 * x + m9 * y + m10 * z + m11, eye, size, argb);
+		}
+		return submitted;
+	}
+
+	/**
+	 * Projects a point and draws it as a dot into the raster, unless it's
+	 * behind the camera.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 *            The point in the scene.
+	 * @param eye
+	 *            The camera location.
+	 * @param size
+	 *            Width of the dot in frame pixels.
+	 * @param argb
+	 */
+	private void drawPoint(double x, double y, double z, Point3D eye,
+			int size, int argb) {
+		double conversionRatio = scalefactor;
+		float depth;
+		if (orthogonal) {
+			depth = (float) z;
+		} else {
+			double distance = eye.z - z;
+			if (distance <= 0) {
+				culled++;
+				return;
+			}
+			conversionRatio *= eye.z / distance;
+			depth = (float) (1.0 / distance);
+		}
+		raster.fillSquare(originX + toPixel(conversionRatio * x), originY
+				- toPixel(conversionRatio * y), depth, size, argb);
+		drawn++;
+	}
+
+	/**
+	 * Works out the color to draw the points of a material in: its own color,
+	 * unlit and opaque, or the highlight.
+	 * 
+	 * @param material
+	 * @param highlight
+	 *            The owner's highlight, or null.
+	 * @return
+	 */
+	private int getPointColor(Material material, Color highlight) {
+		Color c = highlight != null ? highlight : material.getColor();
+		return c.getRGB() | 0xFF000000;
+	}
+
+	/**
+	 * Works out the color to draw the edges of a material in.
+	 * 
+	 * @param scene
+	 * @param material
+	 * @param highlight
+	 *            The owner's highlight, drawn instead of the border, or null.
+	 * @return The shaded color, as ARGB.
+	 */
+	private int getLineColor(Scene scene, Material material, Color highlight) {
+		return getShading(highlight != null ? highlight : material
+				.getBorderColor(), material.getAmbientSensitivity(), material
+				.getDiffuseSensitivity(), scene.ambient, 1);
+	}
+
+	/**
+	 * Draws a line between two projected vertices into the raster.
+	 * 
+	 * @param a
+	 * @param b
+	 *            The vertices' places in screenX and screenY.
+	 * @param argb
+	 */
+	private void drawEdge(int a, int b, int argb) {
+		// Invisible borders stay invisible, as they do on filled faces.
+		if (argb >>> 24 == 0)
+			return;
+		if (!orthogonal && (screenDepth[a] <= 0 || screenDepth[b] <= 0)) {
+			culled++;
+			return;
+		}
+		raster.drawLine(screenX[a], screenY[a], screenX[b], screenY[b], argb);
+		drawn++;
+	}
+
+	/**
+	 * Draws the outline of the polygon in xPoints and yPoints into the
+	 * raster.
+	 * 
+	 * @param n
+	 *            Number of corners, or 0 to draw nothing.
+	 * @param argb
+	 */
+	private void drawOutline(int n, int argb) {
+		if (argb >>> 24 == 0)
+			return;
+		if (n == 0) {
+			culled++;
+			return;
+		}
+		for (int j = 0; j < n; j++) {
+			int k = (j + 1) % n;
+			raster.drawLine(xPoints[j], yPoints[j], xPoints[k], yPoints[k],
+					argb);
+		}
+		drawn++;
+	}
+
+	/**
+	 * Fills an opaque polygon into the raster right away, or remembers a
+	 * translucent one for the transparency pass.
+	 * 
+	 * @param n
+	 *            Number of corners in xPoints, yPoints and zPoints.
+	 * @param argb
+	 *            Shaded color.
+	 * @param owner
+	 *            Index of the face, or of the instance.
+	 * @param triangle
+	 *            Triangle index in the instance's mesh, or -1 for a face.
+	 */
+	private void rasterizeOrDefer(int n, int argb, int owner, int triangle) {
+		if (profiling)
+			lap(FrameStats.SHADE);
+		int alpha = argb >>> 24;
+		if (alpha == 0)
+			return;
+		if (alpha < 255) {
+			if (translucentColor.length == translucentCount) {
+				int size = Math.max(16, translucentCount * 2);
+				translucentOwner = Arrays.copyOf(translucentOwner, size);
+				translucentTriangle = Arrays.copyOf(translucentTriangle, size);
+				translucentColor = Arrays.copyOf(translucentColor, size);
+			}
+			translucentOwner[translucentCount] = owner;
+			translucentTriangle[translucentCount] = triangle;
+			translucentColor[translucentCount] = argb;
+			translucentCount++;
+			return;
+		}
+		fillPolygon(n, argb, false);
+		drawn++;
+		if (profiling)
+			lap(FrameStats.FILL);
+	}
+
+	/**
+	 * Fills the polygon in xPoints, yPoints and zPoints into the software
+	 * raster as a fan of triangles.
+	 * 
+	 * @param n
+	 *            Number of corners.
+	 * @param argb
+	 * @param blend
+	 *            True to add it to the transparency buffers.
+	 */
+	private void fillPolygon(int n, int argb, boolean blend) {
+		for (int j = 1; j < n - 1; j++) {
+			if (blend) {
+				raster.blendTriangle(xPoints[0], yPoints[0], zPoints[0],
+						xPoints[j], yPoints[j], zPoints[j], xPoints[j + 1],
+						yPoints[j + 1], zPoints[j + 1], argb);
+			} else {
+				raster.fillTriangle(xPoints[0], yPoints[0], zPoints[0],
+						xPoints[j], yPoints[j], zPoints[j], xPoints[j + 1],
+						yPoints[j + 1], zPoints[j + 1], argb);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether an entity was found to be hidden this frame.
+	 * 
+	 * @param e
+	 * @return
+	 */
+	private boolean isOccluded(Entity3D e) {
+		return occlusionCulling && !wireframe && e != null && e.occluded;
+	}
+
+	/**
+	 * Works out which entities are hidden this frame. The bounds of every
+	 * entity are projected, the opaque front faces of the big ones go into the
+	 * depth pyramid, and then each entity is checked against the pyramid.
+	 * Occluders are only taken from entities which were visible last frame:
+	 * anything hidden then is probably still behind something which is in the
+	 * pyramid anyway.
+	 * 
+	 * Only the entities the scene's index finds in view have their bounds
+	 * projected; the rest are off the screen without looking at them.
+	 * 
+	 * @param scene
+	 * @param eye
+	 *            The camera location.
+	 * @param width
+	 * @param height
+	 */
+	private void cullOccluded(Scene scene, Point3D eye, int width, int height) {
+		ArrayList<Entity3D> entities = scene.getEntities();
+		int count = entities.size();
+		if (boundsState.length < count) {
+			boundsState = new int[count];
+			boundsMinX = new int[count];
+			boundsMinY = new int[count];
+			boundsMaxX = new int[count];
+			boundsMaxY = new int[count];
+			boundsNearest = new float[count];
+		}
+		if (pyramid == null)
+			pyramid = new DepthPyramid();
+		pyramid.resize(width, height);
+		pyramid.clear();
+		// Widen the frustum by the margin projectBounds leaves for borders.
+		int margin = getBoundsMargin();
+		inFrustum.clear();
+		scene.getIndex().findInFrustum(Frustum.fromView(scene.getCamera(),
+				width + 2 * margin, height + 2 * margin, scalefactor,
+				orthogonal), inFrustum);
+		for (int i = 0; i < inFrustum.size(); i++) {
+			inFrustum.get(i).inFrustum = true;
+		}
+		for (int i = 0; i < count; i++) {
+			Entity3D e = entities.get(i);
+			if (e.inFrustum) {
+				e.inFrustum = false;
+				projectBounds(e.getBounds(), eye, i, width, height);
+			} else {
+				boundsState[i] = OFF_SCREEN;
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			Entity3D e = entities.get(i);
+			if (boundsState[i] == ON_SCREEN && !e.occluded
+					&& boundsMaxX[i] - boundsMinX[i] >= OCCLUDER_SIZE
+					&& boundsMaxY[i] - boundsMinY[i] >= OCCLUDER_SIZE)
+				addOccluder(e, eye);
+		}
+		pyramid.build();
+		for (int i = 0; i < count; i++) {
+			int state = boundsState[i];
+			entities.get(i).occluded = state == OFF_SCREEN
+					|| (state == ON_SCREEN && pyramid.isHidden(boundsMinX[i],
+							boundsMinY[i], boundsMaxX[i], boundsMaxY[i],
+							boundsNearest[i]));
+		}
+	}
+
+	/**
+	 * Projects the corners of an entity's bounds into boundsMinX, boundsMinY,
+	 * boundsMaxX and boundsMaxY, widened by the border stroke, and the depth
+	 * of its nearest side into boundsNearest.
+	 * 
+	 * @param b
+	 * @param eye
+	 *            The camera location.
+	 * @param i
+	 *            The entity's index.
+	 * @param width
+	 * @param height
+	 */
+	private void projectBounds(BoundingBox b, Point3D eye, int i, int width,
+			int height) {
+		if (b.isEmpty()) {
+			boundsState[i] = OFF_SCREEN;
+			return;
+		}
+		if (!orthogonal && b.maxZ >= eye.z) {
+			boundsState[i] = AT_CAMERA;
+			return;
+		}
+		double minX = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		for (int corner = 0; corner < 8; corner++) {
+			double x = (corner & 1) == 0 ? b.minX : b.maxX;
+			double y = (corner & 2) == 0 ? b.minY : b.maxY;
+			double z = (corner & 4) == 0 ? b.minZ : b.maxZ;
+			double ratio = orthogonal ? 1 : eye.z / (eye.z - z);
+			ratio *= scalefactor;
+			minX = Math.min(minX, ratio * x);
+			maxX = Math.max(maxX, ratio * x);
+			minY = Math.min(minY, -ratio * y);
+			maxY = Math.max(maxY, -ratio * y);
+		}
+		int margin = getBoundsMargin();
+		boundsMinX[i] = originX + toPixel(Math.floor(minX)) - margin;
+		boundsMaxX[i] = originX + toPixel(Math.ceil(maxX)) + margin;
+		boundsMinY[i] = originY + toPixel(Math.floor(minY)) - margin;
+		boundsMaxY[i] = originY + toPixel(Math.ceil(maxY)) + margin;
+		if (boundsMaxX[i] < 0 || boundsMinX[i] >= width || boundsMaxY[i] < 0
+				|| boundsMinY[i] >= height) {
+			boundsState[i] = OFF_SCREEN;
+			return;
+		}
+		boundsState[i] = ON_SCREEN;
+		// Leave room for rounding, so an entity is never hidden by its own
+		// front faces.
+		float nearest = getDepth(b.maxZ, eye);
+		boundsNearest[i] = nearest + Math.abs(nearest) * 1e-5f;
+	}
+
+	/**
+	 * Gets how many pixels past its projected bounds an entity can draw.
+	 * Borders are drawn half their width outside the faces, and antialiasing
+	 * bleeds another pixel.
+	 * 
+	 * @return
+	 */
+	private int getBoundsMargin() {
+		return (int) Math.ceil(.25 * scalefactor) + 2;
+	}
+
+	/**
+	 * Draws the opaque faces of an entity which face the camera into the
+	 * depth pyramid.
+	 * 
+	 * @param e
+	 * @param eye
+	 *            The camera location.
+	 */
+	private void addOccluder(Entity3D e, Point3D eye) {
+		if (e instanceof InstancedEntity3D) {
+			InstancedEntity3D instance = (InstancedEntity3D) e;
+			if (instance.getMaterial().isTranslucent())
+				return;
+			int triangles = instance.getMesh().getTriangleCount();
+			for (int t = 0; t < triangles; t++) {
+				int v = computeTriangleNormal(instance, t);
+				if (!isFacingCamera(worldX[v], worldY[v], worldZ[v], eye))
+					continue;
+				int n = loadTriangle(instance, t);
+				if (n > 0)
+					pyramid.addOccluder(xPoints, yPoints, zPoints, n);
+			}
+			return;
+		}
+		ArrayList<Face> faces = e.getFaces();
+		for (int i = 0; i < faces.size(); i++) {
+			Face f = faces.get(i);
+			if (Palette.get(f.material).isTranslucent())
+				continue;
+			Point3D p = f.getPoints()[0];
+			computeNormal(f.getPoints());
+			if (!isFacingCamera(p.x, p.y, p.z, eye))
+				continue;
+			int n = loadCorners(f, eye);
+			if (n > 0)
+				pyramid.addOccluder(xPoints, yPoints, zPoints, n);
+		}
+	}
+
+	/**
+	 * Checks whether the face whose normal is in nx, ny and nz can be seen.
+	 * 
+	 * @param px
+	 * @param py
+	 * @param pz
+	 *            A point on the face.
+	 * @param eye
+	 *            The camera location.
+	 * @return
+	 */
+	private boolean isFacingCamera(double px, double py, double pz,
+			Point3D eye) {
+		// If we're in orthogonal mode, we don't paint faces
+		// pointing away from us.
+		if (orthogonal && nz <= 0)
+			return false;
+		/*
+		 * Otherwise, if the face isn't visible the cosine of the angle between
+		 * the normal and a vector to our camera will be less than 0: cos(90) ==
+		 * 0 && cos(270) == 0. Any angle which 90 < x < 270 is pointing away
+		 * from us.
+		 */
+		return nx * (eye.x - px) + ny * (eye.y - py) + nz * (eye.z - pz) > 0;
+	}
+
+	/**
+	 * Copies the screen coordinates and depth of a face's corners into
+	 * xPoints, yPoints and zPoints.
+	 * 
+	 * @param f
+	 * @param eye
+	 *            The camera location.
+	 * @return The number of corners, or 0 if part of the face is behind the
+	 *         camera.
+	 */
+	private int loadCorners(Face f, Point3D eye) {
+		Point3D[] points = f.getPoints();
+		int n = points.length;
+		if (xPoints.length < n) {
+			xPoints = new int[n];
+			yPoints = new int[n];
+			zPoints = new float[n];
+		}
+		int[] indices = f.indices;
+		if (indices != null) {
+			int base = f.entity.vertexBase;
+			for (int j = 0; j < n; j++) {
+				int v = base + indices[j];
+				xPoints[j] = screenX[v];
+				yPoints[j] = screenY[v];
+				zPoints[j] = screenDepth[v];
+			}
+		} else {
+			for (int j = 0; j < n; j++) {
+				Point3D p = points[j];
+				convertToScreenCoordinates(p.x, p.y, p.z, eye, xPoints,
+						yPoints, j);
+				zPoints[j] = getDepth(p.z, eye);
+			}
+		}
+		return checkInFront(n);
+	}
+
+	/**
+	 * Copies the screen coordinates and depth of an instanced triangle's
+	 * corners into xPoints, yPoints and zPoints.
+	 * 
+	 * @param instance
+	 * @param t
+	 *            Triangle index in the instance's mesh.
+	 * @return 3, or 0 if part of the triangle is behind the camera.
+	 */
+	private int loadTriangle(InstancedEntity3D instance, int t) {
+		readCorners(instance, t);
+		int base = instance.vertexBase;
+		for (int j = 0; j < 3; j++) {
+			int v = base + corners[j];
+			xPoints[j] = screenX[v];
+			yPoints[j] = screenY[v];
+			zPoints[j] = screenDepth[v];
+		}
+		return checkInFront(3);
+	}
+
+	/**
+	 * Checks that all n corners in zPoints are in front of the camera.
+	 * 
+	 * @param n
+	 * @return n if they are, otherwise 0.
+	 */
+	private int checkInFront(int n) {
+		if (!orthogonal) {
+			for (int j = 0; j < n; j++) {
+				if (zPoints[j] <= 0)
+					return 0;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Charges the time since the last lap to a stage.
+	 * 
+	 * @param stage
+	 */
+	private void lap(int stage) {
+		long now = System.nanoTime();
+		stats.addTime(stage, now - lapStart);
+		lapStart = now;
+	}
+
+	/**
+	 * Projects every point of every entity once, into screenX and screenY.
+	 * Each entity's points start at its vertexBase, so faces can look up their
+	 * corners by index rather than projecting shared points over and over.
+	 * Instanced meshes are also moved into the scene here, into worldX, worldY
+	 * and worldZ.
+	 * 
+	 * @param entities
+	 * @param instances
+	 * @param eye
+	 *            The camera location.
+	 */
+	private void projectVertices(ArrayList<Entity3D> entities,
+			ArrayList<InstancedEntity3D> instances, Point3D eye) {
+		int total = 0;
+		for (int i = 0; i < entities.size(); i++) {
+			total += entities.get(i).getPoints().size();
+		}
+		for (int i = 0; i < instances.size(); i++) {
+			total += instances.get(i).getMesh().getVertexCount();
+		}
+		if (screenX.length < total) {
+			screenX = new int[total];
+			screenY = new int[total];
+			screenDepth = new float[total];
+		}
+		float near = Float.NEGATIVE_INFINITY;
+		float far = Float.POSITIVE_INFINITY;
+		int base = 0;
+		for (int i = 0; i < entities.size(); i++) {
+			Entity3D e = entities.get(i);
+			e.indexFaces();
+			e.vertexBase = base;
+			ArrayList<Point3D> points = e.getPoints();
+			int n = points.size();
+			for (int j = 0; j < n; j++) {
+				Point3D p = points.get(j);
+				convertToScreenCoordinates(p.x, p.y, p.z, eye, screenX,
+						screenY, base + j);
+				float depth = getDepth(p.z, eye);
+				screenDepth[base + j] = depth;
+				near = Math.max(near, depth);
+				far = Math.min(far, depth);
+			}
+			base += n;
+		}
+		if (worldX.length < total) {
+			worldX = new double[total];
+			worldY = new double[total];
+			worldZ = new double[total];
+		}
+		normalOwner = null;
+		cornerOwner = null;
+		cornerMesh = null;
+		for (int i = 0; i < instances.size(); i++) {
+			InstancedEntity3D instance = instances.get(i);
+			instance.vertexBase = base;
+			Mesh mesh = instance.getMesh();
+			if (mesh.isCompressed()) {
+				projectCompressed(instance, eye, base);
+				int n = mesh.getVertexCount();
+				for (int j = base; j < base + n; j++) {
+					near = Math.max(near, screenDepth[j]);
+					far = Math.min(far, screenDepth[j]);
+				}
+				base += n;
+				continue;
+			}
+			if (mesh.isOffHeap()) {
+				projectOffHeap(instance, eye, base);
+				int n = mesh.getVertexCount();
+				for (int j = base; j < base + n; j++) {
+					near = Math.max(near, screenDepth[j]);
+					far = Math.min(far, screenDepth[j]);
+				}
+				base += n;
+				continue;
+			}
+			double[] m = instance.matrix;
+			double[] vertices = mesh.vertices();
+			int n = vertices.length / 3;
+			for (int j = 0; j < n; j++) {
+				double x = vertices[3 * j];
+				double y = vertices[3 * j + 1];
+				double z = vertices[3 * j + 2];
+				int v = base + j;
+				worldX[v] = m[0] * x + m[1] * y + m[2] * z + m[3];
+				worldY[v] = m[4] * x + m[5] * y + m[6] * z + m[7];
+				worldZ[v] = m[8] * x + m[9] * y + m[10] * z + m[11];
+				convertToScreenCoordinates(worldX[v], worldY[v], worldZ[v],
+						eye, screenX, screenY, v);
+				float depth = getDepth(worldZ[v], eye);
+				screenDepth[v] = depth;
+				near = Math.max(near, depth);
+				far = Math.min(far, depth);
+			}
+			base += n;
+		}
+		nearDepth = near;
+		farDepth = far;
+	}
+
+	/**
+	 * Moves a compressed instance's vertices into the scene and projects them,
+	 * like the loop in projectVertices. The quantized coordinates are
+	 * dequantized by folding the grid into the instance transform, so it costs
+	 * no more than a full precision mesh.
+	 * 
+	 * @param instance
+	 * @param eye
+	 * @param base
+	 *            Where the instance's vertices go in the frame buffers.
+	 */
+	private void projectCompressed(InstancedEntity3D instance, Point3D eye,
+			int base) {
+		double[] m = instance.matrix;
+		short[] vertices = instance.getMesh().quantized();
+		double[] q = instance.getMesh().quantization();
+		double m0 = m[0] * q[3], m1 = m[1] * q[4], m2 = m[2] * q[5];
+		double m4 = m[4] * q[3], m5 = m[5] * q[4], m6 = m[6] * q[5];
+		double m8 = m[8] * q[3], m9 = m[9] * q[4], m10 = m[10] * q[5];
+		double m3 = m[0] * q[0] + m[1] * q[1] + m[2] * q[2] + m[3];
+		double m7 = m[4] * q[0] + m[5] * q[1] + m[6] * q[2] + m[7];
+		double m11 = m[8] * q[0] + m[9] * q[1] + m[10] * q[2] + m[11];
+		int n = vertices.length / 3;
+		for (int j = 0; j < n; j++) {
+			double x = vertices[3 * j];
+			double y = vertices[3 * j + 1];
+			double z = vertices[3 * j + 2];
+			int v = base + j;
+			worldX[v] = m0 * x + m1 * y + m2 * z + m3;
+			worldY[v] = m4 * x + m5 * y + m6 * z + m7;
+			worldZ[v] = m8 * x + m9 * y + m10 * z + m11;
+			convertToScreenCoordinates(worldX[v], worldY[v], worldZ[v], eye,
+					screenX, screenY, v);
+			screenDepth[v] = getDepth(worldZ[v], eye);
+		}
+	}
+
+	/**
+	 * Moves an off heap instance's vertices into the scene and projects them,
+	 * like the loop in projectVertices, reading them straight from the mesh's
+	 * memory.
+	 * 
+	 * @param instance
+	 * @param eye
+	 * @param base
+	 *            Where the instance's vertices go in the frame buffers.
+	 */
+	private void projectOffHeap(InstancedEntity3D instance, Point3D eye,
+			int base) {
+		double[] m = instance.matrix;
+		ByteBuffer vertices = instance.getMesh().offHeapData();
+		int n = instance.getMesh().getVertexCount();
+		for (int j = 0; j < n; j++) {
+			double x = vertices.getDouble(24 * j);
+			double y = vertices.getDouble(24 * j + 8);
+			double z = vertices.getDouble(24 * j + 16);
+			int v = base + j;
+			worldX[v] = m[0] * x + m[1] * y + m[2] * z + m[3];
+			worldY[v] = m[4] * x + m[5] * y + m[6] * z + m[7];
+			worldZ[v] = m[8] * x + m[9] * y + m[10] * z + m[11];
+			convertToScreenCoordinates(worldX[v], worldY[v], worldZ[v], eye,
+					screenX, screenY, v);
+			screenDepth[v] = getDepth(worldZ[v], eye);
+		}
+	}
+
+	/**
+	 * Gets the depth of a point for the software raster's depth buffer. It
+	 * grows towards the camera, and interpolates linearly across the screen:
+	 * the reciprocal of the distance in perspective, plain z when orthogonal.
+	 * In perspective, points at or behind the camera come out 0 or negative.
+	 * 
+	 * @param z
+	 *            The point's z coordinate.
+	 * @param eye
+	 *            The camera location.
+	 * @return
+	 */
+	private float getDepth(double z, Point3D eye) {
+		if (orthogonal)
+			return (float) z;
+		return (float) (1.0 / (eye.z - z));
 	}
 
 	/**
 	 * Converts a world-coordinate to a perspective screen coordinate for
-	 * rendering.
+	 * rendering, and stores it in the given coordinate arrays.
 	 * 
-	 * @param p
+	 * @param x
+	 * @param y
+	 * @param z
 	 *            The point to convert.
-	 * @return The new screen coordinate.
+	 * @param eye
+	 *            The camera location.
+	 * @param xs
+	 * @param ys
+	 * @param index
+	 *            Where to put the result in xs and ys.
 	 */
-	private Point2D convertToScreenCoordinates(Point3D p, Camera camera) {
-		double xScreen = 0;
-		double yScreen = 0;
+	private void convertToScreenCoordinates(double x, double y, double z,
+			Point3D eye, int[] xs, int[] ys, int index) {
 		// If we're in perspective, we want to have a perspective transform
 		// here. Otherwise, we just ignore it and go straight from world x,y
 		// coordinates.
-		double conversionRatio = orthogonal ? 1 : camera.getLocation().z
-				/ (camera.getLocation().z - p.z);
-		xScreen = conversionRatio * p.x;
-		yScreen = conversionRatio * p.y;
+		double conversionRatio = orthogonal ? 1 : eye.z / (eye.z - z);
+		conversionRatio *= scalefactor;
+		xs[index] = originX + toPixel(conversionRatio * x);
+		ys[index] = originY - toPixel(conversionRatio * y);
+	}
 
-		return new Point2D.Double(xScreen, yScreen);
+	/**
+	 * Rounds a projected distance from the origin to whole pixels, clamped to
+	 * SCREEN_LIMIT.
+	 * 
+	 * @param v
+	 * @return
+	 */
+	static int toPixel(double v) {
+		if (v > SCREEN_LIMIT)
+			return SCREEN_LIMIT;
+		if (v < -SCREEN_LIMIT)
+			return -SCREEN_LIMIT;
+		return (int) Math.round(v);
 	}
 
 	/**
-	 * Calculates the color of a face with both ambient and diffuse shading.
+	 * Calculates the unit normal of a face into nx, ny and nz. Same result as
+	 * Utils3D.normal, without the intermediate vectors.
 	 * 
-	 * @param f
-	 *            The face.
-	 * @return The color of the face.
-	 */
-	private Color getShading(Face f, Scene scene) {
-		Color faceColor = f.getColor();
-		int r = faceColor.getRed();
-		int g = faceColor.getGreen();
-		int b = faceColor.getBlue();
-		int a = faceColor.getAlpha();
-		Vector3D normal = Utils3D.normal(f);
-		Vector3D light = new Vector3D(f.getPoints()[0], scene.getLight())
-				.toUnitVector();
-		// Diffuse lighting is calculated by getting the cosine
-		// between the normal and the vector to the light source
-		double diffuse = Utils3D.dotProduct(normal, light);
-		if (diffuse < 0)
-			diffuse = 0;
-		r = (int) ((scene.ambient * r * f.ambientSensitivity) + (diffuse * r * f.diffuseSensitivity));
-		g = (int) ((scene.ambient * g * f.ambientSensitivity) + (diffuse * g * f.diffuseSensitivity));
-		b = (int) ((scene.ambient * b * f.ambientSensitivity) + (diffuse * b * f.diffuseSensitivity));
-		// Let's catch values that are too large to use.
-		r = r > 255 ? 255 : r;
-		g = g > 255 ? 255 : g;
-		b = b > 255 ? 255 : b;
-		return new Color(r, g, b, a);
+	 * @param points
+	 *            The face's points, counter-clockwise around the normal.
+	 */
+	private void computeNormal(Point3D[] points) {
+		Point3D p0 = points[0];
+		Point3D p1 = points[1];
+		Point3D p2 = points[2];
+		computeNormal(p0.x, p0.y, p0.z, p1.x, p1.y, p1.z, p2.x, p2.y, p2.z);
 	}
 
 	/**
-	 * Calculates the border color of a face with diffuse shading.
+	 * Calculates the unit normal of an instanced triangle into nx, ny and nz.
 	 * 
-	 * @param f
-	 *            The face.
-	 * @return The color of the face.s
-	 */
-	private Color getBorderShading(Face f, Scene scene) {
-		Color borderColor = f.getBorderColor();
-		int r = borderColor.getRed();
-		int g = borderColor.getGreen();
-		int b = borderColor.getBlue();
-		int a = borderColor.getAlpha();
-		Vector3D normal = Utils3D.normal(f);
-		Vector3D light = new Vector3D(f.getPoints()[0], scene.getLight())
-				.toUnitVector();
+	 * @param instance
+	 * @param t
+	 *            Triangle index in the instance's mesh.
+	 * @return The index of the triangle's first vertex in worldX, worldY and
+	 *         worldZ.
+	 */
+	private int computeTriangleNormal(InstancedEntity3D instance, int t) {
+		readCorners(instance, t);
+		int base = instance.vertexBase;
+		int v0 = base + corners[0];
+		Mesh mesh = instance.getMesh();
+		if (mesh.isCompressed()) {
+			computeStoredNormal(instance, mesh.normals()[t]);
+			return v0;
+		}
+		int v1 = base + corners[1];
+		int v2 = base + corners[2];
+		computeNormal(worldX[v0], worldY[v0], worldZ[v0], worldX[v1],
+				worldY[v1], worldZ[v1], worldX[v2], worldY[v2], worldZ[v2]);
+		return v0;
+	}
+
+	/**
+	 * Copies an instanced triangle's vertex indices into corners: from its
+	 * mesh's own array, straight from the block of an off heap mesh, or
+	 * decoded on the spot if it's compressed. The normal and the
+	 * corners of a triangle are asked for one after the other, so the last
+	 * triangle read is kept.
+	 * 
+	 * @param instance
+	 * @param t
+	 *            Triangle index in the instance's mesh.
+	 */
+	private void readCorners(InstancedEntity3D instance, int t) {
+		if (instance == cornerOwner && t == cornerTriangle)
+			return;
+		Mesh mesh = instance.getMesh();
+		int[] triangles = mesh.triangles();
+		if (triangles != null) {
+			corners[0] = triangles[3 * t];
+			corners[1] = triangles[3 * t + 1];
+			corners[2] = triangles[3 * t + 2];
+		} else if (mesh.isOffHeap()) {
+			if (mesh != cornerMesh) {
+				cornerData = mesh.offHeapData();
+				cornerMesh = mesh;
+			}
+			int first = mesh.triangleOffset() + 12 * t;
+			corners[0] = cornerData.getInt(first);
+			corners[1] = cornerData.getInt(first + 4);
+			corners[2] = cornerData.getInt(first + 8);
+		} else {
+			triangleReader.read(mesh, t, corners);
+		}
+		cornerOwner = instance;
+		cornerTriangle = t;
+	}
+
+	/**
+	 * Unpacks a compressed mesh's triangle normal and takes it into the scene
+	 * into nx, ny and nz. Normals go through the cofactor matrix of the
+	 * instance transform, which is what the cross product of the transformed
+	 * edges would give, so they stay right under uneven scaling and mirroring.
+	 * 
+	 * @param instance
+	 * @param packed
+	 *            The normal, as packed by Mesh.encodeNormal.
+	 */
+	private void computeStoredNormal(InstancedEntity3D instance, int packed) {
+		double[] c = normalMatrix;
+		if (instance != normalOwner) {
+			double[] m = instance.matrix;
+			c[0] = m[5] * m[10] - m[6] * m[9];
+			c[1] = m[6] * m[8] - m[4] * m[10];
+			c[2] = m[4] * m[9] - m[5] * m[8];
+			c[3] = m[2] * m[9] - m[1] * m[10];
+			c[4] = m[0] * m[10] - m[2] * m[8];
+			c[5] = m[1] * m[8] - m[0] * m[9];
+			c[6] = m[1] * m[6] - m[2] * m[5];
+			c[7] = m[2] * m[4] - m[0] * m[6];
+			c[8] = m[0] * m[5] - m[1] * m[4];
+			normalOwner = instance;
+		}
+		double[] n = decodedNormal;
+		Mesh.decodeNormal(packed, n);
+		double x = c[0] * n[0] + c[1] * n[1] + c[2] * n[2];
+		double y = c[3] * n[0] + c[4] * n[1] + c[5] * n[2];
+		double z = c[6] * n[0] + c[7] * n[1] + c[8] * n[2];
+		double length = Math.sqrt(x * x + y * y + z * z);
+		nx = x / length;
+		ny = y / length;
+		nz = z / length;
+	}
+
+	/**
+	 * Calculates the unit normal of a triangle into nx, ny and nz.
+	 */
+	private void computeNormal(double x0, double y0, double z0, double x1,
+			double y1, double z1, double x2, double y2, double z2) {
+		double ax = x1 - x0;
+		double ay = y1 - y0;
+		double az = z1 - z0;
+		double bx = x2 - x0;
+		double by = y2 - y0;
+		double bz = z2 - z0;
+		double x = (ay * bz) - (az * by);
+		double y = (az * bx) - (ax * bz);
+		double z = (ax * by) - (ay * bx);
+		double length = Math.sqrt(x * x + y * y + z * z);
+		nx = x / length;
+		ny = y / length;
+		nz = z / length;
+	}
+
+	/**
+	 * Calculates the diffuse lighting factor for the face whose normal is in
+	 * nx, ny and nz.
+	 * 
+	 * @param px
+	 * @param py
+	 * @param pz
+	 *            A point on the face.
+	 * @param light
+	 *            The light location.
+	 * @return
+	 */
+	private double getDiffuse(double px, double py, double pz, Point3D light) {
+		double lx = light.x - px;
+		double ly = light.y - py;
+		double lz = light.z - pz;
+		double length = Math.sqrt(lx * lx + ly * ly + lz * lz);
 		// Diffuse lighting is calculated by getting the cosine
 		// between the normal and the vector to the light source
-		double diffuse = Utils3D.dotProduct(normal, light);
-		if (diffuse < 0)
-			diffuse = 0;
-		r = (int) ((scene.ambient * r * f.ambientSensitivity) + (diffuse * r * f.diffuseSensitivity));
-		g = (int) ((scene.ambient * g * f.ambientSensitivity) + (diffuse * g * f.diffuseSensitivity));
-		b = (int) ((scene.ambient * b * f.ambientSensitivity) + (diffuse * b * f.diffuseSensitivity));
+		double diffuse = (nx * lx + ny * ly + nz * lz) / length;
+		return diffuse < 0 ? 0 : diffuse;
+	}
+
+	/**
+	 * Calculates the color of a face with both ambient and diffuse shading.
+	 * Used for both the fill and the border.
+	 * 
+	 * @param base
+	 *            The unlit color.
+	 * @param ambientSensitivity
+	 * @param diffuseSensitivity
+	 *            How strongly the face responds to each kind of light.
+	 * @param ambient
+	 *            The scene's ambient light level.
+	 * @param diffuse
+	 *            The diffuse factor from getDiffuse.
+	 * @return The color of the face, as ARGB.
+	 */
+	static int getShading(Color base, double ambientSensitivity,
+			double diffuseSensitivity, double ambient, double diffuse) {
+		int r = base.getRed();
+		int g = base.getGreen();
+		int b = base.getBlue();
+		int a = base.getAlpha();
+		double light = ambient * ambientSensitivity + diffuse
+				* diffuseSensitivity;
+		r = (int) (r * light);
+		g = (int) (g * light);
+		b = (int) (b * light);
 		// Let's catch values that are too large to use.
 		r = r > 255 ? 255 : r;
 		g = g > 255 ? 255 : g;
 		b = b > 255 ? 255 : b;
-		return new Color(r, g, b, a);
+		return (a << 24) | (r << 16) | (g << 8) | b;
 	}
 }
@@ -1,28 +1,36 @@
 package com.pascucci.render.engine;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Contains data on entities contained in a 3D scene, including a ZBuffer which
- * it maintains automatically.
+ * Contains data on entities contained in a 3D scene, including a ZBuffer and
+ * an Octree spatial index which it maintains automatically.
  * 
  * @author Nick Pascucci <nick@kestrelrobotics.com>
  */
 
 public class Scene {
 	private ArrayList<Entity3D> entities;
+	private ArrayList<StreamedModel> streamed; // Updated before each frame
 	private Point3D light;
 	private ZBuffer buffer;
+	private Octree index;
 	private Camera camera;
 	public double ambient; // Ambient lighting
 	private double rotX, rotY, rotZ; //Stores scene rotations
+	// Bumped by every change which could alter the picture. Loaders and
+	// streamed models change scenes off the event thread too.
+	private final AtomicLong version = new AtomicLong();
 
 	/**
 	 * Creates a new scene with no objects and default lighting settings.
 	 */
 	public Scene() {
 		entities = new ArrayList<Entity3D>();
+		streamed = new ArrayList<StreamedModel>();
 		buffer = new ZBuffer();
+		index = new Octree();
 		light = new Point3D(0, 0, 800);
 		ambient = .3;
 	}
@@ -49,32 +57,85 @@ public class Scene {
 	 */
 	public void setLight(Point3D l) {
 		light = l;
+		changed();
+	}
+
+	/**
+	 * Gets a number which changes whenever anything in the scene which could
+	 * change the picture does, so a picture of the scene can be reused as
+	 * long as it stays the same.
+	 * @return
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Tells the scene it has changed. Adding and removing entities,
+	 * transforming them and setting their colors do this already; code which
+	 * moves the light or changes the ambient level or an instance's
+	 * sensitivities directly has to call it.
+	 */
+	public void changed() {
+		version.incrementAndGet();
 	}
 	
 	/**
-	 * Adds an entity to the scene, so it can be rendered.
+	 * Adds an entity to the scene, so it can be rendered. An entity should
+	 * only be in one scene at a time, since only the last scene it was added
+	 * to keeps it in its index.
 	 * @param entity
 	 */
 	public void addEntity(Entity3D entity) {
 		entities.add(entity);
+		entity.scene = this;
+		changed();
 		buffer.addEntity(entity);
+		index.insert(entity);
+		if (entity instanceof StreamedModel)
+			streamed.add((StreamedModel) entity);
 	}
 
 	/**
-	 * Removes an entity from the scene.
+	 * Removes an entity from the scene. Removing a StreamedModel also removes
+	 * the chunks it added.
 	 * @param entity
 	 */
 	public void removeEntity(Entity3D entity) {
-		entities.remove(entity);
+		if (entities.remove(entity) && entity.scene == this)
+			entity.scene = null;
+		changed();
 		buffer.removeEntity(entity);
+		index.remove(entity);
+		if (streamed.remove(entity))
+			((StreamedModel) entity).release(this);
 	}
 
 	/**
 	 * Removes all entities from the scene.
 	 */
 	public void removeAll() {
+		for (Entity3D e : entities) {
+			if (e.scene == this)
+				e.scene = null;
+		}
 		entities.clear();
+		changed();
 		buffer.clear();
+		index.clear();
+		for (StreamedModel model : streamed) {
+			model.release(null);
+		}
+		streamed.clear();
+	}
+
+	/**
+	 * Gets the models in the scene which stream their geometry in, for the
+	 * Renderer to update before drawing.
+	 * @return
+	 */
+	public ArrayList<StreamedModel> getStreamedModels() {
+		return streamed;
 	}
 
 	/**
@@ -85,11 +146,22 @@ public class Scene {
 		return buffer;
 	}
 
+	/**
+	 * Gets the spatial index over the scene's entities. The Renderer queries
+	 * it while culling, so it mustn't be queried or changed on another thread
+	 * while a frame of the scene is being drawn.
+	 * @return
+	 */
+	public Octree getIndex() {
+		return index;
+	}
+
 	/**
 	 * @param camera the camera to set
 	 */
 	public void setCamera(Camera camera) {
 		this.camera = camera;
+		changed();
 	}
 
 	/**
@@ -0,0 +1,280 @@
+package com.pascucci.render.engine;
+
+import java.awt.Color;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The part of drawing a frame which doesn't depend on where it's seen from:
+ * every vertex moved into the scene, every face split into triangles, and
+ * each triangle's normal and lit color. Light is positioned in the scene, so
+ * shading comes out the same from any direction. A MultiViewRenderer works
+ * this out once and every pane projects and fills the same triangles.
+ *
+ * It's only rebuilt when the scene changes, so turning a viewport, which
+ * leaves the scene alone, costs nothing here.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+class SceneGeometry {
+	private Scene scene;
+	private long version;
+
+	int vertexCount;
+	double[] x = new double[0]; // Vertices in the scene
+	double[] y = new double[0];
+	double[] z = new double[0];
+
+	int triangleCount;
+	int[] corners = new int[0]; // Three vertex indices for each triangle
+	float[] normalX = new float[0]; // Unit normal of each triangle
+	float[] normalY = new float[0];
+	float[] normalZ = new float[0];
+	int[] color = new int[0]; // Lit ARGB color of each triangle
+	// Which edges of each triangle are edges of its face, for outlines: bit 0
+	// for the first to second corner, 1 for second to third, 2 for third to
+	// first.
+	byte[] outline = new byte[0];
+
+	// Triangles of each entity run from entityStart[i] to entityStart[i + 1],
+	// inside entityBounds[i], outlined in entityHighlight[i] unless that's 0.
+	int entityCount;
+	int[] entityStart = new int[1];
+	BoundingBox[] entityBounds = new BoundingBox[0];
+	int[] entityHighlight = new int[0];
+
+	private int[] decoded = new int[0]; // Scratch for compressed triangles
+
+	/**
+	 * Brings the geometry up to date with a scene.
+	 *
+	 * @param scene
+	 * @return Whether anything had to be rebuilt.
+	 */
+	boolean update(Scene scene) {
+		long current = scene.getVersion();
+		if (scene == this.scene && current == version)
+			return false;
+		ArrayList<Entity3D> entities = scene.getEntities();
+		int vertices = 0;
+		int triangles = 0;
+		for (int i = 0; i < entities.size(); i++) {
+			Entity3D e = entities.get(i);
+			if (e instanceof InstancedEntity3D) {
+				Mesh mesh = ((InstancedEntity3D) e).getMesh();
+				vertices += mesh.getVertexCount();
+				triangles += mesh.getTriangleCount();
+				continue;
+			}
+			e.indexFaces();
+			vertices += e.getPoints().size();
+			ArrayList<Face> faces = e.getFaces();
+			for (int j = 0; j < faces.size(); j++) {
+				Face f = faces.get(j);
+				int n = f.getPoints().length;
+				triangles += Math.max(n - 2, 0);
+				// Faces without indices get their own copies of their points.
+				if (f.indices == null)
+					vertices += n;
+			}
+		}
+		if (x.length < vertices) {
+			x = new double[vertices];
+			y = new double[vertices];
+			z = new double[vertices];
+		}
+		if (color.length < triangles) {
+			corners = new int[3 * triangles];
+			normalX = new float[triangles];
+			normalY = new float[triangles];
+			normalZ = new float[triangles];
+			color = new int[triangles];
+			outline = new byte[triangles];
+		}
+		if (entityBounds.length < entities.size()) {
+			entityStart = new int[entities.size() + 1];
+			entityBounds = new BoundingBox[entities.size()];
+			entityHighlight = new int[entities.size()];
+		}
+		Arrays.fill(entityBounds, null);
+
+		vertexCount = 0;
+		triangleCount = 0;
+		Point3D light = scene.getLight();
+		for (int i = 0; i < entities.size(); i++) {
+			Entity3D e = entities.get(i);
+			entityStart[i] = triangleCount;
+			entityBounds[i] = e.getBounds();
+			Color highlight = e.getHighlight();
+			entityHighlight[i] = highlight != null ? highlight.getRGB() : 0;
+			if (e instanceof InstancedEntity3D)
+				addInstance((InstancedEntity3D) e, light, scene.ambient);
+			else
+				addEntity(e, light, scene.ambient);
+		}
+		entityCount = entities.size();
+		entityStart[entityCount] = triangleCount;
+		this.scene = scene;
+		version = current;
+		return true;
+	}
+
+	/**
+	 * Adds an entity's points and faces, splitting faces into fans of
+	 * triangles which all share the face's normal and color.
+	 */
+	private void addEntity(Entity3D e, Point3D light, double ambient) {
+		int base = vertexCount;
+		ArrayList<Point3D> points = e.getPoints();
+		for (int j = 0; j < points.size(); j++) {
+			Point3D p = points.get(j);
+			x[vertexCount] = p.x;
+			y[vertexCount] = p.y;
+			z[vertexCount] = p.z;
+			vertexCount++;
+		}
+		ArrayList<Face> faces = e.getFaces();
+		for (int j = 0; j < faces.size(); j++) {
+			Face f = faces.get(j);
+			Point3D[] facePoints = f.getPoints();
+			int n = facePoints.length;
+			if (n < 3)
+				continue;
+			int first = vertexCount;
+			if (f.indices == null) {
+				for (int k = 0; k < n; k++) {
+					x[vertexCount] = facePoints[k].x;
+					y[vertexCount] = facePoints[k].y;
+					z[vertexCount] = facePoints[k].z;
+					vertexCount++;
+				}
+			}
+			int t = triangleCount;
+			for (int k = 1; k < n - 1; k++) {
+				int c = 3 * triangleCount;
+				if (f.indices != null) {
+					corners[c] = base + f.indices[0];
+					corners[c + 1] = base + f.indices[k];
+					corners[c + 2] = base + f.indices[k + 1];
+				} else {
+					corners[c] = first;
+					corners[c + 1] = first + k;
+					corners[c + 2] = first + k + 1;
+				}
+				// The fan's inner edges aren't the face's.
+				int edges = 2;
+				if (k == 1)
+					edges |= 1;
+				if (k == n - 2)
+					edges |= 4;
+				outline[triangleCount] = (byte) edges;
+				triangleCount++;
+			}
+			// The face is lit by the normal of its first three corners.
+			shade(t, Palette.get(f.material), light, ambient);
+			for (int k = t + 1; k < triangleCount; k++) {
+				normalX[k] = normalX[t];
+				normalY[k] = normalY[t];
+				normalZ[k] = normalZ[t];
+				color[k] = color[t];
+			}
+		}
+	}
+
+	/**
+	 * Moves an instance's vertices into the scene and adds its triangles.
+	 */
+	private void addInstance(InstancedEntity3D instance, Point3D light,
+			double ambient) {
+		Mesh mesh = instance.getMesh();
+		double[] m = instance.matrix;
+		double[] vertices = mesh.vertices();
+		short[] quantized = mesh.quantized();
+		double[] q = mesh.quantization();
+		ByteBuffer offHeap = mesh.isOffHeap() ? mesh.offHeapData() : null;
+		int base = vertexCount;
+		int n = mesh.getVertexCount();
+		for (int j = 0; j < n; j++) {
+			double px, py, pz;
+			if (vertices != null) {
+				px = vertices[3 * j];
+				py = vertices[3 * j + 1];
+				pz = vertices[3 * j + 2];
+			} else if (quantized != null) {
+				px = q[0] + q[3] * quantized[3 * j];
+				py = q[1] + q[4] * quantized[3 * j + 1];
+				pz = q[2] + q[5] * quantized[3 * j + 2];
+			} else {
+				px = offHeap.getDouble(24 * j);
+				py = offHeap.getDouble(24 * j + 8);
+				pz = offHeap.getDouble(24 * j + 16);
+			}
+			x[vertexCount] = m[0] * px + m[1] * py + m[2] * pz + m[3];
+			y[vertexCount] = m[4] * px + m[5] * py + m[6] * pz + m[7];
+			z[vertexCount] = m[8] * px + m[9] * py + m[10] * pz + m[11];
+			vertexCount++;
+		}
+		int[] triangles = mesh.triangles();
+		int count = 3 * mesh.getTriangleCount();
+		if (triangles == null) {
+			if (decoded.length < count)
+				decoded = new int[count];
+			mesh.decodeTriangles(decoded, 0);
+			triangles = decoded;
+		}
+		Material material = instance.getMaterial();
+		for (int i = 0; i < count; i += 3) {
+			int c = 3 * triangleCount;
+			corners[c] = base + triangles[i];
+			corners[c + 1] = base + triangles[i + 1];
+			corners[c + 2] = base + triangles[i + 2];
+			outline[triangleCount] = 7;
+			shade(triangleCount, material, light, ambient);
+			triangleCount++;
+		}
+	}
+
+	/**
+	 * Works out a triangle's normal from its corners, and its color from the
+	 * normal, the way the Renderer lights faces.
+	 *
+	 * @param t
+	 *            The triangle, whose corners must already be set.
+	 * @param material
+	 * @param light
+	 * @param ambient
+	 */
+	private void shade(int t, Material material, Point3D light, double ambient) {
+		int a = corners[3 * t];
+		int b = corners[3 * t + 1];
+		int c = corners[3 * t + 2];
+		double ax = x[b] - x[a];
+		double ay = y[b] - y[a];
+		double az = z[b] - z[a];
+		double bx = x[c] - x[a];
+		double by = y[c] - y[a];
+		double bz = z[c] - z[a];
+		double nx = ay * bz - az * by;
+		double ny = az * bx - ax * bz;
+		double nz = ax * by - ay * bx;
+		double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (length > 0) {
+			nx /= length;
+			ny /= length;
+			nz /= length;
+		}
+		normalX[t] = (float) nx;
+		normalY[t] = (float) ny;
+		normalZ[t] = (float) nz;
+		double lx = light.x - x[a];
+		double ly = light.y - y[a];
+		double lz = light.z - z[a];
+		double diffuse = (nx * lx + ny * ly + nz * lz)
+				/ Math.sqrt(lx * lx + ly * ly + lz * lz);
+		color[t] = Renderer.getShading(material.getColor(),
+				material.getAmbientSensitivity(),
+				material.getDiffuseSensitivity(), ambient,
+				diffuse < 0 ? 0 : diffuse);
+	}
+}
@@ -1,16 +1,28 @@
 package com.pascucci.render.engine;
 
 import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
-import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.JPanel;
+import javax.swing.Timer;
 
 import com.pascucci.render.utils.Utils3D;
 
@@ -29,10 +41,59 @@ public class SceneView extends JPanel implements MouseListener,
 	private Face selectedFace;
 	private Renderer renderer;
 	private boolean debug;
+	private boolean showStats = false;
+
+	// Stats overlay
+	private static final Font STATS_FONT = new Font(Font.MONOSPACED,
+			Font.PLAIN, 12);
+	private static final Color STATS_BACKGROUND = new Color(0, 0, 0, 160);
+
+	// The last frame drawn, and what it was drawn from
+	private BufferedImage frame;
+	private BufferedImage nextFrame; // Drawn into, then swapped with frame
+	private Scene frameScene;
+	private long frameSceneVersion;
+	private long frameRendererVersion;
+
+	// A frame drawn at reduced resolution is drawn again at full resolution
+	// once the view has been still for a moment.
+	private static final int REFINE_DELAY = 250; // Milliseconds
+	private double frameResolution = 1;
+	private boolean refining;
+	private Timer refineTimer;
+
+	// Frames are drawn on a thread of their own, so mouse input keeps coming
+	// in while one is drawn. Dragging or zooming cancels the frame being
+	// drawn, and the old frame stays on screen until the new one is done.
+	// The frame after a cancelled one always finishes, so a steady stream of
+	// input still shows.
+	private final ExecutorService frameThread = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Scene renderer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	private Future<Boolean> pendingFrame; // Being drawn into nextFrame
+	private CancelToken frameToken; // Null if pendingFrame has to finish
+	private Scene pendingScene;
+	private long pendingSceneVersion;
+	private long pendingRendererVersion;
+	private double pendingResolution;
+	private boolean lastFrameCancelled;
+	private String[] statsLines; // The overlay, as of the last frame
 
 	// View rotation parameters
 	private double RADIANS_PER_PIXEL = Math.PI / 360;
 
+	// Mouse input not yet applied to the scene. Events only add to these, and
+	// the next frame applies them all at once, so a fast mouse costs no more
+	// geometry work per frame than a slow one.
+	private double pendingUp;
+	private double pendingOver;
+	private int pendingClicks;
+
 	/**
 	 * Creates a new SceneView object with a cube as the only object.
 	 */
@@ -45,11 +106,14 @@ public class SceneView extends JPanel implements MouseListener,
 		scene.setCamera(camera);
 		int cubesPerSide = 2;
 		int spacing = 100;
+		// Every cube is the same shape, so they all share one mesh.
+		Mesh cubeMesh = Mesh.fromEntity(Utils3D.cube(50));
 		
 		for(int x = -cubesPerSide * spacing; x < cubesPerSide * spacing; x+=spacing){
 			for(int y = -cubesPerSide * spacing; y < cubesPerSide * spacing; y+=spacing){
 				for(int z = -cubesPerSide * spacing; z < cubesPerSide * spacing; z+=spacing){
-					Entity3D cube = Utils3D.cube(50, x, y, z);
+					Entity3D cube = new InstancedEntity3D(cubeMesh);
+					Transform3D.translate(cube, new Vector3D(x, y, z));
 					cube.setName("Cube " + x + ", " + y + ", " + z);
 					cube.setColor(new Color(255, 255, 255, 180));
 					cube.setBorderColor(new Color(0, 0, 0, 0));
@@ -60,13 +124,239 @@ public class SceneView extends JPanel implements MouseListener,
 		addMouseMotionListener(this);
 		addMouseListener(this);
 		addMouseWheelListener(this);
+		refineTimer = new Timer(REFINE_DELAY, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				if (frameResolution < 1) {
+					refining = true;
+					repaint();
+				}
+			}
+		});
+		refineTimer.setRepeats(false);
 	}
 
 	@Override
 	public void paintComponent(Graphics g) {
 		super.paintComponent(g);
 		Graphics2D g2 = (Graphics2D) g;
-		renderer.renderScene(g2, scene, getWidth(), getHeight());
+		int width = getWidth();
+		int height = getHeight();
+		// Draw at the screen's resolution when the UI is scaled up.
+		AffineTransform t = g2.getTransform();
+		int frameWidth = (int) Math.ceil(width * t.getScaleX());
+		int frameHeight = (int) Math.ceil(height * t.getScaleY());
+		if (frameWidth < 1 || frameHeight < 1)
+			return;
+		// A frame told to stop is waited for, which takes at most a batch of
+		// faces; one still being drawn is left to finish and repaint.
+		if (pendingFrame != null
+				&& (pendingFrame.isDone() || frameToken != null
+						&& frameToken.isCancelled()))
+			finishFrame();
+		if (pendingFrame == null) {
+			applyInput();
+			if (!isFrameCurrent(frameWidth, frameHeight))
+				startFrame(t, width, height, frameWidth, frameHeight);
+		}
+		if (frame != null)
+			g2.drawImage(frame, 0, 0, width, height, null);
+		if (showStats) {
+			paintStats(g2);
+		}
+	}
+
+	/**
+	 * Starts drawing a frame into nextFrame on the frame thread, which
+	 * repaints the view when it's done.
+	 * 
+	 * @param t
+	 *            The transform of the view's graphics, for its scale.
+	 * @param width
+	 * @param height
+	 *            The size of the view.
+	 * @param frameWidth
+	 * @param frameHeight
+	 *            The size of the frame in pixels.
+	 */
+	private void startFrame(AffineTransform t, final int width,
+			final int height, int frameWidth, int frameHeight) {
+		if (nextFrame == null || nextFrame.getWidth() != frameWidth
+				|| nextFrame.getHeight() != frameHeight)
+			nextFrame = new BufferedImage(frameWidth, frameHeight,
+					BufferedImage.TYPE_INT_RGB);
+		pendingScene = scene;
+		pendingSceneVersion = scene.getVersion();
+		pendingRendererVersion = renderer.version;
+		pendingResolution = refining ? 1 : renderer.getResolution();
+		frameToken = lastFrameCancelled ? null : new CancelToken();
+		final BufferedImage image = nextFrame;
+		final Scene s = scene;
+		final CancelToken token = frameToken;
+		final boolean full = refining;
+		final double scaleX = t.getScaleX();
+		final double scaleY = t.getScaleY();
+		refining = false;
+		pendingFrame = frameThread.submit(new Callable<Boolean>() {
+			public Boolean call() {
+				Graphics2D frameGraphics = image.createGraphics();
+				try {
+					frameGraphics.scale(scaleX, scaleY);
+					renderer.fullResolution = full;
+					return renderer.renderScene(frameGraphics, s, width,
+							height, token);
+				} finally {
+					renderer.fullResolution = false;
+					frameGraphics.dispose();
+					repaint();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for the frame being drawn and, if it finished, shows it from now
+	 * on.
+	 */
+	private void finishFrame() {
+		boolean finished = false;
+		try {
+			finished = pendingFrame.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pendingFrame = null;
+			frameToken = null;
+		}
+		lastFrameCancelled = !finished;
+		if (finished) {
+			BufferedImage drawn = nextFrame;
+			nextFrame = frame;
+			frame = drawn;
+			frameScene = pendingScene;
+			frameSceneVersion = pendingSceneVersion;
+			frameRendererVersion = pendingRendererVersion;
+			frameResolution = pendingResolution;
+			if (frameResolution < 1)
+				refineTimer.restart();
+			if (showStats)
+				statsLines = getStatsLines();
+		}
+	}
+
+	/**
+	 * Stops the frame being drawn, if there is one, and waits for the renderer
+	 * to let go of the scene. Code on the event thread changing the scene or
+	 * the renderer other than through this view has to call this first; the
+	 * view draws again when it's next repainted.
+	 */
+	public void stopFrame() {
+		if (pendingFrame == null)
+			return;
+		if (frameToken != null)
+			frameToken.cancel();
+		finishFrame();
+	}
+
+	/**
+	 * Cancels the frame being drawn, since input has made it stale.
+	 */
+	private void cancelFrame() {
+		if (frameToken != null)
+			frameToken.cancel();
+	}
+
+	/**
+	 * Tells whether the last frame drawn still shows the scene, so it can be
+	 * copied to the screen instead of drawing the scene again. Windows
+	 * uncovering the view, menus closing over it and selections in the tree
+	 * all repaint it without changing the picture.
+	 * 
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	private boolean isFrameCurrent(int width, int height) {
+		if (frame == null || frame.getWidth() != width
+				|| frame.getHeight() != height)
+			return false;
+		if (frameScene != scene || frameSceneVersion != scene.getVersion()
+				|| frameRendererVersion != renderer.version || refining)
+			return false;
+		// Loaded chunks are only added to the scene when it is drawn.
+		for (StreamedModel model : scene.getStreamedModels()) {
+			if (model.isLoading())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Shows or hides the frame statistics overlay. Frame timing is only
+	 * collected while the overlay is visible.
+	 * 
+	 * @param on
+	 */
+	public void setShowStats(boolean on) {
+		stopFrame();
+		showStats = on;
+		renderer.setProfiling(on);
+		statsLines = on ? getStatsLines() : null;
+		repaint();
+	}
+
+	public boolean isShowingStats() {
+		return showStats;
+	}
+
+	/**
+	 * Writes out the frame timing overlay, while no frame is being drawn.
+	 * 
+	 * @return
+	 */
+	private String[] getStatsLines() {
+		FrameStats stats = renderer.getFrameStats();
+		String[] lines = new String[FrameStats.STAGES + 3];
+		lines[0] = String.format("%-8s %7s %7s", "stage", "p50 ms", "p95 ms");
+		for (int stage = 0; stage < FrameStats.STAGES; stage++) {
+			lines[stage + 1] = String.format("%-8s %7.2f %7.2f",
+					FrameStats.getStageName(stage),
+					stats.getPercentile(stage, 50) / 1e6,
+					stats.getPercentile(stage, 95) / 1e6);
+		}
+		lines[lines.length - 1] = "faces " + stats.getFacesSubmitted()
+				+ " / culled " + stats.getFacesCulled() + " / occluded "
+				+ stats.getFacesOccluded() + " / drawn "
+				+ stats.getFacesDrawn();
+		lines[lines.length - 2] = String.format("resolution %.0f%%",
+				frameResolution * 100);
+		return lines;
+	}
+
+	/**
+	 * Draws the frame timing overlay in the top left corner.
+	 * 
+	 * @param g2
+	 */
+	private void paintStats(Graphics2D g2) {
+		String[] lines = statsLines;
+		if (lines == null)
+			return;
+		g2.setFont(STATS_FONT);
+		FontMetrics metrics = g2.getFontMetrics();
+		int lineHeight = metrics.getHeight();
+		int boxWidth = 0;
+		for (String line : lines) {
+			boxWidth = Math.max(boxWidth, metrics.stringWidth(line));
+		}
+		g2.setColor(STATS_BACKGROUND);
+		g2.fillRect(4, 4, boxWidth + 8, lineHeight * lines.length + 8);
+		g2.setColor(Color.GREEN);
+		for (int i = 0; i < lines.length; i++) {
+			g2.drawString(lines[i], 8, 8 + metrics.getAscent() + i
+					* lineHeight);
+		}
 	}
 
 	public Renderer getRenderer(){
@@ -74,6 +364,7 @@ public class SceneView extends JPanel implements MouseListener,
 	}
 
 	public void setScene(Scene s) {
+		stopFrame();
 		scene = s;
 	}
 
@@ -82,24 +373,16 @@ public class SceneView extends JPanel implements MouseListener,
 	}
 
 	public void setSelectedEntity(Entity3D e) {
+		stopFrame();
 		if (selectedFace != null) {
 			selectedFace.setBorderColor(selectedFace.getColor());
 			selectedFace = null;
 		}
-		ArrayList<Face> faces;
-		if (selectedEntity != null) {
-			faces = selectedEntity.getFaces();
-			for (Face f : faces) {
-				f.setBorderColor(f.getColor());
-			}
-		}
+		if (selectedEntity != null)
+			selectedEntity.setHighlight(null);
 		selectedEntity = e;
-		if (e != null) {
-			faces = e.getFaces();
-			for (Face f : faces) {
-				f.setBorderColor(Color.YELLOW);
-			}
-		}
+		if (e != null)
+			e.setHighlight(Color.YELLOW);
 	}
 
 	public Entity3D getSelectedEntity() {
@@ -113,10 +396,36 @@ public class SceneView extends JPanel implements MouseListener,
 	 * @param angleOver
 	 */
 	public void rotateView(double angleUp, double angleOver) {
+		stopFrame();
 		Transform3D.rotateSceneX(scene, angleUp);
 		Transform3D.rotateSceneY(scene, angleOver);
 	}
 
+	/**
+	 * Applies the rotation and zoom the mouse has asked for since the last
+	 * frame.
+	 */
+	private void applyInput() {
+		if (pendingUp != 0 || pendingOver != 0) {
+			if (debug)
+				System.out.println("Rotating view " + pendingUp
+						+ " radians up, " + pendingOver + " radians over.");
+			rotateView(pendingUp, pendingOver);
+			pendingUp = 0;
+			pendingOver = 0;
+		}
+		if (pendingClicks != 0) {
+			double scalefactor = renderer.getScale();
+			if (scalefactor >= 1) {
+				scalefactor -= pendingClicks;
+			}
+			if (scalefactor < 1)
+				scalefactor = 1.0;
+			renderer.setScale(scalefactor);
+			pendingClicks = 0;
+		}
+	}
+
 	private int oldX;
 	private int oldY;
 	private boolean rotateView = false;
@@ -131,11 +440,9 @@ public class SceneView extends JPanel implements MouseListener,
 			int y = e.getY() - oldY;
 			oldX = e.getX();
 			oldY = e.getY();
-			if (debug)
-				System.out.println("Rotating view " + y * RADIANS_PER_PIXEL
-						+ " radians up, " + x * RADIANS_PER_PIXEL
-						+ " radians over.");
-			rotateView(y * RADIANS_PER_PIXEL, x * RADIANS_PER_PIXEL);
+			pendingUp += y * RADIANS_PER_PIXEL;
+			pendingOver += x * RADIANS_PER_PIXEL;
+			cancelFrame();
 			repaint();
 		}
 	}
@@ -167,14 +474,8 @@ public class SceneView extends JPanel implements MouseListener,
 	 * @param e
 	 */
 	public void mouseWheelMoved(MouseWheelEvent e) {
-		int clicks = e.getWheelRotation();
-		double scalefactor = renderer.getScale();
-		if (scalefactor >= 1) {
-			scalefactor -= clicks;
-		}
-		if (scalefactor < 1)
-			scalefactor = 1.0;
-		renderer.setScale(scalefactor);
+		pendingClicks += e.getWheelRotation();
+		cancelFrame();
 		repaint();
 	}
 }
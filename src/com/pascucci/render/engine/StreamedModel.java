@@ -0,0 +1,441 @@
+package com.pascucci.render.engine;
+
+import java.awt.Color;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+import com.pascucci.render.utils.Utils3D;
+
+/**
+ * An entity for models too big for the heap, drawn from a ChunkFile a piece
+ * at a time. Each frame the Renderer tells it what the camera can see; the
+ * chunks in view are then loaded in the background, biggest on screen first,
+ * as compressed meshes, and drawn as instances added to the scene next to
+ * this one. Chunks which haven't arrived yet show as faint boxes. Chunks out
+ * of view are kept until the memory budget is needed for something else.
+ *
+ * The model itself draws nothing. It holds the transform, color and name for
+ * the whole model, which its chunks follow, so it can be moved and selected
+ * like any other instance.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class StreamedModel extends InstancedEntity3D implements Closeable {
+	private static final Mesh EMPTY = new Mesh(new double[0], new int[0]);
+	private static final Mesh BOX = Mesh.fromEntity(Utils3D.cube(2));
+	private static final Material PLACEHOLDER = new Material(new Color(128,
+			128, 128, 48));
+	// Chunks smaller than this many pixels across aren't worth loading.
+	private static final double MIN_PIXELS = 2;
+	// What the Renderer keeps for each vertex and triangle drawn, on top of
+	// the mesh: projected and transformed coordinates, and the depth sort.
+	private static final int VERTEX_SCRATCH = 36;
+	private static final int TRIANGLE_SCRATCH = 16;
+
+	private final ChunkFile file;
+	private long budget;
+	private ChangeListener listener;
+	private Scene scene; // The scene the chunks were added to
+
+	// Loading happens on these threads; results come back through finished
+	// and are added to the scene in update, on the rendering thread. Loads
+	// started before the last release are dropped.
+	private final ExecutorService loader;
+	private final int maxLoading;
+	private final ConcurrentLinkedQueue<Loaded> finished = new ConcurrentLinkedQueue<Loaded>();
+	private volatile int generation;
+
+	// Per chunk
+	private final InstancedEntity3D[] resident;
+	private final InstancedEntity3D[] placeholders;
+	private final boolean[] loading;
+	private final boolean[] failed;
+	private final boolean[] wanted;
+	private final double[] priority; // Size on screen in pixels
+	private final long[] order; // Priority and chunk, packed for sorting
+	private long residentBytes;
+	private long loadingBytes;
+	private int loadingCount;
+	private int residentCount;
+
+	private final BoundingBox box = new BoundingBox();
+	private final double[] boxMatrix = new double[12];
+
+	private static class Loaded {
+		final int chunk;
+		final Mesh mesh; // Null if it couldn't be read
+		final int generation;
+
+		Loaded(int chunk, Mesh mesh, int generation) {
+			this.chunk = chunk;
+			this.mesh = mesh;
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * Creates a model which streams from the file.
+	 *
+	 * @param file
+	 * @param budget
+	 *            How many bytes loaded chunks may take at most, counting what
+	 *            the Renderer keeps to draw them as well as their meshes.
+	 */
+	public StreamedModel(ChunkFile file, long budget) {
+		super(EMPTY);
+		this.file = file;
+		this.budget = budget;
+		int count = file.getChunkCount();
+		resident = new InstancedEntity3D[count];
+		placeholders = new InstancedEntity3D[count];
+		loading = new boolean[count];
+		failed = new boolean[count];
+		wanted = new boolean[count];
+		priority = new double[count];
+		order = new long[count];
+		int threads = Math.max(1,
+				Runtime.getRuntime().availableProcessors() - 1);
+		maxLoading = 2 * threads;
+		loader = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Chunk loader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Sets a listener to call, from a loading thread, whenever a chunk has
+	 * been loaded and the model should be drawn again.
+	 *
+	 * @param l
+	 */
+	public void setChangeListener(ChangeListener l) {
+		listener = l;
+	}
+
+	public void setBudget(long bytes) {
+		budget = bytes;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public long getResidentBytes() {
+		return residentBytes;
+	}
+
+	public int getResidentChunkCount() {
+		return residentCount;
+	}
+
+	public ChunkFile getChunkFile() {
+		return file;
+	}
+
+	/**
+	 * Tells whether chunks are still being loaded, or have been loaded but
+	 * not yet added to the scene by update.
+	 *
+	 * @return
+	 */
+	public boolean isLoading() {
+		return loadingCount > 0 || !finished.isEmpty();
+	}
+
+	/**
+	 * Tells whether an entity is one of the boxes shown for chunks which are
+	 * still loading.
+	 *
+	 * @param e
+	 * @return
+	 */
+	static boolean isPlaceholder(Entity3D e) {
+		return e instanceof InstancedEntity3D
+				&& ((InstancedEntity3D) e).getMesh() == BOX;
+	}
+
+	/**
+	 * Covers the whole model, not just what is loaded.
+	 */
+	@Override
+	void computeBounds(BoundingBox b) {
+		transformBounds(file.getBounds(), b);
+	}
+
+	/**
+	 * Brings the scene up to date with the model: adds chunks which have
+	 * finished loading, works out which chunks are wanted for this view,
+	 * drops and requests chunks to match, and moves the chunks and boxes to
+	 * follow the model's transform. Called by the Renderer before each frame.
+	 *
+	 * @param scene
+	 * @param frustum
+	 *            What the camera can see.
+	 * @param eye
+	 *            The camera location.
+	 * @param scale
+	 *            The renderer's scale factor.
+	 * @param orthogonal
+	 *            Whether the renderer is in orthogonal mode.
+	 */
+	void update(Scene scene, Frustum frustum, Point3D eye, double scale,
+			boolean orthogonal) {
+		if (this.scene != scene) {
+			release(this.scene);
+			this.scene = scene;
+		}
+		Loaded loaded;
+		while ((loaded = finished.poll()) != null) {
+			if (loaded.generation != generation)
+				continue;
+			int i = loaded.chunk;
+			loading[i] = false;
+			loadingCount--;
+			loadingBytes -= getSize(i);
+			if (loaded.mesh == null) {
+				failed[i] = true;
+				continue;
+			}
+			InstancedEntity3D chunk = new InstancedEntity3D(loaded.mesh);
+			chunk.setName(getName() + " (chunk " + i + ")");
+			resident[i] = chunk;
+			residentBytes += getSize(i);
+			residentCount++;
+			scene.addEntity(chunk);
+		}
+
+		int count = file.getChunkCount();
+		for (int i = 0; i < count; i++) {
+			transformBounds(file.getChunkBounds(i), box);
+			double p = 0;
+			if (!failed[i] && frustum.intersects(box))
+				p = getScreenSize(box, eye, scale, orthogonal);
+			priority[i] = p;
+			order[i] = (long) Float.floatToIntBits((float) p) << 32 | i;
+		}
+		Arrays.sort(order, 0, count);
+
+		// The biggest chunks on screen which fit in the budget are wanted.
+		long wantedBytes = 0;
+		long missingBytes = 0;
+		for (int k = count - 1; k >= 0; k--) {
+			int i = (int) order[k];
+			wanted[i] = false;
+			if (priority[i] < MIN_PIXELS)
+				continue;
+			long size = getSize(i);
+			if (wantedBytes + size > budget)
+				continue;
+			wantedBytes += size;
+			wanted[i] = true;
+			if (resident[i] == null && !loading[i])
+				missingBytes += size;
+		}
+
+		// Make room for them, dropping the least important chunks first.
+		for (int k = 0; k < count
+				&& residentBytes + loadingBytes + missingBytes > budget; k++) {
+			int i = (int) order[k];
+			if (resident[i] != null && !wanted[i])
+				evict(i);
+		}
+
+		for (int k = count - 1; k >= 0 && loadingCount < maxLoading; k--) {
+			int i = (int) order[k];
+			long size = getSize(i);
+			if (wanted[i] && resident[i] == null && !loading[i]
+					&& residentBytes + loadingBytes + size <= budget)
+				load(i);
+		}
+
+		for (int i = 0; i < count; i++) {
+			if (resident[i] != null) {
+				InstancedEntity3D chunk = resident[i];
+				follow(chunk, matrix);
+				if (chunk.getMaterial() != getMaterial())
+					chunk.setMaterial(getMaterial());
+				if (chunk.getHighlight() != getHighlight())
+					chunk.setHighlight(getHighlight());
+			}
+			boolean waiting = resident[i] == null && priority[i] >= MIN_PIXELS;
+			if (waiting && placeholders[i] == null) {
+				InstancedEntity3D placeholder = new InstancedEntity3D(BOX);
+				placeholder.setName(getName() + " (loading chunk " + i + ")");
+				placeholder.setMaterial(PLACEHOLDER);
+				placeholders[i] = placeholder;
+				scene.addEntity(placeholder);
+			} else if (!waiting && placeholders[i] != null) {
+				scene.removeEntity(placeholders[i]);
+				placeholders[i] = null;
+			}
+			if (placeholders[i] != null)
+				follow(placeholders[i], getBoxMatrix(file.getChunkBounds(i)));
+		}
+	}
+
+	/**
+	 * Gets the bytes a chunk takes, or is expected to take once loaded,
+	 * including the Renderer's working arrays for it. Until it's loaded its
+	 * vertex count isn't known, so it's taken as three per triangle, the
+	 * most it can be. Guessing low would load chunks only to evict them.
+	 */
+	private long getSize(int chunk) {
+		if (resident[chunk] != null) {
+			Mesh mesh = resident[chunk].getMesh();
+			return mesh.getDataSize() + (long) VERTEX_SCRATCH
+					* mesh.getVertexCount() + (long) TRIANGLE_SCRATCH
+					* mesh.getTriangleCount();
+		}
+		return file.getChunkFileSize(chunk)
+				+ (long) (3 * VERTEX_SCRATCH + TRIANGLE_SCRATCH)
+				* file.getChunkTriangleCount(chunk);
+	}
+
+	/**
+	 * Estimates how many pixels across a box in the scene will be drawn.
+	 */
+	private static double getScreenSize(BoundingBox b, Point3D eye,
+			double scale, boolean orthogonal) {
+		double size = 2 * b.getHalfExtent() * scale;
+		if (orthogonal)
+			return size;
+		if (b.maxZ >= eye.z)
+			return Double.MAX_VALUE; // Reaches the camera
+		return size * eye.z / (eye.z - b.maxZ);
+	}
+
+	/**
+	 * Starts loading a chunk in the background.
+	 */
+	private void load(final int chunk) {
+		loading[chunk] = true;
+		loadingCount++;
+		loadingBytes += getSize(chunk);
+		final int started = generation;
+		loader.execute(new Runnable() {
+			public void run() {
+				if (started != generation)
+					return;
+				Mesh mesh = null;
+				try {
+					mesh = file.readChunk(chunk);
+				} catch (IOException e) {
+					System.out.println("Couldn't read chunk " + chunk + ": "
+							+ e.getMessage());
+				}
+				finished.add(new Loaded(chunk, mesh, started));
+				ChangeListener l = listener;
+				if (l != null)
+					l.stateChanged(new ChangeEvent(StreamedModel.this));
+			}
+		});
+	}
+
+	private void evict(int chunk) {
+		if (scene != null)
+			scene.removeEntity(resident[chunk]);
+		residentBytes -= getSize(chunk);
+		residentCount--;
+		resident[chunk] = null;
+	}
+
+	/**
+	 * Gives an instance a transform, telling its scene only if it changed.
+	 */
+	private static void follow(InstancedEntity3D e, double[] m) {
+		if (Arrays.equals(e.matrix, m))
+			return;
+		System.arraycopy(m, 0, e.matrix, 0, m.length);
+		e.pointsChanged();
+	}
+
+	/**
+	 * Gets the transform which takes the placeholder box onto a chunk's
+	 * bounds and then into the scene along with the model.
+	 */
+	private double[] getBoxMatrix(BoundingBox b) {
+		double[] m = matrix;
+		double[] result = boxMatrix;
+		double cx = b.getCenterX(), cy = b.getCenterY(), cz = b.getCenterZ();
+		double hx = (b.maxX - b.minX) / 2;
+		double hy = (b.maxY - b.minY) / 2;
+		double hz = (b.maxZ - b.minZ) / 2;
+		for (int row = 0; row < 12; row += 4) {
+			result[row] = m[row] * hx;
+			result[row + 1] = m[row + 1] * hy;
+			result[row + 2] = m[row + 2] * hz;
+			result[row + 3] = m[row] * cx + m[row + 1] * cy + m[row + 2] * cz
+					+ m[row + 3];
+		}
+		return result;
+	}
+
+	/**
+	 * Takes the model's chunks and boxes out of a scene, and forgets the
+	 * loaded chunks. Chunks still loading are dropped when they arrive, and
+	 * those not yet started are skipped. Called by the Scene when the model
+	 * is removed from it.
+	 *
+	 * @param s
+	 *            The scene, or null if it has already been cleared.
+	 */
+	void release(Scene s) {
+		for (int i = 0; i < resident.length; i++) {
+			if (resident[i] != null) {
+				if (s != null)
+					s.removeEntity(resident[i]);
+				resident[i] = null;
+			}
+			if (placeholders[i] != null) {
+				if (s != null)
+					s.removeEntity(placeholders[i]);
+				placeholders[i] = null;
+			}
+		}
+		generation++;
+		finished.clear();
+		Arrays.fill(loading, false);
+		residentBytes = 0;
+		loadingBytes = 0;
+		loadingCount = 0;
+		residentCount = 0;
+		if (s == scene)
+			scene = null;
+	}
+
+	/**
+	 * Stops loading and closes the file. The model can't be drawn afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		generation++;
+		loader.shutdownNow();
+		finished.clear();
+		file.close();
+	}
+
+	/**
+	 * Closes the model along with letting go of its instance.
+	 */
+	@Override
+	public void dispose() {
+		super.dispose();
+		try {
+			close();
+		} catch (IOException e) {
+			System.out.println("Couldn't close " + getName() + ": "
+					+ e.getMessage());
+		}
+	}
+}
@@ -1,10 +1,20 @@
 package com.pascucci.render.engine;
 
 import java.util.ArrayList;
+import java.util.concurrent.RecursiveAction;
+
+import com.pascucci.render.jfr.TransformEvent;
 
 /**
  * Utility class for 3D transforms.
  * 
+ * Entities with many points, and scenes with many points in total, are
+ * transformed on the fork/join common pool. Every point still goes through
+ * exactly the same arithmetic as on a single thread, so the results are
+ * identical; only the order in which points are visited changes. That relies
+ * on each point appearing only once in its entity's point list, as it does
+ * for Utils3D shapes and STL imports.
+ * 
  * @author Nick Pascucci <nick@kestrelrobotics.com>
  */
 public class Transform3D {
@@ -13,6 +23,23 @@ public class Transform3D {
 	public static final int Y_AXIS = 1;
 	public static final int Z_AXIS = 2;
 
+	/**
+	 * Work below this many points, or faces, is done on the calling thread;
+	 * above it, it is split into pieces about this size.
+	 */
+	public static final int PARALLEL_THRESHOLD = 16384;
+
+	// Operations applied by transformPoints
+	private static final int ROTATE_X = 0;
+	private static final int ROTATE_Y = 1;
+	private static final int ROTATE_Z = 2;
+	private static final int TRANSLATE = 3;
+	private static final int SCALE = 4;
+
+	// Names of the rotations for Flight Recorder, by axis
+	private static final String[] ROTATIONS = { "rotateX", "rotateY",
+			"rotateZ" };
+
 	private double d;
 	private double alpha;
 	private double beta;
@@ -29,6 +56,8 @@ public class Transform3D {
 	 *            The angle to rotate.
 	 */
 	public static void rotate(int axis, Entity3D e, double theta) {
+		TransformEvent event = new TransformEvent();
+		event.begin();
 		switch (axis) {
 		case X_AXIS:
 			rotateX(e, theta);
@@ -40,9 +69,13 @@ public class Transform3D {
 			rotateZ(e, theta);
 			break;
 		}
+		commitEvent(event, axis >= 0 && axis < ROTATIONS.length ? ROTATIONS[axis]
+				: "rotate", e);
 	}
 
 	public static void rotate(Vector3D axis, Entity3D e, double theta) {
+		TransformEvent event = new TransformEvent();
+		event.begin();
 		Vector3D unit = axis.toUnitVector();
 		if (debug)
 			System.out.println("Axis unit vector: " + unit);
@@ -69,6 +102,7 @@ public class Transform3D {
 		// rotate back
 		rotateY(e, -beta);
 		rotateX(e, -alpha);
+		commitEvent(event, "rotateAxis", e);
 	}
 
 	public static void rotateScene(Scene s, double thetaX, double thetaY) {
@@ -77,22 +111,28 @@ public class Transform3D {
 	}
 
 	public static void rotateSceneX(Scene s, double theta) {
-		ArrayList<Entity3D> entities = s.getEntities();
-		for (Entity3D e : entities) {
-			rotateX(e, theta);
-		}
+		TransformEvent event = new TransformEvent();
+		event.begin();
+		transform(ROTATE_X, s.getEntities(), Math.cos(theta), Math.sin(theta),
+				0);
 		rotateX(s.getLight(), theta);
+		s.changed();
+		commitEvent(event, "rotateSceneX", s);
 	}
 
 	public static void rotateSceneY(Scene s, double theta) {
-		ArrayList<Entity3D> entities = s.getEntities();
-		for (Entity3D e : entities) {
-			rotateY(e, theta);
-		}
+		TransformEvent event = new TransformEvent();
+		event.begin();
+		transform(ROTATE_Y, s.getEntities(), Math.cos(theta), Math.sin(theta),
+				0);
 		rotateY(s.getLight(), theta);
+		s.changed();
+		commitEvent(event, "rotateSceneY", s);
 	}
 
 	public void rotate(Entity3D e, double theta) {
+		TransformEvent event = new TransformEvent();
+		event.begin();
 		// Rotate onto the z/x plane
 		rotateX(e, alpha);
 		// Rotate onto z axis
@@ -102,6 +142,7 @@ public class Transform3D {
 		// rotate back
 		rotateY(e, -beta);
 		rotateX(e, -alpha);
+		commitEvent(event, "rotateAxis", e);
 	}
 
 	public void setAxis(Vector3D axis) {
@@ -125,18 +166,7 @@ public class Transform3D {
 	}
 
 	private static void rotateX(Entity3D e, double theta) {
-		ArrayList<Point3D> points = e.getPoints();
-		for (Point3D p : points) {
-			double x = p.x;
-			double y = p.y;
-			double z = p.z;
-			p.setCoordinates(x, y * Math.cos(theta) - z * Math.sin(theta), y
-					* Math.sin(theta) + z * Math.cos(theta));
-		}
-		ArrayList<Face> faces = e.getFaces();
-		for (Face f : faces) {
-			f.computeAverageZ();
-		}
+		transform(ROTATE_X, e, Math.cos(theta), Math.sin(theta), 0);
 	}
 
 	private static void rotateX(Point3D p, double theta) {
@@ -148,18 +178,7 @@ public class Transform3D {
 	}
 
 	private static void rotateY(Entity3D e, double theta) {
-		ArrayList<Point3D> points = e.getPoints();
-		for (Point3D p : points) {
-			double x = p.x;
-			double y = p.y;
-			double z = p.z;
-			p.setCoordinates((x * Math.cos(theta) + z * Math.sin(theta)), y, (z
-					* Math.cos(theta) - x * Math.sin(theta)));
-		}
-		ArrayList<Face> faces = e.getFaces();
-		for (Face f : faces) {
-			f.computeAverageZ();
-		}
+		transform(ROTATE_Y, e, Math.cos(theta), Math.sin(theta), 0);
 	}
 
 	private static void rotateY(Point3D p, double theta) {
@@ -171,18 +190,7 @@ public class Transform3D {
 	}
 
 	private static void rotateZ(Entity3D e, double theta) {
-		ArrayList<Point3D> points = e.getPoints();
-		for (Point3D p : points) {
-			double x = p.x;
-			double y = p.y;
-			double z = p.z;
-			p.setCoordinates(x * Math.cos(theta) - y * Math.sin(theta), y
-					* Math.cos(theta) + x * Math.sin(theta), z);
-		}
-		ArrayList<Face> faces = e.getFaces();
-		for (Face f : faces) {
-			f.computeAverageZ();
-		}
+		transform(ROTATE_Z, e, Math.cos(theta), Math.sin(theta), 0);
 	}
 
 	private static void rotateZ(Point3D p, double theta) {
@@ -194,14 +202,10 @@ public class Transform3D {
 	}
 
 	public static void translate(Entity3D e, Vector3D t) {
-		ArrayList<Point3D> points = e.getPoints();
-		for (Point3D p : points) {
-			p.setCoordinates(p.x + t.x, p.y + t.y, p.z + t.z);
-		}
-		ArrayList<Face> faces = e.getFaces();
-		for (Face f : faces) {
-			f.computeAverageZ();
-		}
+		TransformEvent event = new TransformEvent();
+		event.begin();
+		transform(TRANSLATE, e, t.x, t.y, t.z);
+		commitEvent(event, "translate", e);
 	}
 
 	/**
@@ -211,13 +215,326 @@ public class Transform3D {
 	 * @param v
 	 */
 	public static void scale(Entity3D e, Vector3D v) {
-		ArrayList<Point3D> points = e.getPoints();
-		for (Point3D p : points) {
-			p.setCoordinates(v.x * p.x, v.y * p.y, v.z * p.z);
+		TransformEvent event = new TransformEvent();
+		event.begin();
+		transform(SCALE, e, v.x, v.y, v.z);
+		commitEvent(event, "scale", e);
+	}
+
+	/**
+	 * Applies an operation to one entity, splitting it up if it's big.
+	 * 
+	 * @param op
+	 *            One of the operation constants.
+	 * @param e
+	 * @param a
+	 * @param b
+	 * @param c
+	 *            The operation's arguments, see transformPoints.
+	 */
+	private static void transform(int op, Entity3D e, double a, double b,
+			double c) {
+		if (e.getPoints().size() < PARALLEL_THRESHOLD
+				&& e.getFaces().size() < PARALLEL_THRESHOLD) {
+			apply(op, e, a, b, c);
+		} else {
+			new PointTask(op, e, 0, e.getPoints().size(), a, b, c).invoke();
+			new FaceTask(e.getFaces(), 0, e.getFaces().size()).invoke();
+		}
+		e.pointsChanged();
+	}
+
+	/**
+	 * Applies an operation to a list of entities. If they have enough points
+	 * between them, the entities are handed out across the pool, and big ones
+	 * are split up further.
+	 * 
+	 * @param op
+	 * @param entities
+	 * @param a
+	 * @param b
+	 * @param c
+	 */
+	private static void transform(int op, ArrayList<Entity3D> entities,
+			double a, double b, double c) {
+		int count = entities.size();
+		// Running totals of the work per entity, to split the list evenly.
+		long[] work = new long[count + 1];
+		for (int i = 0; i < count; i++) {
+			work[i + 1] = work[i] + weight(entities.get(i));
+		}
+		if (work[count] < PARALLEL_THRESHOLD) {
+			for (int i = 0; i < count; i++) {
+				apply(op, entities.get(i), a, b, c);
+			}
+		} else {
+			new EntityTask(op, entities, work, 0, count, a, b, c).invoke();
+		}
+		// Telling the scene index isn't thread safe, so it's done here.
+		for (int i = 0; i < count; i++) {
+			entities.get(i).pointsChanged();
+		}
+	}
+
+	/**
+	 * Gets how much work transforming an entity is, counted in points.
+	 */
+	private static long weight(Entity3D e) {
+		return 1 + e.getPoints().size() + e.getFaces().size();
+	}
+
+	/**
+	 * Applies an operation to an entity on the current thread, without
+	 * telling its scene.
+	 */
+	private static void apply(int op, Entity3D e, double a, double b, double c) {
+		if (e instanceof InstancedEntity3D) {
+			InstancedEntity3D instance = (InstancedEntity3D) e;
+			switch (op) {
+			case ROTATE_X:
+				instance.rotateX(a, b);
+				break;
+			case ROTATE_Y:
+				instance.rotateY(a, b);
+				break;
+			case ROTATE_Z:
+				instance.rotateZ(a, b);
+				break;
+			case TRANSLATE:
+				instance.translate(a, b, c);
+				break;
+			case SCALE:
+				instance.scale(a, b, c);
+				break;
+			}
+			return;
 		}
+		ArrayList<Point3D> points = e.getPoints();
+		transformPoints(op, points, 0, points.size(), a, b, c);
 		ArrayList<Face> faces = e.getFaces();
-		for (Face f : faces) {
-			f.computeAverageZ();
+		for (int i = 0; i < faces.size(); i++) {
+			faces.get(i).computeAverageZ();
+		}
+	}
+
+	/**
+	 * Applies an operation to a range of points.
+	 * 
+	 * @param op
+	 *            One of the operation constants.
+	 * @param points
+	 * @param from
+	 * @param to
+	 * @param a
+	 * @param b
+	 * @param c
+	 *            For rotations, the cosine and sine of the angle. For
+	 *            translation and scaling, the x, y and z amounts.
+	 */
+	private static void transformPoints(int op, ArrayList<Point3D> points,
+			int from, int to, double a, double b, double c) {
+		switch (op) {
+		case ROTATE_X:
+			for (int i = from; i < to; i++) {
+				Point3D p = points.get(i);
+				double y = p.y;
+				double z = p.z;
+				p.setCoordinates(p.x, y * a - z * b, y * b + z * a);
+			}
+			break;
+		case ROTATE_Y:
+			for (int i = from; i < to; i++) {
+				Point3D p = points.get(i);
+				double x = p.x;
+				double z = p.z;
+				p.setCoordinates(x * a + z * b, p.y, z * a - x * b);
+			}
+			break;
+		case ROTATE_Z:
+			for (int i = from; i < to; i++) {
+				Point3D p = points.get(i);
+				double x = p.x;
+				double y = p.y;
+				p.setCoordinates(x * a - y * b, y * a + x * b, p.z);
+			}
+			break;
+		case TRANSLATE:
+			for (int i = from; i < to; i++) {
+				Point3D p = points.get(i);
+				p.setCoordinates(p.x + a, p.y + b, p.z + c);
+			}
+			break;
+		case SCALE:
+			for (int i = from; i < to; i++) {
+				Point3D p = points.get(i);
+				p.setCoordinates(a * p.x, b * p.y, c * p.z);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Transforms a range of one entity's points, halving it until the pieces
+	 * are small enough.
+	 */
+	@SuppressWarnings("serial")
+	private static class PointTask extends RecursiveAction {
+		private final int op;
+		private final Entity3D entity;
+		private final int from, to;
+		private final double a, b, c;
+
+		PointTask(int op, Entity3D entity, int from, int to, double a,
+				double b, double c) {
+			this.op = op;
+			this.entity = entity;
+			this.from = from;
+			this.to = to;
+			this.a = a;
+			this.b = b;
+			this.c = c;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= PARALLEL_THRESHOLD) {
+				transformPoints(op, entity.getPoints(), from, to, a, b, c);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new PointTask(op, entity, from, middle, a, b, c),
+					new PointTask(op, entity, middle, to, a, b, c));
+		}
+	}
+
+	/**
+	 * Recomputes the average depth of a range of faces. Must only run once
+	 * the points have all moved.
+	 */
+	@SuppressWarnings("serial")
+	private static class FaceTask extends RecursiveAction {
+		private final ArrayList<Face> faces;
+		private final int from, to;
+
+		FaceTask(ArrayList<Face> faces, int from, int to) {
+			this.faces = faces;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= PARALLEL_THRESHOLD) {
+				for (int i = from; i < to; i++) {
+					faces.get(i).computeAverageZ();
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new FaceTask(faces, from, middle), new FaceTask(faces,
+					middle, to));
+		}
+	}
+
+	/**
+	 * Transforms a range of entities, halving it by work until the pieces are
+	 * small enough. A single big entity is split up by its points instead.
+	 */
+	@SuppressWarnings("serial")
+	private static class EntityTask extends RecursiveAction {
+		private final int op;
+		private final ArrayList<Entity3D> entities;
+		private final long[] work;
+		private final int from, to;
+		private final double a, b, c;
+
+		EntityTask(int op, ArrayList<Entity3D> entities, long[] work,
+				int from, int to, double a, double b, double c) {
+			this.op = op;
+			this.entities = entities;
+			this.work = work;
+			this.from = from;
+			this.to = to;
+			this.a = a;
+			this.b = b;
+			this.c = c;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				Entity3D e = entities.get(from);
+				if (work[to] - work[from] < PARALLEL_THRESHOLD) {
+					apply(op, e, a, b, c);
+				} else {
+					new PointTask(op, e, 0, e.getPoints().size(), a, b, c)
+							.invoke();
+					new FaceTask(e.getFaces(), 0, e.getFaces().size())
+							.invoke();
+				}
+				return;
+			}
+			if (work[to] - work[from] < PARALLEL_THRESHOLD) {
+				for (int i = from; i < to; i++) {
+					apply(op, entities.get(i), a, b, c);
+				}
+				return;
+			}
+			// Split where the work is halved, keeping one entity each side.
+			long half = (work[from] + work[to]) / 2;
+			int middle = from + 1;
+			while (middle < to - 1 && work[middle] < half) {
+				middle++;
+			}
+			invokeAll(new EntityTask(op, entities, work, from, middle, a, b,
+					c), new EntityTask(op, entities, work, middle, to, a, b, c));
+		}
+	}
+
+	/**
+	 * Finishes a Flight Recorder event for an operation on a single entity.
+	 * The payload is only gathered if the event is actually being recorded.
+	 * 
+	 * @param event
+	 * @param operation
+	 * @param e
+	 */
+	private static void commitEvent(TransformEvent event, String operation,
+			Entity3D e) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.operation = operation;
+			event.entityName = e.getName();
+			event.entityCount = 1;
+			event.pointCount = e.getPoints().size();
+			event.faceCount = e.getFaces().size();
+			event.commit();
+		}
+	}
+
+	/**
+	 * Finishes a Flight Recorder event for an operation on a whole scene.
+	 * 
+	 * @param event
+	 * @param operation
+	 * @param s
+	 */
+	private static void commitEvent(TransformEvent event, String operation,
+			Scene s) {
+		event.end();
+		if (event.shouldCommit()) {
+			ArrayList<Entity3D> entities = s.getEntities();
+			int points = 0;
+			int faces = 0;
+			for (Entity3D e : entities) {
+				points += e.getPoints().size();
+				faces += e.getFaces().size();
+			}
+			event.operation = operation;
+			event.entityCount = entities.size();
+			event.pointCount = points;
+			event.faceCount = faces;
+			event.commit();
 		}
 	}
 }
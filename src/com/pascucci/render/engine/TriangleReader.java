@@ -0,0 +1,59 @@
+package com.pascucci.render.engine;
+
+/**
+ * Decodes the vertex indices of compressed meshes a triangle at a time, so
+ * they never need unpacking into an array. Reading triangles in order carries
+ * on from where the last one left off; otherwise decoding starts from the
+ * mesh's nearest restart point before the triangle, at most
+ * Mesh.RESTART_INTERVAL - 1 triangles back.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+class TriangleReader {
+	private Mesh mesh; // Mesh the position is in
+	private int next; // Triangle the position is at
+	private int position; // Offset in the mesh's indexData
+	private int previous; // Index before the position
+
+	/**
+	 * Reads a triangle's three vertex indices.
+	 * 
+	 * @param mesh
+	 *            A compressed mesh.
+	 * @param t
+	 *            Triangle index in the mesh.
+	 * @param out
+	 *            Where to put the indices.
+	 */
+	void read(Mesh mesh, int t, int[] out) {
+		if (mesh != this.mesh || t < next
+				|| t - next > t % Mesh.RESTART_INTERVAL) {
+			int[] restarts = mesh.restarts();
+			int r = 2 * (t / Mesh.RESTART_INTERVAL);
+			this.mesh = mesh;
+			next = t - t % Mesh.RESTART_INTERVAL;
+			position = restarts[r];
+			previous = restarts[r + 1];
+		}
+		byte[] data = mesh.indexData();
+		int p = position;
+		int index = previous;
+		// Skip the indices up to the triangle, keeping its own three.
+		for (int i = 3 * (next - t); i < 3; i++) {
+			int zigzag = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = data[p++];
+				zigzag |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			index += (zigzag >>> 1) ^ -(zigzag & 1);
+			if (i >= 0)
+				out[i] = index;
+		}
+		position = p;
+		previous = index;
+		next = t + 1;
+	}
+}
@@ -0,0 +1,127 @@
+package com.pascucci.render.engine;
+
+/**
+ * One pane of a MultiViewRenderer: a direction to look at the scene from,
+ * and whether to look with perspective. The direction is a rotation from
+ * scene coordinates into the pane's, so turning a viewport doesn't move the
+ * scene the way rotating a SceneView does, and the other panes keep their
+ * views.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class Viewport {
+	// Standard views
+	public static final int FRONT = 0;
+	public static final int TOP = 1;
+	public static final int SIDE = 2;
+	public static final int PERSPECTIVE = 3;
+
+	private String name;
+	private boolean orthogonal;
+	// Row-major 3x3 rotation from scene coordinates into the viewport's.
+	final double[] orientation = { 1, 0, 0, 0, 1, 0, 0, 0, 1 };
+
+	/**
+	 * Creates a viewport looking at the scene as a SceneView would, down the
+	 * z axis.
+	 *
+	 * @param name
+	 *            Shown in the corner of the pane.
+	 * @param orthogonal
+	 */
+	public Viewport(String name, boolean orthogonal) {
+		this.name = name;
+		this.orthogonal = orthogonal;
+	}
+
+	/**
+	 * Creates one of the standard engineering views. The front view looks
+	 * down the z axis, the top view down from above and the side view in
+	 * from the right, all orthogonal. The perspective view looks down on the
+	 * front right corner.
+	 *
+	 * @param view
+	 *            FRONT, TOP, SIDE or PERSPECTIVE.
+	 * @return
+	 */
+	public static Viewport create(int view) {
+		Viewport v;
+		switch (view) {
+		case FRONT:
+			return new Viewport("Front", true);
+		case TOP:
+			v = new Viewport("Top", true);
+			v.rotate(Math.PI / 2, 0);
+			return v;
+		case SIDE:
+			v = new Viewport("Side", true);
+			v.rotate(0, -Math.PI / 2);
+			return v;
+		case PERSPECTIVE:
+			v = new Viewport("Perspective", false);
+			v.rotate(0, -Math.PI / 6);
+			v.rotate(Math.PI / 8, 0);
+			return v;
+		default:
+			throw new IllegalArgumentException("Unknown view " + view);
+		}
+	}
+
+	/**
+	 * Turns the view, like SceneView.rotateView: the scene appears to turn
+	 * about the x axis, then the y axis, of the viewport.
+	 *
+	 * @param angleUp
+	 * @param angleOver
+	 */
+	public void rotate(double angleUp, double angleOver) {
+		double c = Math.cos(angleUp);
+		double s = Math.sin(angleUp);
+		multiply(new double[] { 1, 0, 0, 0, c, -s, 0, s, c });
+		c = Math.cos(angleOver);
+		s = Math.sin(angleOver);
+		multiply(new double[] { c, 0, s, 0, 1, 0, -s, 0, c });
+	}
+
+	/**
+	 * Applies a rotation after the orientation.
+	 *
+	 * @param r
+	 *            Row-major 3x3 matrix.
+	 */
+	private void multiply(double[] r) {
+		double[] o = orientation.clone();
+		for (int row = 0; row < 3; row++) {
+			for (int column = 0; column < 3; column++) {
+				orientation[3 * row + column] = r[3 * row] * o[column]
+						+ r[3 * row + 1] * o[3 + column] + r[3 * row + 2]
+						* o[6 + column];
+			}
+		}
+	}
+
+	/**
+	 * Gets a copy of the rotation from scene coordinates into the viewport's.
+	 *
+	 * @return Row-major 3x3 matrix.
+	 */
+	public double[] getOrientation() {
+		return orientation.clone();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public boolean isOrthogonal() {
+		return orthogonal;
+	}
+
+	public void setOrthogonal(boolean on) {
+		orthogonal = on;
+	}
+}
@@ -1,7 +1,10 @@
 package com.pascucci.render.engine;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
+import com.pascucci.render.jfr.ZBufferSortEvent;
+
 /**
  * Provides a means of hidden face removal by sorting objects by their z values.
  * I know, it's not a true z-buffer, but hey, I couldn't think of another name.
@@ -12,11 +15,20 @@ import java.util.ArrayList;
 public class ZBuffer {
 	private ArrayList<Face> sortedFaces;
 
+	// Instanced entities don't have faces of their own, so their triangles
+	// are sorted as (instance, triangle) pairs in parallel arrays instead.
+	private ArrayList<InstancedEntity3D> instances;
+	private int triangleCount;
+	private double[] triangleDepth = new double[0];
+	private int[] triangleInstance = new int[0];
+	private int[] triangleIndex = new int[0];
+
 	/**
 	 * Creates an empty ZBuffer.
 	 */
 	public ZBuffer() {
 		sortedFaces = new ArrayList<Face>();
+		instances = new ArrayList<InstancedEntity3D>();
 	}
 
 	/**
@@ -25,9 +37,9 @@ public class ZBuffer {
 	 * @param list
 	 */
 	public ZBuffer(ArrayList<Entity3D> list) {
-		sortedFaces = new ArrayList<Face>();
+		this();
 		for (Entity3D e : list) {
-			sortedFaces.addAll(e.getFaces());
+			addEntity(e);
 		}
 		sort();
 	}
@@ -36,7 +48,15 @@ public class ZBuffer {
 	 * Sorts the buffer.
 	 */
 	public void sort() {
+		ZBufferSortEvent event = new ZBufferSortEvent();
+		event.begin();
 		quickSort(sortedFaces, 0, sortedFaces.size() - 1);
+		sortTriangles();
+		event.end();
+		if (event.shouldCommit()) {
+			event.faceCount = sortedFaces.size() + triangleCount;
+			event.commit();
+		}
 	}
 
 	/**
@@ -75,6 +95,117 @@ public class ZBuffer {
 		}
 	}
 
+	/**
+	 * Computes the depth of every instanced triangle from its mesh centroid
+	 * and the instance transform, then sorts them like the faces.
+	 */
+	private void sortTriangles() {
+		int count = 0;
+		for (int i = 0; i < instances.size(); i++) {
+			count += instances.get(i).getMesh().getTriangleCount();
+		}
+		if (triangleDepth.length < count) {
+			triangleDepth = new double[count];
+			triangleInstance = new int[count];
+			triangleIndex = new int[count];
+		}
+		int next = 0;
+		for (int i = 0; i < instances.size(); i++) {
+			InstancedEntity3D instance = instances.get(i);
+			double[] m = instance.matrix;
+			Mesh mesh = instance.getMesh();
+			int triangles = mesh.getTriangleCount();
+			if (mesh.isCompressed()) {
+				// Fold the dequantization into the z row of the transform.
+				short[] centroids = mesh.quantizedCentroids();
+				double[] q = mesh.quantization();
+				double zx = m[8] * q[3];
+				double zy = m[9] * q[4];
+				double zz = m[10] * q[5];
+				double z0 = m[8] * q[0] + m[9] * q[1] + m[10] * q[2] + m[11];
+				for (int t = 0; t < triangles; t++) {
+					triangleDepth[next] = zx * centroids[3 * t] + zy
+							* centroids[3 * t + 1] + zz * centroids[3 * t + 2]
+							+ z0;
+					triangleInstance[next] = i;
+					triangleIndex[next] = t;
+					next++;
+				}
+				continue;
+			}
+			if (mesh.isOffHeap()) {
+				ByteBuffer data = mesh.offHeapData();
+				int offset = mesh.centroidOffset();
+				for (int t = 0; t < triangles; t++) {
+					int c = offset + 24 * t;
+					triangleDepth[next] = m[8] * data.getDouble(c) + m[9]
+							* data.getDouble(c + 8) + m[10]
+							* data.getDouble(c + 16) + m[11];
+					triangleInstance[next] = i;
+					triangleIndex[next] = t;
+					next++;
+				}
+				continue;
+			}
+			double[] centroids = mesh.centroids();
+			for (int t = 0; t < triangles; t++) {
+				triangleDepth[next] = m[8] * centroids[3 * t] + m[9]
+						* centroids[3 * t + 1] + m[10] * centroids[3 * t + 2]
+						+ m[11];
+				triangleInstance[next] = i;
+				triangleIndex[next] = t;
+				next++;
+			}
+		}
+		triangleCount = count;
+		quickSortTriangles(0, count - 1);
+	}
+
+	/**
+	 * Same quicksort as for faces, on the parallel triangle arrays.
+	 * 
+	 * @param left
+	 * @param right
+	 */
+	private void quickSortTriangles(int left, int right) {
+		if (left >= right)
+			return;
+		int i = left;
+		int j = right;
+		double pivot = triangleDepth[(i + j) / 2];
+		while (i <= j) {
+			while (triangleDepth[i] < pivot) {
+				i++;
+			}
+			while (triangleDepth[j] > pivot) {
+				j--;
+			}
+			if (i <= j) {
+				swapTriangles(i, j);
+				i++;
+				j--;
+			}
+		}
+		if (left < i) {
+			quickSortTriangles(left, i - 1);
+		}
+		if (right > i) {
+			quickSortTriangles(i, right);
+		}
+	}
+
+	private void swapTriangles(int i, int j) {
+		double depth = triangleDepth[i];
+		triangleDepth[i] = triangleDepth[j];
+		triangleDepth[j] = depth;
+		int instance = triangleInstance[i];
+		triangleInstance[i] = triangleInstance[j];
+		triangleInstance[j] = instance;
+		int index = triangleIndex[i];
+		triangleIndex[i] = triangleIndex[j];
+		triangleIndex[j] = index;
+	}
+
 	/**
 	 * Swaps two entities in an ArrayList
 	 * 
@@ -100,13 +231,66 @@ public class ZBuffer {
 		return sortedFaces;
 	}
 
+	/**
+	 * Gets the instanced entities in the buffer.
+	 * 
+	 * @return
+	 */
+	public ArrayList<InstancedEntity3D> getInstances() {
+		return instances;
+	}
+
+	/**
+	 * Gets the number of instanced triangles sorted by the last call to
+	 * sort().
+	 * 
+	 * @return
+	 */
+	public int getSortedTriangleCount() {
+		return triangleCount;
+	}
+
+	/**
+	 * Gets the depth of the i-th sorted instanced triangle.
+	 * 
+	 * @param i
+	 * @return
+	 */
+	public double getSortedTriangleDepth(int i) {
+		return triangleDepth[i];
+	}
+
+	/**
+	 * Gets which instance the i-th sorted triangle belongs to, as an index
+	 * into getInstances().
+	 * 
+	 * @param i
+	 * @return
+	 */
+	public int getSortedTriangleInstance(int i) {
+		return triangleInstance[i];
+	}
+
+	/**
+	 * Gets the mesh triangle index of the i-th sorted triangle.
+	 * 
+	 * @param i
+	 * @return
+	 */
+	public int getSortedTriangleIndex(int i) {
+		return triangleIndex[i];
+	}
+
 	/**
 	 * Adds an entity to the list. The list must then be sorted by the user.
 	 * 
 	 * @param e
 	 */
 	public void addEntity(Entity3D e) {
-		sortedFaces.addAll(e.getFaces());
+		if (e instanceof InstancedEntity3D)
+			instances.add((InstancedEntity3D) e);
+		else
+			sortedFaces.addAll(e.getFaces());
 	}
 
 	/**
@@ -115,7 +299,12 @@ public class ZBuffer {
 	 * @param e
 	 */
 	public void removeEntity(Entity3D e) {
-		sortedFaces.removeAll(e.getFaces());
+		if (e instanceof InstancedEntity3D) {
+			instances.remove(e);
+			triangleCount = 0;
+		} else {
+			sortedFaces.removeAll(e.getFaces());
+		}
 	}
 
 	/**
@@ -123,5 +312,7 @@ public class ZBuffer {
 	 */
 	public void clear() {
 		sortedFaces.clear();
+		instances.clear();
+		triangleCount = 0;
 	}
 }
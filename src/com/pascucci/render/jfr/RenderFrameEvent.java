@@ -0,0 +1,58 @@
+package com.pascucci.render.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event covering one call to Renderer.renderScene.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+@Name("com.pascucci.render.RenderFrame")
+@Label("Render Frame")
+@Category({ "Renderer", "Render" })
+@Description("Rendering a scene to a Graphics2D target")
+public class RenderFrameEvent extends Event {
+
+	@Label("Width")
+	public int width;
+
+	@Label("Height")
+	public int height;
+
+	@Label("Resolution")
+	@Description("Fraction of the output resolution the frame was drawn at")
+	public double resolution;
+
+	@Label("Entity Count")
+	public int entityCount;
+
+	@Label("Faces Submitted")
+	public int facesSubmitted;
+
+	@Label("Faces Culled")
+	public int facesCulled;
+
+	@Label("Faces Occluded")
+	public int facesOccluded;
+
+	@Label("Faces Drawn")
+	public int facesDrawn;
+
+	@Label("Wireframe")
+	public boolean wireframe;
+
+	@Label("Points")
+	@Description("Whether vertices were drawn as dots, counted as points")
+	public boolean points;
+
+	@Label("Orthogonal")
+	public boolean orthogonal;
+
+	@Label("Cancelled")
+	@Description("Whether the frame was given up before it was finished")
+	public boolean cancelled;
+}
@@ -0,0 +1,33 @@
+package com.pascucci.render.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event covering the parse of one STL file.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+@Name("com.pascucci.render.STLLoad")
+@Label("STL Load")
+@Category({ "Renderer", "Load" })
+@Description("Parsing an STL file into an entity")
+public class STLLoadEvent extends Event {
+
+	@Label("Path")
+	public String path;
+
+	@Label("File Size")
+	@DataAmount
+	public long fileSize;
+
+	@Label("Face Count")
+	public int faceCount;
+
+	@Label("Entity")
+	public String entityName;
+}
@@ -0,0 +1,36 @@
+package com.pascucci.render.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event covering one Transform3D operation on an entity or a
+ * whole scene.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+@Name("com.pascucci.render.Transform")
+@Label("Transform")
+@Category({ "Renderer", "Transform" })
+@Description("A rotation, translation or scale applied to geometry")
+public class TransformEvent extends Event {
+
+	@Label("Operation")
+	public String operation;
+
+	@Label("Entity")
+	@Description("Name of the transformed entity, or null for a scene")
+	public String entityName;
+
+	@Label("Entity Count")
+	public int entityCount;
+
+	@Label("Point Count")
+	public int pointCount;
+
+	@Label("Face Count")
+	public int faceCount;
+}
@@ -0,0 +1,22 @@
+package com.pascucci.render.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event covering one depth sort of a ZBuffer.
+ * 
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+@Name("com.pascucci.render.ZBufferSort")
+@Label("ZBuffer Sort")
+@Category({ "Renderer", "Render" })
+@Description("Sorting faces by depth for the painter's algorithm")
+public class ZBufferSortEvent extends Event {
+
+	@Label("Face Count")
+	public int faceCount;
+}
@@ -0,0 +1,174 @@
+package com.pascucci.render.utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.pascucci.render.engine.Entity3D;
+import com.pascucci.render.engine.Mesh;
+
+/**
+ * Keeps meshes parsed from STL files, for programs which draw the same files
+ * over and over. A file is parsed again only once it has been changed, and
+ * the least recently used meshes are dropped once they take up more than the
+ * budget. If several threads ask for a file at once, it is only parsed once,
+ * the others waiting for the result.
+ *
+ * Meshes can't be changed, so the same one can be drawn by many threads at
+ * once, each through its own InstancedEntity3D.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+public class MeshCache {
+	private final long budget;
+	private long size;
+	private long hits;
+	private long parses;
+
+	// By canonical path, least recently used first.
+	private final LinkedHashMap<String, Entry> meshes = new LinkedHashMap<String, Entry>(
+			16, .75f, true);
+	// By path and modification time.
+	private final ConcurrentHashMap<String, FutureTask<Mesh>> parsing = new ConcurrentHashMap<String, FutureTask<Mesh>>();
+
+	private static class Entry {
+		final long modified;
+		final Mesh mesh;
+
+		Entry(long modified, Mesh mesh) {
+			this.modified = modified;
+			this.mesh = mesh;
+		}
+	}
+
+	/**
+	 * @param budget
+	 *            How many bytes of meshes to keep at most.
+	 */
+	public MeshCache(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Gets the mesh in an STL file, parsing it if it isn't cached or has been
+	 * changed since.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             If the file doesn't exist or couldn't be parsed.
+	 */
+	public Mesh get(File file) throws IOException {
+		final File canonical = file.getCanonicalFile();
+		final String path = canonical.getPath();
+		final long modified = canonical.lastModified();
+		if (modified == 0 || !canonical.isFile())
+			throw new FileNotFoundException(path);
+		Mesh mesh = lookup(path, modified);
+		if (mesh != null)
+			return mesh;
+
+		String key = path + '@' + modified;
+		FutureTask<Mesh> task = new FutureTask<Mesh>(new Callable<Mesh>() {
+			public Mesh call() throws IOException {
+				Mesh mesh = lookup(path, modified);
+				if (mesh == null) {
+					mesh = parse(canonical);
+					store(path, modified, mesh);
+				}
+				return mesh;
+			}
+		});
+		FutureTask<Mesh> running = parsing.putIfAbsent(key, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				parsing.remove(key, task);
+			}
+		}
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for " + path);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private synchronized Mesh lookup(String path, long modified) {
+		Entry entry = meshes.get(path);
+		if (entry != null && entry.modified == modified) {
+			hits++;
+			return entry.mesh;
+		}
+		return null;
+	}
+
+	/**
+	 * Adds a mesh, replacing any older version of the file, and drops the
+	 * least recently used meshes until the cache fits its budget. A mesh
+	 * bigger than the whole budget isn't kept.
+	 */
+	private synchronized void store(String path, long modified, Mesh mesh) {
+		parses++;
+		Entry old = meshes.remove(path);
+		if (old != null)
+			size -= old.mesh.getDataSize();
+		long bytes = mesh.getDataSize();
+		if (bytes > budget)
+			return;
+		Iterator<Entry> eldest = meshes.values().iterator();
+		while (size + bytes > budget && eldest.hasNext()) {
+			size -= eldest.next().mesh.getDataSize();
+			eldest.remove();
+		}
+		meshes.put(path, new Entry(modified, mesh));
+		size += bytes;
+	}
+
+	private static Mesh parse(File file) throws IOException {
+		Entity3D entity;
+		try {
+			entity = STLUtils.entityFromSTL(file, null);
+		} catch (RuntimeException e) {
+			throw new IOException(file + " is not a valid STL file.", e);
+		}
+		if (entity == null)
+			throw new IOException("Couldn't read " + file);
+		return Mesh.fromEntity(entity);
+	}
+
+	/**
+	 * Gets how many bytes the cached meshes take.
+	 *
+	 * @return
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Gets how many files have been parsed, including those parsed again
+	 * after changing.
+	 *
+	 * @return
+	 */
+	public synchronized long getParses() {
+		return parses;
+	}
+}
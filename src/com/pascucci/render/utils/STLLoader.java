@@ -2,35 +2,88 @@ package com.pascucci.render.utils;
 
 import java.awt.Component;
 import java.io.File;
+import java.io.IOException;
 
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
+import com.pascucci.render.engine.ChunkFile;
 import com.pascucci.render.engine.Entity3D;
-import com.pascucci.render.engine.Scene;
+import com.pascucci.render.engine.InstancedEntity3D;
+import com.pascucci.render.engine.Mesh;
+import com.pascucci.render.engine.MeshArena;
+import com.pascucci.render.engine.StreamedModel;
 
 /**
  * Very simple class to offload loading of STL files away from the main thread.
+ * The entity loaded isn't added to a scene here, since frames may be being
+ * drawn from it; the listener is told from the loading thread, and adds it
+ * from the thread which changes the scene.
  * 
  * @author Nick Pascucci <nick@kestrelrobotics.com>
  */
 
 public class STLLoader implements Runnable {
+	// Triangles in each chunk of a streamed model.
+	private static final int CHUNK_TRIANGLES = 16384;
+
 	private Component parent;
 	private File target;
 	private Entity3D entity;
-	private Scene scene;
 	private ChangeListener changelistener;
+	private boolean compressed = false;
+	private boolean streamed = false;
+	private boolean offHeap = false;
 
-	public STLLoader(Component parent, File target, Scene scene) {
+	public STLLoader(Component parent, File target) {
 		this.parent = parent;
 		this.target = target;
-		this.scene = scene;
+	}
+
+	/**
+	 * Chooses whether the model is kept as a compressed Mesh rather than as
+	 * points and faces. A compressed model takes a fraction of the memory,
+	 * but as an instance of a shared mesh it can't be edited afterwards.
+	 * 
+	 * @param on
+	 */
+	public void setCompressed(boolean on) {
+		compressed = on;
+	}
+
+	/**
+	 * Chooses whether the model is streamed from disk rather than loaded
+	 * whole, for models too big for memory. The STL is split into a chunk
+	 * file next to it the first time, which later imports reuse.
+	 * 
+	 * @param on
+	 */
+	public void setStreamed(boolean on) {
+		streamed = on;
+	}
+
+	/**
+	 * Chooses whether the model is kept as a Mesh stored off the Java heap,
+	 * so that garbage collection doesn't slow down with the size of the
+	 * model. Like a compressed model it can't be edited afterwards. Has no
+	 * effect on compressed models, which stay small enough for the heap.
+	 * 
+	 * @param on
+	 */
+	public void setOffHeap(boolean on) {
+		offHeap = on;
 	}
 
 	public void run() {
-		entity = STLUtils.entityFromSTL(target, parent);
-		scene.addEntity(entity);
+		if (streamed) {
+			entity = stream(target);
+		} else {
+			entity = STLUtils.entityFromSTL(target, parent);
+			if (compressed && entity != null)
+				entity = compress(entity);
+			else if (offHeap && entity != null)
+				entity = moveOffHeap(entity);
+		}
 		changelistener.stateChanged(new ChangeEvent(this));
 	}
 
@@ -41,4 +94,66 @@ public class STLLoader implements Runnable {
 	public Entity3D getEntity() {
 		return entity;
 	}
+
+	/**
+	 * Opens an STL file as a streamed model, building its chunk file first if
+	 * there isn't one or the STL has changed since. The model may keep a
+	 * quarter of the heap loaded.
+	 * 
+	 * @param stl
+	 * @return The model, or null if it couldn't be opened.
+	 */
+	private static Entity3D stream(File stl) {
+		File chunks = new File(stl.getPath() + ".chunks");
+		try {
+			if (!chunks.exists() || chunks.lastModified() < stl.lastModified())
+				ChunkFile.build(stl, chunks, CHUNK_TRIANGLES);
+			StreamedModel model = new StreamedModel(ChunkFile.open(chunks),
+					Runtime.getRuntime().maxMemory() / 4);
+			model.setName(stl.getName());
+			model.setMaterial(STLUtils.MATERIAL);
+			return model;
+		} catch (IOException e) {
+			System.out.println("Couldn't stream " + stl + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Replaces a freshly loaded entity with an instance of its compressed
+	 * geometry, looking the same.
+	 * 
+	 * @param e
+	 * @return
+	 */
+	private static Entity3D compress(Entity3D e) {
+		return replace(e, Mesh.fromEntity(e).compress());
+	}
+
+	/**
+	 * Replaces a freshly loaded entity with an instance of its geometry
+	 * stored off the heap, in an arena of its own, looking the same.
+	 * 
+	 * @param e
+	 * @return The instance, or the entity itself if its mesh is too big for
+	 *         an arena block.
+	 */
+	private static Entity3D moveOffHeap(Entity3D e) {
+		try {
+			return replace(e, Mesh.fromEntity(e).storeOffHeap(new MeshArena()));
+		} catch (IllegalArgumentException iae) {
+			System.out.println("Couldn't store " + e.getName()
+					+ " off the heap: " + iae.getMessage());
+			return e;
+		}
+	}
+
+	private static Entity3D replace(Entity3D e, Mesh mesh) {
+		InstancedEntity3D instance = new InstancedEntity3D(mesh);
+		instance.setName(e.getName());
+		if (!e.getFaces().isEmpty()) {
+			instance.setMaterial(e.getFaces().get(0).getMaterial());
+		}
+		return instance;
+	}
 }
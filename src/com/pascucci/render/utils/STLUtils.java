@@ -7,6 +7,7 @@ package com.pascucci.render.utils;
 
 import java.awt.Color;
 import java.awt.Component;
+import java.awt.GraphicsEnvironment;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -18,8 +19,10 @@ import javax.swing.ProgressMonitor;
 
 import com.pascucci.render.engine.Entity3D;
 import com.pascucci.render.engine.Face;
+import com.pascucci.render.engine.Material;
 import com.pascucci.render.engine.Point3D;
 import com.pascucci.render.engine.Vector3D;
+import com.pascucci.render.jfr.STLLoadEvent;
 
 /**
  * Provides utilities for manipulating STL files and parsing them into
@@ -37,12 +40,20 @@ public class STLUtils {
 
 	public static final int order = LITTLE_ENDIAN;
 
+	/**
+	 * What faces read from STL files look like, since the format doesn't
+	 * say.
+	 */
+	public static final Material MATERIAL = new Material(Color.DARK_GRAY);
+
 	/**
 	 * Reads in an entity from a stored STL file. Adapted from the code at
 	 * http://www.resplendent.com/StlFile.java
 	 * 
 	 * @param input
 	 *            The STL file.
+	 * @param parent
+	 *            Owner of the progress dialog, or null for no progress UI.
 	 * @return
 	 */
 	public static Entity3D entityFromSTL(File input, Component parent) {
@@ -53,6 +64,8 @@ public class STLUtils {
 		byte[] tmp;
 
 		int NUM_FACES;
+		STLLoadEvent event = new STLLoadEvent();
+		event.begin();
 
 		try {
 			file = new FileInputStream(input);
@@ -64,10 +77,14 @@ public class STLUtils {
 				buffer = ByteBuffer.wrap(faces);
 				buffer.order(ByteOrder.nativeOrder());
 				NUM_FACES = buffer.getInt();
-				ProgressMonitor pm = new ProgressMonitor(parent,
-						"Importing file " + input.getName(), "", 0,
-						NUM_FACES - 1);
-				pm.setMillisToPopup(0);
+				// Without a parent window (benchmarks, headless use) there is
+				// nowhere to show progress.
+				ProgressMonitor pm = null;
+				if (parent != null && !GraphicsEnvironment.isHeadless()) {
+					pm = new ProgressMonitor(parent, "Importing file "
+							+ input.getName(), "", 0, NUM_FACES - 1);
+					pm.setMillisToPopup(0);
+				}
 
 				tmp = new byte[50 * NUM_FACES]; // Each face contains 50 bytes
 												// of data
@@ -83,12 +100,22 @@ public class STLUtils {
 						buffer.get();
 						buffer.get();
 					}
-					String message = "Read " + i + " of " + (NUM_FACES - 1)
-							+ " faces.";
-					pm.setProgress(i);
-					pm.setNote(message);
+					if (pm != null) {
+						String message = "Read " + i + " of "
+								+ (NUM_FACES - 1) + " faces.";
+						pm.setProgress(i);
+						pm.setNote(message);
+					}
 				}
 				entity.setName(input.getName());
+				event.end();
+				if (event.shouldCommit()) {
+					event.path = input.getPath();
+					event.fileSize = input.length();
+					event.faceCount = NUM_FACES;
+					event.entityName = entity.getName();
+					event.commit();
+				}
 				return entity;
 			}
 		} catch (FileNotFoundException fnf) {
@@ -122,9 +149,7 @@ public class STLUtils {
 		if (debug)
 			System.out.println("Read vertex " + points[2]);
 		Face f = new Face(points);
-		f.setColor(Color.DARK_GRAY);
-		f.ambientSensitivity = 1;
-		f.diffuseSensitivity = 1;
+		f.setMaterial(MATERIAL);
 		Vector3D faceNormal = Utils3D.normal(f);
 		if (debug)
 			System.out.println("Calculated normal " + faceNormal);
@@ -2,9 +2,12 @@ package com.pascucci.render.utils;
 
 import java.awt.Color;
 
+import com.pascucci.render.engine.BoundingBox;
 import com.pascucci.render.engine.Entity3D;
 import com.pascucci.render.engine.Face;
+import com.pascucci.render.engine.Material;
 import com.pascucci.render.engine.Point3D;
+import com.pascucci.render.engine.Transform3D;
 import com.pascucci.render.engine.Vector3D;
 
 /**
@@ -53,14 +56,9 @@ public class Utils3D {
 				Color.YELLOW, Color.DARK_GRAY, Color.PINK, Color.BLUE,
 				Color.CYAN, Color.MAGENTA, Color.LIGHT_GRAY };
 		for (int i = 0; i < faces.length; i += 2) {
-			faces[i].setColor(paints[i / 2 % paints.length]);
-			faces[i + 1].setColor(paints[i / 2 % paints.length]);
-			faces[i].ambientSensitivity = 1;
-			faces[i].diffuseSensitivity = 1;
-			faces[i + 1].ambientSensitivity = 1;
-			faces[i + 1].diffuseSensitivity = 1;
-			faces[i].setBorderColor(paints[i / 2 % paints.length]);
-			faces[i + 1].setBorderColor(paints[i / 2 % paints.length]);
+			Material side = new Material(paints[i / 2 % paints.length]);
+			faces[i].setMaterial(side);
+			faces[i + 1].setMaterial(side);
 		}
 		cube.addFaces(faces);
 		return cube;
@@ -77,6 +75,24 @@ public class Utils3D {
 		return cube(sideLength, 0, 0, 0);
 	}
 	
+	/**
+	 * Moves an entity so its bounds are centered on the origin, and scales it
+	 * so they fit in a sphere of the given radius.
+	 * 
+	 * @param e
+	 * @param radius
+	 */
+	public static void fit(Entity3D e, double radius) {
+		BoundingBox b = e.getBounds();
+		double extent = b.getHalfExtent();
+		Transform3D.translate(e, new Vector3D(-b.getCenterX(), -b.getCenterY(),
+				-b.getCenterZ()));
+		if (extent > 0) {
+			double s = radius / extent;
+			Transform3D.scale(e, new Vector3D(s, s, s));
+		}
+	}
+
 	/**
 	 * Calculates the normal vector to a face.
 	 * 
@@ -0,0 +1,73 @@
+/*
+ * All rights reserved by the author.
+ * Unauthorized distribution is prohibited.
+ */
+
+package com.pascucci.render.view;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.pascucci.render.engine.Camera;
+import com.pascucci.render.engine.Entity3D;
+import com.pascucci.render.engine.FrameExporter;
+import com.pascucci.render.engine.Renderer;
+import com.pascucci.render.engine.Scene;
+import com.pascucci.render.utils.STLUtils;
+import com.pascucci.render.utils.Utils3D;
+
+/**
+ * Renders a turntable of an STL file to PNG frames from the command line,
+ * without opening a window:
+ *
+ * <pre>
+ * ExportTurntable model.stl output-directory [frames [width height]]
+ * </pre>
+ *
+ * The model is centered and sized to fill most of the frame.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+
+public class ExportTurntable {
+	private static final double CAMERA_DISTANCE = 800;
+	// Radius the model is scaled to; its near side is drawn larger.
+	private static final double MODEL_RADIUS = 200;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2 && args.length != 3 && args.length != 5) {
+			System.out.println("Usage: ExportTurntable model.stl "
+					+ "output-directory [frames [width height]]");
+			System.exit(1);
+		}
+		System.setProperty("java.awt.headless", "true");
+		File model = new File(args[0]);
+		File output = new File(args[1]);
+		int frames = args.length > 2 ? Integer.parseInt(args[2]) : 120;
+		int width = args.length > 4 ? Integer.parseInt(args[3]) : 1280;
+		int height = args.length > 4 ? Integer.parseInt(args[4]) : 720;
+
+		Entity3D entity = STLUtils.entityFromSTL(model, null);
+		if (entity == null)
+			System.exit(1);
+		Utils3D.fit(entity, MODEL_RADIUS);
+		Scene scene = new Scene();
+		scene.setCamera(new Camera(0, 0, CAMERA_DISTANCE));
+		scene.addEntity(entity);
+
+		Renderer renderer = new Renderer();
+		double nearest = MODEL_RADIUS * CAMERA_DISTANCE
+				/ (CAMERA_DISTANCE - MODEL_RADIUS);
+		renderer.setScale(.45 * Math.min(width, height) / nearest);
+
+		output.mkdirs();
+		String prefix = model.getName().replaceFirst("\\.[^.]*$", "") + "_";
+		FrameExporter exporter = new FrameExporter(scene, renderer, width,
+				height);
+		long start = System.nanoTime();
+		exporter.export(output, prefix, frames, FrameExporter.TURNTABLE);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("Wrote %d frames in %.1f s (%.1f fps)",
+				frames, seconds, frames / seconds));
+	}
+}
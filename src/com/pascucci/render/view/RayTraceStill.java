@@ -0,0 +1,73 @@
+/*
+ * All rights reserved by the author.
+ * Unauthorized distribution is prohibited.
+ */
+
+package com.pascucci.render.view;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import com.pascucci.render.engine.Camera;
+import com.pascucci.render.engine.Entity3D;
+import com.pascucci.render.engine.RayTracer;
+import com.pascucci.render.engine.Renderer;
+import com.pascucci.render.engine.Scene;
+import com.pascucci.render.utils.STLUtils;
+import com.pascucci.render.utils.Utils3D;
+
+/**
+ * Ray traces a still of an STL file to a PNG from the command line, without
+ * opening a window:
+ *
+ * <pre>
+ * RayTraceStill model.stl output.png [width height [samples]]
+ * </pre>
+ *
+ * The model is framed as ExportTurntable frames it.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+
+public class RayTraceStill {
+	private static final double CAMERA_DISTANCE = 800;
+	private static final double MODEL_RADIUS = 200;
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		if (args.length != 2 && args.length != 4 && args.length != 5) {
+			System.out.println("Usage: RayTraceStill model.stl output.png "
+					+ "[width height [samples]]");
+			System.exit(1);
+		}
+		System.setProperty("java.awt.headless", "true");
+		File model = new File(args[0]);
+		File output = new File(args[1]);
+		int width = args.length > 2 ? Integer.parseInt(args[2]) : 3840;
+		int height = args.length > 2 ? Integer.parseInt(args[3]) : 2160;
+		int samples = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+
+		Entity3D entity = STLUtils.entityFromSTL(model, null);
+		if (entity == null)
+			System.exit(1);
+		Utils3D.fit(entity, MODEL_RADIUS);
+		Scene scene = new Scene();
+		scene.setCamera(new Camera(0, 0, CAMERA_DISTANCE));
+		scene.addEntity(entity);
+
+		Renderer renderer = new Renderer();
+		double nearest = MODEL_RADIUS * CAMERA_DISTANCE
+				/ (CAMERA_DISTANCE - MODEL_RADIUS);
+		renderer.setScale(.45 * Math.min(width, height) / nearest);
+
+		long start = System.nanoTime();
+		RayTracer tracer = new RayTracer(scene, renderer);
+		tracer.setSamples(samples);
+		ImageIO.write(tracer.render(width, height), "png", output);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("Traced %dx%d in %.1f s", width,
+				height, seconds));
+	}
+}
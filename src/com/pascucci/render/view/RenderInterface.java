@@ -7,8 +7,12 @@ import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.ArrayList;
 
+import javax.imageio.ImageIO;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
@@ -17,6 +21,8 @@ import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
 import javax.swing.JTree;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import javax.swing.event.TreeSelectionEvent;
@@ -28,8 +34,14 @@ import javax.swing.tree.TreeSelectionModel;
 
 import com.pascucci.render.engine.Entity3D;
 import com.pascucci.render.engine.Face;
+import com.pascucci.render.engine.FrameExporter;
+import com.pascucci.render.engine.InstancedEntity3D;
+import com.pascucci.render.engine.QuadView;
+import com.pascucci.render.engine.RayTracer;
+import com.pascucci.render.engine.Renderer;
 import com.pascucci.render.engine.Scene;
 import com.pascucci.render.engine.SceneView;
+import com.pascucci.render.engine.StreamedModel;
 import com.pascucci.render.engine.Transform3D;
 import com.pascucci.render.engine.Vector3D;
 import com.pascucci.render.utils.STLLoader;
@@ -59,8 +71,22 @@ public class RenderInterface extends JFrame implements ActionListener,
 	// Render
 	private JMenuItem wireframe;
 	private JMenuItem solid;
+	private JMenuItem points;
+	private JMenuItem sparsePoints;
+	private static final int SPARSE_POINT_STRIDE = 16;
 	private JMenuItem orthogonal;
 	private JMenuItem perspective;
+	private JCheckBoxMenuItem frameStats;
+	private JCheckBoxMenuItem orderIndependent;
+	private JCheckBoxMenuItem occlusionCulling;
+	private JMenuItem antialiasOff;
+	private JMenuItem antialiasShapes;
+	private JMenuItem antialiasEdges;
+	private JMenuItem supersample2;
+	private JMenuItem supersample3;
+	private JCheckBoxMenuItem dynamicResolution;
+	private JCheckBoxMenuItem quadView;
+	private static final double TARGET_FRAME_TIME = 16; // Milliseconds
 
 	// Scene
 	private JMenuItem lightSource;
@@ -76,9 +102,20 @@ public class RenderInterface extends JFrame implements ActionListener,
 
 	// Render View
 	SceneView view;
+	private QuadView quad; // Created when first shown
+	private GridBagConstraints viewConstraints;
 
 	// STL Import
 	JFileChooser fc;
+	private JCheckBoxMenuItem compressImports;
+	private JCheckBoxMenuItem streamImports;
+	private JCheckBoxMenuItem offHeapImports;
+
+	// Export
+	private JMenuItem exportTurntable;
+	private static final int TURNTABLE_FRAMES = 120;
+	private JMenuItem rayTrace;
+	private static final int RAY_TRACE_SAMPLES = 16;
 
 	public RenderInterface() {
 		super();
@@ -104,6 +141,7 @@ public class RenderInterface extends JFrame implements ActionListener,
 		constraints.gridy = 0;
 		constraints.fill = GridBagConstraints.BOTH;
 		add(view, constraints);
+		viewConstraints = (GridBagConstraints) constraints.clone();
 
 		// Scene Tree
 		createTree();
@@ -123,6 +161,18 @@ public class RenderInterface extends JFrame implements ActionListener,
 		stlImport = new JMenuItem("Import STL");
 		stlImport.addActionListener(this);
 		fileMenu.add(stlImport);
+		compressImports = new JCheckBoxMenuItem("Compress Imported Meshes");
+		fileMenu.add(compressImports);
+		streamImports = new JCheckBoxMenuItem("Stream Imports From Disk");
+		fileMenu.add(streamImports);
+		offHeapImports = new JCheckBoxMenuItem("Store Imports Off Heap");
+		fileMenu.add(offHeapImports);
+		exportTurntable = new JMenuItem("Export Turntable...");
+		exportTurntable.addActionListener(this);
+		fileMenu.add(exportTurntable);
+		rayTrace = new JMenuItem("Ray Trace Still...");
+		rayTrace.addActionListener(this);
+		fileMenu.add(rayTrace);
 		clear = new JMenuItem("Erase All");
 		clear.addActionListener(this);
 		fileMenu.add(clear);
@@ -142,16 +192,55 @@ public class RenderInterface extends JFrame implements ActionListener,
 		renderMenu.add(viewStyleMenu);
 		wireframe = new JMenuItem("Wireframe");
 		solid = new JMenuItem("Solid");
+		points = new JMenuItem("Points");
+		sparsePoints = new JMenuItem("Sparse Points");
 		orthogonal = new JMenuItem("Orthogonal");
 		perspective = new JMenuItem("Perspective");
 		viewStyleMenu.add(wireframe);
 		viewStyleMenu.add(solid);
+		viewStyleMenu.add(points);
+		viewStyleMenu.add(sparsePoints);
 		viewStyleMenu.add(orthogonal);
 		viewStyleMenu.add(perspective);
 		wireframe.addActionListener(this);
 		solid.addActionListener(this);
+		points.addActionListener(this);
+		sparsePoints.addActionListener(this);
 		orthogonal.addActionListener(this);
 		perspective.addActionListener(this);
+		JMenu antialiasMenu = new JMenu("Antialiasing");
+		renderMenu.add(antialiasMenu);
+		antialiasOff = new JMenuItem("Off");
+		antialiasShapes = new JMenuItem("Every Face");
+		antialiasEdges = new JMenuItem("Edge Filter");
+		supersample2 = new JMenuItem("Supersample 2x");
+		supersample3 = new JMenuItem("Supersample 3x");
+		antialiasMenu.add(antialiasOff);
+		antialiasMenu.add(antialiasShapes);
+		antialiasMenu.add(antialiasEdges);
+		antialiasMenu.add(supersample2);
+		antialiasMenu.add(supersample3);
+		antialiasOff.addActionListener(this);
+		antialiasShapes.addActionListener(this);
+		antialiasEdges.addActionListener(this);
+		supersample2.addActionListener(this);
+		supersample3.addActionListener(this);
+		orderIndependent = new JCheckBoxMenuItem(
+				"Order-Independent Transparency");
+		renderMenu.add(orderIndependent);
+		orderIndependent.addActionListener(this);
+		occlusionCulling = new JCheckBoxMenuItem("Occlusion Culling");
+		renderMenu.add(occlusionCulling);
+		occlusionCulling.addActionListener(this);
+		dynamicResolution = new JCheckBoxMenuItem("Dynamic Resolution");
+		renderMenu.add(dynamicResolution);
+		dynamicResolution.addActionListener(this);
+		quadView = new JCheckBoxMenuItem("Quad View");
+		renderMenu.add(quadView);
+		quadView.addActionListener(this);
+		frameStats = new JCheckBoxMenuItem("Frame Statistics");
+		renderMenu.add(frameStats);
+		frameStats.addActionListener(this);
 		top.add(renderMenu);
 
 		/*
@@ -240,29 +329,77 @@ public class RenderInterface extends JFrame implements ActionListener,
 	@Override
 	public void actionPerformed(ActionEvent e) {
 		Object source = e.getSource();
+		// The renderer mustn't change under a frame being drawn. Items which
+		// ask the user first stop the frame again once they have an answer.
+		view.stopFrame();
 		if (source.equals(quit)) {
 			System.exit(0);
 		} else if (source.equals(solid)) {
+			view.getRenderer().setPoints(false);
 			view.getRenderer().setWireframe(false);
 			view.repaint();
 		} else if (source.equals(wireframe)) {
+			view.getRenderer().setPoints(false);
 			view.getRenderer().setWireframe(true);
 			view.repaint();
+		} else if (source.equals(points) || source.equals(sparsePoints)) {
+			view.getRenderer().setPoints(true);
+			view.getRenderer().setPointStride(
+					source.equals(sparsePoints) ? SPARSE_POINT_STRIDE : 1);
+			view.repaint();
 		} else if (source.equals(orthogonal)) {
 			view.getRenderer().setOrthogonal(true);
 			view.repaint();
 		} else if (source.equals(perspective)) {
 			view.getRenderer().setOrthogonal(false);
 			view.repaint();
+		} else if (source.equals(orderIndependent)) {
+			view.getRenderer().setOrderIndependentTransparency(
+					orderIndependent.isSelected());
+			view.repaint();
+		} else if (source.equals(occlusionCulling)) {
+			view.getRenderer().setOcclusionCulling(
+					occlusionCulling.isSelected());
+			view.repaint();
+		} else if (source.equals(antialiasOff)) {
+			view.getRenderer().setAntialiasing(Renderer.ANTIALIAS_OFF);
+			view.repaint();
+		} else if (source.equals(antialiasShapes)) {
+			view.getRenderer().setAntialiasing(Renderer.ANTIALIAS_SHAPES);
+			view.repaint();
+		} else if (source.equals(antialiasEdges)) {
+			view.getRenderer().setAntialiasing(Renderer.ANTIALIAS_EDGE_FILTER);
+			view.repaint();
+		} else if (source.equals(supersample2)
+				|| source.equals(supersample3)) {
+			view.getRenderer().setSupersampling(
+					source.equals(supersample2) ? 2 : 3);
+			view.getRenderer().setAntialiasing(Renderer.ANTIALIAS_SUPERSAMPLE);
+			view.repaint();
+		} else if (source.equals(quadView)) {
+			showQuadView(quadView.isSelected());
+		} else if (source.equals(dynamicResolution)) {
+			view.getRenderer().setTargetFrameTime(
+					dynamicResolution.isSelected() ? TARGET_FRAME_TIME : 0);
+			view.repaint();
+		} else if (source.equals(frameStats)) {
+			view.setShowStats(frameStats.isSelected());
 		} else if (source.equals(stlImport)) {
 			int userChoice = fc.showOpenDialog(this);
 			if (userChoice == JFileChooser.APPROVE_OPTION) {
 				File file = fc.getSelectedFile();
-				STLLoader loader = new STLLoader(this, file, view.getScene());
+				STLLoader loader = new STLLoader(this, file);
+				loader.setCompressed(compressImports.isSelected());
+				loader.setStreamed(streamImports.isSelected());
+				loader.setOffHeap(offHeapImports.isSelected());
 				loader.addChangeListener(this);
 				Thread loadThread = new Thread(loader);
 				loadThread.start();
 			}
+		} else if (source.equals(exportTurntable)) {
+			exportTurntable();
+		} else if (source.equals(rayTrace)) {
+			rayTrace();
 		} else if (source.equals(lightSource)) {
 			moveLightSource();
 		} else if (source.equals(translate)) {
@@ -286,7 +423,9 @@ public class RenderInterface extends JFrame implements ActionListener,
 		Vector3D v = getVectorFromUser("Set Light Location",
 				"New location (x, y, z):");
 		if (v != null) {
+			view.stopFrame();
 			view.getScene().getLight().setCoordinates(v.x, v.y, v.z);
+			view.getScene().changed();
 			view.repaint();
 		}
 	}
@@ -295,6 +434,7 @@ public class RenderInterface extends JFrame implements ActionListener,
 		Vector3D v = getVectorFromUser("Translate Entity",
 				"Translation vector (x, y, z):");
 		if (v != null) {
+			view.stopFrame();
 			Entity3D entity = view.getSelectedEntity();
 			Transform3D.translate(entity, v);
 			view.repaint();
@@ -308,6 +448,7 @@ public class RenderInterface extends JFrame implements ActionListener,
 			try {
 				float rotation = getFloatFromUser("Rotate Entity",
 						"Rotation amount (Radians):");
+				view.stopFrame();
 				Entity3D entity = view.getSelectedEntity();
 				Transform3D.rotate(v, entity, rotation);
 				view.repaint();
@@ -320,12 +461,147 @@ public class RenderInterface extends JFrame implements ActionListener,
 		Vector3D v = getVectorFromUser("Scale Entity",
 				"Scaling vector (x, y, z):");
 		if (v != null) {
+			view.stopFrame();
 			Entity3D entity = view.getSelectedEntity();
 			Transform3D.scale(entity, v);
 			view.repaint();
 		}
 	}
 
+	/**
+	 * Swaps the single view for the top, front, side and perspective quad
+	 * view of the same scene, or back. The quad view draws its own way, so
+	 * the settings of the single view's renderer are disabled while it shows.
+	 * 
+	 * @param on
+	 */
+	private void showQuadView(boolean on) {
+		if (quad == null) {
+			quad = new QuadView(view.getScene());
+			quad.setBackground(Color.LIGHT_GRAY);
+		}
+		quad.setScene(view.getScene());
+		JMenuItem[] ignored = { wireframe, solid, points, sparsePoints,
+				orthogonal, perspective, antialiasOff, antialiasShapes,
+				antialiasEdges, supersample2, supersample3, orderIndependent,
+				occlusionCulling, dynamicResolution, frameStats };
+		for (JMenuItem item : ignored) {
+			item.setEnabled(!on);
+		}
+		remove(on ? view : quad);
+		add(on ? quad : view, viewConstraints);
+		validate();
+		repaint();
+	}
+
+	/*
+	 * Renders a turntable of the scene as the view shows it into a directory of
+	 * PNG frames, in the background.
+	 */
+	private void exportTurntable() {
+		String input = JOptionPane.showInputDialog(this, "Number of frames:",
+				String.valueOf(TURNTABLE_FRAMES));
+		if (input == null)
+			return;
+		final int frames;
+		try {
+			frames = Integer.parseInt(input.trim());
+		} catch (NumberFormatException nfe) {
+			JOptionPane.showMessageDialog(this, "Incorrect number format.",
+					"Malformed Input", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		JFileChooser chooser = new JFileChooser();
+		chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+		if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		final File directory = chooser.getSelectedFile();
+
+		view.stopFrame();
+		final FrameExporter exporter = new FrameExporter(view.getScene(),
+				view.getRenderer(), view.getWidth(), view.getHeight());
+		final ProgressMonitor pm = new ProgressMonitor(this,
+				"Exporting turntable", "", 0, frames);
+		pm.setMillisToPopup(0);
+		exporter.setChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						pm.setProgress(exporter.getFramesWritten());
+					}
+				});
+			}
+		});
+		Thread exportThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					exporter.export(directory, "frame", frames,
+							FrameExporter.TURNTABLE);
+				} catch (IOException e) {
+					System.out.println("Export failed: " + e.getMessage());
+				}
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						pm.close();
+					}
+				});
+			}
+		});
+		exportThread.start();
+	}
+
+	/*
+	 * Ray traces a still of the scene as the view shows it into a PNG file, in
+	 * the background.
+	 */
+	private void rayTrace() {
+		JFileChooser chooser = new JFileChooser();
+		if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		final File file = chooser.getSelectedFile();
+
+		view.stopFrame();
+		final RayTracer tracer = new RayTracer(view.getScene(),
+				view.getRenderer());
+		tracer.setSamples(RAY_TRACE_SAMPLES);
+		final int width = view.getWidth();
+		final int height = view.getHeight();
+		final ProgressMonitor pm = new ProgressMonitor(this, "Ray tracing",
+				"", 0, RAY_TRACE_SAMPLES);
+		pm.setMillisToPopup(0);
+		tracer.setChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				if (pm.isCanceled())
+					tracer.cancel();
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						pm.setProgress(tracer.getPasses());
+					}
+				});
+			}
+		});
+		Thread traceThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					tracer.render(width, height);
+					// A cancelled trace still saves the passes it finished.
+					BufferedImage image = tracer.getImage();
+					if (image != null)
+						ImageIO.write(image, "png", file);
+				} catch (InterruptedException e) {
+				} catch (IOException e) {
+					System.out.println("Ray trace failed: " + e.getMessage());
+				}
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						pm.close();
+					}
+				});
+			}
+		});
+		traceThread.start();
+	}
+
 	/*
 	 * Removes an entity entirely from the scene.
 	 */
@@ -333,8 +609,10 @@ public class RenderInterface extends JFrame implements ActionListener,
 		int input = JOptionPane.showConfirmDialog(this, "Are you sure?",
 				"Delete Entity", JOptionPane.OK_CANCEL_OPTION);
 		if (input == JOptionPane.OK_OPTION) {
+			view.stopFrame();
 			Entity3D entity = view.getSelectedEntity();
 			view.getScene().removeEntity(entity);
+			dispose(entity);
 			removeNodeFromTree((DefaultMutableTreeNode) tree
 					.getLastSelectedPathComponent());
 			validate();
@@ -351,7 +629,13 @@ public class RenderInterface extends JFrame implements ActionListener,
 		int input = JOptionPane.showConfirmDialog(this, "Are you sure?",
 				"Delete Entity", JOptionPane.OK_CANCEL_OPTION);
 		if (input == JOptionPane.OK_OPTION) {
+			view.stopFrame();
+			ArrayList<Entity3D> removed = new ArrayList<Entity3D>(view
+					.getScene().getEntities());
 			view.getScene().removeAll();
+			for (Entity3D entity : removed) {
+				dispose(entity);
+			}
 			createTree();
 			tree.validate();
 			validate();
@@ -361,6 +645,17 @@ public class RenderInterface extends JFrame implements ActionListener,
 		}
 	}
 
+	/**
+	 * Lets go of what a deleted entity holds outside the heap: its mesh's
+	 * arena, or a streamed model's file and loading threads.
+	 * 
+	 * @param e
+	 */
+	private static void dispose(Entity3D e) {
+		if (e instanceof InstancedEntity3D)
+			((InstancedEntity3D) e).dispose();
+	}
+
 	/*
 	 * Listens for changes in the selected item in the tree.
 	 */
@@ -370,6 +665,7 @@ public class RenderInterface extends JFrame implements ActionListener,
 				.getLastSelectedPathComponent();
 		if (node == null)
 			return;
+		view.stopFrame();
 		Object nodeObject = node.getUserObject();
 		if (nodeObject instanceof Face) {
 			Face face = (Face) nodeObject;
@@ -443,14 +739,33 @@ public class RenderInterface extends JFrame implements ActionListener,
 	}
 
 	/**
-	 * Allows loading of STL files to be put into another thread.
+	 * Allows loading of STL files to be put into another thread. The loader
+	 * calls this from its thread once it's done, and the entity is added to
+	 * the scene on the event thread. Streamed models also call this as their
+	 * chunks arrive, to be drawn again.
 	 * 
 	 * @param e
 	 */
 	@Override
 	public void stateChanged(ChangeEvent e) {
+		if (e.getSource() instanceof StreamedModel) {
+			view.repaint();
+			return;
+		}
 		STLLoader loader = (STLLoader) e.getSource();
-		addEntityToTree(loader.getEntity());
-		view.repaint();
+		final Entity3D entity = loader.getEntity();
+		if (entity == null)
+			return;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				view.stopFrame();
+				view.getScene().addEntity(entity);
+				if (entity instanceof StreamedModel)
+					((StreamedModel) entity)
+							.setChangeListener(RenderInterface.this);
+				addEntityToTree(entity);
+				view.repaint();
+			}
+		});
 	}
 }
@@ -0,0 +1,328 @@
+/*
+ * All rights reserved by the author.
+ * Unauthorized distribution is prohibited.
+ */
+
+package com.pascucci.render.view;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.ImageIO;
+
+import com.pascucci.render.engine.Camera;
+import com.pascucci.render.engine.InstancedEntity3D;
+import com.pascucci.render.engine.Mesh;
+import com.pascucci.render.engine.Renderer;
+import com.pascucci.render.engine.Scene;
+import com.pascucci.render.engine.Transform3D;
+import com.pascucci.render.utils.MeshCache;
+import com.pascucci.render.utils.Utils3D;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves previews of STL files as PNG images over HTTP, so other tools can
+ * show parts without starting a renderer of their own:
+ *
+ * <pre>
+ * RenderServer [port [root-directory [cache-megabytes]]]
+ *
+ * GET /render?path=part.stl&amp;width=640&amp;height=480&amp;rx=30&amp;ry=45
+ * </pre>
+ *
+ * The path is taken relative to the root directory, and files outside it
+ * aren't served. rx and ry rotate the part about the x and y axes, in
+ * degrees. zoom scales the picture, and wireframe and orthogonal may be set
+ * to true.
+ *
+ * Each request runs on a virtual thread. Parsed parts are kept in a
+ * MeshCache, so only the first view of a part reads the file. Requests for
+ * exactly the same picture which arrive while it is being drawn share the
+ * one drawing. Only one picture per processor is drawn at once; the rest
+ * wait their turn, so a burst of requests can't run the server out of memory
+ * with images and renderers. The server only listens on the loopback
+ * interface.
+ *
+ * @author Nick Pascucci <nick@kestrelrobotics.com>
+ */
+
+public class RenderServer implements HttpHandler {
+	private static final int DEFAULT_PORT = 8787;
+	private static final long DEFAULT_CACHE_MB = 512;
+	private static final int MAX_SIZE = 4096;
+	private static final double CAMERA_DISTANCE = 800;
+	private static final double MODEL_RADIUS = 200;
+	private static final Color MODEL_COLOR = Color.LIGHT_GRAY;
+
+	private final File root;
+	private final MeshCache cache;
+	// Permits to draw. Each drawing holds one, so no more renderers are made
+	// than there are permits.
+	private final Semaphore drawers = new Semaphore(Runtime.getRuntime()
+			.availableProcessors());
+	// Renderers aren't thread safe, so each request borrows one.
+	private final ConcurrentLinkedQueue<Renderer> renderers = new ConcurrentLinkedQueue<Renderer>();
+	// Pictures being drawn, by file version and view.
+	private final ConcurrentHashMap<String, FutureTask<byte[]>> drawing = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
+	/**
+	 * A bad request, answered with the given status.
+	 */
+	@SuppressWarnings("serial")
+	private static class RequestException extends Exception {
+		final int status;
+
+		RequestException(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+	}
+
+	/**
+	 * Creates a handler serving the STL files under a directory.
+	 *
+	 * @param root
+	 * @param cacheBytes
+	 *            How many bytes of parsed parts to keep.
+	 * @throws IOException
+	 */
+	public RenderServer(File root, long cacheBytes) throws IOException {
+		this.root = root.getCanonicalFile();
+		this.cache = new MeshCache(cacheBytes);
+	}
+
+	public static void main(String[] args) throws IOException {
+		System.setProperty("java.awt.headless", "true");
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		File root = new File(args.length > 1 ? args[1] : ".");
+		long cacheMB = args.length > 2 ? Long.parseLong(args[2])
+				: DEFAULT_CACHE_MB;
+
+		HttpServer server = HttpServer.create(new InetSocketAddress(
+				"localhost", port), 0);
+		server.createContext("/render", new RenderServer(root, cacheMB << 20));
+		server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+		server.start();
+		System.out.println("Serving " + root.getCanonicalPath()
+				+ " on http://localhost:" + port + "/render");
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("GET"))
+				throw new RequestException(405, "Only GET is supported.");
+			byte[] png = getImage(parseQuery(exchange.getRequestURI()
+					.getRawQuery()));
+			exchange.getResponseHeaders().set("Content-Type", "image/png");
+			send(exchange, 200, png);
+		} catch (RequestException e) {
+			sendError(exchange, e.status, e.getMessage());
+		} catch (FileNotFoundException e) {
+			sendError(exchange, 404, "No such file: " + e.getMessage());
+		} catch (IOException e) {
+			sendError(exchange, 422, e.getMessage());
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			sendError(exchange, 500, e.toString());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Gets the picture a request asks for, drawing it unless the same picture
+	 * is already being drawn for another request.
+	 */
+	private byte[] getImage(HashMap<String, String> query)
+			throws RequestException, IOException {
+		String path = query.get("path");
+		if (path == null)
+			throw new RequestException(400, "No path given.");
+		final File file = new File(root, path).getCanonicalFile();
+		if (!file.getPath().startsWith(root.getPath() + File.separator))
+			throw new RequestException(403, "Path is outside the root.");
+		final int width = getInt(query, "width", 640);
+		final int height = getInt(query, "height", 480);
+		if (width < 1 || height < 1 || width > MAX_SIZE || height > MAX_SIZE)
+			throw new RequestException(400, "Size must be from 1 to "
+					+ MAX_SIZE + ".");
+		final double rx = Math.toRadians(getDouble(query, "rx", 0));
+		final double ry = Math.toRadians(getDouble(query, "ry", 0));
+		final double zoom = getDouble(query, "zoom", 1);
+		if (zoom <= 0)
+			throw new RequestException(400, "Zoom must be positive.");
+		final boolean wireframe = Boolean.parseBoolean(query.get("wireframe"));
+		final boolean orthogonal = Boolean
+				.parseBoolean(query.get("orthogonal"));
+
+		String key = file.getPath() + '@' + file.lastModified() + ' ' + width
+				+ 'x' + height + ' ' + rx + ' ' + ry + ' ' + zoom + ' '
+				+ wireframe + ' ' + orthogonal;
+		FutureTask<byte[]> task = new FutureTask<byte[]>(
+				new Callable<byte[]>() {
+					public byte[] call() throws IOException {
+						return draw(cache.get(file), width, height, rx, ry,
+								zoom, wireframe, orthogonal);
+					}
+				});
+		FutureTask<byte[]> running = drawing.putIfAbsent(key, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				drawing.remove(key, task);
+			}
+		}
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Draws a part, centered and filling most of the picture at a zoom of
+	 * one, and encodes the picture as a PNG. Waits for a permit first.
+	 */
+	private byte[] draw(Mesh mesh, int width, int height, double rx,
+			double ry, double zoom, boolean wireframe, boolean orthogonal)
+			throws IOException {
+		try {
+			drawers.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted.");
+		}
+		try {
+			return drawPermitted(mesh, width, height, rx, ry, zoom, wireframe,
+					orthogonal);
+		} finally {
+			drawers.release();
+		}
+	}
+
+	private byte[] drawPermitted(Mesh mesh, int width, int height, double rx,
+			double ry, double zoom, boolean wireframe, boolean orthogonal)
+			throws IOException {
+		InstancedEntity3D part = new InstancedEntity3D(mesh);
+		part.setColor(MODEL_COLOR);
+		part.setBorderColor(MODEL_COLOR);
+		Utils3D.fit(part, MODEL_RADIUS);
+		Transform3D.rotate(Transform3D.X_AXIS, part, rx);
+		Transform3D.rotate(Transform3D.Y_AXIS, part, ry);
+		Scene scene = new Scene();
+		scene.setCamera(new Camera(0, 0, CAMERA_DISTANCE));
+		scene.addEntity(part);
+
+		Renderer renderer = renderers.poll();
+		if (renderer == null)
+			renderer = new Renderer();
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2 = image.createGraphics();
+		try {
+			double nearest = orthogonal ? MODEL_RADIUS : MODEL_RADIUS
+					* CAMERA_DISTANCE / (CAMERA_DISTANCE - MODEL_RADIUS);
+			renderer.setScale(zoom * .45 * Math.min(width, height) / nearest);
+			renderer.setWireframe(wireframe);
+			renderer.setOrthogonal(orthogonal);
+			renderer.renderScene(g2, scene, width, height);
+		} finally {
+			g2.dispose();
+			renderers.add(renderer);
+		}
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", png);
+		return png.toByteArray();
+	}
+
+	private static HashMap<String, String> parseQuery(String query)
+			throws RequestException {
+		HashMap<String, String> values = new HashMap<String, String>();
+		if (query == null)
+			return values;
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals < 0)
+				continue;
+			try {
+				values.put(URLDecoder.decode(pair.substring(0, equals),
+						StandardCharsets.UTF_8), URLDecoder.decode(
+						pair.substring(equals + 1), StandardCharsets.UTF_8));
+			} catch (IllegalArgumentException e) {
+				throw new RequestException(400, "Malformed query.");
+			}
+		}
+		return values;
+	}
+
+	private static int getInt(HashMap<String, String> query, String name,
+			int defaultValue) throws RequestException {
+		String value = query.get(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new RequestException(400, "Bad " + name + ": " + value);
+		}
+	}
+
+	private static double getDouble(HashMap<String, String> query,
+			String name, double defaultValue) throws RequestException {
+		String value = query.get(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			double d = Double.parseDouble(value);
+			if (Double.isNaN(d) || Double.isInfinite(d))
+				throw new NumberFormatException();
+			return d;
+		} catch (NumberFormatException e) {
+			throw new RequestException(400, "Bad " + name + ": " + value);
+		}
+	}
+
+	private static void sendError(HttpExchange exchange, int status,
+			String message) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type",
+				"text/plain; charset=utf-8");
+		send(exchange, status, (message + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void send(HttpExchange exchange, int status, byte[] body)
+			throws IOException {
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+}